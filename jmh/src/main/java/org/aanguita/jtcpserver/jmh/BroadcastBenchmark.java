@@ -0,0 +1,146 @@
+package org.aanguita.jtcpserver.jmh;
+
+import org.aanguita.jtcpserver.channel.ChannelConnectionPoint;
+import org.aanguita.jtcpserver.clientserver.client.ClientModule;
+import org.aanguita.jtcpserver.clientserver.server.ServerAction;
+import org.aanguita.jtcpserver.clientserver.server.ServerModule;
+import org.aanguita.jtcpserver.communication.CommError;
+import org.aanguita.jtcpserver.communication.SlowConsumerPolicy;
+import org.aanguita.jacuzzi.network.IP4Port;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages broadcast by a ServerModule (writeAll) to N clients connected over loopback. Batches of broadcasts are
+ * sent, and each batch is waited for until all clients have received it, so the result is the time taken by a
+ * broadcast to reach every client
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    private static final byte CHANNEL = 1;
+
+    private static final int BATCH = 16;
+
+    @Param({"1", "8", "32"})
+    public int clients;
+
+    @Param({"64", "4096"})
+    public int payloadSize;
+
+    private ServerModule serverModule;
+
+    private List<ChannelConnectionPoint> clientCCPs;
+
+    private byte[] payload;
+
+    private DeliveryCounter delivered;
+
+    private long expected;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        serverModule = new ServerModule(0, new IdleServerAction(), channelSets());
+        serverModule.startListeningConnections();
+        delivered = new DeliveryCounter();
+        clientCCPs = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            ClientModule clientModule = new ClientModule(new IP4Port("127.0.0.1", serverModule.getActualListeningPort()), new ChannelModuleBenchmark.CountingChannelAction(delivered), channelSets());
+            clientCCPs.add(clientModule.connect());
+            clientModule.start();
+        }
+        while (serverModule.getConnectedClientsCount() < clients) {
+            Thread.sleep(10);
+        }
+        payload = new byte[payloadSize];
+        expected = 0L;
+    }
+
+    private static Set<Set<Byte>> channelSets() {
+        Set<Set<Byte>> concurrentChannels = new HashSet<>();
+        Set<Byte> channels = new HashSet<>();
+        channels.add(CHANNEL);
+        concurrentChannels.add(channels);
+        return concurrentChannels;
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (ChannelConnectionPoint ccp : clientCCPs) {
+            ccp.disconnect();
+        }
+        serverModule.stopAndDisconnect();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void writeAll() throws IOException {
+        for (int i = 0; i < BATCH; i++) {
+            serverModule.writeAll(CHANNEL, payload);
+        }
+        expected += (long) BATCH * clients;
+        delivered.await(expected);
+    }
+
+    private static class IdleServerAction implements ServerAction {
+
+        @Override
+        public void newClientConnection(String clientID, ChannelConnectionPoint ccp, IP4Port ip4Port) {
+        }
+
+        @Override
+        public void newMessage(String clientID, ChannelConnectionPoint ccp, byte channel, Object message) {
+        }
+
+        @Override
+        public void newMessage(String clientID, ChannelConnectionPoint ccp, byte channel, byte[] data) {
+        }
+
+        @Override
+        public void channelFreed(String clientID, ChannelConnectionPoint ccp, byte channel) {
+        }
+
+        @Override
+        public void clientDisconnected(String clientID, ChannelConnectionPoint ccp, boolean expected) {
+        }
+
+        @Override
+        public void clientError(String clientID, ChannelConnectionPoint ccp, CommError commError) {
+        }
+
+        @Override
+        public void newConnectionError(Exception e, IP4Port ip4Port) {
+        }
+
+        @Override
+        public void clientSlow(String clientID, ChannelConnectionPoint ccp, SlowConsumerPolicy slowConsumerPolicy) {
+        }
+
+        @Override
+        public void TCPServerError(Exception e) {
+        }
+    }
+}
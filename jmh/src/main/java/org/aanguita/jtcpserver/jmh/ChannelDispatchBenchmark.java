@@ -0,0 +1,154 @@
+package org.aanguita.jtcpserver.jmh;
+
+import org.aanguita.jtcpserver.channel.ChannelAction;
+import org.aanguita.jtcpserver.channel.ChannelConnectionPoint;
+import org.aanguita.jtcpserver.channel.ChannelDispatchHook;
+import org.aanguita.jtcpserver.channel.ChannelModule;
+import org.aanguita.jtcpserver.communication.CommError;
+import org.aanguita.jtcpserver.communication.CommunicationConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatch of already decoded messages through a ChannelModule: routing to the channel set, FSM lookup and delivery
+ * to the ChannelAction. The module uses a worker executor that runs tasks in the calling thread, so the whole path
+ * runs in the benchmark thread. Run with -prof gc: gc.alloc.rate.norm should be 0 B/op for both message kinds.
+ * <p/>
+ * Messages go round-robin through 16 channels, grouped in 1 channel set or in 16 channel sets (one per channel). See
+ * ChannelModuleBenchmark for the dispatch of messages received over a connection. The messages are handed to the
+ * module through ChannelDispatchHook.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChannelDispatchBenchmark {
+
+    private static final int CHANNELS = 16;
+
+    @Param({"1", "16"})
+    public int channelSets;
+
+    private ServerSocket serverSocket;
+
+    private Socket socket;
+
+    private Socket peer;
+
+    private ChannelModule channelModule;
+
+    private Object[] byteArrayMessages;
+
+    private Object[] objectMessages;
+
+    private int next;
+
+    private long delivered;
+
+    @Setup
+    public void setup() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        peer = serverSocket.accept();
+        CommunicationConfig config = new CommunicationConfig();
+        config.setWorkerExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        Set<Set<Byte>> concurrentChannels = new HashSet<>();
+        for (int set = 0; set < channelSets; set++) {
+            Set<Byte> channels = new HashSet<>();
+            for (int channel = set; channel < CHANNELS; channel += channelSets) {
+                channels.add((byte) channel);
+            }
+            concurrentChannels.add(channels);
+        }
+        channelModule = new ChannelModule("benchmark", socket, new CountingChannelAction(), concurrentChannels, "benchmark", config);
+        byteArrayMessages = new Object[CHANNELS];
+        objectMessages = new Object[CHANNELS];
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            byteArrayMessages[channel] = ChannelDispatchHook.byteArrayMessage((byte) channel, new byte[64]);
+            objectMessages[channel] = ChannelDispatchHook.objectMessage((byte) channel, "message");
+        }
+        next = 0;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        channelModule.disconnect();
+        socket.close();
+        peer.close();
+        serverSocket.close();
+    }
+
+    @Benchmark
+    public long byteArrayMessage() {
+        int channel = nextChannel();
+        ChannelDispatchHook.dispatch(channelModule, (byte) channel, byteArrayMessages[channel]);
+        return delivered;
+    }
+
+    @Benchmark
+    public long objectMessage() {
+        int channel = nextChannel();
+        ChannelDispatchHook.dispatch(channelModule, (byte) channel, objectMessages[channel]);
+        return delivered;
+    }
+
+    private int nextChannel() {
+        next = (next + 1) % CHANNELS;
+        return next;
+    }
+
+    private class CountingChannelAction implements ChannelAction {
+
+        @Override
+        public void newMessage(ChannelConnectionPoint ccp, byte channel, Object message) {
+            delivered++;
+        }
+
+        @Override
+        public void newMessage(ChannelConnectionPoint ccp, byte channel, byte[] data) {
+            delivered++;
+        }
+
+        @Override
+        public void channelFreed(ChannelConnectionPoint ccp, byte channel) {
+        }
+
+        @Override
+        public void disconnected(ChannelConnectionPoint ccp, boolean expected) {
+        }
+
+        @Override
+        public void error(ChannelConnectionPoint ccp, CommError e) {
+        }
+
+        @Override
+        public void writabilityChanged(ChannelConnectionPoint ccp, boolean writable) {
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.aanguita.jtcpserver.jmh;
+
+import org.aanguita.jtcpserver.channel.ChannelAction;
+import org.aanguita.jtcpserver.channel.ChannelConnectionPoint;
+import org.aanguita.jtcpserver.channel.ChannelModule;
+import org.aanguita.jtcpserver.communication.CommError;
+import org.aanguita.jtcpserver.communication.CommunicationConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Messages sent through 8 channels of a ChannelModule and dispatched to the ChannelAction of the ChannelModule at the
+ * other end of a loopback connection. The channels are grouped in 1 channel set (all messages handled by one thread,
+ * one after the other) or in 8 channel sets (one handling thread per channel). Batches of messages are sent
+ * round-robin through the channels, and each batch is waited for at the receiving module
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChannelModuleBenchmark {
+
+    private static final int CHANNELS = 8;
+
+    private static final int BATCH = 256;
+
+    @Param({"1", "8"})
+    public int channelSets;
+
+    @Param({"64", "4096"})
+    public int payloadSize;
+
+    private LoopbackSocketPair socketPair;
+
+    private ChannelModule sender;
+
+    private ChannelModule receiver;
+
+    private ChannelConnectionPoint ccp;
+
+    private byte[] payload;
+
+    private DeliveryCounter delivered;
+
+    private long expected;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        socketPair = new LoopbackSocketPair(false);
+        CommunicationConfig config = new CommunicationConfig();
+        config.setCompactChannelFormat(true);
+        delivered = new DeliveryCounter();
+        sender = new ChannelModule("sender", socketPair.getSocket(), new CountingChannelAction(new DeliveryCounter()), channelSets(), "sender", config);
+        receiver = new ChannelModule("receiver", socketPair.getPeer(), new CountingChannelAction(delivered), channelSets(), "receiver", config);
+        sender.start();
+        receiver.start();
+        // wait for the format handshake, so the features agreed in it are in use from the first message
+        sender.getFormatHandshake().get(10, TimeUnit.SECONDS);
+        receiver.getFormatHandshake().get(10, TimeUnit.SECONDS);
+        ccp = sender.getChannelConnectionPoint();
+        payload = new byte[payloadSize];
+        expected = 0L;
+    }
+
+    private Set<Set<Byte>> channelSets() {
+        Set<Set<Byte>> concurrentChannels = new HashSet<>();
+        for (int set = 0; set < channelSets; set++) {
+            Set<Byte> channels = new HashSet<>();
+            for (int channel = set; channel < CHANNELS; channel += channelSets) {
+                channels.add((byte) channel);
+            }
+            concurrentChannels.add(channels);
+        }
+        return concurrentChannels;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sender.disconnect();
+        receiver.disconnect();
+        socketPair.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void dispatch() {
+        for (int i = 0; i < BATCH; i++) {
+            ccp.write((byte) (i % CHANNELS), payload, i == BATCH - 1);
+        }
+        expected += BATCH;
+        delivered.await(expected);
+    }
+
+    static class CountingChannelAction implements ChannelAction {
+
+        private final DeliveryCounter delivered;
+
+        CountingChannelAction(DeliveryCounter delivered) {
+            this.delivered = delivered;
+        }
+
+        @Override
+        public void newMessage(ChannelConnectionPoint ccp, byte channel, Object message) {
+            delivered.delivered();
+        }
+
+        @Override
+        public void newMessage(ChannelConnectionPoint ccp, byte channel, byte[] data) {
+            delivered.delivered();
+        }
+
+        @Override
+        public void channelFreed(ChannelConnectionPoint ccp, byte channel) {
+        }
+
+        @Override
+        public void disconnected(ChannelConnectionPoint ccp, boolean expected) {
+        }
+
+        @Override
+        public void error(ChannelConnectionPoint ccp, CommError e) {
+        }
+
+        @Override
+        public void writabilityChanged(ChannelConnectionPoint ccp, boolean writable) {
+        }
+    }
+}
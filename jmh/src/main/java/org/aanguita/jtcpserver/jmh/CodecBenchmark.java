@@ -0,0 +1,93 @@
+package org.aanguita.jtcpserver.jmh;
+
+import org.aanguita.jtcpserver.channel.EncodedChannelMessage;
+import org.aanguita.jtcpserver.communication.CommunicationConfig;
+import org.aanguita.jtcpserver.communication.codec.BinaryCodec;
+import org.aanguita.jtcpserver.communication.codec.Codec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encoding and decoding an object message (a list with an id, a name and a payload of the given size) with
+ * the default Java serialization codec and with the BinaryCodec, and of encoding it as a channel message in the legacy
+ * format (wrapped in a ChannelMessage, written by its registered serializer with the BinaryCodec) and in the compact
+ * format (channel in the frame header). Run with -prof gc to compare the allocations of each codec
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    private static final byte CHANNEL = 1;
+
+    @Param({"java", "binary"})
+    public String codec;
+
+    @Param({"64", "4096", "65536"})
+    public int payloadSize;
+
+    private Codec messageCodec;
+
+    private CommunicationConfig legacyConfig;
+
+    private CommunicationConfig compactConfig;
+
+    private ArrayList<Object> message;
+
+    private byte[] encodedMessage;
+
+    @Setup
+    public void setup() throws IOException {
+        legacyConfig = new CommunicationConfig();
+        compactConfig = new CommunicationConfig();
+        compactConfig.setCompactChannelFormat(true);
+        if (codec.equals("binary")) {
+            // channel messages are registered in the codec, so both configurations share the same one
+            BinaryCodec binaryCodec = new BinaryCodec();
+            legacyConfig.setCodec(binaryCodec);
+            compactConfig.setCodec(binaryCodec);
+        }
+        messageCodec = legacyConfig.getCodec();
+        message = new ArrayList<>();
+        message.add(12345L);
+        message.add("CodecBenchmark");
+        message.add(new byte[payloadSize]);
+        encodedMessage = messageCodec.encode(message);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return messageCodec.encode(message);
+    }
+
+    @Benchmark
+    public Object decode() throws IOException, ClassNotFoundException {
+        return messageCodec.decode(encodedMessage);
+    }
+
+    @Benchmark
+    public EncodedChannelMessage encodeLegacyChannelMessage() throws IOException {
+        return EncodedChannelMessage.of(CHANNEL, message, legacyConfig);
+    }
+
+    @Benchmark
+    public EncodedChannelMessage encodeCompactChannelMessage() throws IOException {
+        return EncodedChannelMessage.of(CHANNEL, message, compactConfig);
+    }
+}
@@ -0,0 +1,165 @@
+package org.aanguita.jtcpserver.jmh;
+
+import org.aanguita.jtcpserver.communication.ByteArrayWrapper;
+import org.aanguita.jtcpserver.communication.CommunicationAction;
+import org.aanguita.jtcpserver.communication.CommunicationConfig;
+import org.aanguita.jtcpserver.communication.CommunicationModule;
+import org.aanguita.jtcpserver.communication.EventLoopGroup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Byte array messages between two CommunicationModules over loopback, with the blocking transport (one reader thread
+ * per module) or the event loop transport:
+ * - roundTrip: a message is sent and echoed back by the other module. Average time of the whole round trip
+ * - throughput: batches of messages are sent one way, and each batch is waited for at the other module
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommunicationModuleBenchmark {
+
+    private static final int BATCH = 100;
+
+    /**
+     * Prefixes of the messages that the other module echoes and of the messages that it only counts
+     */
+    private static final byte ECHO = 0;
+
+    private static final byte ONE_WAY = 1;
+
+    @Param({"64", "1024", "65536"})
+    public int payloadSize;
+
+    @Param({"blocking", "eventLoop"})
+    public String transport;
+
+    private LoopbackSocketPair socketPair;
+
+    private EventLoopGroup eventLoopGroup;
+
+    private CommunicationModule communicationModule;
+
+    private CommunicationModule echoModule;
+
+    private byte[] payload;
+
+    private DeliveryCounter responses;
+
+    private DeliveryCounter oneWayMessages;
+
+    private long expectedResponses;
+
+    private long expectedOneWayMessages;
+
+    @Setup
+    public void setup() throws IOException {
+        CommunicationConfig config = new CommunicationConfig();
+        if (transport.equals("eventLoop")) {
+            eventLoopGroup = new EventLoopGroup("benchmark", 2);
+            config.setEventLoopGroup(eventLoopGroup);
+        }
+        socketPair = new LoopbackSocketPair(config.isEventLoopTransport());
+        responses = new DeliveryCounter();
+        oneWayMessages = new DeliveryCounter();
+        communicationModule = new CommunicationModule("benchmark", socketPair.getSocket(), new CountingAction(responses), config, true);
+        echoModule = new CommunicationModule("echo", socketPair.getPeer(), new EchoAction(), config, true);
+        communicationModule.start();
+        echoModule.start();
+        payload = new byte[payloadSize];
+        expectedResponses = 0L;
+        expectedOneWayMessages = 0L;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        communicationModule.disconnect();
+        echoModule.disconnect();
+        socketPair.close();
+        if (eventLoopGroup != null) {
+            eventLoopGroup.shutdown();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void roundTrip() {
+        communicationModule.write(ECHO, payload, true);
+        responses.await(++expectedResponses);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void throughput() {
+        for (int i = 0; i < BATCH; i++) {
+            communicationModule.write(ONE_WAY, payload, i == BATCH - 1);
+        }
+        expectedOneWayMessages += BATCH;
+        oneWayMessages.await(expectedOneWayMessages);
+    }
+
+    private static class CountingAction implements CommunicationAction {
+
+        private final DeliveryCounter deliveryCounter;
+
+        private CountingAction(DeliveryCounter deliveryCounter) {
+            this.deliveryCounter = deliveryCounter;
+        }
+
+        @Override
+        public void newMessage(Object message) {
+            deliveryCounter.delivered();
+        }
+
+        @Override
+        public void stopped() {
+        }
+
+        @Override
+        public void writabilityChanged(boolean writable) {
+        }
+    }
+
+    /**
+     * Echoes the messages sent with the ECHO prefix, and counts the rest. Echoes are written asynchronously, since the
+     * event loop threads must not block
+     */
+    private class EchoAction implements CommunicationAction {
+
+        @Override
+        public void newMessage(Object message) {
+            ByteArrayWrapper byteArrayWrapper = (ByteArrayWrapper) message;
+            if (byteArrayWrapper.getPrefix() == ECHO) {
+                echoModule.writeAsync(ECHO, byteArrayWrapper.getData());
+            } else {
+                oneWayMessages.delivered();
+            }
+        }
+
+        @Override
+        public void stopped() {
+        }
+
+        @Override
+        public void writabilityChanged(boolean writable) {
+        }
+    }
+}
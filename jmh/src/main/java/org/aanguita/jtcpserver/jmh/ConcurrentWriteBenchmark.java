@@ -0,0 +1,88 @@
+package org.aanguita.jtcpserver.jmh;
+
+import org.aanguita.jtcpserver.communication.CommunicationConfig;
+import org.aanguita.jtcpserver.communication.CommunicationModule;
+import org.aanguita.jtcpserver.communication.codec.BinaryCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Object writes from 1, 4 and 16 threads sharing one CommunicationModule. Objects are encoded by each writer before
+ * taking the module write lock, so throughput should scale with the writers until the socket becomes the limit
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcurrentWriteBenchmark {
+
+    @Param({"java", "binary"})
+    public String codec;
+
+    private LoopbackConnection connection;
+
+    private CommunicationModule communicationModule;
+
+    private HashMap<String, Object> message;
+
+    @Setup
+    public void setup() throws IOException {
+        connection = new LoopbackConnection();
+        CommunicationConfig config = new CommunicationConfig();
+        if (codec.equals("binary")) {
+            config.setCodec(new BinaryCodec());
+        }
+        communicationModule = new CommunicationModule("benchmark", connection.getSocket(), null, config);
+        message = new HashMap<>();
+        message.put("id", 12345L);
+        message.put("name", "ConcurrentWriteBenchmark");
+        ArrayList<Object> values = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            values.add("value-" + i);
+            values.add(i);
+        }
+        message.put("values", values);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        communicationModule.disconnect();
+        connection.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long writers1() {
+        return communicationModule.write(message);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long writers4() {
+        return communicationModule.write(message);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long writers16() {
+        return communicationModule.write(message);
+    }
+}
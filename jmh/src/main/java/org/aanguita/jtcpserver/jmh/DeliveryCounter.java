@@ -0,0 +1,46 @@
+package org.aanguita.jtcpserver.jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the messages delivered at the receiving end of a benchmark, so the sending thread can wait for a batch to
+ * arrive. Waiting spins (yielding), since the batches of the benchmarks take microseconds to milliseconds
+ */
+public class DeliveryCounter {
+
+    /**
+     * Longest wait for a batch, after which the benchmark fails instead of hanging (e.g. if messages are lost)
+     */
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+    private final AtomicLong delivered;
+
+    public DeliveryCounter() {
+        delivered = new AtomicLong();
+    }
+
+    public void delivered() {
+        delivered.incrementAndGet();
+    }
+
+    public long get() {
+        return delivered.get();
+    }
+
+    /**
+     * Waits until a number of messages have been delivered in total
+     *
+     * @param target the number of messages
+     * @throws IllegalStateException if the messages are not delivered in time
+     */
+    public void await(long target) throws IllegalStateException {
+        long deadline = System.nanoTime() + TIMEOUT;
+        while (delivered.get() < target) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new IllegalStateException("Only " + delivered.get() + " of " + target + " messages were delivered");
+            }
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package org.aanguita.jtcpserver.jmh;
+
+import org.aanguita.jtcpserver.channel.ChannelConnectionPoint;
+import org.aanguita.jtcpserver.channel.ChannelFSMAction;
+import org.aanguita.jtcpserver.channel.ChannelModule;
+import org.aanguita.jtcpserver.communication.CommunicationConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Channel FSMs of a ChannelModule at the receiving end of a loopback connection:
+ * - registerChannelFSM, registerSessionFSM: registration of an FSM for a channel or for a session, which finishes
+ * at once and is detached (no messages are involved, so these do not depend on the payload size)
+ * - channelFSMDispatch: batches of messages sent through a channel, and handled by the FSM of that channel
+ * - sessionFSMDispatch: batches of messages sent round-robin through the sessions of a channel, each handled by the
+ * FSM of its session
+ * <p/>
+ * Each batch is waited for at the receiving FSMs
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FSMBenchmark {
+
+    private static final byte CHANNEL = 1;
+
+    private static final byte SESSION_CHANNEL = 2;
+
+    /**
+     * Channel and session used by the registration benchmarks
+     */
+    private static final byte REGISTRATION_CHANNEL = 3;
+
+    private static final int REGISTRATION_SESSION = 0;
+
+    private static final int BATCH = 256;
+
+    @Param({"64", "4096"})
+    public int payloadSize;
+
+    @Param({"1", "1000"})
+    public int sessions;
+
+    private LoopbackSocketPair socketPair;
+
+    private ChannelModule sender;
+
+    private ChannelModule receiver;
+
+    private ChannelConnectionPoint senderCCP;
+
+    private ChannelConnectionPoint receiverCCP;
+
+    private byte[] payload;
+
+    private DeliveryCounter delivered;
+
+    private long expected;
+
+    private int nextSession;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        socketPair = new LoopbackSocketPair(false);
+        CommunicationConfig config = new CommunicationConfig();
+        config.setCompactChannelFormat(true);
+        delivered = new DeliveryCounter();
+        sender = new ChannelModule("sender", socketPair.getSocket(), new ChannelModuleBenchmark.CountingChannelAction(new DeliveryCounter()), channelSets(), "sender", config);
+        receiver = new ChannelModule("receiver", socketPair.getPeer(), new ChannelModuleBenchmark.CountingChannelAction(new DeliveryCounter()), channelSets(), "receiver", config);
+        sender.start();
+        receiver.start();
+        // wait for the format handshake, so the features agreed in it are in use from the first message
+        sender.getFormatHandshake().get(10, TimeUnit.SECONDS);
+        receiver.getFormatHandshake().get(10, TimeUnit.SECONDS);
+        senderCCP = sender.getChannelConnectionPoint();
+        receiverCCP = receiver.getChannelConnectionPoint();
+        receiverCCP.registerGenericFSM(new CountingFSM(delivered), CHANNEL);
+        for (int session = 0; session < sessions; session++) {
+            receiverCCP.registerGenericFSM(new CountingFSM(delivered), SESSION_CHANNEL, session);
+        }
+        payload = new byte[payloadSize];
+        expected = 0L;
+        nextSession = 0;
+    }
+
+    private static Set<Set<Byte>> channelSets() {
+        Set<Set<Byte>> concurrentChannels = new HashSet<>();
+        Set<Byte> channels = new HashSet<>();
+        channels.add(CHANNEL);
+        channels.add(SESSION_CHANNEL);
+        channels.add(REGISTRATION_CHANNEL);
+        concurrentChannels.add(channels);
+        return concurrentChannels;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sender.disconnect();
+        receiver.disconnect();
+        socketPair.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String registerChannelFSM() {
+        return receiverCCP.registerGenericFSM(FinishedFSM.INSTANCE, REGISTRATION_CHANNEL);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String registerSessionFSM() {
+        return receiverCCP.registerGenericFSM(FinishedFSM.INSTANCE, REGISTRATION_CHANNEL, REGISTRATION_SESSION);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void channelFSMDispatch() {
+        for (int i = 0; i < BATCH; i++) {
+            senderCCP.write(CHANNEL, payload, i == BATCH - 1);
+        }
+        expected += BATCH;
+        delivered.await(expected);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void sessionFSMDispatch() {
+        for (int i = 0; i < BATCH; i++) {
+            senderCCP.write(SESSION_CHANNEL, nextSession, payload, i == BATCH - 1);
+            nextSession = (nextSession + 1) % sessions;
+        }
+        expected += BATCH;
+        delivered.await(expected);
+    }
+
+    /**
+     * FSM that counts the messages it handles, and never finishes. The state is the number of handled messages
+     */
+    private static class CountingFSM implements ChannelFSMAction<Long> {
+
+        private final DeliveryCounter delivered;
+
+        private CountingFSM(DeliveryCounter delivered) {
+            this.delivered = delivered;
+        }
+
+        @Override
+        public Long processMessage(Long currentState, byte channel, Object message, ChannelConnectionPoint ccp) {
+            delivered.delivered();
+            return currentState + 1;
+        }
+
+        @Override
+        public Long processMessage(Long currentState, byte channel, byte[] data, ChannelConnectionPoint ccp) {
+            delivered.delivered();
+            return currentState + 1;
+        }
+
+        @Override
+        public Long init(ChannelConnectionPoint ccp) {
+            return 0L;
+        }
+
+        @Override
+        public boolean isFinalState(Long state, ChannelConnectionPoint ccp) {
+            return false;
+        }
+
+        @Override
+        public void disconnected(ChannelConnectionPoint ccp) {
+        }
+
+        @Override
+        public void raisedUnhandledException(Exception e, ChannelConnectionPoint ccp) {
+        }
+    }
+
+    /**
+     * FSM whose initial state is final, so it is detached right after its registration
+     */
+    private static class FinishedFSM implements ChannelFSMAction<Boolean> {
+
+        private static final FinishedFSM INSTANCE = new FinishedFSM();
+
+        @Override
+        public Boolean processMessage(Boolean currentState, byte channel, Object message, ChannelConnectionPoint ccp) {
+            return currentState;
+        }
+
+        @Override
+        public Boolean processMessage(Boolean currentState, byte channel, byte[] data, ChannelConnectionPoint ccp) {
+            return currentState;
+        }
+
+        @Override
+        public Boolean init(ChannelConnectionPoint ccp) {
+            return Boolean.TRUE;
+        }
+
+        @Override
+        public boolean isFinalState(Boolean state, ChannelConnectionPoint ccp) {
+            return true;
+        }
+
+        @Override
+        public void disconnected(ChannelConnectionPoint ccp) {
+        }
+
+        @Override
+        public void raisedUnhandledException(Exception e, ChannelConnectionPoint ccp) {
+        }
+    }
+}
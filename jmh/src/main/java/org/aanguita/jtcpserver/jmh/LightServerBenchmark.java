@@ -0,0 +1,86 @@
+package org.aanguita.jtcpserver.jmh;
+
+import org.aanguita.jtcpserver.clientserver.client.LightClient;
+import org.aanguita.jtcpserver.clientserver.server.LightServer;
+import org.aanguita.jtcpserver.clientserver.server.LightServerActionByteArray;
+import org.aanguita.jacuzzi.network.IP4Port;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests per second attended by a LightServer over loopback, from 1 and 4 client threads. Each request opens a
+ * connection, sends a byte array and receives it back, as LightClient does. With parallel requests, the server
+ * attends each request in its own thread
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LightServerBenchmark {
+
+    @Param({"64", "4096"})
+    public int payloadSize;
+
+    @Param({"false", "true"})
+    public boolean parallelRequests;
+
+    private LightServer lightServer;
+
+    private IP4Port serverIp4Port;
+
+    private byte[] payload;
+
+    @Setup
+    public void setup() throws IOException {
+        lightServer = new LightServer(0, new EchoAction(), parallelRequests);
+        lightServer.start();
+        serverIp4Port = new IP4Port("127.0.0.1", lightServer.getActualPort());
+        payload = new byte[payloadSize];
+    }
+
+    @TearDown
+    public void tearDown() {
+        lightServer.stop();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] request() throws IOException {
+        return LightClient.sendRequest(serverIp4Port, payload);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] request4Threads() throws IOException {
+        return LightClient.sendRequest(serverIp4Port, payload);
+    }
+
+    private static class EchoAction implements LightServerActionByteArray {
+
+        @Override
+        public byte[] newClientConnection(Socket clientSocket, byte[] data) {
+            return data;
+        }
+
+        @Override
+        public void TCPServerError(Exception e) {
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.aanguita.jtcpserver.jmh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A pair of connected loopback sockets. The bytes received by the peer are discarded by a daemon thread, so writes
+ * on the local socket never block for long
+ */
+class LoopbackConnection {
+
+    private final ServerSocket serverSocket;
+
+    private final Socket socket;
+
+    private final Socket peer;
+
+    LoopbackConnection() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        socket.setTcpNoDelay(true);
+        peer = serverSocket.accept();
+        Thread drainer = new Thread("LoopbackConnection/drainer") {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[64 * 1024];
+                try {
+                    InputStream inputStream = peer.getInputStream();
+                    while (inputStream.read(buffer) >= 0) {
+                        // discard
+                    }
+                } catch (IOException e) {
+                    // connection closed
+                }
+            }
+        };
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    Socket getSocket() {
+        return socket;
+    }
+
+    void close() throws IOException {
+        socket.close();
+        peer.close();
+        serverSocket.close();
+    }
+}
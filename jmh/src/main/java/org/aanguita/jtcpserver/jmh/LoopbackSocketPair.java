@@ -0,0 +1,60 @@
+package org.aanguita.jtcpserver.jmh;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Two connected loopback sockets, for benchmarks that run a module at each end of a connection. Unlike
+ * LoopbackConnection, nothing reads from the peer socket until a module is created on it. Nagle's algorithm is
+ * disabled on both sockets, so small messages are not delayed
+ */
+public class LoopbackSocketPair {
+
+    private final ServerSocket serverSocket;
+
+    private final Socket socket;
+
+    private final Socket peer;
+
+    /**
+     * Connects a pair of sockets
+     *
+     * @param socketChannels true if the sockets must be created from socket channels (required by the event loop
+     *                       transport)
+     * @throws IOException the sockets could not be connected
+     */
+    public LoopbackSocketPair(boolean socketChannels) throws IOException {
+        if (socketChannels) {
+            ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+            serverSocketChannel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            serverSocket = serverSocketChannel.socket();
+            socket = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort())).socket();
+            peer = serverSocketChannel.accept().socket();
+        } else {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+            peer = serverSocket.accept();
+        }
+        socket.setTcpNoDelay(true);
+        peer.setTcpNoDelay(true);
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public Socket getPeer() {
+        return peer;
+    }
+
+    public void close() throws IOException {
+        socket.close();
+        peer.close();
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,72 @@
+package org.aanguita.jtcpserver.jmh;
+
+import org.aanguita.jtcpserver.metrics.LatencyHistogram;
+import org.aanguita.jtcpserver.metrics.TrafficCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording the metrics that every connection records for each message: a latency sample (including the two
+ * System.nanoTime reads that time it) and a message counted in a lane of a connection and of its server aggregate.
+ * Recorders share the metrics, as the connections of a server share the aggregate. Run with -prof gc:
+ * gc.alloc.rate.norm should be 0 B/op
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsRecordingBenchmark {
+
+    private LatencyHistogram histogram;
+
+    private TrafficCounters traffic;
+
+    @Setup
+    public void setup() {
+        histogram = new LatencyHistogram();
+        traffic = new TrafficCounters(new TrafficCounters());
+    }
+
+    @Benchmark
+    public long nanoTime() {
+        long start = System.nanoTime();
+        return System.nanoTime() - start;
+    }
+
+    @Benchmark
+    public void recordLatency() {
+        long start = System.nanoTime();
+        histogram.record(System.nanoTime() - start);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordLatency4Threads() {
+        long start = System.nanoTime();
+        histogram.record(System.nanoTime() - start);
+    }
+
+    @Benchmark
+    public void countMessage() {
+        traffic.messageIn(7, 128);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void countMessage4Threads() {
+        traffic.messageIn(7, 128);
+    }
+}
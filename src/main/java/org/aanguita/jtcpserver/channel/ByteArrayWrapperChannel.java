@@ -9,12 +9,12 @@ public class ByteArrayWrapperChannel {
     /**
      * Channel of communication
      */
-    private Byte channel;
+    private final byte channel;
 
     /**
      * Array of bytes composing the data of this message
      */
-    private byte[] data;
+    private final byte[] data;
 
     /**
      * Class constructor
@@ -36,6 +36,15 @@ public class ByteArrayWrapperChannel {
         return channel;
     }
 
+    /**
+     * Retrieves the communication channel, without boxing it
+     *
+     * @return the communication channel
+     */
+    byte getChannelValue() {
+        return channel;
+    }
+
     /**
      * Retrieves the stored byte array
      *
@@ -17,6 +17,11 @@ import org.aanguita.jtcpserver.communication.CommError;
  * but will be called by the same thread that made the last call to the corresponding FSM (the one being freed)
  * - disconnected and error methods are called by an independent thread. Only one of them will ever be invoked, and only once. Its invocation
  * will never overlap any other invocation in this interface (including FSM methods), and no other invocations of any kind will follow them
+ * - writabilityChanged is called by the same thread that calls channelFreed, disconnected and error
+ * - newStreamChunk is called by the thread that handles the channel set of the stream (the one that feeds its FSMs),
+ * so the chunks of a stream are handed over in order and, while it blocks, no more chunks are buffered for that
+ * channel set beyond its queue capacity
+ * - newSessionMessage methods are called like the newMessage methods, and sessionFreed like channelFreed
  * - None of these invocations will ever hold the channel module class synchronized
  */
 public interface ChannelAction {
@@ -67,4 +72,63 @@ public interface ChannelAction {
      * @param e   raised error
      */
     void error(ChannelConnectionPoint ccp, CommError e);
+
+    /**
+     * The outbound queue of the connection went above its high water mark, so asynchronous writes should be held
+     * back, or it went back below its low water mark. By default, it is ignored
+     *
+     * @param ccp      ChannelConnectionPoint whose writability changed
+     * @param writable true if the connection became writable again, false if it became unwritable
+     */
+    default void writabilityChanged(ChannelConnectionPoint ccp, boolean writable) {
+    }
+
+    /**
+     * A chunk of a stream sent by the other point (see ChannelConnectionPoint.openStream) arrived. Chunks are never
+     * handed to FSMs. By default, they are ignored
+     *
+     * @param ccp     ChannelConnectionPoint associated to this ChannelModule
+     * @param channel channel of the stream
+     * @param data    data of the chunk (can be empty for the last chunk)
+     * @param last    true if this chunk ends the stream
+     */
+    default void newStreamChunk(ChannelConnectionPoint ccp, byte channel, byte[] data, boolean last) {
+    }
+
+    /**
+     * An object message bound to a session arrived, and no FSM is registered for its session (see
+     * ChannelConnectionPoint.registerGenericFSM(ChannelFSMAction, byte, int)). By default, it is handled as a message
+     * without session
+     *
+     * @param ccp     ChannelConnectionPoint associated to this ChannelModule
+     * @param channel channel of the message
+     * @param session session of the message
+     * @param message the message
+     */
+    default void newSessionMessage(ChannelConnectionPoint ccp, byte channel, int session, Object message) {
+        newMessage(ccp, channel, message);
+    }
+
+    /**
+     * A byte array message bound to a session arrived, and no FSM is registered for its session. By default, it is
+     * handled as a message without session
+     *
+     * @param ccp     ChannelConnectionPoint associated to this ChannelModule
+     * @param channel channel of the message
+     * @param session session of the message
+     * @param data    the message
+     */
+    default void newSessionMessage(ChannelConnectionPoint ccp, byte channel, int session, byte[] data) {
+        newMessage(ccp, channel, data);
+    }
+
+    /**
+     * The FSM of a session was detached (it reached a final state, timed out or failed). By default, nothing is done
+     *
+     * @param ccp     ChannelConnectionPoint associated to this ChannelModule
+     * @param channel channel of the session
+     * @param session the session
+     */
+    default void sessionFreed(ChannelConnectionPoint ccp, byte channel, int session) {
+    }
 }
\ No newline at end of file
@@ -1,12 +1,19 @@
 package org.aanguita.jtcpserver.channel;
 
+import org.aanguita.jtcpserver.communication.QueueingDelay;
+import org.aanguita.jtcpserver.communication.SlowConsumerPolicy;
 import org.aanguita.jacuzzi.id.AlphaNumFactory;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * This class offers simplified access to a ChannelModule. It is always associated to a ChannelModule, and offers
  * methods to write data, register FSMs and disconnect.
+ * <p/>
+ * Channel 255 is reserved for the format handshake and the credit grants of ChannelModules (see ChannelModule). Data
+ * should only be written through channels 0 to 254.
  */
 public class ChannelConnectionPoint {
 
@@ -61,6 +68,232 @@ public class ChannelConnectionPoint {
         return channelModule.write(channel, data, flush);
     }
 
+    /**
+     * Writes an object message without blocking the caller (see CommunicationModule.writeAsync)
+     *
+     * @param channel channel through which the message is sent
+     * @param message the message to send
+     * @return a future completing when the message has been written
+     */
+    public CompletableFuture<Void> writeAsync(byte channel, Serializable message) {
+        return channelModule.writeAsync(channel, message);
+    }
+
+    /**
+     * Writes an array of bytes without blocking the caller (see CommunicationModule.writeAsync)
+     *
+     * @param channel channel through which the data is sent
+     * @param data    the data to send
+     * @return a future completing when the data has been written
+     */
+    public CompletableFuture<Void> writeAsync(byte channel, byte[] data) {
+        return channelModule.writeAsync(channel, data);
+    }
+
+    /**
+     * Writes an object message bound to a session of a channel. The other point delivers it to the FSM registered for
+     * that session, or to ChannelAction.newSessionMessage if there is none
+     *
+     * @param channel channel through which the message is sent
+     * @param session session of the message (not negative)
+     * @param message the message to send
+     * @return the time spent writing the message
+     * @throws IllegalArgumentException if the session is negative
+     * @throws IllegalStateException    if the other point does not accept sessions
+     */
+    public long write(byte channel, int session, Serializable message) throws IllegalArgumentException, IllegalStateException {
+        return write(channel, session, message, true);
+    }
+
+    public long write(byte channel, int session, Serializable message, boolean flush) throws IllegalArgumentException, IllegalStateException {
+        return channelModule.write(channel, session, message, flush);
+    }
+
+    public long write(byte channel, int session, byte[] data) throws IllegalArgumentException, IllegalStateException {
+        return write(channel, session, data, true);
+    }
+
+    public long write(byte channel, int session, byte[] data, boolean flush) throws IllegalArgumentException, IllegalStateException {
+        return channelModule.write(channel, session, data, flush);
+    }
+
+    public CompletableFuture<Void> writeAsync(byte channel, int session, Serializable message) throws IllegalArgumentException, IllegalStateException {
+        return channelModule.writeAsync(channel, session, message);
+    }
+
+    public CompletableFuture<Void> writeAsync(byte channel, int session, byte[] data) throws IllegalArgumentException, IllegalStateException {
+        return channelModule.writeAsync(channel, session, data);
+    }
+
+    /**
+     * Says whether messages can be bound to sessions in this connection. Both points must have agreed on it in the
+     * format handshake (see CommunicationConfig.setCompactChannelFormat)
+     *
+     * @return true if the other point accepts sessions
+     */
+    public boolean isSessionsAccepted() {
+        return channelModule.isSessionsAccepted();
+    }
+
+    /**
+     * Opens a stream for sending data of any length through a channel. The data is sent in chunks, which the other
+     * point receives one by one through ChannelAction.newStreamChunk (see ChannelOutputStream). Both points must have
+     * agreed on it in the format handshake (see CommunicationConfig.setCompactChannelFormat)
+     *
+     * @param channel channel through which the stream is sent
+     * @return the stream. It must be closed for ending the stream at the other point
+     * @throws IOException if the other point does not accept streams, or the channel already has an open stream
+     */
+    public ChannelOutputStream openStream(byte channel) throws IOException {
+        return channelModule.openStream(channel);
+    }
+
+    /**
+     * Writes a message encoded with EncodedChannelMessage. The message is not encoded again, so the same object can
+     * be written to many connections at the cost of a single encoding
+     *
+     * @param message the encoded message
+     * @return the time spent writing the message
+     */
+    public long write(EncodedChannelMessage message) {
+        return channelModule.write(message, true);
+    }
+
+    /**
+     * Writes a message encoded with EncodedChannelMessage without blocking the caller
+     *
+     * @param message the encoded message
+     * @return a future completing when the message has been written
+     */
+    public CompletableFuture<Void> writeAsync(EncodedChannelMessage message) {
+        return channelModule.writeAsync(message);
+    }
+
+    /**
+     * Offers a message encoded with EncodedChannelMessage under the slow consumer policy of the connection (see
+     * CommunicationModule.offer). Messages of the same channel are conflated with each other
+     *
+     * @param message the encoded message
+     * @return a future completing when the message has been written, or cancelled if it was discarded
+     */
+    public CompletableFuture<Void> offer(EncodedChannelMessage message) {
+        return channelModule.offer(message);
+    }
+
+    /**
+     * Gives a channel a priority and a weight for its outgoing messages (see ChannelModule.setChannelPriority)
+     *
+     * @param channel  the channel
+     * @param priority priority of the channel (higher values are written first)
+     * @param weight   weight of the channel among the channels of its priority (at least 1)
+     * @throws IllegalArgumentException if the weight is not valid
+     */
+    public void setChannelPriority(byte channel, int priority, int weight) throws IllegalArgumentException {
+        channelModule.setChannelPriority(channel, priority, weight);
+    }
+
+    public void clearChannelPriority(byte channel) {
+        channelModule.clearChannelPriority(channel);
+    }
+
+    /**
+     * Retrieves the time that the outgoing messages of a channel waited until they were written
+     *
+     * @param channel the channel
+     * @return the queueing delay of the channel
+     */
+    public QueueingDelay getQueueingDelay(byte channel) {
+        return channelModule.getQueueingDelay(channel);
+    }
+
+    /**
+     * Retrieves a future that completes once the format handshake with the other point is done (see
+     * ChannelModule.getFormatHandshake)
+     *
+     * @return the future of the format handshake
+     */
+    public CompletableFuture<Void> getFormatHandshake() {
+        return channelModule.getFormatHandshake();
+    }
+
+    public long getRoundTripTimeNanos() {
+        return channelModule.getRoundTripTimeNanos();
+    }
+
+    public ChannelMetrics getMetrics() {
+        return channelModule.getMetrics();
+    }
+
+    public int getQueueDepth(byte channel) {
+        return channelModule.getQueueDepth(channel);
+    }
+
+    /**
+     * Makes a request to the other point through a channel (see ChannelModule.call)
+     *
+     * @param channel the channel through which the request is sent
+     * @param request the request
+     * @return a future completed with the response
+     */
+    public CompletableFuture<Serializable> call(byte channel, Serializable request) {
+        return channelModule.call(channel, request);
+    }
+
+    public CompletableFuture<Serializable> call(byte channel, Serializable request, long timeoutMillis) {
+        return channelModule.call(channel, request, timeoutMillis);
+    }
+
+    /**
+     * Sets the handler of the requests received through a channel (see ChannelModule.setRpcHandler)
+     *
+     * @param channel the channel
+     * @param handler the handler of the requests of the channel, or null for removing the current handler
+     */
+    public void setRpcHandler(byte channel, RpcHandler handler) {
+        channelModule.setRpcHandler(channel, handler);
+    }
+
+    public int getOutstandingCalls() {
+        return channelModule.getOutstandingCalls();
+    }
+
+    /**
+     * Retrieves the messages that can still be sent through a channel before the other point grants more credits (see
+     * ChannelModule.getChannelCredits)
+     *
+     * @param channel the channel
+     * @return the credits of the channel, or -1 if its flow is not controlled
+     */
+    public long getChannelCredits(byte channel) {
+        return channelModule.getChannelCredits(channel);
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return channelModule.getSlowConsumerPolicy();
+    }
+
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        channelModule.setSlowConsumerPolicy(slowConsumerPolicy);
+    }
+
+    /**
+     * Says whether the connection fell behind its slow consumer policy and has not caught up yet
+     *
+     * @return true if the other point is a slow consumer
+     */
+    public boolean isSlowConsumer() {
+        return channelModule.isSlowConsumer();
+    }
+
+    /**
+     * Says whether the outbound queue of the connection is below its high water mark
+     *
+     * @return true if the connection is writable
+     */
+    public boolean isWritable() {
+        return channelModule.isWritable();
+    }
+
     public long flush() {
         return channelModule.flush();
     }
@@ -94,4 +327,41 @@ public class ChannelConnectionPoint {
     public String registerTimedFSM(TimedChannelFSMAction<?> timedChannelFSMAction, long timeoutMillis, String name, byte channel) throws IllegalArgumentException {
         return channelModule.registerNewFSM(timedChannelFSMAction, timeoutMillis, name, channel);
     }
+
+    /**
+     * Checks if a session of a channel has an FSM registered with it
+     *
+     * @param channel the channel of the session
+     * @param session the session to check
+     * @return true if the given session is registered with an FSM, false otherwise
+     */
+    public boolean isSessionRegistered(byte channel, int session) {
+        return channelModule.isSessionRegistered(channel, session);
+    }
+
+    /**
+     * Registers an FSM for a session of a channel. Any number of sessions of a channel can have an FSM at the same
+     * time, independently of the FSM of the channel itself
+     *
+     * @param channelFSMAction the actions of the FSM
+     * @param channel          the channel of the session
+     * @param session          the session monitored by the FSM (not negative)
+     * @return the id of the FSM
+     * @throws IllegalArgumentException if the channel is not supported, the session is negative or already has an FSM
+     */
+    public String registerGenericFSM(ChannelFSMAction<?> channelFSMAction, byte channel, int session) throws IllegalArgumentException {
+        return registerGenericFSM(channelFSMAction, "unnamedGenericFSM", channel, session);
+    }
+
+    public String registerGenericFSM(ChannelFSMAction<?> channelFSMAction, String name, byte channel, int session) throws IllegalArgumentException {
+        return channelModule.registerNewFSM(channelFSMAction, name, channel, session);
+    }
+
+    public String registerTimedFSM(TimedChannelFSMAction<?> timedChannelFSMAction, long timeoutMillis, byte channel, int session) throws IllegalArgumentException {
+        return registerTimedFSM(timedChannelFSMAction, timeoutMillis, "unnamedTimedFSM", channel, session);
+    }
+
+    public String registerTimedFSM(TimedChannelFSMAction<?> timedChannelFSMAction, long timeoutMillis, String name, byte channel, int session) throws IllegalArgumentException {
+        return channelModule.registerNewFSM(timedChannelFSMAction, timeoutMillis, name, channel, session);
+    }
 }
@@ -0,0 +1,76 @@
+package org.aanguita.jtcpserver.channel;
+
+/**
+ * Credits granted by the receiver of a channel to its sender, once both ChannelModules agreed on flow control (see
+ * ChannelHandshake). It is a byte array message sent through channel 255, formed by a magic sequence, the channel to
+ * which the credits are granted, and the number of granted credits. Each credit lets the sender write one more
+ * message through that channel.
+ * <p/>
+ * A grant to channel 255 (which is not flow controlled itself) announces the credit window of the receiver, that is,
+ * the initial credits of every other channel. It is sent once, when the handshake of the other point shows that it
+ * supports flow control
+ */
+class ChannelCreditGrant {
+
+    private static final byte[] MAGIC = {'J', 'T', 'C', 'G'};
+
+    private static final int LENGTH = MAGIC.length + 5;
+
+    /**
+     * Builds a credit grant message
+     *
+     * @param channel the channel to which credits are granted
+     * @param credits the granted credits
+     * @return the data of the message (to send through ChannelHandshake.CHANNEL)
+     */
+    static byte[] build(byte channel, int credits) {
+        byte[] data = new byte[LENGTH];
+        System.arraycopy(MAGIC, 0, data, 0, MAGIC.length);
+        data[MAGIC.length] = channel;
+        data[MAGIC.length + 1] = (byte) (credits >>> 24);
+        data[MAGIC.length + 2] = (byte) (credits >>> 16);
+        data[MAGIC.length + 3] = (byte) (credits >>> 8);
+        data[MAGIC.length + 4] = (byte) credits;
+        return data;
+    }
+
+    /**
+     * Checks whether a received byte array message is a credit grant
+     *
+     * @param channel channel of the message
+     * @param data    data of the message
+     * @return true if the message is a credit grant
+     */
+    static boolean isGrant(byte channel, byte[] data) {
+        if (channel != ChannelHandshake.CHANNEL || data.length != LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Retrieves the channel to which credits are granted
+     *
+     * @param data data of the grant
+     * @return the channel
+     */
+    static byte getChannel(byte[] data) {
+        return data[MAGIC.length];
+    }
+
+    /**
+     * Retrieves the granted credits
+     *
+     * @param data data of the grant
+     * @return the number of credits
+     */
+    static int getCredits(byte[] data) {
+        return ((data[MAGIC.length + 1] & 0xFF) << 24) | ((data[MAGIC.length + 2] & 0xFF) << 16) |
+                ((data[MAGIC.length + 3] & 0xFF) << 8) | (data[MAGIC.length + 4] & 0xFF);
+    }
+}
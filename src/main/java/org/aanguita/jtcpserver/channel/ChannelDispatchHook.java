@@ -0,0 +1,52 @@
+package org.aanguita.jtcpserver.channel;
+
+import java.io.Serializable;
+
+/**
+ * Entry point to the dispatch of incoming messages of a ChannelModule, for measuring it without a connection (see
+ * ChannelDispatchBenchmark in the jmh module). Messages are built once with the factory methods, and then handed to
+ * the module as if they had just been decoded. It is not meant for applications: messages dispatched through here
+ * never travelled through the connection.
+ */
+public final class ChannelDispatchHook {
+
+    private ChannelDispatchHook() {
+    }
+
+    /**
+     * Builds a byte array message, ready to be dispatched any number of times
+     *
+     * @param channel channel of the message
+     * @param data    data of the message
+     * @return the message
+     */
+    public static Object byteArrayMessage(byte channel, byte[] data) {
+        return new ByteArrayWrapperChannel(channel, data);
+    }
+
+    /**
+     * Builds an object message, ready to be dispatched any number of times
+     *
+     * @param channel channel of the message
+     * @param message the object of the message
+     * @return the message
+     */
+    public static Object objectMessage(byte channel, Serializable message) {
+        return new ChannelMessage(channel, message);
+    }
+
+    /**
+     * Dispatches a message built by this class, as if the module had just received it
+     *
+     * @param channelModule the module receiving the message
+     * @param channel       channel of the message
+     * @param message       the message
+     * @throws IllegalArgumentException if the message was not built by this class
+     */
+    public static void dispatch(ChannelModule channelModule, byte channel, Object message) throws IllegalArgumentException {
+        if (!(message instanceof ByteArrayWrapperChannel) && !(message instanceof ChannelMessage)) {
+            throw new IllegalArgumentException("Not a channel message: " + message);
+        }
+        channelModule.addMessageToChannelQueue(channel, message);
+    }
+}
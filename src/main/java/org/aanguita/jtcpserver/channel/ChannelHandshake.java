@@ -0,0 +1,101 @@
+package org.aanguita.jtcpserver.channel;
+
+/**
+ * Handshake through which two ChannelModules agree on the wire format of their channel messages. It is a byte array
+ * message sent through channel 255, formed by a magic sequence, the highest format version supported by the sender,
+ * and a flag telling whether the sender expects an answer (the proposing point) or not (the answering point).
+ * <p/>
+ * Versions:
+ * - 1: legacy format. Object messages are encoded as a ChannelMessage (channel plus object)
+ * - 2: compact format. The channel of object messages is placed in the frame header, and the object is encoded alone
+ * (received as a PrefixedObject)
+ * - 3: fragmented format. Compact format, plus big messages sent in fragments (see FrameEncoder)
+ * - 4: streams. Fragmented format, plus stream chunks (see ChannelOutputStream)
+ * - 5: flow control. Streams, plus credits for each channel granted by the receiver (see ChannelCreditGrant)
+ * - 6: sessions. Flow control, plus messages bound to a session of their channel (see ChannelModule.write(byte, int,
+ * Serializable, boolean))
+ * - 7: heartbeats. Sessions, plus heartbeat control frames of the CommunicationModule (see
+ * CommunicationModule.setHeartbeatInterval)
+ * <p/>
+ * Points that do not know the handshake never answer it, so they keep receiving the legacy format
+ */
+class ChannelHandshake {
+
+    /**
+     * Channel through which the handshake is sent
+     */
+    static final byte CHANNEL = (byte) 255;
+
+    static final byte LEGACY_FORMAT = 1;
+
+    static final byte COMPACT_FORMAT = 2;
+
+    static final byte FRAGMENTED_FORMAT = 3;
+
+    static final byte STREAM_FORMAT = 4;
+
+    static final byte FLOW_CONTROL_FORMAT = 5;
+
+    static final byte SESSION_FORMAT = 6;
+
+    static final byte HEARTBEAT_FORMAT = 7;
+
+    private static final byte[] MAGIC = {'J', 'T', 'C', 'P'};
+
+    private static final int LENGTH = MAGIC.length + 2;
+
+    private static final byte ANSWER_REQUESTED = 1;
+
+    /**
+     * Builds a handshake message
+     *
+     * @param answerRequested true if the other point must answer with its own handshake
+     * @return the data of the message (to send through CHANNEL)
+     */
+    static byte[] build(boolean answerRequested) {
+        byte[] data = new byte[LENGTH];
+        System.arraycopy(MAGIC, 0, data, 0, MAGIC.length);
+        data[MAGIC.length] = HEARTBEAT_FORMAT;
+        data[MAGIC.length + 1] = answerRequested ? ANSWER_REQUESTED : 0;
+        return data;
+    }
+
+    /**
+     * Checks whether a received byte array message is a handshake
+     *
+     * @param channel channel of the message
+     * @param data    data of the message
+     * @return true if the message is a handshake
+     */
+    static boolean isHandshake(byte channel, byte[] data) {
+        if (channel != CHANNEL || data.length != LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Retrieves the highest format version supported by the sender of a handshake
+     *
+     * @param data data of the handshake
+     * @return the format version
+     */
+    static byte getVersion(byte[] data) {
+        return data[MAGIC.length];
+    }
+
+    /**
+     * Says whether the sender of a handshake expects an answer
+     *
+     * @param data data of the handshake
+     * @return true if an answer was requested
+     */
+    static boolean isAnswerRequested(byte[] data) {
+        return data[MAGIC.length + 1] == ANSWER_REQUESTED;
+    }
+}
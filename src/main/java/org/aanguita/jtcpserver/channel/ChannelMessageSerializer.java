@@ -0,0 +1,32 @@
+package org.aanguita.jtcpserver.channel;
+
+import org.aanguita.jtcpserver.communication.codec.BinaryInput;
+import org.aanguita.jtcpserver.communication.codec.BinaryOutput;
+import org.aanguita.jtcpserver.communication.codec.TypeSerializer;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Encoding of ChannelMessages in the BinaryCodec: the channel byte followed by the message, with no class descriptor
+ * for the wrapper
+ */
+class ChannelMessageSerializer implements TypeSerializer<ChannelMessage> {
+
+    /**
+     * Type ID of ChannelMessages in the BinaryCodec (negative IDs are reserved for jtcpserver)
+     */
+    static final int TYPE_ID = -1;
+
+    @Override
+    public void write(ChannelMessage value, BinaryOutput output) throws IOException {
+        output.writeByte(value.canal);
+        output.writeObject(value.message);
+    }
+
+    @Override
+    public ChannelMessage read(BinaryInput input) throws IOException, ClassNotFoundException {
+        byte canal = input.readByte();
+        return new ChannelMessage(canal, (Serializable) input.readObject());
+    }
+}
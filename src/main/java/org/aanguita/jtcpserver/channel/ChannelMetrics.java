@@ -0,0 +1,123 @@
+package org.aanguita.jtcpserver.channel;
+
+import org.aanguita.jtcpserver.communication.ConnectionMetrics;
+import org.aanguita.jtcpserver.metrics.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a ChannelModule, always recorded. Besides the metrics of its CommunicationModule (traffic per channel,
+ * and latencies of encoding, decoding and writing), these are recorded:
+ * - handler latency: time taken by the handling of each incoming message (the ChannelAction, the FSM of its channel or
+ * session, or the RPC handler of its channel)
+ * - queued messages: incoming messages waiting in the queues of the channel sets, and the longest queue observed. The
+ * current length of each queue is given by ChannelModule.getQueueDepth
+ * <p/>
+ * As with ConnectionMetrics, the metrics of many modules can be aggregated (see ServerModule): the queued messages
+ * are counted in the aggregate too, and the handler latency is recorded in the histogram of the aggregate.
+ * <p/>
+ * This class is thread-safe
+ */
+public final class ChannelMetrics {
+
+    /**
+     * Metrics where these are aggregated (null if none)
+     */
+    private final ChannelMetrics aggregate;
+
+    private final ConnectionMetrics connectionMetrics;
+
+    private final LatencyHistogram handlerLatency;
+
+    private final LongAdder queuedMessages;
+
+    private final AtomicLong maxQueueDepth;
+
+    /**
+     * Creates metrics for aggregating the metrics of other modules
+     */
+    public ChannelMetrics() {
+        this(null, new ConnectionMetrics());
+    }
+
+    /**
+     * Creates the metrics of a module
+     *
+     * @param aggregate         metrics where these are aggregated (null if none)
+     * @param connectionMetrics metrics of the CommunicationModule of the module
+     */
+    ChannelMetrics(ChannelMetrics aggregate, ConnectionMetrics connectionMetrics) {
+        this.aggregate = aggregate;
+        this.connectionMetrics = connectionMetrics;
+        handlerLatency = aggregate != null ? aggregate.handlerLatency : new LatencyHistogram();
+        queuedMessages = new LongAdder();
+        maxQueueDepth = new AtomicLong();
+    }
+
+    /**
+     * An incoming message was placed in the queue of its channel set
+     *
+     * @param queueDepth messages in the queue, including this one
+     */
+    void messageQueued(int queueDepth) {
+        queuedMessages.increment();
+        long max = maxQueueDepth.get();
+        while (queueDepth > max && !maxQueueDepth.compareAndSet(max, queueDepth)) {
+            max = maxQueueDepth.get();
+        }
+        if (aggregate != null) {
+            aggregate.messageQueued(queueDepth);
+        }
+    }
+
+    /**
+     * A queued message was taken for handling
+     */
+    void messageDequeued() {
+        queuedMessages.decrement();
+        if (aggregate != null) {
+            aggregate.messageDequeued();
+        }
+    }
+
+    /**
+     * A message was handled
+     *
+     * @param startTime System.nanoTime at which its handling began
+     */
+    void messageHandled(long startTime) {
+        handlerLatency.record(System.nanoTime() - startTime);
+    }
+
+    public ConnectionMetrics getConnectionMetrics() {
+        return connectionMetrics;
+    }
+
+    public LatencyHistogram getHandlerLatency() {
+        return handlerLatency;
+    }
+
+    /**
+     * Retrieves the incoming messages currently waiting in the queues of the channel sets
+     *
+     * @return the queued messages
+     */
+    public long getQueuedMessages() {
+        return queuedMessages.sum();
+    }
+
+    /**
+     * Retrieves the longest channel set queue observed
+     *
+     * @return the maximum number of messages that were waiting in a single queue
+     */
+    public long getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    @Override
+    public String toString() {
+        return connectionMetrics + "\nhandler: " + handlerLatency + "\nqueued messages: " + getQueuedMessages() + ", max queue depth: " + getMaxQueueDepth();
+    }
+}
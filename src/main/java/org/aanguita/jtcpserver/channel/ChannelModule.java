@@ -1,25 +1,41 @@
 package org.aanguita.jtcpserver.channel;
 
 import org.aanguita.jtcpserver.communication.CommError;
+import org.aanguita.jtcpserver.communication.CommunicationConfig;
 import org.aanguita.jtcpserver.communication.CommunicationModule;
+import org.aanguita.jtcpserver.communication.EncodedFrame;
+import org.aanguita.jtcpserver.communication.QueueingDelay;
+import org.aanguita.jtcpserver.communication.SlowConsumerPolicy;
+import org.aanguita.jtcpserver.communication.StreamChunk;
+import org.aanguita.jtcpserver.communication.codec.BinaryCodec;
+import org.aanguita.jtcpserver.concurrency.HashedTimerWheel;
+import org.aanguita.jtcpserver.concurrency.MessageLoop;
+import org.aanguita.jtcpserver.concurrency.SerialExecutor;
 import org.aanguita.jacuzzi.fsm.GenericFSM;
-import org.aanguita.jacuzzi.fsm.TimedFSM;
 import org.aanguita.jacuzzi.id.AlphaNumFactory;
-import org.aanguita.jacuzzi.io.serialization.Serializer;
-import org.aanguita.jacuzzi.queues.event_processing.MessageProcessor;
 import org.aanguita.jacuzzi.queues.event_processing.StopReadingMessages;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 
 /**
@@ -47,23 +63,66 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * implementation. These can be dynamically registered, and several FSM can monitor the same channel. Two interfaces
  * are offered for using these FSMs. One is for normal FSMs (its methods include the associated ChannelConnectionPoint
  * so it can be used in the implementations, other than that they behave as normal FSMs), the other includes the
- * timeout feature (timed channel FSMs).
+ * timeout feature (timed channel FSMs). The timeouts of timed FSMs (and of RPC calls) run on the timer wheel of the
+ * configuration (CommunicationConfig.setTimerWheel), and each input resets the timeout of its FSM without allocating
+ * anything.
  * </li>
  * </ul>
  * <p/>
  * Additional notes:
  * - Several FSMs are allowed to coexist in the same channel. A message in this channel will be sequentially processed
  * by all FSMs registered with the channel (in order of registering).
- * - It is planned to add priority values to channels in the future.
+ * - Channels can be given a priority and a weight for outgoing messages (setChannelPriority). Messages waiting for
+ * the connection are then written by priority, and channels of the same priority share the connection according to
+ * their weights, instead of being written in order of arrival. The time that the outgoing messages of each channel
+ * wait for the connection is recorded (getQueueingDelay).
+ * - If both points agree on it in the format handshake (see CommunicationConfig.setCompactChannelFormat), big
+ * messages are sent in fragments (CommunicationConfig.setFragmentSize), so a big transfer in one channel does not
+ * hold the connection while other channels are waiting. Each channel then gets its share of the connection, and
+ * outgoing messages keep their order within each channel, but not across channels.
+ * - Data of any length can be sent as a stream (openStream), in chunks that the other point receives one by one
+ * (ChannelAction.newStreamChunk), so it never has to fit in memory. This also requires the format handshake.
+ * - If both points agree on it in the format handshake, the flow of each channel is controlled with credits
+ * (CommunicationConfig.setChannelCreditWindow). The other point can send a limited number of messages through each
+ * channel, and more credits are granted as this module consumes them. A channel set that does not consume its
+ * messages (e.g. paused) then stops only the writers of its own channels at the other point, while the rest of the
+ * channels keep flowing. Channel 255, which carries the handshake and the credits, is not flow controlled (see below).
+ * - Request/response calls (call) can be made through any channel, and are answered by the RpcHandler that the other
+ * point set for that channel (setRpcHandler). Requests carry a correlation ID, so many of them can be outstanding at
+ * the same time in a channel, and each response completes the future of its own call. Calls not answered in time
+ * (CommunicationConfig.setRpcTimeoutMillis) fail with a TimeoutException.
+ * - Besides the FSM of a channel, FSMs can be registered for sessions of a channel (any number of them, identified
+ * by an int), so thousands of conversations can run at the same time over one connection. Messages written with a
+ * session (write(byte, int, Serializable, boolean)) carry the session ID in the frame header, and are dispatched to
+ * the FSM of their session with a single table lookup (or to ChannelAction.newSessionMessage if it has none). This
+ * requires the format handshake too.
+ * - Dead or idle connections are detected with the idle timeouts of the configuration
+ * (CommunicationConfig.setReadIdleTimeoutMillis), and reported as an IDLE_TIMEOUT error. If both points agree on it
+ * in the format handshake, heartbeats are exchanged as well (CommunicationConfig.setHeartbeatIntervalMillis), so a
+ * live connection is never idle, and its round trip time is measured (getRoundTripTimeNanos). Heartbeats never
+ * reach the ChannelAction.
+ * - Traffic per channel, queued incoming messages and the latencies of encoding, decoding, writing and handling
+ * messages are recorded (getMetrics). The metrics of many modules can be aggregated (see ChannelMetrics).
+ * - If the compact format is enabled, channel 255 is reserved: the format handshake and the credit grants of the flow
+ * control travel through it (as byte array messages), so it cannot be among the concurrent channels of the module
+ * (see checkConcurrentChannels), and it is never flow controlled. Both points must enable the compact format for
+ * the handshake to take place. A module with it disabled neither answers nor intercepts handshakes, and channel 255
+ * is then an ordinary channel (as in previous versions of this library).
+ * <p/>
+ * Opting into the compact format (CommunicationConfig.setCompactChannelFormat) only changes the wire format of the
+ * messages. Fragmentation of big messages (setFragmentSize) and flow control (setChannelCreditWindow) are off by
+ * default, and each must be enabled on its own.
  */
 public class ChannelModule {
 
     /**
-     * This private class stores a pair <queue, message processor>. It is used when there are several concurrent
-     * channel sets, for storing the individual concurrent channel set queues together with their message processor.
+     * This private class stores a pair <queue, message loop>. It is used when there are several concurrent
+     * channel sets, for storing the individual concurrent channel set queues together with their message loop.
      * We will use objects of this class as the value in a map relating channels to these.
      * For redirecting messages, we need to be able to relate one channel to its queue, and for pausing and resuming
      * we need to be able to reach the message processor handling it.
+     * <p/>
+     * With a shared worker executor, the pair is replaced by a serial executor (queue and message loop are null)
      */
     private static class QueueAndMessageProcessor {
 
@@ -71,12 +130,50 @@ public class ChannelModule {
 
         private final ArrayBlockingQueue<Object> queue;
 
-        private final MessageProcessor messageProcessor;
+        private final MessageLoop messageProcessor;
+
+        private final SerialExecutor serialExecutor;
+
+        /**
+         * Messages that can be pending when the flow of the channels is controlled with credits: the credits of all
+         * channels of the set, plus the usual capacity for the messages not covered by them
+         */
+        private final int creditedCapacity;
+
+        private QueueAndMessageProcessor(ArrayBlockingQueue<Object> queue, MessageLoop messageProcessor, int creditedCapacity) {
+            this(queue, messageProcessor, null, creditedCapacity);
+        }
+
+        private QueueAndMessageProcessor(SerialExecutor serialExecutor, int creditedCapacity) {
+            this(null, null, serialExecutor, creditedCapacity);
+        }
 
-        private QueueAndMessageProcessor(ArrayBlockingQueue<Object> queue, MessageProcessor messageProcessor) {
+        private QueueAndMessageProcessor(ArrayBlockingQueue<Object> queue, MessageLoop messageProcessor, SerialExecutor serialExecutor, int creditedCapacity) {
             id = AlphaNumFactory.getStaticId();
             this.queue = queue;
             this.messageProcessor = messageProcessor;
+            this.serialExecutor = serialExecutor;
+            this.creditedCapacity = creditedCapacity;
+        }
+
+        private int pendingMessages() {
+            return serialExecutor != null ? serialExecutor.size() : queue.size();
+        }
+
+        private void pause() {
+            if (serialExecutor != null) {
+                serialExecutor.pause();
+            } else {
+                messageProcessor.pause();
+            }
+        }
+
+        private void resume() {
+            if (serialExecutor != null) {
+                serialExecutor.resume();
+            } else {
+                messageProcessor.resume();
+            }
         }
 
         @Override
@@ -96,7 +193,16 @@ public class ChannelModule {
     }
 
     /**
-     * Maximum capacity of the queues storing incoming messages
+     * Number of available channels (all values of a byte). Channel tables are flat arrays of this size, indexed by
+     * the unsigned value of the channel
+     */
+    private final static int CHANNEL_COUNT = 256;
+
+    /**
+     * Maximum capacity of the queues storing incoming messages. When any queue reaches it, reading from the
+     * CommunicationModule is suspended until every queue has room again. The queues have one extra slot, reserved
+     * for the final StopReadingMessages. With flow control, the queues also have room for the credits of their
+     * channels, and this suspension is only a safety net (see QueueAndMessageProcessor.creditedCapacity)
      */
     private final static int INCOMING_CAPACITY = 100;
 
@@ -126,16 +232,31 @@ public class ChannelModule {
 //    private final Set<Byte> uniqueChannelSet;
 
     /**
-     * Table storing all channels employed, only when there are several concurrent channel sets. For each channel,
-     * a QueueAndMessageProcessor object is associated. This object stores the channel itself and the MessageProcessor
-     * that handles this channel
+     * Table storing all channels employed, indexed by channel (null for unsupported channels). For each channel,
+     * a QueueAndMessageProcessor object is associated. This object stores the channel itself and the MessageLoop
+     * that handles this channel. It is not modified after construction
      */
-    private final Map<Byte, QueueAndMessageProcessor> channelQueuesAndMessageProcessors;
+    private final QueueAndMessageProcessor[] channelQueuesAndMessageProcessors;
 
-    private final Map<Byte, GenericFSM<?, Object>> channelFSMs;
+    /**
+     * FSM monitoring each channel, indexed by channel (null if none). Written under the lock of this object, but read
+     * without locking when dispatching incoming messages
+     */
+    private final AtomicReferenceArray<GenericFSM<?, Object>> channelFSMs;
 
     private final Map<GenericFSM<?, Object>, Byte> FSMToChannel;
 
+    /**
+     * FSMs monitoring sessions, indexed by sessionKey(channel, session). Written under the lock of this object, but
+     * read without locking when dispatching incoming messages
+     */
+    private final ConcurrentHashMap<Long, GenericFSM<?, Object>> sessionFSMs;
+
+    /**
+     * Session key of each FSM monitoring a session (guarded by this object)
+     */
+    private final Map<GenericFSM<?, Object>, Long> FSMToSession;
+
     private final ChannelConnectionPoint channelConnectionPoint;
 
     /**
@@ -144,23 +265,130 @@ public class ChannelModule {
 //    private final MessageProcessor allChannelProcessor;
 
     /**
-     * This processor is used when we have several concurrent channel sets. It is in charge of redirecting incoming
-     * messages to individual queues (one queue per concurrent channel set). We keep this field for sake of clarity
-     * and maintainability, although this field is so far not accessed
+     * This set contains all MessageLoops defined in this object (one per concurrent channel set). This allows
+     * invoking some actions to all defined processors easily (e.g. start). Incoming messages are redirected to their
+     * queues by a SenderToQueues object, invoked directly by the reader of the CommunicationModule
      */
-    @SuppressWarnings({"FieldCanBeLocal"})
-    private final MessageProcessor senderToQueues;
+    private final Set<MessageLoop> messageProcessorSet;
 
     /**
-     * This set contains all MessageProcessors defined in this object (both in case of having only one, or several).
-     * This allows invoking some actions to all defined processors easily (e.g. start). It also includes the
-     * senderToQueues processor, in case it is defined.
+     * The queues of all concurrent channel sets (each one appears once)
      */
-    private final Set<MessageProcessor> messageProcessorSet;
+    private final List<QueueAndMessageProcessor> channelSetQueues;
+
+    /**
+     * Whether reading from the CommunicationModule was suspended due to a full queue (guarded by channelSetQueues)
+     */
+    private boolean readingSuspended;
 
     private final AtomicBoolean alive;
 
-    private final ExecutorService sequentialTaskExecutor;
+    /**
+     * Runs the invocations of the channel action, in order
+     */
+    private final SerialExecutor sequentialTaskExecutor;
+
+    /**
+     * Handles the messages of the channel sets when they run on a shared worker executor (the message is the event)
+     */
+    private final Consumer<Object> incomingMessageHandler;
+
+    /**
+     * Delivers incoming messages not monitored by any FSM to the channel action (the message is the event)
+     */
+    private final Consumer<Object> newMessageDelivery;
+
+    /**
+     * Dedicated thread of the sequentialTaskExecutor, or null if it runs on a shared worker executor
+     */
+    private final ExecutorService actionThread;
+
+    /**
+     * Whether this module takes part in the format handshake: it proposes the compact channel format to the other
+     * point when started, and answers the handshakes of the other point. Otherwise, it keeps the legacy format
+     */
+    private final boolean proposeCompactFormat;
+
+    /**
+     * Size of the fragments of big messages, used once the other point confirms that it accepts them (0 for not
+     * fragmenting messages)
+     */
+    private final int fragmentSize;
+
+    /**
+     * Whether the other point confirmed that it accepts streams
+     */
+    private volatile boolean streamsAccepted;
+
+    /**
+     * Whether the other point confirmed that it accepts messages bound to sessions
+     */
+    private volatile boolean sessionsAccepted;
+
+    /**
+     * Completed when the format handshake is done (see getFormatHandshake)
+     */
+    private final CompletableFuture<Void> formatHandshake;
+
+    /**
+     * Size of the chunks of the streams opened in this module
+     */
+    private final int streamChunkSize;
+
+    /**
+     * Channels with an open stream (guarded by this array)
+     */
+    private final boolean[] openStreams;
+
+    /**
+     * Whether object messages are sent in the compact channel format (the other point confirmed that it supports it
+     * through the handshake). Received messages are accepted in both formats at all times
+     */
+    private volatile boolean compactFormat;
+
+    /**
+     * Messages that the other point can send through each channel in advance (0 for no flow control)
+     */
+    private final int creditWindow;
+
+    /**
+     * Whether the other point confirmed that it honours the credits of this module, which then grants them as the
+     * incoming messages are consumed
+     */
+    private volatile boolean flowControl;
+
+    /**
+     * Messages consumed in each channel since its last credit grant. Each channel is only updated by the thread
+     * handling its channel set (or by the reader, for channels out of any set)
+     */
+    private final int[] consumedMessages;
+
+    /**
+     * Wheel on which the timeouts of timed FSMs and RPC calls run
+     */
+    private final HashedTimerWheel timerWheel;
+
+    /**
+     * Outstanding RPC calls made by this module
+     */
+    private final RpcCalls rpcCalls;
+
+    /**
+     * Handlers of the RPC requests received through each channel (null slots for channels with no handler)
+     */
+    private final AtomicReferenceArray<RpcHandler> rpcHandlers;
+
+    /**
+     * Timeout of the calls made with no explicit timeout (millis, 0 for no timeout)
+     */
+    private final long rpcTimeoutMillis;
+
+    /**
+     * Time between the heartbeats sent once the other point agrees on them (millis, 0 for no heartbeats)
+     */
+    private final long heartbeatIntervalMillis;
+
+    private final ChannelMetrics metrics;
 
     /**
      * Creates a ChannelModule
@@ -213,54 +441,326 @@ public class ChannelModule {
      * @throws java.io.IOException an error establishing the communications
      */
     public ChannelModule(String name, Socket socket, ChannelAction channelAction, Set<Set<Byte>> concurrentChannels, String id) throws IOException {
+        this(name, socket, channelAction, concurrentChannels, id, new CommunicationConfig());
+    }
+
+    /**
+     * Creates a ChannelModule with specific name, ChannelConnectionPoint id and transport configuration
+     *
+     * @param name               name of this channel module
+     * @param socket             communication socket with the other end
+     * @param channelAction      actions to be invoked upon some events
+     * @param concurrentChannels sets of channels handled by the same thread. A null value of an empty set
+     *                           indicates that all channels are used, by a unique thread
+     * @param config             transport configuration of the underlying CommunicationModule
+     * @throws java.io.IOException      an error establishing the communications
+     * @throws IllegalArgumentException the configuration enables the compact format, and channel 255 is among the
+     *                                  concurrent channels (see checkConcurrentChannels)
+     */
+    public ChannelModule(String name, Socket socket, ChannelAction channelAction, Set<Set<Byte>> concurrentChannels, String id, CommunicationConfig config) throws IOException {
+        this(name, socket, channelAction, concurrentChannels, id, config, null);
+    }
+
+    /**
+     * Creates a ChannelModule whose metrics are aggregated in shared ones
+     *
+     * @param name               name of this channel module
+     * @param socket             communication socket with the other end
+     * @param channelAction      actions to be invoked upon some events
+     * @param concurrentChannels sets of channels handled by the same thread. A null value of an empty set
+     *                           indicates that all channels are used, by a unique thread
+     * @param config             transport configuration of the underlying CommunicationModule
+     * @param aggregateMetrics   metrics where the metrics of this module are aggregated (null for metrics of its own
+     *                           only)
+     * @throws java.io.IOException      an error establishing the communications
+     * @throws IllegalArgumentException the configuration enables the compact format, and channel 255 is among the
+     *                                  concurrent channels (see checkConcurrentChannels)
+     */
+    public ChannelModule(String name, Socket socket, ChannelAction channelAction, Set<Set<Byte>> concurrentChannels, String id, CommunicationConfig config, ChannelMetrics aggregateMetrics) throws IOException {
         ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
         // first, the communication module in charge of low level communication, is created
-        // then, MessageProcessors for handling incoming messages are created and initialized.
-        // There are two possibilities: only one channel set, or multiple channel sets
-        //
-        // - In case only one channel set is used, only one MessageProcessor is needed, and the allChannelProcessor
-        // is employed.
+        // then, MessageLoops for handling incoming messages are created and initialized.
         //
-        // - In case several channel sets are used, senderToQueues is created
-        // to send incoming messages to specific queues for each channel set, and messageProcessorSet is populated
-        // with MessageProcessors for handling the messages of each channel set (in addition, a queue is created
-        // for each channel set, and stored in channelQueuesAndMessageProcessors)
+        // A SenderToQueues object receives the incoming messages from the communication module, and sends them to
+        // specific queues for each channel set. messageProcessorSet is populated with MessageLoops for handling
+        // the messages of each channel set (in addition, a queue is created for each channel set, and stored in
+        // channelQueuesAndMessageProcessors). The communication module does not begin reading until this module is
+        // started. If the configuration provides a shared worker executor, serial executors on top of it replace the
+        // queues and MessageLoops (and the dedicated thread of the channel actions)
         //
         // Finally, a ChannelConnectionPoint associated to this ChannelModule is created, as well as the attributes
         // that will store the used FSMs
         ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-        commModule = new CommunicationModule(name, socket);
+        checkConcurrentChannels(concurrentChannels, config);
+        registerChannelMessageSerializer(config);
+        // received byte arrays carry the channel as their prefix, so the data is delivered without copying it. Objects
+        // in the compact channel format carry it in the same way
+        commModule = new CommunicationModule(name, socket, new SenderToQueues(this), config, true, aggregateMetrics != null ? aggregateMetrics.getConnectionMetrics() : null);
+        metrics = new ChannelMetrics(aggregateMetrics, commModule.getMetrics());
+        proposeCompactFormat = config.isCompactChannelFormat();
+        fragmentSize = config.getFragmentSize();
+        streamsAccepted = false;
+        sessionsAccepted = false;
+        streamChunkSize = config.getStreamChunkSize();
+        openStreams = new boolean[256];
+        compactFormat = false;
+        creditWindow = config.getChannelCreditWindow();
+        flowControl = false;
+        consumedMessages = new int[CHANNEL_COUNT];
+        timerWheel = config.getTimerWheel();
+        rpcHandlers = new AtomicReferenceArray<>(CHANNEL_COUNT);
+        rpcTimeoutMillis = config.getRpcTimeoutMillis();
+        heartbeatIntervalMillis = config.getHeartbeatIntervalMillis();
 
         this.channelAction = channelAction;
         messageProcessorSet = new HashSet<>();
+        channelSetQueues = new ArrayList<>();
+        readingSuspended = false;
 
-        channelQueuesAndMessageProcessors = new HashMap<>();
+        channelQueuesAndMessageProcessors = new QueueAndMessageProcessor[CHANNEL_COUNT];
 
+        Executor workerExecutor = config.getWorkerExecutor();
         for (Set<Byte> channelList : concurrentChannels) {
-            ArrayBlockingQueue<Object> queue = new ArrayBlockingQueue<>(INCOMING_CAPACITY, INCOMING_FAIRNESS);
-            MessageProcessor messageProcessor = new MessageProcessor(name + "/chanMod", new ReaderFromQueues(queue), new MessageHandlerImpl(this), false);
-            QueueAndMessageProcessor queueAndMessageProcessor = new QueueAndMessageProcessor(queue, messageProcessor);
+            QueueAndMessageProcessor queueAndMessageProcessor;
+            int creditedCapacity = INCOMING_CAPACITY + channelList.size() * creditWindow;
+            if (workerExecutor != null) {
+                queueAndMessageProcessor = new QueueAndMessageProcessor(new SerialExecutor(workerExecutor), creditedCapacity);
+            } else {
+                ArrayBlockingQueue<Object> queue = new ArrayBlockingQueue<>(creditedCapacity + 1, INCOMING_FAIRNESS);
+                MessageLoop messageProcessor = new MessageLoop(name + "/chanMod", new ReaderFromQueues(queue, this), new MessageHandlerImpl(this), config.getThreadMode());
+                queueAndMessageProcessor = new QueueAndMessageProcessor(queue, messageProcessor, creditedCapacity);
+                messageProcessorSet.add(messageProcessor);
+            }
             for (Byte oneChannel : channelList) {
-                channelQueuesAndMessageProcessors.put(oneChannel, queueAndMessageProcessor);
+                channelQueuesAndMessageProcessors[oneChannel & 0xFF] = queueAndMessageProcessor;
             }
-            messageProcessorSet.add(messageProcessor);
+            channelSetQueues.add(queueAndMessageProcessor);
         }
-        senderToQueues = new MessageProcessor(name + "/chanMod", new MessageReaderImpl(this, commModule), new SenderToQueues(this), false);
-        messageProcessorSet.add(senderToQueues);
         channelConnectionPoint = new ChannelConnectionPoint(this, id);
-        channelFSMs = new HashMap<>();
+        channelFSMs = new AtomicReferenceArray<>(CHANNEL_COUNT);
         FSMToChannel = new HashMap<>();
+        sessionFSMs = new ConcurrentHashMap<>();
+        FSMToSession = new HashMap<>();
         alive = new AtomicBoolean(true);
-        sequentialTaskExecutor = Executors.newSingleThreadExecutor();
+        if (workerExecutor != null) {
+            actionThread = null;
+            sequentialTaskExecutor = new SerialExecutor(workerExecutor);
+        } else {
+            // the serial executor never schedules more than one drain task at a time, so a one slot queue suffices
+            // (and, unlike the linked queue of a single thread executor, does not allocate a node per scheduling)
+            actionThread = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1), config.getThreadMode().threadFactory(name + "/chanModActions"));
+            sequentialTaskExecutor = new SerialExecutor(actionThread);
+        }
+        rpcCalls = new RpcCalls(timerWheel, sequentialTaskExecutor);
+        formatHandshake = new CompletableFuture<>();
+        if (!proposeCompactFormat) {
+            // no handshake takes place: the legacy format is used from the beginning
+            formatHandshake.complete(null);
+        }
+        incomingMessageHandler = new Consumer<Object>() {
+            @Override
+            public void accept(Object message) {
+                channelQueueConsumed();
+                handleIncomingMessage(message);
+            }
+        };
+        newMessageDelivery = new Consumer<Object>() {
+            @Override
+            public void accept(Object message) {
+                long start = System.nanoTime();
+                deliverNewMessage(message);
+                metrics.messageHandled(start);
+            }
+
+            private void deliverNewMessage(Object message) {
+                if (message instanceof ByteArrayWrapperChannel) {
+                    ByteArrayWrapperChannel byteArrayMessage = (ByteArrayWrapperChannel) message;
+                    channelAction.newMessage(channelConnectionPoint, byteArrayMessage.getChannelValue(), byteArrayMessage.getData());
+                } else if (message instanceof SessionMessage) {
+                    SessionMessage sessionMessage = (SessionMessage) message;
+                    if (sessionMessage.message instanceof ByteArrayWrapperChannel) {
+                        channelAction.newSessionMessage(channelConnectionPoint, sessionMessage.channel, sessionMessage.session, ((ByteArrayWrapperChannel) sessionMessage.message).getData());
+                    } else {
+                        channelAction.newSessionMessage(channelConnectionPoint, sessionMessage.channel, sessionMessage.session, ((ChannelMessage) sessionMessage.message).message);
+                    }
+                } else {
+                    ChannelMessage channelMessage = (ChannelMessage) message;
+                    channelAction.newMessage(channelConnectionPoint, channelMessage.canal, channelMessage.message);
+                }
+            }
+        };
     }
 
     /**
-     * Starts processing incoming messages
+     * Checks that a set of concurrent channels can be used with a configuration. When the compact format is enabled
+     * (CommunicationConfig.setCompactChannelFormat), channel 255 carries the format handshake and the credit grants,
+     * so it cannot be used by the application. Otherwise, channel 255 is an ordinary channel
+     *
+     * @param concurrentChannels sets of channels handled by the same thread
+     * @param config             transport configuration
+     * @throws IllegalArgumentException the configuration enables the compact format, and channel 255 is among the
+     *                                  concurrent channels
+     */
+    public static void checkConcurrentChannels(Set<Set<Byte>> concurrentChannels, CommunicationConfig config) throws IllegalArgumentException {
+        if (concurrentChannels == null || !config.isCompactChannelFormat()) {
+            return;
+        }
+        for (Set<Byte> channelList : concurrentChannels) {
+            if (channelList.contains(ChannelHandshake.CHANNEL)) {
+                throw new IllegalArgumentException("Channel 255 is reserved for the format handshake when the compact channel format is enabled");
+            }
+        }
+    }
+
+    /**
+     * Registers the serializers of channel messages and RPC messages in the codec of a configuration, if it is a
+     * BinaryCodec
+     *
+     * @param config configuration of the connection
+     */
+    static void registerChannelMessageSerializer(CommunicationConfig config) {
+        if (config.getCodec() instanceof BinaryCodec) {
+            // channel messages are encoded as a channel byte plus the message, instead of a serialized wrapper
+            ((BinaryCodec) config.getCodec()).register(ChannelMessageSerializer.TYPE_ID, ChannelMessage.class, new ChannelMessageSerializer());
+            ((BinaryCodec) config.getCodec()).register(RpcMessageSerializer.TYPE_ID, RpcMessage.class, new RpcMessageSerializer());
+        }
+    }
+
+    /**
+     * Starts processing incoming messages. If the configuration says so, the compact channel format is proposed to
+     * the other point
      */
     public void start() {
-        for (MessageProcessor messageProcessor : messageProcessorSet) {
+        for (MessageLoop messageProcessor : messageProcessorSet) {
             messageProcessor.start();
         }
+        if (proposeCompactFormat) {
+            commModule.writeAsync(ChannelHandshake.CHANNEL, ChannelHandshake.build(true));
+        }
+        commModule.start();
+    }
+
+    /**
+     * A channel format handshake was received from the other point. It is ignored if the compact format is not enabled
+     * in the configuration of this module. Otherwise, it is answered if requested, and the compact format (and the
+     * fragmentation of big messages) is used from now on if the other point supports it. If the other point supports
+     * flow control, the credit window of this module is announced to it, and credits are granted for the incoming
+     * messages from now on. If it supports heartbeats, these begin
+     *
+     * @param data data of the handshake
+     */
+    void handshakeReceived(byte[] data) {
+        if (!proposeCompactFormat) {
+            // the other point keeps sending the legacy format, since it gets no answer
+            return;
+        }
+        if (ChannelHandshake.isAnswerRequested(data)) {
+            commModule.writeAsync(ChannelHandshake.CHANNEL, ChannelHandshake.build(false));
+        }
+        if (ChannelHandshake.getVersion(data) >= ChannelHandshake.COMPACT_FORMAT) {
+            compactFormat = true;
+        }
+        if (ChannelHandshake.getVersion(data) >= ChannelHandshake.FRAGMENTED_FORMAT && fragmentSize > 0) {
+            commModule.setFragmentSize(fragmentSize);
+        }
+        if (ChannelHandshake.getVersion(data) >= ChannelHandshake.STREAM_FORMAT) {
+            streamsAccepted = true;
+        }
+        if (ChannelHandshake.getVersion(data) >= ChannelHandshake.SESSION_FORMAT) {
+            sessionsAccepted = true;
+        }
+        if (ChannelHandshake.getVersion(data) >= ChannelHandshake.HEARTBEAT_FORMAT && heartbeatIntervalMillis > 0) {
+            commModule.setHeartbeatInterval(heartbeatIntervalMillis);
+        }
+        if (ChannelHandshake.getVersion(data) >= ChannelHandshake.FLOW_CONTROL_FORMAT && creditWindow > 0 && !flowControl) {
+            flowControl = true;
+            commModule.writeAsync(ChannelHandshake.CHANNEL, ChannelCreditGrant.build(ChannelHandshake.CHANNEL, creditWindow));
+        }
+        if (!formatHandshake.isDone()) {
+            // the reader must not run the dependent actions of the future
+            try {
+                sequentialTaskExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        formatHandshake.complete(null);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the module was stopped, and the future failed then
+            }
+        }
+    }
+
+    /**
+     * Retrieves a future that completes once the format handshake with the other point is done, that is, once this
+     * module knows which features the other point supports (compact format, fragmentation, streams, sessions, flow
+     * control and heartbeats), and uses them. It is completed by the thread of the channel actions (never by the
+     * thread reading the connection).
+     * <p/>
+     * If the compact format is not enabled in the configuration of this module, no handshake takes place, and the
+     * future is already complete. If the other point does not answer the handshake (it does not enable the compact
+     * format, or runs an older version of this library), the future only fails, with an IOException, when this
+     * module is disconnected. Waiting for it should therefore be bounded
+     *
+     * @return the future of the format handshake
+     */
+    public CompletableFuture<Void> getFormatHandshake() {
+        return formatHandshake;
+    }
+
+    /**
+     * The other point granted credits to one of our channels, or announced its credit window (grant to channel 255),
+     * which enables the flow control of our outgoing messages
+     *
+     * @param data data of the credit grant
+     */
+    void creditsGranted(byte[] data) {
+        byte channel = ChannelCreditGrant.getChannel(data);
+        int credits = ChannelCreditGrant.getCredits(data);
+        if (credits <= 0) {
+            // invalid grant, ignored
+            return;
+        }
+        if (channel == ChannelHandshake.CHANNEL) {
+            commModule.enableLaneCredits(credits);
+        } else {
+            commModule.grantLaneCredits(channel & 0xFF, credits);
+        }
+    }
+
+    /**
+     * An incoming message of a channel was consumed (handled, or discarded). Once half of the credit window has been
+     * consumed, that amount of credits is granted back to the other point
+     *
+     * @param channel the channel of the message
+     */
+    private void messageConsumed(byte channel) {
+        if (flowControl && channel != ChannelHandshake.CHANNEL) {
+            int consumed = ++consumedMessages[channel & 0xFF];
+            if (consumed >= Math.max(1, creditWindow / 2)) {
+                consumedMessages[channel & 0xFF] = 0;
+                commModule.writeAsync(ChannelHandshake.CHANNEL, ChannelCreditGrant.build(channel, consumed));
+            }
+        }
+    }
+
+    /**
+     * Says whether object messages are currently sent in the compact channel format
+     *
+     * @return true if the other point agreed on the compact format
+     */
+    boolean isCompactFormat() {
+        return compactFormat;
+    }
+
+    /**
+     * Says whether this module takes part in the format handshake, so incoming messages of channel 255 are handshakes
+     * and credit grants instead of application messages
+     *
+     * @return true if the compact format is enabled in the configuration of this module
+     */
+    boolean isFormatHandshakeEnabled() {
+        return proposeCompactFormat;
     }
 
     /**
@@ -274,8 +774,9 @@ public class ChannelModule {
         // If we are using several threads, then the main message processor for delivering messages to specific
         // queues must be left running (so no other concurrent channel sets are affected). We will only pause the
         // message processor accessing the involved queue.
-        if (channelQueuesAndMessageProcessors.containsKey(channel)) {
-            channelQueuesAndMessageProcessors.get(channel).messageProcessor.pause();
+        QueueAndMessageProcessor queueAndMessageProcessor = channelQueuesAndMessageProcessors[channel & 0xFF];
+        if (queueAndMessageProcessor != null) {
+            queueAndMessageProcessor.pause();
         } else {
             throw new IndexOutOfBoundsException("Channel is not supported in this ChannelModule: " + channel);
         }
@@ -289,8 +790,9 @@ public class ChannelModule {
      */
     public void resume(byte channel) {
         // this is equivalent to the previous pause method, but resuming. The structure of the code is identical.
-        if (channelQueuesAndMessageProcessors.containsKey(channel)) {
-            channelQueuesAndMessageProcessors.get(channel).messageProcessor.resume();
+        QueueAndMessageProcessor queueAndMessageProcessor = channelQueuesAndMessageProcessors[channel & 0xFF];
+        if (queueAndMessageProcessor != null) {
+            queueAndMessageProcessor.resume();
         } else {
             throw new IndexOutOfBoundsException("Channel is not supported in this ChannelModule: " + channel);
         }
@@ -322,10 +824,10 @@ public class ChannelModule {
      */
     void messageReaderStopped() {
         // first stop the channel module and notify the disconnection or the error to the client
-        // if we are working with one MessageProcessor (all channels monitored by a single thread) then we don't need
-        // to perform any additional action, because that MessageProcessor will die itself.
-        // However, if we have additional MessageProcessors for different channel sets, these must be terminated
-        // (by giving them a StopReadingMessages
+        // the MessageLoops for the different channel sets must be terminated (by giving them a
+        // StopReadingMessages). They are resumed first, in case they were paused. The queues always keep one free
+        // slot for this message, so this never blocks the reader of the communication module. Serial executors are
+        // simply shut down once resumed (their pending messages are still handled)
         if (!commModule.isError()) {
             channelActionDisconnected(channelConnectionPoint, commModule.isManuallyDisconnected());
         } else {
@@ -333,16 +835,13 @@ public class ChannelModule {
         }
         stopChannelModule();
 
-        if (channelQueuesAndMessageProcessors != null) {
-            // set with all different queue and message processors (so we only send one message to each queue)
-            Set<QueueAndMessageProcessor> allQueueAndMessageProcessors = new HashSet<>(channelQueuesAndMessageProcessors.values());
-            for (QueueAndMessageProcessor queueAndMessageProcessor : allQueueAndMessageProcessors) {
-                try {
-                    queueAndMessageProcessor.queue.put(new StopReadingMessages());
-                    queueAndMessageProcessor.messageProcessor.resume();
-                } catch (InterruptedException e) {
-                    // ignore this exception
-                }
+        // each queue and message processor appears once in channelSetQueues (so we only send one message to each queue)
+        for (QueueAndMessageProcessor queueAndMessageProcessor : channelSetQueues) {
+            queueAndMessageProcessor.resume();
+            if (queueAndMessageProcessor.serialExecutor != null) {
+                queueAndMessageProcessor.serialExecutor.shutdown();
+            } else {
+                queueAndMessageProcessor.queue.offer(new StopReadingMessages());
             }
         }
     }
@@ -351,7 +850,13 @@ public class ChannelModule {
         if (alive.get()) {
             alive.set(false);
             detachAllFSMs();
+            rpcCalls.close();
+            formatHandshake.completeExceptionally(new IOException("Channel module disconnected"));
+            // already submitted actions (e.g. the disconnection) are still invoked
             sequentialTaskExecutor.shutdown();
+            if (actionThread != null) {
+                actionThread.shutdown();
+            }
         }
     }
 
@@ -362,8 +867,188 @@ public class ChannelModule {
      * @param message the message to send
      */
     long write(byte channel, Serializable message, boolean flush) {
-        // the message is sent as a unique ChannelMessage object
-        return commModule.write(new ChannelMessage(channel, message), flush);
+        // in the compact format, the channel is placed in the frame header and only the message is encoded. In the
+        // legacy format, the message is sent as a unique ChannelMessage object
+        if (compactFormat) {
+            return commModule.write(channel, message, flush);
+        } else {
+            return commModule.write(new ChannelMessage(channel, message), channel & 0xFF, flush);
+        }
+    }
+
+    /**
+     * Writes an object message through a given channel, without blocking
+     *
+     * @param channel the channel through which the message is to be sent
+     * @param message the message to send
+     * @return a future completing when the message is written
+     */
+    CompletableFuture<Void> writeAsync(byte channel, Serializable message) {
+        if (compactFormat) {
+            return commModule.writeAsync(channel, message);
+        } else {
+            return commModule.writeAsync(new ChannelMessage(channel, message), channel & 0xFF);
+        }
+    }
+
+    /**
+     * Writes an array of bytes through a given channel, without blocking
+     *
+     * @param channel the channel through which the data is to be sent
+     * @param data    the data to send
+     * @return a future completing when the data is written
+     */
+    CompletableFuture<Void> writeAsync(byte channel, byte[] data) {
+        return commModule.writeAsync(channel, data);
+    }
+
+    /**
+     * Writes an already encoded message
+     *
+     * @param message the encoded message, including its channel
+     */
+    long write(EncodedChannelMessage message, boolean flush) {
+        EncodedFrame encodedFrame;
+        try {
+            encodedFrame = message.getEncodedFrame(compactFormat);
+        } catch (IOException e) {
+            // the frame of the other format could be encoded, so this is not expected
+            return 0L;
+        }
+        return commModule.write(encodedFrame, message.getChannel() & 0xFF, flush);
+    }
+
+    /**
+     * Writes an already encoded message, without blocking
+     *
+     * @param message the encoded message, including its channel
+     * @return a future completing when the message is written
+     */
+    CompletableFuture<Void> writeAsync(EncodedChannelMessage message) {
+        try {
+            return commModule.writeAsync(message.getEncodedFrame(compactFormat), message.getChannel() & 0xFF);
+        } catch (IOException e) {
+            return failedFuture(e);
+        }
+    }
+
+    /**
+     * Offers an already encoded message under the slow consumer policy of the connection. Messages of the same
+     * channel replace each other under the CONFLATE policy
+     *
+     * @param message the encoded message, including its channel
+     * @return a future completing when the message is written
+     */
+    CompletableFuture<Void> offer(EncodedChannelMessage message) {
+        try {
+            return commModule.offer(message.getEncodedFrame(compactFormat), message.getChannel() & 0xFF, message.getChannel());
+        } catch (IOException e) {
+            return failedFuture(e);
+        }
+    }
+
+    private static CompletableFuture<Void> failedFuture(Throwable e) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    /**
+     * Gives a channel a priority and a weight for its outgoing messages (see
+     * CommunicationModule.setLaneScheduling). Channels without settings share a default queue (priority 0, weight 1)
+     *
+     * @param channel  the channel
+     * @param priority priority of the channel (higher values are written first)
+     * @param weight   weight of the channel among the channels of its priority (at least 1)
+     * @throws IllegalArgumentException if the weight is not valid
+     */
+    public void setChannelPriority(byte channel, int priority, int weight) throws IllegalArgumentException {
+        commModule.setLaneScheduling(channel & 0xFF, priority, weight);
+    }
+
+    /**
+     * Removes the priority settings of a channel, so its outgoing messages go back to the default queue
+     *
+     * @param channel the channel
+     */
+    public void clearChannelPriority(byte channel) {
+        commModule.clearLaneScheduling(channel & 0xFF);
+    }
+
+    /**
+     * Retrieves the time that the outgoing messages of a channel waited until they were written
+     *
+     * @param channel the channel
+     * @return the queueing delay of the channel
+     */
+    public QueueingDelay getQueueingDelay(byte channel) {
+        return commModule.getQueueingDelay(channel & 0xFF);
+    }
+
+    /**
+     * Retrieves the round trip time of the connection, measured with the heartbeats
+     * (CommunicationConfig.setHeartbeatIntervalMillis)
+     *
+     * @return the smoothed round trip time (nanos), or -1 if it is not known (no heartbeats, or no pong received yet)
+     */
+    public long getRoundTripTimeNanos() {
+        return commModule.getRoundTripTimeNanos();
+    }
+
+    /**
+     * Retrieves the metrics of this module (see ChannelMetrics)
+     *
+     * @return the metrics of this module
+     */
+    public ChannelMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Retrieves the incoming messages waiting in the queue of the channel set of a channel
+     *
+     * @param channel the channel
+     * @return the messages waiting to be handled by the channel set of the channel (0 if the channel belongs to no
+     * channel set)
+     */
+    public int getQueueDepth(byte channel) {
+        QueueAndMessageProcessor queueAndMessageProcessor = channelQueuesAndMessageProcessors[channel & 0xFF];
+        return queueAndMessageProcessor != null ? queueAndMessageProcessor.pendingMessages() : 0;
+    }
+
+    /**
+     * Retrieves the messages that can still be sent through a channel before the other point grants more credits
+     *
+     * @param channel the channel
+     * @return the credits of the channel, or -1 if its flow is not controlled
+     */
+    public long getChannelCredits(byte channel) {
+        return commModule.getLaneCredits(channel & 0xFF);
+    }
+
+    SlowConsumerPolicy getSlowConsumerPolicy() {
+        return commModule.getSlowConsumerPolicy();
+    }
+
+    void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        commModule.setSlowConsumerPolicy(slowConsumerPolicy);
+    }
+
+    boolean isSlowConsumer() {
+        return commModule.isSlowConsumer();
+    }
+
+    boolean isWritable() {
+        return commModule.isWritable();
+    }
+
+    /**
+     * The writability of the connection changed. The channel action is notified
+     *
+     * @param writable true if the connection became writable, false otherwise
+     */
+    void writabilityChanged(boolean writable) {
+        channelActionWritabilityChanged(channelConnectionPoint, writable);
     }
 
     /**
@@ -373,9 +1058,87 @@ public class ChannelModule {
      * @param data    the data to send
      */
     long write(byte channel, byte[] data, boolean flush) {
-        // the message is sent as a unique array of bytes, with the channel and the data together
-        byte[] channelAndData = Serializer.addArrays(Serializer.serialize(channel), data);
-        return commModule.write(channelAndData, flush);
+        // the message is sent as a unique array of bytes, with the channel and the data together. The channel is
+        // written as the prefix of the array, so both are never joined in a new array
+        return commModule.write(channel, data, flush);
+    }
+
+    /**
+     * Writes an object message bound to a session of a channel. The other point dispatches it to the FSM of the
+     * session, if any
+     *
+     * @param channel the channel through which the message is to be sent
+     * @param session the session of the message (not negative)
+     * @param message the message to send
+     * @param flush   whether the output must be flushed after the write
+     * @throws IllegalArgumentException if the session is negative
+     * @throws IllegalStateException    if the other point does not accept sessions (or has not confirmed it yet in
+     *                                  the format handshake)
+     */
+    long write(byte channel, int session, Serializable message, boolean flush) throws IllegalArgumentException, IllegalStateException {
+        checkSessionsAccepted();
+        return commModule.write(channel, session, message, flush);
+    }
+
+    long write(byte channel, int session, byte[] data, boolean flush) throws IllegalArgumentException, IllegalStateException {
+        checkSessionsAccepted();
+        return commModule.write(channel, session, data, flush);
+    }
+
+    CompletableFuture<Void> writeAsync(byte channel, int session, Serializable message) throws IllegalArgumentException, IllegalStateException {
+        checkSessionsAccepted();
+        return commModule.writeAsync(channel, session, message);
+    }
+
+    CompletableFuture<Void> writeAsync(byte channel, int session, byte[] data) throws IllegalArgumentException, IllegalStateException {
+        checkSessionsAccepted();
+        return commModule.writeAsync(channel, session, data);
+    }
+
+    private void checkSessionsAccepted() throws IllegalStateException {
+        if (!sessionsAccepted) {
+            throw new IllegalStateException("The other point does not accept sessions");
+        }
+    }
+
+    /**
+     * Says whether the other point accepts messages bound to sessions
+     *
+     * @return true if messages can be written with a session
+     */
+    boolean isSessionsAccepted() {
+        return sessionsAccepted;
+    }
+
+    /**
+     * Opens a stream for sending data through a channel, in chunks (see ChannelOutputStream)
+     *
+     * @param channel the channel through which the stream is sent
+     * @return the stream
+     * @throws IOException if the other point does not accept streams (or has not confirmed it yet in the format
+     *                     handshake), or the channel already has an open stream
+     */
+    ChannelOutputStream openStream(byte channel) throws IOException {
+        if (!streamsAccepted) {
+            throw new IOException("The other point does not accept streams");
+        }
+        synchronized (openStreams) {
+            if (openStreams[channel & 0xFF]) {
+                throw new IOException("Channel " + channel + " already has an open stream");
+            }
+            openStreams[channel & 0xFF] = true;
+        }
+        return new ChannelOutputStream(this, channel, streamChunkSize);
+    }
+
+    boolean writeStreamChunk(byte channel, byte[] data, int offset, int length, boolean last) {
+        return commModule.writeStreamChunk(channel, data, offset, length, last);
+    }
+
+    void streamClosed(byte channel) {
+        synchronized (openStreams) {
+            openStreams[channel & 0xFF] = false;
+        }
     }
 
     long flush() {
@@ -388,43 +1151,169 @@ public class ChannelModule {
      * @param message the message to handle
      */
     void handleIncomingMessage(Object message) {
+        metrics.messageDequeued();
         // the received message can either be a ByteArrayWrapperChannel or a ChannelMessage, but the behaviour to
         // follow is quite similar. The difference is in the way the channel is obtained, and the way the message
         // is processed in the absence of FSMs.
         // this method does not need any synchronizing since no attributes are modified, only read
-        boolean isByteArray;
+        if (message instanceof StreamChunk) {
+            // stream chunks bypass FSMs, and are handed to the channel action in this thread, so the bounded channel
+            // set queue (and the suspension of reading when it fills up) limits the chunks held in memory
+            StreamChunk streamChunk = (StreamChunk) message;
+            if (alive.get()) {
+                long start = System.nanoTime();
+                channelAction.newStreamChunk(channelConnectionPoint, streamChunk.getPrefix(), streamChunk.getData(), streamChunk.isLast());
+                metrics.messageHandled(start);
+            }
+            messageConsumed(streamChunk.getPrefix());
+            return;
+        }
+        if (message instanceof SessionMessage) {
+            sessionMessageReceived((SessionMessage) message);
+            return;
+        }
         byte channel;
         if (message instanceof ByteArrayWrapperChannel) {
-            isByteArray = true;
-            channel = ((ByteArrayWrapperChannel) message).getChannel();
+            channel = ((ByteArrayWrapperChannel) message).getChannelValue();
         } else {
-            isByteArray = false;
             channel = ((ChannelMessage) message).canal;
-        }
-        // synchronize this section so nobody can register an FSM while this is running -> this allows
-        // the final action of an FSM to state that a channel is free
-        // in addition, this allows to complete the init of an FSM before it receives any message
-        GenericFSM<?, Object> fsm = null;
-        synchronized (this) {
-            if (channelFSMs.containsKey(channel)) {
-                // copy in another list to avoid concurrency exceptions when detaching (in the detach operation we
-                // eliminate the FSM from the FSM list itself)
-                fsm = channelFSMs.get(channel);
+            if (((ChannelMessage) message).message instanceof RpcMessage) {
+                // requests and responses of the RPC layer bypass FSMs and the channel action
+                rpcMessageReceived(channel, (RpcMessage) ((ChannelMessage) message).message);
+                messageConsumed(channel);
+                return;
             }
         }
+        // the FSM table is read without locking: a single volatile read of the channel slot, which registration and
+        // detaching update under the lock of this object
+        GenericFSM<?, Object> fsm = channelFSMs.get(channel & 0xFF);
         if (fsm != null) {
-            if (!fsm.newInput(message)) {
+            long start = System.nanoTime();
+            boolean active = fsm.newInput(message);
+            metrics.messageHandled(start);
+            if (!active) {
                 // detach this GenericFSM
                 detachFSM(fsm, false);
             }
         } else {
             // in the absence of any FSM monitoring the channel, simply send this message to the ChannelAction implementation.
-            // cannot happen, no message processor will send the message here
-            if (isByteArray) {
-                channelActionNewMessage(channelConnectionPoint, channel, ((ByteArrayWrapperChannel) message).getData());
-            } else {
-                channelActionNewMessage(channelConnectionPoint, channel, ((ChannelMessage) message).message);
+            channelActionNewMessage(message);
+        }
+        messageConsumed(channel);
+    }
+
+    /**
+     * Handles an incoming message bound to a session, submitting it to the FSM of its session if there is one
+     *
+     * @param sessionMessage the message
+     */
+    private void sessionMessageReceived(SessionMessage sessionMessage) {
+        GenericFSM<?, Object> fsm = sessionFSMs.get(sessionKey(sessionMessage.channel, sessionMessage.session));
+        if (fsm != null) {
+            long start = System.nanoTime();
+            boolean active = fsm.newInput(sessionMessage.message);
+            metrics.messageHandled(start);
+            if (!active) {
+                detachFSM(fsm, false);
             }
+        } else {
+            channelActionNewMessage(sessionMessage);
+        }
+        messageConsumed(sessionMessage.channel);
+    }
+
+    private static long sessionKey(byte channel, int session) {
+        return ((long) (channel & 0xFF) << 32) | session;
+    }
+
+    /**
+     * Makes a request to the other point through a channel, waiting for its response the default time of the
+     * configuration (see CommunicationConfig.setRpcTimeoutMillis)
+     *
+     * @param channel the channel through which the request is sent
+     * @param request the request
+     * @return a future completed with the response. It fails with an RpcException if the other point could not
+     * handle the request, with a TimeoutException if the response does not arrive in time, or with an IOException if
+     * the request could not be written or this module gets disconnected. Responses complete the future in the thread
+     * that processes the incoming messages of the channel, and timeouts in the thread of the channel actions (never
+     * in the shared timer wheel thread). Dependent actions run in those threads, so they should not block
+     */
+    public CompletableFuture<Serializable> call(byte channel, Serializable request) {
+        return call(channel, request, rpcTimeoutMillis);
+    }
+
+    /**
+     * Makes a request to the other point through a channel. The request is written without blocking, so any number of
+     * requests can be outstanding at the same time
+     *
+     * @param channel       the channel through which the request is sent
+     * @param request       the request
+     * @param timeoutMillis time to wait for the response (millis, 0 for waiting indefinitely)
+     * @return a future completed with the response (see call(byte, Serializable))
+     */
+    public CompletableFuture<Serializable> call(byte channel, Serializable request, long timeoutMillis) {
+        final long id = rpcCalls.nextId();
+        CompletableFuture<Serializable> future = rpcCalls.start(id, timeoutMillis);
+        if (!future.isDone()) {
+            writeAsync(channel, new RpcMessage(RpcMessage.REQUEST, id, request)).whenComplete(new BiConsumer<Void, Throwable>() {
+                @Override
+                public void accept(Void result, Throwable throwable) {
+                    if (throwable != null) {
+                        rpcCalls.fail(id, throwable);
+                    }
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * Sets the handler of the requests received through a channel. Requests of channels with no handler are answered
+     * with a failure
+     *
+     * @param channel the channel
+     * @param handler the handler of the requests of the channel, or null for removing the current handler
+     */
+    public void setRpcHandler(byte channel, RpcHandler handler) {
+        rpcHandlers.set(channel & 0xFF, handler);
+    }
+
+    /**
+     * Retrieves the number of calls made by this module that are still waiting for their response
+     *
+     * @return the outstanding calls
+     */
+    public int getOutstandingCalls() {
+        return rpcCalls.outstandingCalls();
+    }
+
+    /**
+     * A request or a response of the RPC layer was received. Requests are handled right away, and their response is
+     * written without blocking
+     *
+     * @param channel    the channel of the message
+     * @param rpcMessage the request or response
+     */
+    private void rpcMessageReceived(byte channel, RpcMessage rpcMessage) {
+        if (rpcMessage.kind != RpcMessage.REQUEST) {
+            rpcCalls.responseReceived(rpcMessage);
+            return;
+        }
+        RpcHandler handler = rpcHandlers.get(channel & 0xFF);
+        RpcMessage response;
+        if (handler == null) {
+            response = new RpcMessage(RpcMessage.FAILURE, rpcMessage.id, "No RPC handler for channel " + channel);
+        } else {
+            long start = System.nanoTime();
+            try {
+                response = new RpcMessage(RpcMessage.RESPONSE, rpcMessage.id, handler.handleRequest(channelConnectionPoint, channel, rpcMessage.payload));
+            } catch (Exception e) {
+                response = new RpcMessage(RpcMessage.FAILURE, rpcMessage.id, e.toString());
+            }
+            metrics.messageHandled(start);
+        }
+        if (alive.get()) {
+            writeAsync(channel, response);
         }
     }
 
@@ -437,13 +1326,60 @@ public class ChannelModule {
      */
     void addMessageToChannelQueue(byte channel, Object message) {
         // if this channel is not registered, ignore the message.
-        // if the channel is ok, put it in the corresponding queue
-        try {
-            if (channelQueuesAndMessageProcessors.containsKey(channel)) {
-                channelQueuesAndMessageProcessors.get(channel).queue.put(message);
+        // if the channel is ok, put it in the corresponding queue. If the queue becomes full, reading from the
+        // communication module is suspended (the reader must never block, as it may be shared with other connections)
+        QueueAndMessageProcessor queueAndMessageProcessor = channelQueuesAndMessageProcessors[channel & 0xFF];
+        if (queueAndMessageProcessor != null) {
+            synchronized (channelSetQueues) {
+                boolean messageQueued = true;
+                if (queueAndMessageProcessor.serialExecutor != null) {
+                    try {
+                        queueAndMessageProcessor.serialExecutor.deliver(incomingMessageHandler, message);
+                    } catch (RejectedExecutionException e) {
+                        // the module is stopping (or the worker executor was shut down) -> discard the message
+                        return;
+                    }
+                } else if (!queueAndMessageProcessor.queue.offer(message)) {
+                    // never happens, since reading is suspended before the queue fills up
+                    messageQueued = false;
+                }
+                int pendingMessages = queueAndMessageProcessor.pendingMessages();
+                if (messageQueued) {
+                    metrics.messageQueued(pendingMessages);
+                }
+                if (pendingMessages >= suspensionThreshold(queueAndMessageProcessor) && !readingSuspended) {
+                    readingSuspended = true;
+                    commModule.suspendReading();
+                }
+            }
+        } else {
+            // nobody will handle it, so its credit is given back right away
+            messageConsumed(channel);
+        }
+    }
+
+    /**
+     * Pending messages of a channel set queue at which reading from the CommunicationModule is suspended
+     */
+    private int suspensionThreshold(QueueAndMessageProcessor queueAndMessageProcessor) {
+        return flowControl ? queueAndMessageProcessor.creditedCapacity : INCOMING_CAPACITY;
+    }
+
+    /**
+     * A message was taken from one of the channel set queues. If reading was suspended and all queues have room
+     * again, it is resumed
+     */
+    void channelQueueConsumed() {
+        synchronized (channelSetQueues) {
+            if (readingSuspended) {
+                for (QueueAndMessageProcessor queueAndMessageProcessor : channelSetQueues) {
+                    if (queueAndMessageProcessor.pendingMessages() >= suspensionThreshold(queueAndMessageProcessor)) {
+                        return;
+                    }
+                }
+                readingSuspended = false;
+                commModule.resumeReading();
             }
-        } catch (InterruptedException e) {
-            // ignore -> never invoked
         }
     }
 
@@ -453,8 +1389,8 @@ public class ChannelModule {
      * @param channel the channel to check
      * @return true if there is at least one FSM monitoring the given channel, false otherwise
      */
-    synchronized boolean isChannelRegistered(byte channel) {
-        return channelFSMs.containsKey(channel);
+    boolean isChannelRegistered(byte channel) {
+        return channelFSMs.get(channel & 0xFF) != null;
     }
 
     /**
@@ -480,6 +1416,29 @@ public class ChannelModule {
         }
     }
 
+    /**
+     * Registers a new ChannelFSM for a session of a channel. It receives the messages of that session only, while the
+     * rest of messages of the channel go to the FSM of the channel (or to the channel action)
+     *
+     * @param channelFSMAction the actions of the ChannelFSM to register
+     * @param name             name of the new GenericFSM
+     * @param channel          the channel of the session
+     * @param session          the session that the given FSM will monitor (not negative)
+     * @param <T>              the type of the FMS states
+     * @throws IllegalArgumentException if the channel is not supported in this ChannelModule, the session is negative
+     *                                  or already has an FSM
+     */
+    <T> String registerNewFSM(ChannelFSMAction<T> channelFSMAction, String name, byte channel, int session) throws IllegalArgumentException {
+        if (alive.get()) {
+            ChannelFSM<T> channelFSM = new ChannelFSM<>(channelFSMAction, channelConnectionPoint);
+            GenericFSM<T, Object> genericFSM = new GenericFSM<>(name, channelFSM);
+            registerSessionFSM(genericFSM, channel, session);
+            return genericFSM.getId();
+        } else {
+            return null;
+        }
+    }
+
     /**
      * Registers a new timed ChannelFSM in this ChannelModule
      *
@@ -495,8 +1454,8 @@ public class ChannelModule {
      */
     <T> String registerNewFSM(TimedChannelFSMAction<T> timedChannelFSMAction, long timeoutMillis, String name, byte channel) throws IllegalArgumentException {
         if (alive.get()) {
-            TimedChannelFSM<T> timedChannelFSM = new TimedChannelFSM<>(this, timedChannelFSMAction, channelConnectionPoint);
-            TimedFSM<T, Object> timedFSM = new TimedFSM<>(name, timedChannelFSM, timeoutMillis);
+            TimedChannelFSM<T> timedChannelFSM = new TimedChannelFSM<>(this, timedChannelFSMAction, channelConnectionPoint, timerWheel, timeoutMillis);
+            GenericFSM<T, Object> timedFSM = new GenericFSM<>(name, timedChannelFSM);
             timedChannelFSM.setGenericFSM(timedFSM);
             registerFSM(timedFSM, channel);
             return timedFSM.getId();
@@ -505,6 +1464,31 @@ public class ChannelModule {
         }
     }
 
+    /**
+     * Registers a new timed ChannelFSM for a session of a channel (see registerNewFSM(ChannelFSMAction, String, byte,
+     * int))
+     *
+     * @param timedChannelFSMAction the actions of the timed ChannelFSM to register
+     * @param timeoutMillis         the timeout for this timed ChannelFSM (in millis)
+     * @param name                  name of the new TimedFSM
+     * @param channel               the channel of the session
+     * @param session               the session that the given FSM will monitor (not negative)
+     * @param <T>                   the type of the FMS states
+     * @throws IllegalArgumentException if the channel is not supported in this ChannelModule, the session is negative
+     *                                  or already has an FSM
+     */
+    <T> String registerNewFSM(TimedChannelFSMAction<T> timedChannelFSMAction, long timeoutMillis, String name, byte channel, int session) throws IllegalArgumentException {
+        if (alive.get()) {
+            TimedChannelFSM<T> timedChannelFSM = new TimedChannelFSM<>(this, timedChannelFSMAction, channelConnectionPoint, timerWheel, timeoutMillis);
+            GenericFSM<T, Object> timedFSM = new GenericFSM<>(name, timedChannelFSM);
+            timedChannelFSM.setGenericFSM(timedFSM);
+            registerSessionFSM(timedFSM, channel, session);
+            return timedFSM.getId();
+        } else {
+            return null;
+        }
+    }
+
     /**
      * @param genericFSM the FSM to register in this ChannelModule
      * @param channel    the channel that this FSM will be monitoring. It must be supported by this ChannelModule
@@ -517,12 +1501,12 @@ public class ChannelModule {
     private <T> void registerFSM(GenericFSM<T, Object> genericFSM, byte channel) throws IllegalArgumentException {
         // check channels are supported and synchronized
         // channel queue associated to the given channels
-        if (!channelQueuesAndMessageProcessors.containsKey(channel)) {
+        if (channelQueuesAndMessageProcessors[channel & 0xFF] == null) {
             throw new IllegalArgumentException("Channel " + channel + " is not supported in this channel module");
         }
         // correct channels -> register them with the new FSM, and stored the already received messages
         synchronized (this) {
-            channelFSMs.put(channel, genericFSM);
+            channelFSMs.set(channel & 0xFF, genericFSM);
             FSMToChannel.put(genericFSM, channel);
         }
         // once we checked everything is correct, start the received FSM (it should not be already started)
@@ -532,27 +1516,77 @@ public class ChannelModule {
         }
     }
 
+    private <T> void registerSessionFSM(GenericFSM<T, Object> genericFSM, byte channel, int session) throws IllegalArgumentException {
+        if (channelQueuesAndMessageProcessors[channel & 0xFF] == null) {
+            throw new IllegalArgumentException("Channel " + channel + " is not supported in this channel module");
+        }
+        if (session < 0) {
+            throw new IllegalArgumentException("Invalid session: " + session);
+        }
+        long key = sessionKey(channel, session);
+        synchronized (this) {
+            if (sessionFSMs.putIfAbsent(key, genericFSM) != null) {
+                throw new IllegalArgumentException("Session " + session + " of channel " + channel + " already has an FSM");
+            }
+            FSMToSession.put(genericFSM, key);
+        }
+        if (!genericFSM.start()) {
+            detachFSM(genericFSM, false);
+        }
+    }
+
+    /**
+     * Checks whether a session of a channel has an FSM monitoring it
+     *
+     * @param channel the channel of the session
+     * @param session the session to check
+     * @return true if the session has an FSM
+     */
+    boolean isSessionRegistered(byte channel, int session) {
+        return sessionFSMs.containsKey(sessionKey(channel, session));
+    }
+
     /**
      * Detaches a given FSM from this ChannelModule
      *
      * @param genericFSM the FSM to detach
+     * @return true if the FSM was detached, false if it was not attached to this module
      */
-    private void detachFSM(GenericFSM<?, Object> genericFSM, boolean issueDisconnection) {
+    private boolean detachFSM(GenericFSM<?, Object> genericFSM, boolean issueDisconnection) {
         // the received genericFSM is no longer used, so it is eliminated from the active FSM lists. First we check
         // that this FSM is actually active in this ChannelModule (otherwise, ignore)
         // The channels which no longer have any FSM associated are notified to be free
         byte freedChannel;
         synchronized (this) {
+            if (FSMToSession.containsKey(genericFSM)) {
+                detachSessionFSM(genericFSM, issueDisconnection);
+                return true;
+            }
             if (!FSMToChannel.containsKey(genericFSM)) {
-                return;
+                return false;
             }
             if (issueDisconnection) {
                 // manually stop the timer so that the disconnected event is raised
                 genericFSM.stop();
             }
             freedChannel = FSMToChannel.remove(genericFSM);
+            // further messages of the channel go to the channel action (unless another FSM took the channel)
+            channelFSMs.compareAndSet(freedChannel & 0xFF, genericFSM, null);
             channelActionChannelsFreed(channelConnectionPoint, freedChannel);
+            return true;
+        }
+    }
+
+    /**
+     * Detaches the FSM of a session (invoked holding the lock of this object)
+     */
+    private void detachSessionFSM(GenericFSM<?, Object> genericFSM, boolean issueDisconnection) {
+        if (issueDisconnection) {
+            genericFSM.stop();
         }
+        long key = FSMToSession.remove(genericFSM);
+        sessionFSMs.remove(key, genericFSM);
+        channelActionSessionFreed(channelConnectionPoint, (byte) (key >>> 32), (int) key);
     }
 
     /**
@@ -565,46 +1599,65 @@ public class ChannelModule {
         Set<GenericFSM<?, Object>> fsmToRemoveSet;
         synchronized (this) {
             fsmToRemoveSet = new HashSet<>(FSMToChannel.keySet());
+            fsmToRemoveSet.addAll(FSMToSession.keySet());
         }
         for (GenericFSM<?, Object> fsm : fsmToRemoveSet) {
             detachFSM(fsm, true);
         }
     }
 
-    <T> void FSMTimedOut(GenericFSM<?, Object> genericFSM, TimedChannelFSMAction<T> timedChannelFSMAction, T state) {
-        // if the FSM was already detached (disconnection, completion, etc), we don't have a concurrency controller for it
-        detachFSM(genericFSM, false);
-        timedChannelFSMAction.timedOut(state, channelConnectionPoint);
+    HashedTimerWheel getTimerWheel() {
+        return timerWheel;
     }
 
-    private void channelActionNewMessage(final ChannelConnectionPoint ccp, final byte channel, final Object message) {
+    /**
+     * The timeout of a timed FSM expired. Invoked by the thread of the timer wheel, which must not wait for the FSM,
+     * so the timeout is handled by the thread of the channel actions
+     *
+     * @param timedChannelFSM the FSM whose timeout expired
+     */
+    void FSMTimeoutExpired(final TimedChannelFSM<?> timedChannelFSM) {
         if (alive.get()) {
-            sequentialTaskExecutor.submit(new Runnable() {
+            sequentialTaskExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    channelAction.newMessage(ccp, channel, message);
+                    timedChannelFSM.expire();
                 }
             });
         }
     }
 
-    private void channelActionNewMessage(final ChannelConnectionPoint ccp, final byte channel, final byte[] data) {
+    <T> void FSMTimedOut(GenericFSM<?, Object> genericFSM, TimedChannelFSMAction<T> timedChannelFSMAction, T state) {
+        // if the FSM was already detached (disconnection, completion, etc), it is not timed out
+        if (detachFSM(genericFSM, false)) {
+            timedChannelFSMAction.timedOut(state, channelConnectionPoint);
+        }
+    }
+
+    private void channelActionNewMessage(Object message) {
         if (alive.get()) {
-            sequentialTaskExecutor.submit(new Runnable() {
+            // the message itself is queued for the reusable delivery handler (no task object per message)
+            sequentialTaskExecutor.deliver(newMessageDelivery, message);
+        }
+    }
+
+    public void channelActionChannelsFreed(final ChannelConnectionPoint ccp, final byte channel) {
+        if (alive.get()) {
+            sequentialTaskExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    channelAction.newMessage(ccp, channel, data);
+                    channelAction.channelFreed(ccp, channel);
                 }
             });
         }
     }
 
-    public void channelActionChannelsFreed(final ChannelConnectionPoint ccp, final byte channel) {
+    private void channelActionSessionFreed(final ChannelConnectionPoint ccp, final byte channel, final int session) {
         if (alive.get()) {
-            sequentialTaskExecutor.submit(new Runnable() {
+            sequentialTaskExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    channelAction.channelFreed(ccp, channel);
+                    channelAction.sessionFreed(ccp, channel, session);
                 }
             });
         }
@@ -612,7 +1665,7 @@ public class ChannelModule {
 
     public void channelActionDisconnected(final ChannelConnectionPoint ccp, final boolean expected) {
         if (alive.get()) {
-            sequentialTaskExecutor.submit(new Runnable() {
+            sequentialTaskExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
                     channelAction.disconnected(ccp, expected);
@@ -623,7 +1676,7 @@ public class ChannelModule {
 
     public void channelActionError(final ChannelConnectionPoint ccp, final CommError e) {
         if (alive.get()) {
-            sequentialTaskExecutor.submit(new Runnable() {
+            sequentialTaskExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
                     channelAction.error(ccp, e);
@@ -632,6 +1685,21 @@ public class ChannelModule {
         }
     }
 
+    private void channelActionWritabilityChanged(final ChannelConnectionPoint ccp, final boolean writable) {
+        if (alive.get()) {
+            try {
+                sequentialTaskExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        channelAction.writabilityChanged(ccp, writable);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the module stopped concurrently, the notification is no longer relevant
+            }
+        }
+    }
+
     @Override
     protected void finalize() throws Throwable {
         super.finalize();
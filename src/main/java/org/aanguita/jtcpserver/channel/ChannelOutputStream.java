@@ -0,0 +1,128 @@
+package org.aanguita.jtcpserver.channel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Stream of data sent through a channel, in chunks (see ChannelConnectionPoint.openStream). Written bytes are gathered
+ * in a buffer of the stream chunk size of the configuration, and each full buffer is sent as one chunk. The other
+ * point receives the chunks one by one (ChannelAction.newStreamChunk), so streams of any length can be sent without
+ * holding them in memory on either side.
+ * <p/>
+ * Chunks are written synchronously: if the connection cannot keep up, the writing thread waits. flush sends the
+ * buffered bytes (if any) as a chunk, and close sends the last chunk, which ends the stream at the other point.
+ * <p/>
+ * Other messages can be written through the channel while the stream is open: they are received between the chunks,
+ * in the order they were written. Only one stream can be open in each channel at a time.
+ * <p/>
+ * Like other output streams, this class is not thread-safe
+ */
+public class ChannelOutputStream extends OutputStream {
+
+    private final ChannelModule channelModule;
+
+    private final byte channel;
+
+    /**
+     * Bytes not sent yet
+     */
+    private final byte[] buffer;
+
+    private int count;
+
+    private boolean closed;
+
+    ChannelOutputStream(ChannelModule channelModule, byte channel, int chunkSize) {
+        this.channelModule = channelModule;
+        this.channel = channel;
+        buffer = new byte[chunkSize];
+        count = 0;
+        closed = false;
+    }
+
+    public byte getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkOpen();
+        if (count == buffer.length) {
+            sendChunk(false);
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        checkOpen();
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (length > 0) {
+            if (count == 0 && length >= buffer.length) {
+                // whole chunks are sent directly from the given array
+                send(data, offset, buffer.length, false);
+                offset += buffer.length;
+                length -= buffer.length;
+            } else {
+                int copied = Math.min(length, buffer.length - count);
+                System.arraycopy(data, offset, buffer, count, copied);
+                count += copied;
+                offset += copied;
+                length -= copied;
+                if (count == buffer.length) {
+                    sendChunk(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the buffered bytes, if any, as a chunk
+     *
+     * @throws IOException if the stream is closed, or the chunk could not be written
+     */
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        if (count > 0) {
+            sendChunk(false);
+        }
+    }
+
+    /**
+     * Sends the buffered bytes as the last chunk, which ends the stream. Closing a closed stream has no effect
+     *
+     * @throws IOException if the last chunk could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            sendChunk(true);
+        } finally {
+            channelModule.streamClosed(channel);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private void sendChunk(boolean last) throws IOException {
+        send(buffer, 0, count, last);
+        count = 0;
+    }
+
+    private void send(byte[] data, int offset, int length, boolean last) throws IOException {
+        if (!channelModule.writeStreamChunk(channel, data, offset, length, last)) {
+            throw new IOException("Stream chunk could not be written, the channel module is disconnected");
+        }
+    }
+}
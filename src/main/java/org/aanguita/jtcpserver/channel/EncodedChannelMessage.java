@@ -0,0 +1,140 @@
+package org.aanguita.jtcpserver.channel;
+
+import org.aanguita.jtcpserver.communication.CommunicationConfig;
+import org.aanguita.jtcpserver.communication.EncodedFrame;
+import org.aanguita.jtcpserver.communication.codec.Codec;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * A channel message (channel plus object or byte array) encoded once, so it can be written to many
+ * ChannelConnectionPoints without encoding it again for each one. Used for server broadcasts.
+ * <p/>
+ * Object messages have a different frame in the legacy and in the compact channel format (see
+ * CommunicationConfig.setCompactChannelFormat), and each connection uses the one it agreed with its peer. The frame
+ * of the format proposed by the configuration is encoded at creation, and the other one the first time that a
+ * connection needs it. Byte array messages have the same frame in both formats.
+ * <p/>
+ * Objects of this class can be shared by several threads
+ */
+public final class EncodedChannelMessage {
+
+    private final byte channel;
+
+    /**
+     * Whether the message was created for the compact format (its length is that of the compact frame)
+     */
+    private final boolean compactFormat;
+
+    /**
+     * Codec and message for encoding the missing frame (null for byte array messages)
+     */
+    private final Codec codec;
+
+    private final Serializable message;
+
+    /**
+     * Frame in the legacy format, null if not yet encoded. Concurrent writers may encode it more than once, which is
+     * harmless (frames are immutable), and spares them a lock in every write
+     */
+    private volatile EncodedFrame legacyFrame;
+
+    /**
+     * Frame in the compact format, null if not yet encoded (same as legacyFrame)
+     */
+    private volatile EncodedFrame compactFrame;
+
+    private EncodedChannelMessage(byte channel, boolean compactFormat, Codec codec, Serializable message, EncodedFrame legacyFrame, EncodedFrame compactFrame) {
+        this.channel = channel;
+        this.compactFormat = compactFormat;
+        this.codec = codec;
+        this.message = message;
+        this.legacyFrame = legacyFrame;
+        this.compactFrame = compactFrame;
+    }
+
+    /**
+     * Encodes an object message
+     *
+     * @param channel the channel through which the message is to be sent
+     * @param message the message to send
+     * @param config  configuration of the destination connections (only their codec and channel format are used)
+     * @return the encoded message
+     * @throws IOException if the message cannot be encoded
+     */
+    public static EncodedChannelMessage of(byte channel, Serializable message, CommunicationConfig config) throws IOException {
+        ChannelModule.registerChannelMessageSerializer(config);
+        Codec codec = config.getCodec();
+        if (config.isCompactChannelFormat()) {
+            return new EncodedChannelMessage(channel, true, codec, message, null, encodeCompact(codec, channel, message));
+        } else {
+            return new EncodedChannelMessage(channel, false, codec, message, encodeLegacy(codec, channel, message), null);
+        }
+    }
+
+    /**
+     * Encodes an array of bytes
+     *
+     * @param channel the channel through which the data is to be sent
+     * @param data    the data to send
+     * @return the encoded message
+     */
+    public static EncodedChannelMessage of(byte channel, byte[] data) {
+        // same layout as ChannelModule.write: the channel (as prefix) followed by the data
+        EncodedFrame encodedFrame = EncodedFrame.ofBytes(channel, data);
+        return new EncodedChannelMessage(channel, false, null, null, encodedFrame, encodedFrame);
+    }
+
+    private static EncodedFrame encodeLegacy(Codec codec, byte channel, Serializable message) throws IOException {
+        return EncodedFrame.ofObject(codec, new ChannelMessage(channel, message));
+    }
+
+    private static EncodedFrame encodeCompact(Codec codec, byte channel, Serializable message) throws IOException {
+        return EncodedFrame.ofObject(codec, channel, message);
+    }
+
+    public byte getChannel() {
+        return channel;
+    }
+
+    /**
+     * Retrieves the length of the encoded message, including the frame header, in the channel format proposed by the
+     * configuration used for creating it
+     *
+     * @return the number of bytes written to each connection using that format
+     */
+    public int length() {
+        try {
+            return getEncodedFrame(compactFormat).length();
+        } catch (IOException e) {
+            // the frame of this format was encoded at creation
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Retrieves the frame of one of the channel formats, encoding it if this is the first time that it is needed
+     *
+     * @param compactFormat true for the compact format, false for the legacy format
+     * @return the encoded frame
+     * @throws IOException if the message cannot be encoded
+     */
+    EncodedFrame getEncodedFrame(boolean compactFormat) throws IOException {
+        EncodedFrame encodedFrame;
+        if (compactFormat) {
+            encodedFrame = compactFrame;
+            if (encodedFrame == null) {
+                encodedFrame = encodeCompact(codec, channel, message);
+                compactFrame = encodedFrame;
+            }
+        } else {
+            encodedFrame = legacyFrame;
+            if (encodedFrame == null) {
+                encodedFrame = encodeLegacy(codec, channel, message);
+                legacyFrame = encodedFrame;
+            }
+        }
+        return encodedFrame;
+    }
+}
@@ -16,19 +16,28 @@ class ReaderFromQueues implements MessageReader {
      */
     private ArrayBlockingQueue<Object> messageQueue;
 
+    /**
+     * ChannelModule to which the queue belongs (notified of each consumed message, for flow control)
+     */
+    private ChannelModule channelModule;
+
     /**
      * Class constructor
      *
-     * @param messageQueue message queue from where this reader obtains messages
+     * @param messageQueue  message queue from where this reader obtains messages
+     * @param channelModule ChannelModule to which the queue belongs
      */
-    public ReaderFromQueues(ArrayBlockingQueue<Object> messageQueue) {
+    public ReaderFromQueues(ArrayBlockingQueue<Object> messageQueue, ChannelModule channelModule) {
         this.messageQueue = messageQueue;
+        this.channelModule = channelModule;
     }
 
     public Object readMessage() {
         // messages are read from the associated message queue, and returned
         try {
-            return messageQueue.take();
+            Object message = messageQueue.take();
+            channelModule.channelQueueConsumed();
+            return message;
         } catch (InterruptedException e) {
             // nobody can interrupt this thread -> cannot happen
         }
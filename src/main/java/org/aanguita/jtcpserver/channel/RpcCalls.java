@@ -0,0 +1,154 @@
+package org.aanguita.jtcpserver.channel;
+
+import org.aanguita.jtcpserver.concurrency.HashedTimerWheel;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outstanding RPC calls of a ChannelModule, indexed by their correlation ID. Each call is completed by its response,
+ * by its timeout, or by the disconnection of the module, whatever happens first.
+ * <p/>
+ * Timeouts of the calls run on the timer wheel of the module (shared by default by all modules), instead of a timer
+ * per call or per module. The wheel thread only detects them: the futures are failed by the timeout executor (the
+ * thread of the channel actions), so their dependent actions never run on the shared wheel thread
+ */
+class RpcCalls {
+
+    private static class Call {
+
+        private final CompletableFuture<Serializable> future;
+
+        private volatile HashedTimerWheel.Timeout timeout;
+
+        private Call() {
+            future = new CompletableFuture<>();
+        }
+    }
+
+    private final HashedTimerWheel timerWheel;
+
+    private final Executor timeoutExecutor;
+
+    private final AtomicLong nextId;
+
+    private final ConcurrentHashMap<Long, Call> calls;
+
+    /**
+     * Set when the module is disconnected. Calls started afterwards fail right away
+     */
+    private volatile boolean closed;
+
+    RpcCalls(HashedTimerWheel timerWheel, Executor timeoutExecutor) {
+        this.timerWheel = timerWheel;
+        this.timeoutExecutor = timeoutExecutor;
+        nextId = new AtomicLong(0L);
+        calls = new ConcurrentHashMap<>();
+        closed = false;
+    }
+
+    /**
+     * Generates the correlation ID of a new call
+     *
+     * @return the correlation ID
+     */
+    long nextId() {
+        return nextId.getAndIncrement();
+    }
+
+    /**
+     * Starts a call
+     *
+     * @param id            correlation ID of the call
+     * @param timeoutMillis time to wait for the response (0 for no timeout)
+     * @return the future of the call, completed with its response
+     */
+    CompletableFuture<Serializable> start(final long id, final long timeoutMillis) {
+        Call call = new Call();
+        calls.put(id, call);
+        if (closed) {
+            fail(id, new IOException("Channel module disconnected"));
+            return call.future;
+        }
+        if (timeoutMillis > 0) {
+            HashedTimerWheel.Timeout timeout = timerWheel.newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        timeoutExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                fail(id, new TimeoutException("No response after " + timeoutMillis + " ms"));
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // the module was stopped, and its calls were failed then
+                    }
+                }
+            });
+            call.timeout = timeout;
+            timeout.schedule(timeoutMillis);
+        }
+        return call.future;
+    }
+
+    /**
+     * A response arrived. It is ignored if its call is over (e.g. it timed out)
+     *
+     * @param response the response
+     */
+    void responseReceived(RpcMessage response) {
+        Call call = calls.remove(response.id);
+        if (call != null) {
+            cancelTimeout(call);
+            if (response.kind == RpcMessage.FAILURE) {
+                call.future.completeExceptionally(new RpcException(String.valueOf(response.payload)));
+            } else {
+                call.future.complete(response.payload);
+            }
+        }
+    }
+
+    /**
+     * Fails a call (if not over yet)
+     *
+     * @param id    correlation ID of the call
+     * @param cause the failure
+     */
+    void fail(long id, Throwable cause) {
+        Call call = calls.remove(id);
+        if (call != null) {
+            cancelTimeout(call);
+            call.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Fails all outstanding calls, and any call started later
+     */
+    void close() {
+        closed = true;
+        List<Long> ids = new ArrayList<>(calls.keySet());
+        for (long id : ids) {
+            fail(id, new IOException("Channel module disconnected"));
+        }
+    }
+
+    int outstandingCalls() {
+        return calls.size();
+    }
+
+    private static void cancelTimeout(Call call) {
+        if (call.timeout != null) {
+            call.timeout.cancel();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.aanguita.jtcpserver.channel;
+
+/**
+ * Failure of a request at the other point (see ChannelConnectionPoint.call). It is raised when the handler of the
+ * other point throws an exception, or when the other point has no handler for the channel of the request. The message
+ * of this exception describes the remote failure
+ */
+public class RpcException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public RpcException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,28 @@
+package org.aanguita.jtcpserver.channel;
+
+import java.io.Serializable;
+
+/**
+ * Handler of the requests received through a channel (see ChannelConnectionPoint.setRpcHandler). Each request is
+ * answered with the returned object, which completes the call made by the other point (ChannelConnectionPoint.call)
+ * <p/>
+ * Concurrency-related considerations:
+ * - The handler is invoked by the thread of the channel set of the channel, so requests of a channel are handled one
+ * at a time and in order of arrival, while requests of other channel sets are handled concurrently
+ * - A slow handler delays the rest of messages of its channel set, so channels with slow requests are better placed
+ * in a channel set of their own
+ */
+public interface RpcHandler {
+
+    /**
+     * Handles a request from the other point
+     *
+     * @param ccp     ChannelConnectionPoint through which the request was received
+     * @param channel channel through which the request was received
+     * @param request the request
+     * @return the response to the request (can be null)
+     * @throws Exception if the request cannot be handled. The call of the other point then fails with an RpcException
+     *                   carrying the message of this exception
+     */
+    Serializable handleRequest(ChannelConnectionPoint ccp, byte channel, Serializable request) throws Exception;
+}
@@ -0,0 +1,40 @@
+package org.aanguita.jtcpserver.channel;
+
+import java.io.Serializable;
+
+/**
+ * Request or response of the RPC layer of ChannelModules, sent as an object message through the channel of the call.
+ * Responses carry the correlation ID of their request, so many requests can be outstanding at the same time, and
+ * their responses can arrive in any order
+ */
+class RpcMessage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final byte REQUEST = 0;
+
+    static final byte RESPONSE = 1;
+
+    /**
+     * Response reporting that the request failed (the payload is the description of the failure)
+     */
+    static final byte FAILURE = 2;
+
+    final byte kind;
+
+    /**
+     * Correlation ID, chosen by the point making the request
+     */
+    final long id;
+
+    /**
+     * Request, response or description of the failure
+     */
+    final Serializable payload;
+
+    RpcMessage(byte kind, long id, Serializable payload) {
+        this.kind = kind;
+        this.id = id;
+        this.payload = payload;
+    }
+}
@@ -0,0 +1,34 @@
+package org.aanguita.jtcpserver.channel;
+
+import org.aanguita.jtcpserver.communication.codec.BinaryInput;
+import org.aanguita.jtcpserver.communication.codec.BinaryOutput;
+import org.aanguita.jtcpserver.communication.codec.TypeSerializer;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Encoding of RpcMessages in the BinaryCodec: the kind byte, the correlation ID (variable length) and the payload, with no class
+ * descriptor for the wrapper
+ */
+class RpcMessageSerializer implements TypeSerializer<RpcMessage> {
+
+    /**
+     * Type ID of RpcMessages in the BinaryCodec (negative IDs are reserved for jtcpserver)
+     */
+    static final int TYPE_ID = -2;
+
+    @Override
+    public void write(RpcMessage value, BinaryOutput output) throws IOException {
+        output.writeByte(value.kind);
+        output.writeVarLong(value.id);
+        output.writeObject(value.payload);
+    }
+
+    @Override
+    public RpcMessage read(BinaryInput input) throws IOException, ClassNotFoundException {
+        byte kind = input.readByte();
+        long id = input.readVarLong();
+        return new RpcMessage(kind, id, (Serializable) input.readObject());
+    }
+}
@@ -1,14 +1,20 @@
 package org.aanguita.jtcpserver.channel;
 
-import org.aanguita.jacuzzi.queues.event_processing.MessageHandler;
+import org.aanguita.jtcpserver.communication.ByteArrayWrapper;
+import org.aanguita.jtcpserver.communication.CommunicationAction;
+import org.aanguita.jtcpserver.communication.CommunicationModule;
+import org.aanguita.jtcpserver.communication.PrefixedObject;
+import org.aanguita.jtcpserver.communication.StreamChunk;
+
+import java.io.Serializable;
 
 /**
- * This MessageHandler implementation is in charge of sending incoming messages from the CommunicationModule to
- * individual channel set queues.
- * That is, this will be only used when several threads are employed for handling the incoming messages. This handler
- * will feed the queue of the synchronized channel sets with messages from the CommunicationModule.
+ * This CommunicationAction implementation is in charge of sending incoming messages from the CommunicationModule to
+ * individual channel set queues. It is invoked by the reader of the CommunicationModule (its own thread, or an event
+ * loop shared with other connections), so it never blocks: when a queue fills up, the ChannelModule suspends the
+ * reading of the CommunicationModule instead.
  */
-class SenderToQueues implements MessageHandler {
+class SenderToQueues implements CommunicationAction {
 
     /**
      * The associated ChannelModule (which contains the queues that this handler will feed
@@ -24,15 +30,46 @@ class SenderToQueues implements MessageHandler {
         this.channelModule = channelModule;
     }
 
-    public void handleMessage(Object o) {
-        // a message from the CommunicationModule is handled. This message can be an array of bytes (wrapper by a
-        // ByteArrayWrapperChannel) or a ChannelMessage object. Implementation of this method differs for each of the
-        // cases because the channel is obtained differently in each of them (although in both cases the received
-        // object is fed to the corresponding queue the way it comes)
-        if (o instanceof ByteArrayWrapperChannel) {
-            // byte[] received
-            ByteArrayWrapperChannel byteArrayWrapperCanal = (ByteArrayWrapperChannel) o;
-            channelModule.addMessageToChannelQueue(byteArrayWrapperCanal.getChannel(), byteArrayWrapperCanal);
+    @Override
+    public void newMessage(Object o) {
+        // a message from the CommunicationModule is handled. This message can be an array of bytes (wrapped by a
+        // ByteArrayWrapper), an object with its channel as prefix (compact channel format) or a ChannelMessage object
+        // (legacy channel format). Data arrays are transformed into ByteArrayWrapperChannel objects at this point,
+        // and prefixed objects into ChannelMessages, as that is what upper modules expect. Messages bound to a session
+        // are also wrapped in a SessionMessage. Implementation of this method differs for each of the cases because
+        // the channel is obtained differently in each of them
+        if (o instanceof ByteArrayWrapper) {
+            // byte[] received. The CommunicationModule already separated the channel (the prefix of the array) from
+            // the data, so the data array is handed over as is
+            ByteArrayWrapper byteArrayWrapper = (ByteArrayWrapper) o;
+            byte channel = byteArrayWrapper.getPrefix();
+            if (byteArrayWrapper.getSession() != CommunicationModule.NO_SESSION) {
+                channelModule.addMessageToChannelQueue(channel, new SessionMessage(channel, byteArrayWrapper.getSession(), new ByteArrayWrapperChannel(channel, byteArrayWrapper.getData())));
+                return;
+            }
+            if (channel == ChannelHandshake.CHANNEL && channelModule.isFormatHandshakeEnabled()) {
+                // channel 255 is reserved for the handshake and the credit grants. Anything else is discarded
+                if (ChannelHandshake.isHandshake(channel, byteArrayWrapper.getData())) {
+                    channelModule.handshakeReceived(byteArrayWrapper.getData());
+                } else if (ChannelCreditGrant.isGrant(channel, byteArrayWrapper.getData())) {
+                    channelModule.creditsGranted(byteArrayWrapper.getData());
+                }
+                return;
+            }
+            channelModule.addMessageToChannelQueue(channel, new ByteArrayWrapperChannel(channel, byteArrayWrapper.getData()));
+        } else if (o instanceof StreamChunk) {
+            // stream chunks carry their channel as prefix, and reach the channel action as they are
+            StreamChunk streamChunk = (StreamChunk) o;
+            channelModule.addMessageToChannelQueue(streamChunk.getPrefix(), streamChunk);
+        } else if (o instanceof PrefixedObject) {
+            PrefixedObject prefixedObject = (PrefixedObject) o;
+            byte channel = prefixedObject.getPrefix();
+            ChannelMessage channelMessage = new ChannelMessage(channel, (Serializable) prefixedObject.getObject());
+            if (prefixedObject.getSession() != CommunicationModule.NO_SESSION) {
+                channelModule.addMessageToChannelQueue(channel, new SessionMessage(channel, prefixedObject.getSession(), channelMessage));
+            } else {
+                channelModule.addMessageToChannelQueue(channel, channelMessage);
+            }
         } else {
             ChannelMessage channelMessage = (ChannelMessage) o;
             channelModule.addMessageToChannelQueue(channelMessage.canal, channelMessage);
@@ -40,7 +77,13 @@ class SenderToQueues implements MessageHandler {
     }
 
     @Override
-    public void finalizeHandler() {
-        // no resources to close
+    public void stopped() {
+        // the CommunicationModule stopped reading -> notify the ChannelModule so he performs the necessary actions
+        channelModule.messageReaderStopped();
+    }
+
+    @Override
+    public void writabilityChanged(boolean writable) {
+        channelModule.writabilityChanged(writable);
     }
 }
@@ -0,0 +1,23 @@
+package org.aanguita.jtcpserver.channel;
+
+/**
+ * An incoming message bound to a session of its channel. It wraps the message as it would be received without
+ * session (a ByteArrayWrapperChannel or a ChannelMessage), which is what the FSM of the session gets
+ */
+class SessionMessage {
+
+    final byte channel;
+
+    final int session;
+
+    /**
+     * The message (ByteArrayWrapperChannel or ChannelMessage)
+     */
+    final Object message;
+
+    SessionMessage(byte channel, int session, Object message) {
+        this.channel = channel;
+        this.session = session;
+        this.message = message;
+    }
+}
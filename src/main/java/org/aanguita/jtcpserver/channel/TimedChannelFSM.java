@@ -2,12 +2,16 @@ package org.aanguita.jtcpserver.channel;
 
 import org.aanguita.jacuzzi.fsm.GenericFSM;
 import org.aanguita.jacuzzi.fsm.TimedFSMAction;
+import org.aanguita.jtcpserver.concurrency.HashedTimerWheel;
 
 /**
- * This class implements the actions for a TimedFSM. The actual implementation is delegated to a TimedChannelFSMAction,
+ * This class implements the actions for a timed FSM. The actual implementation is delegated to a TimedChannelFSMAction,
  * so in the end this class implements a timed FSM at the channel level.
  * <p/>
- * A timed channel FSM is similar to a channel FSM, but with the timeout functionality.
+ * A timed channel FSM is similar to a channel FSM, but with the timeout functionality. The timeout runs on the timer
+ * wheel of the channel module, and is reset (without allocating anything) with every input. When it expires, the
+ * thread of the channel actions waits for any running init or processInput invocation, and then times the FSM out,
+ * unless an input arrived meanwhile.
  */
 public class TimedChannelFSM<T> extends ChannelFSM<T> implements TimedFSMAction<T, Object> {
 
@@ -19,27 +23,142 @@ public class TimedChannelFSM<T> extends ChannelFSM<T> implements TimedFSMAction<
     private TimedChannelFSMAction<T> timedChannelFSMAction;
 
     /**
-     * This object is needed in the timeout event, to be able to access the corresponding pausable element
+     * This object is needed in the timeout event, to be able to detach it from the channel module
      */
     private GenericFSM<?, Object> genericFSM;
 
+    private final long timeoutMillis;
+
     /**
-     * Class constructor
+     * Timeout of this FSM, reset with every input
+     */
+    private final HashedTimerWheel.Timeout timeout;
+
+    /**
+     * Last state reached, reported upon timeout (guarded by this object)
+     */
+    private T state;
+
+    /**
+     * Whether this FSM reached a final state, was stopped or timed out (guarded by this object)
+     */
+    private boolean finished;
+
+    /**
+     * Class constructor for a timed channel FSM with no timeout of its own, which uses the timer wheel of the channel
+     * module. The timeout is left to the enclosing timed FSM (e.g. a jacuzzi TimedFSM built on this object), which
+     * reports it through timedOut
      *
      * @param channelModule         the channel module for which this TimedChannelFSM works
      * @param timedChannelFSMAction actions invoked upon the events of the timed FSM
      * @param ccp                   ChannelConnectionPoint associated to this timed channel FSM
      */
     public TimedChannelFSM(ChannelModule channelModule, TimedChannelFSMAction<T> timedChannelFSMAction, ChannelConnectionPoint ccp) {
+        this(channelModule, timedChannelFSMAction, ccp, channelModule.getTimerWheel(), 0L);
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param channelModule         the channel module for which this TimedChannelFSM works
+     * @param timedChannelFSMAction actions invoked upon the events of the timed FSM
+     * @param ccp                   ChannelConnectionPoint associated to this timed channel FSM
+     * @param timerWheel            wheel on which the timeout runs
+     * @param timeoutMillis         time without inputs after which the FSM times out (millis, 0 for no timeout)
+     */
+    public TimedChannelFSM(ChannelModule channelModule, TimedChannelFSMAction<T> timedChannelFSMAction, ChannelConnectionPoint ccp, HashedTimerWheel timerWheel, long timeoutMillis) {
         super(timedChannelFSMAction, ccp);
         this.channelModule = channelModule;
         this.timedChannelFSMAction = timedChannelFSMAction;
+        this.timeoutMillis = timeoutMillis;
+        timeout = timerWheel.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                TimedChannelFSM.this.channelModule.FSMTimeoutExpired(TimedChannelFSM.this);
+            }
+        });
+        finished = false;
     }
 
     public void setGenericFSM(GenericFSM<?, Object> genericFSM) {
         this.genericFSM = genericFSM;
     }
 
+    @Override
+    public synchronized T init() {
+        state = super.init();
+        resetTimeout();
+        return state;
+    }
+
+    @Override
+    public synchronized T processInput(T state, Object msg) throws IllegalArgumentException {
+        if (finished) {
+            // the FSM timed out while this input was being dispatched -> ignore it
+            return state;
+        }
+        resetTimeout();
+        this.state = super.processInput(state, msg);
+        return this.state;
+    }
+
+    @Override
+    public synchronized boolean isFinalState(T state) {
+        if (finished) {
+            return true;
+        }
+        if (super.isFinalState(state)) {
+            finish();
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public void stopped() {
+        synchronized (this) {
+            finish();
+        }
+        super.stopped();
+    }
+
+    @Override
+    public void raisedUnhandledException(Exception e) {
+        synchronized (this) {
+            finish();
+        }
+        super.raisedUnhandledException(e);
+    }
+
+    private void resetTimeout() {
+        if (timeoutMillis > 0) {
+            timeout.schedule(timeoutMillis);
+        }
+    }
+
+    private void finish() {
+        finished = true;
+        timeout.cancel();
+    }
+
+    /**
+     * The timeout expired. Invoked by the thread of the channel actions, so waiting for running invocations does not
+     * delay other timeouts
+     */
+    void expire() {
+        T expiredState;
+        synchronized (this) {
+            if (finished || timeout.isScheduled()) {
+                // finished, or reset by an input that arrived after the expiration
+                return;
+            }
+            finished = true;
+            expiredState = state;
+        }
+        timedOut(expiredState);
+    }
+
     @Override
     public void timedOut(T state) {
         channelModule.FSMTimedOut(genericFSM, timedChannelFSMAction, state);
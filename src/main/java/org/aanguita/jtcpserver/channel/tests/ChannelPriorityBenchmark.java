@@ -0,0 +1,181 @@
+package org.aanguita.jtcpserver.channel.tests;
+
+import org.aanguita.jtcpserver.channel.ChannelAction;
+import org.aanguita.jtcpserver.channel.ChannelConnectionPoint;
+import org.aanguita.jtcpserver.channel.ChannelModule;
+import org.aanguita.jtcpserver.communication.CommError;
+import org.aanguita.jtcpserver.communication.CommunicationConfig;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Latency of a control channel while a bulk transfer saturates the same connection. The bulk channel keeps the
+ * outbound queue of the sender filled with big byte arrays (written asynchronously), and a small timestamped message
+ * is sent through the control channel every millisecond. The latency of the control messages (from their write to
+ * their delivery at the other point) is measured:
+ * <p/>
+ * - fifo: no channel priorities, control messages wait behind all the queued bulk data
+ * - priority: the control channel has a higher priority than the bulk channel
+ * <p/>
+ * The queueing delay reported by the sender for each channel is printed too.
+ * <p/>
+ * Usage: ChannelPriorityBenchmark [seconds per mode] [bulk message size] [bulk messages in flight]
+ */
+public class ChannelPriorityBenchmark {
+
+    private static final byte CONTROL_CHANNEL = 0;
+
+    private static final byte BULK_CHANNEL = 10;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int bulkSize = args.length > 1 ? Integer.parseInt(args[1]) : 64 * 1024;
+        int inFlight = args.length > 2 ? Integer.parseInt(args[2]) : 128;
+        System.out.println("Bulk messages: " + bulkSize + " bytes, " + inFlight + " in flight (" + ((long) bulkSize * inFlight / 1024) + " KB queued)");
+        run("fifo", false, seconds, bulkSize, inFlight);
+        run("priority", true, seconds, bulkSize, inFlight);
+        System.exit(0);
+    }
+
+    private static void run(String mode, boolean priority, int seconds, int bulkSize, final int inFlight) throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        Socket peer = serverSocket.accept();
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        final AtomicLong bulkBytes = new AtomicLong();
+        ChannelModule receiver = new ChannelModule("receiver", peer, new ReceiverAction(latencies, bulkBytes), channelSets(), "receiver", new CommunicationConfig());
+        ChannelModule sender = new ChannelModule("sender", socket, new ReceiverAction(latencies, bulkBytes), channelSets(), "sender", new CommunicationConfig());
+        final ChannelConnectionPoint ccp = sender.getChannelConnectionPoint();
+        if (priority) {
+            ccp.setChannelPriority(CONTROL_CHANNEL, 1, 1);
+        }
+        receiver.start();
+        sender.start();
+
+        final byte[] bulk = new byte[bulkSize];
+        final Semaphore permits = new Semaphore(inFlight);
+        final BiConsumer<Void, Throwable> release = new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable throwable) {
+                permits.release();
+            }
+        };
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        Thread bulkThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (System.nanoTime() < end) {
+                    try {
+                        permits.acquire();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    CompletableFuture<Void> future = ccp.writeAsync(BULK_CHANNEL, bulk);
+                    future.whenComplete(release);
+                }
+            }
+        }, "bulk");
+        bulkThread.start();
+        while (System.nanoTime() < end) {
+            ccp.writeAsync(CONTROL_CHANNEL, ByteBuffer.allocate(8).putLong(System.nanoTime()).array());
+            Thread.sleep(1);
+        }
+        bulkThread.join();
+        permits.acquire(inFlight);
+        Thread.sleep(100);
+
+        List<Long> sorted;
+        synchronized (latencies) {
+            sorted = new ArrayList<>(latencies);
+        }
+        Collections.sort(sorted);
+        long total = 0L;
+        for (long latency : sorted) {
+            total += latency;
+        }
+        System.out.println(mode + ": control messages " + sorted.size() + ", latency avg " + (total / Math.max(1, sorted.size()) / 1000) +
+                " us, p99 " + percentile(sorted, 0.99) / 1000 + " us, max " + percentile(sorted, 1.0) / 1000 + " us, bulk " +
+                (bulkBytes.get() / seconds / (1024 * 1024)) + " MB/s");
+        System.out.println("  sender queueing delay, control: " + ccp.getQueueingDelay(CONTROL_CHANNEL) + " | bulk: " + ccp.getQueueingDelay(BULK_CHANNEL));
+        sender.disconnect();
+        receiver.disconnect();
+        serverSocket.close();
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return 0L;
+        }
+        return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(percentile * sorted.size()) - 1));
+    }
+
+    /**
+     * Control and bulk channels are handled by different threads, so the handling of bulk data does not delay the
+     * control messages at the receiver
+     */
+    private static Set<Set<Byte>> channelSets() {
+        Set<Set<Byte>> concurrentChannels = new HashSet<>();
+        Set<Byte> control = new HashSet<>();
+        control.add(CONTROL_CHANNEL);
+        concurrentChannels.add(control);
+        Set<Byte> bulk = new HashSet<>();
+        bulk.add(BULK_CHANNEL);
+        concurrentChannels.add(bulk);
+        return concurrentChannels;
+    }
+
+    private static class ReceiverAction implements ChannelAction {
+
+        private final List<Long> latencies;
+
+        private final AtomicLong bulkBytes;
+
+        private ReceiverAction(List<Long> latencies, AtomicLong bulkBytes) {
+            this.latencies = latencies;
+            this.bulkBytes = bulkBytes;
+        }
+
+        @Override
+        public void newMessage(ChannelConnectionPoint ccp, byte channel, Object message) {
+        }
+
+        @Override
+        public void newMessage(ChannelConnectionPoint ccp, byte channel, byte[] data) {
+            if (channel == CONTROL_CHANNEL) {
+                latencies.add(System.nanoTime() - ByteBuffer.wrap(data).getLong());
+            } else {
+                bulkBytes.addAndGet(data.length);
+            }
+        }
+
+        @Override
+        public void channelFreed(ChannelConnectionPoint ccp, byte channel) {
+        }
+
+        @Override
+        public void disconnected(ChannelConnectionPoint ccp, boolean expected) {
+        }
+
+        @Override
+        public void error(ChannelConnectionPoint ccp, CommError e) {
+            System.out.println("Error: " + e);
+        }
+
+        @Override
+        public void writabilityChanged(ChannelConnectionPoint ccp, boolean writable) {
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package org.aanguita.jtcpserver.channel.tests;
+
+import org.aanguita.jtcpserver.channel.ChannelAction;
+import org.aanguita.jtcpserver.channel.ChannelConnectionPoint;
+import org.aanguita.jtcpserver.channel.ChannelFSMAction;
+import org.aanguita.jtcpserver.channel.ChannelModule;
+import org.aanguita.jtcpserver.channel.RpcHandler;
+import org.aanguita.jtcpserver.communication.CommError;
+import org.aanguita.jtcpserver.communication.CommunicationConfig;
+
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Throughput of request/response conversations through one channel. The server answers each request (an Integer)
+ * with the following integer:
+ * <p/>
+ * - fsm: each request is a ChannelFSM, which writes the request on init and ends with the response. A channel is
+ * monitored by one FSM at a time, so requests go one after the other
+ * - rpc: requests are made with ChannelConnectionPoint.call, with a given number of them outstanding at a time
+ * <p/>
+ * Usage: RpcBenchmark [seconds per mode] [outstanding rpc calls]
+ */
+public class RpcBenchmark {
+
+    private static final byte CHANNEL = 3;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int outstanding = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        run("fsm", seconds, 1);
+        run("rpc (1 outstanding)", seconds, 1);
+        run("rpc (" + outstanding + " outstanding)", seconds, outstanding);
+        System.exit(0);
+    }
+
+    private static void run(String mode, int seconds, int outstanding) throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        Socket peer = serverSocket.accept();
+        // requests and responses are small: without this, Nagle's algorithm delays them
+        socket.setTcpNoDelay(true);
+        peer.setTcpNoDelay(true);
+        CommunicationConfig config = new CommunicationConfig();
+        config.setCompactChannelFormat(true);
+        ChannelModule server = new ChannelModule("server", peer, new ServerAction(), channelSets(), "server", config);
+        ChannelModule client = new ChannelModule("client", socket, new ServerAction(), channelSets(), "client", config);
+        server.getChannelConnectionPoint().setRpcHandler(CHANNEL, new RpcHandler() {
+            @Override
+            public Serializable handleRequest(ChannelConnectionPoint ccp, byte channel, Serializable request) {
+                return (Integer) request + 1;
+            }
+        });
+        server.start();
+        client.start();
+        // wait for the format handshake, so the features agreed in it are in use from the first message
+        server.getFormatHandshake().get(10, TimeUnit.SECONDS);
+        client.getFormatHandshake().get(10, TimeUnit.SECONDS);
+
+        ChannelConnectionPoint ccp = client.getChannelConnectionPoint();
+        long end = System.nanoTime() + seconds * 1000000000L;
+        long start = System.nanoTime();
+        long completed;
+        if (mode.equals("fsm")) {
+            completed = 0L;
+            while (System.nanoTime() < end) {
+                CountDownLatch response = new CountDownLatch(1);
+                ccp.registerGenericFSM(new RequestFSM((int) completed, response), CHANNEL);
+                if (!response.await(10, TimeUnit.SECONDS)) {
+                    System.out.println("fsm: response lost");
+                    break;
+                }
+                completed++;
+            }
+        } else {
+            final Semaphore permits = new Semaphore(outstanding);
+            final AtomicLong responses = new AtomicLong();
+            BiConsumer<Serializable, Throwable> release = new BiConsumer<Serializable, Throwable>() {
+                @Override
+                public void accept(Serializable response, Throwable throwable) {
+                    if (throwable != null) {
+                        System.out.println("rpc: " + throwable);
+                    } else {
+                        responses.incrementAndGet();
+                    }
+                    permits.release();
+                }
+            };
+            int request = 0;
+            while (System.nanoTime() < end) {
+                permits.acquire();
+                CompletableFuture<Serializable> future = ccp.call(CHANNEL, request++);
+                future.whenComplete(release);
+            }
+            permits.acquire(outstanding);
+            completed = responses.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(mode + ": " + completed + " requests, " + (completed * 1000000000L / elapsed) + " requests/s, avg " +
+                (elapsed / Math.max(1L, completed) / 1000) + " us per request");
+        client.disconnect();
+        server.disconnect();
+        serverSocket.close();
+    }
+
+    private static Set<Set<Byte>> channelSets() {
+        Set<Set<Byte>> concurrentChannels = new HashSet<>();
+        Set<Byte> channels = new HashSet<>();
+        channels.add(CHANNEL);
+        concurrentChannels.add(channels);
+        return concurrentChannels;
+    }
+
+    /**
+     * Conversation of one request: the request is written on init, and the response ends the FSM
+     */
+    private static class RequestFSM implements ChannelFSMAction<Boolean> {
+
+        private final int request;
+
+        private final CountDownLatch response;
+
+        private RequestFSM(int request, CountDownLatch response) {
+            this.request = request;
+            this.response = response;
+        }
+
+        @Override
+        public Boolean processMessage(Boolean currentState, byte channel, Object message, ChannelConnectionPoint ccp) {
+            response.countDown();
+            return true;
+        }
+
+        @Override
+        public Boolean processMessage(Boolean currentState, byte channel, byte[] data, ChannelConnectionPoint ccp) {
+            return currentState;
+        }
+
+        @Override
+        public Boolean init(ChannelConnectionPoint ccp) {
+            ccp.writeAsync(CHANNEL, request);
+            return false;
+        }
+
+        @Override
+        public boolean isFinalState(Boolean state, ChannelConnectionPoint ccp) {
+            return state;
+        }
+
+        @Override
+        public void disconnected(ChannelConnectionPoint ccp) {
+        }
+
+        @Override
+        public void raisedUnhandledException(Exception e, ChannelConnectionPoint ccp) {
+            System.out.println("FSM error: " + e);
+        }
+    }
+
+    /**
+     * Answers plain requests (for the FSM mode). RPC requests are answered by the RpcHandler
+     */
+    private static class ServerAction implements ChannelAction {
+
+        @Override
+        public void newMessage(ChannelConnectionPoint ccp, byte channel, Object message) {
+            ccp.writeAsync(channel, (Integer) message + 1);
+        }
+
+        @Override
+        public void newMessage(ChannelConnectionPoint ccp, byte channel, byte[] data) {
+        }
+
+        @Override
+        public void channelFreed(ChannelConnectionPoint ccp, byte channel) {
+        }
+
+        @Override
+        public void disconnected(ChannelConnectionPoint ccp, boolean expected) {
+        }
+
+        @Override
+        public void error(ChannelConnectionPoint ccp, CommError e) {
+            System.out.println("Error: " + e);
+        }
+
+        @Override
+        public void writabilityChanged(ChannelConnectionPoint ccp, boolean writable) {
+        }
+    }
+}
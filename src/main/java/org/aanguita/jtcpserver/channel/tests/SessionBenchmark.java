@@ -0,0 +1,196 @@
+package org.aanguita.jtcpserver.channel.tests;
+
+import org.aanguita.jtcpserver.channel.ChannelAction;
+import org.aanguita.jtcpserver.channel.ChannelConnectionPoint;
+import org.aanguita.jtcpserver.channel.ChannelFSMAction;
+import org.aanguita.jtcpserver.channel.ChannelModule;
+import org.aanguita.jtcpserver.communication.CommError;
+import org.aanguita.jtcpserver.communication.CommunicationConfig;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversations run by ChannelFSMs over one connection. Each conversation exchanges a number of request/response
+ * rounds (Integers, which the server answers with the following integer):
+ * <p/>
+ * - channel: each conversation is an FSM registered for the channel, so conversations go one after the other
+ * - sessions: each conversation is an FSM registered for its own session of the channel, and all of them run at the
+ * same time
+ * <p/>
+ * Usage: SessionBenchmark [conversations] [rounds per conversation]
+ */
+public class SessionBenchmark {
+
+    private static final byte CHANNEL = 3;
+
+    public static void main(String[] args) throws Exception {
+        int conversations = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        run(false, conversations, rounds);
+        run(true, conversations, rounds);
+        System.exit(0);
+    }
+
+    private static void run(boolean sessions, int conversations, int rounds) throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        Socket peer = serverSocket.accept();
+        // requests and responses are small: without this, Nagle's algorithm delays them
+        socket.setTcpNoDelay(true);
+        peer.setTcpNoDelay(true);
+        CommunicationConfig config = new CommunicationConfig();
+        config.setCompactChannelFormat(true);
+        ChannelModule server = new ChannelModule("server", peer, new ServerAction(), channelSets(), "server", config);
+        ChannelModule client = new ChannelModule("client", socket, new ServerAction(), channelSets(), "client", config);
+        server.start();
+        client.start();
+        // wait for the format handshake, so the features agreed in it are in use from the first message
+        server.getFormatHandshake().get(10, TimeUnit.SECONDS);
+        client.getFormatHandshake().get(10, TimeUnit.SECONDS);
+
+        ChannelConnectionPoint ccp = client.getChannelConnectionPoint();
+        long start = System.nanoTime();
+        int completed = 0;
+        if (sessions) {
+            CountDownLatch done = new CountDownLatch(conversations);
+            for (int session = 0; session < conversations; session++) {
+                ccp.registerGenericFSM(new ConversationFSM(session, rounds, done), CHANNEL, session);
+            }
+            if (done.await(5, TimeUnit.MINUTES)) {
+                completed = conversations;
+            } else {
+                System.out.println("sessions: conversations lost");
+            }
+        } else {
+            for (; completed < conversations; completed++) {
+                CountDownLatch done = new CountDownLatch(1);
+                ccp.registerGenericFSM(new ConversationFSM(ConversationFSM.NO_SESSION, rounds, done), CHANNEL);
+                if (!done.await(10, TimeUnit.SECONDS)) {
+                    System.out.println("channel: conversation lost");
+                    break;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println((sessions ? "sessions" : "channel") + ": " + completed + " conversations of " + rounds + " rounds in " +
+                (elapsed / 1000000) + " ms, " + ((long) completed * rounds * 1000000000L / elapsed) + " rounds/s");
+        client.disconnect();
+        server.disconnect();
+        serverSocket.close();
+    }
+
+    private static Set<Set<Byte>> channelSets() {
+        Set<Set<Byte>> concurrentChannels = new HashSet<>();
+        Set<Byte> channels = new HashSet<>();
+        channels.add(CHANNEL);
+        concurrentChannels.add(channels);
+        return concurrentChannels;
+    }
+
+    /**
+     * Conversation of a given number of rounds. The state is the number of responses received
+     */
+    private static class ConversationFSM implements ChannelFSMAction<Integer> {
+
+        private static final int NO_SESSION = -1;
+
+        private final int session;
+
+        private final int rounds;
+
+        private final CountDownLatch done;
+
+        private ConversationFSM(int session, int rounds, CountDownLatch done) {
+            this.session = session;
+            this.rounds = rounds;
+            this.done = done;
+        }
+
+        @Override
+        public Integer processMessage(Integer currentState, byte channel, Object message, ChannelConnectionPoint ccp) {
+            int responses = currentState + 1;
+            if (responses == rounds) {
+                done.countDown();
+            } else {
+                request(ccp, responses);
+            }
+            return responses;
+        }
+
+        @Override
+        public Integer processMessage(Integer currentState, byte channel, byte[] data, ChannelConnectionPoint ccp) {
+            return currentState;
+        }
+
+        @Override
+        public Integer init(ChannelConnectionPoint ccp) {
+            request(ccp, 0);
+            return 0;
+        }
+
+        private void request(ChannelConnectionPoint ccp, int request) {
+            if (session == NO_SESSION) {
+                ccp.writeAsync(CHANNEL, request);
+            } else {
+                ccp.writeAsync(CHANNEL, session, request);
+            }
+        }
+
+        @Override
+        public boolean isFinalState(Integer state, ChannelConnectionPoint ccp) {
+            return state == rounds;
+        }
+
+        @Override
+        public void disconnected(ChannelConnectionPoint ccp) {
+        }
+
+        @Override
+        public void raisedUnhandledException(Exception e, ChannelConnectionPoint ccp) {
+            System.out.println("FSM error: " + e);
+        }
+    }
+
+    /**
+     * Answers each request through the channel or session it came from
+     */
+    private static class ServerAction implements ChannelAction {
+
+        @Override
+        public void newMessage(ChannelConnectionPoint ccp, byte channel, Object message) {
+            ccp.writeAsync(channel, (Integer) message + 1);
+        }
+
+        @Override
+        public void newMessage(ChannelConnectionPoint ccp, byte channel, byte[] data) {
+        }
+
+        @Override
+        public void newSessionMessage(ChannelConnectionPoint ccp, byte channel, int session, Object message) {
+            ccp.writeAsync(channel, session, (Integer) message + 1);
+        }
+
+        @Override
+        public void channelFreed(ChannelConnectionPoint ccp, byte channel) {
+        }
+
+        @Override
+        public void disconnected(ChannelConnectionPoint ccp, boolean expected) {
+        }
+
+        @Override
+        public void error(ChannelConnectionPoint ccp, CommError e) {
+            System.out.println("Error: " + e);
+        }
+
+        @Override
+        public void writabilityChanged(ChannelConnectionPoint ccp, boolean writable) {
+        }
+    }
+}
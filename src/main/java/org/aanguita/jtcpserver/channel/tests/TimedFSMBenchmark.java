@@ -0,0 +1,273 @@
+package org.aanguita.jtcpserver.channel.tests;
+
+import org.aanguita.jtcpserver.channel.ChannelAction;
+import org.aanguita.jtcpserver.channel.ChannelConnectionPoint;
+import org.aanguita.jtcpserver.channel.ChannelModule;
+import org.aanguita.jtcpserver.channel.TimedChannelFSMAction;
+import org.aanguita.jtcpserver.communication.CommError;
+import org.aanguita.jtcpserver.communication.CommunicationConfig;
+import org.aanguita.jtcpserver.concurrency.HashedTimerWheel;
+import org.aanguita.jtcpserver.concurrency.ThreadMode;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cost of the timeouts of many timed FSMs:
+ * <p/>
+ * - resets: a given number of timeouts is reset over and over, on the timer wheel (the deadline of the timeout is
+ * updated) and on a ScheduledThreadPoolExecutor (the scheduled task is cancelled and a new one is scheduled, as a timer
+ * per FSM does). Time and memory allocated per reset are measured
+ * - fsms: the given number of timed FSMs is registered over one connection (each one in its own session), and each
+ * exchanges some messages (every input resets its timeout). Then they are left idle until all of them time out, and
+ * how late their timeouts ran is measured
+ * <p/>
+ * Usage: TimedFSMBenchmark [timed FSMs] [rounds per FSM] [FSM timeout millis]
+ */
+public class TimedFSMBenchmark {
+
+    private static final byte CHANNEL = 3;
+
+    public static void main(String[] args) throws Exception {
+        int fsmCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        long timeoutMillis = args.length > 2 ? Long.parseLong(args[2]) : 10000L;
+        resets(fsmCount);
+        fsms(fsmCount, rounds, timeoutMillis);
+        System.exit(0);
+    }
+
+    private static void resets(int count) {
+        Runnable nothing = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        HashedTimerWheel wheel = new HashedTimerWheel("benchmarkWheel", HashedTimerWheel.DEFAULT_TICK_MILLIS, HashedTimerWheel.DEFAULT_WHEEL_SIZE, ThreadMode.PLATFORM);
+        HashedTimerWheel.Timeout[] timeouts = new HashedTimerWheel.Timeout[count];
+        for (int i = 0; i < count; i++) {
+            timeouts[i] = wheel.newTimeout(nothing);
+            timeouts[i].schedule(60000L);
+        }
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+        ScheduledFuture<?>[] futures = new ScheduledFuture<?>[count];
+        for (int i = 0; i < count; i++) {
+            futures[i] = executor.schedule(nothing, 60000L, TimeUnit.MILLISECONDS);
+        }
+        // the first runs warm up the code
+        for (int run = 0; run < 3; run++) {
+            long start = System.nanoTime();
+            long allocated = allocatedBytes();
+            for (int round = 0; round < 10; round++) {
+                for (HashedTimerWheel.Timeout timeout : timeouts) {
+                    timeout.schedule(60000L);
+                }
+            }
+            report("wheel", count * 10L, System.nanoTime() - start, allocatedBytes() - allocated);
+            start = System.nanoTime();
+            allocated = allocatedBytes();
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < count; i++) {
+                    futures[i].cancel(false);
+                    futures[i] = executor.schedule(nothing, 60000L, TimeUnit.MILLISECONDS);
+                }
+            }
+            report("scheduled executor", count * 10L, System.nanoTime() - start, allocatedBytes() - allocated);
+        }
+        wheel.stop();
+        executor.shutdownNow();
+    }
+
+    private static void report(String mode, long resets, long elapsed, long allocated) {
+        System.out.println("resets on " + mode + ": " + (elapsed / resets) + " ns/reset" +
+                (allocated >= 0 ? ", " + (allocated / resets) + " bytes allocated/reset" : ""));
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, or a negative value if the JVM does not tell
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        } else {
+            return -1L;
+        }
+    }
+
+    private static void fsms(int fsmCount, int rounds, long timeoutMillis) throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        Socket peer = serverSocket.accept();
+        CommunicationConfig config = new CommunicationConfig();
+        config.setCompactChannelFormat(true);
+        ChannelModule server = new ChannelModule("server", peer, new EchoAction(), channelSets(), "server", config);
+        ChannelModule client = new ChannelModule("client", socket, new EchoAction(), channelSets(), "client", config);
+        server.start();
+        client.start();
+        // wait for the format handshake, so the features agreed in it are in use from the first message
+        server.getFormatHandshake().get(10, TimeUnit.SECONDS);
+        client.getFormatHandshake().get(10, TimeUnit.SECONDS);
+
+        ChannelConnectionPoint ccp = client.getChannelConnectionPoint();
+        CountDownLatch finishedRounds = new CountDownLatch(fsmCount);
+        CountDownLatch timedOut = new CountDownLatch(fsmCount);
+        long[] lateness = new long[fsmCount];
+        AtomicInteger unfinished = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int session = 0; session < fsmCount; session++) {
+            ccp.registerTimedFSM(new ConversationFSM(session, rounds, timeoutMillis, finishedRounds, timedOut, lateness, unfinished), timeoutMillis, CHANNEL, session);
+        }
+        long registered = System.nanoTime();
+        System.out.println("fsms: " + fsmCount + " timed FSMs registered in " + ((registered - start) / 1000000) + " ms");
+        if (!finishedRounds.await(5, TimeUnit.MINUTES)) {
+            System.out.println("fsms: rounds lost");
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println("fsms: " + ((long) fsmCount * rounds) + " rounds in " + (elapsed / 1000000) + " ms, " +
+                ((long) fsmCount * rounds * 1000000000L / elapsed) + " rounds/s, " + unfinished.get() + " FSMs timed out before finishing their rounds");
+        if (!timedOut.await(timeoutMillis + 60000L, TimeUnit.MILLISECONDS)) {
+            System.out.println("fsms: timeouts lost, " + timedOut.getCount() + " FSMs did not time out");
+        }
+        Arrays.sort(lateness);
+        System.out.println("fsms: all timed out " + ((System.nanoTime() - start) / 1000000) + " ms after the start, lateness p50 " +
+                lateness[fsmCount / 2] + " ms, p99 " + lateness[(int) (fsmCount * 0.99)] + " ms, max " + lateness[fsmCount - 1] + " ms");
+        client.disconnect();
+        server.disconnect();
+        serverSocket.close();
+    }
+
+    private static Set<Set<Byte>> channelSets() {
+        Set<Set<Byte>> concurrentChannels = new HashSet<>();
+        Set<Byte> channels = new HashSet<>();
+        channels.add(CHANNEL);
+        concurrentChannels.add(channels);
+        return concurrentChannels;
+    }
+
+    /**
+     * Makes some request/response rounds through its session, and then waits for its timeout. The state is the number
+     * of responses received
+     */
+    private static class ConversationFSM implements TimedChannelFSMAction<Integer> {
+
+        private final int session;
+
+        private final int rounds;
+
+        private final long timeoutMillis;
+
+        private final CountDownLatch finishedRounds;
+
+        private final CountDownLatch timedOut;
+
+        private final long[] lateness;
+
+        private final AtomicInteger unfinished;
+
+        private volatile long lastInput;
+
+        private ConversationFSM(int session, int rounds, long timeoutMillis, CountDownLatch finishedRounds, CountDownLatch timedOut, long[] lateness, AtomicInteger unfinished) {
+            this.session = session;
+            this.rounds = rounds;
+            this.timeoutMillis = timeoutMillis;
+            this.finishedRounds = finishedRounds;
+            this.timedOut = timedOut;
+            this.lateness = lateness;
+            this.unfinished = unfinished;
+        }
+
+        @Override
+        public Integer processMessage(Integer currentState, byte channel, Object message, ChannelConnectionPoint ccp) {
+            lastInput = System.nanoTime();
+            int responses = currentState + 1;
+            if (responses == rounds) {
+                finishedRounds.countDown();
+            } else {
+                ccp.writeAsync(CHANNEL, session, responses);
+            }
+            return responses;
+        }
+
+        @Override
+        public Integer processMessage(Integer currentState, byte channel, byte[] data, ChannelConnectionPoint ccp) {
+            return currentState;
+        }
+
+        @Override
+        public Integer init(ChannelConnectionPoint ccp) {
+            lastInput = System.nanoTime();
+            ccp.writeAsync(CHANNEL, session, 0);
+            return 0;
+        }
+
+        @Override
+        public boolean isFinalState(Integer state, ChannelConnectionPoint ccp) {
+            return false;
+        }
+
+        @Override
+        public void timedOut(Integer state, ChannelConnectionPoint ccp) {
+            lateness[session] = (System.nanoTime() - lastInput) / 1000000 - timeoutMillis;
+            if (state < rounds) {
+                unfinished.incrementAndGet();
+                finishedRounds.countDown();
+            }
+            timedOut.countDown();
+        }
+
+        @Override
+        public void disconnected(ChannelConnectionPoint ccp) {
+        }
+
+        @Override
+        public void raisedUnhandledException(Exception e, ChannelConnectionPoint ccp) {
+            System.out.println("FSM error: " + e);
+        }
+    }
+
+    private static class EchoAction implements ChannelAction {
+
+        @Override
+        public void newMessage(ChannelConnectionPoint ccp, byte channel, Object message) {
+        }
+
+        @Override
+        public void newMessage(ChannelConnectionPoint ccp, byte channel, byte[] data) {
+        }
+
+        @Override
+        public void newSessionMessage(ChannelConnectionPoint ccp, byte channel, int session, Object message) {
+            ccp.writeAsync(channel, session, (Integer) message + 1);
+        }
+
+        @Override
+        public void channelFreed(ChannelConnectionPoint ccp, byte channel) {
+        }
+
+        @Override
+        public void disconnected(ChannelConnectionPoint ccp, boolean expected) {
+        }
+
+        @Override
+        public void error(ChannelConnectionPoint ccp, CommError e) {
+            System.out.println("Error: " + e);
+        }
+
+        @Override
+        public void writabilityChanged(ChannelConnectionPoint ccp, boolean writable) {
+        }
+    }
+}
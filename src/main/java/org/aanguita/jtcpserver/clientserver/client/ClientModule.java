@@ -3,7 +3,9 @@ package org.aanguita.jtcpserver.clientserver.client;
 import org.aanguita.jtcpserver.channel.ChannelAction;
 import org.aanguita.jtcpserver.channel.ChannelConnectionPoint;
 import org.aanguita.jtcpserver.channel.ChannelModule;
+import org.aanguita.jtcpserver.communication.CommunicationConfig;
 import org.aanguita.jtcpserver.tcpconnection.client.TCPClient;
+import org.aanguita.jacuzzi.id.AlphaNumFactory;
 import org.aanguita.jacuzzi.network.IP4Port;
 
 import java.io.IOException;
@@ -44,6 +46,11 @@ public class ClientModule {
      */
     private final Set<Set<Byte>> concurrentChannels;
 
+    /**
+     * Transport configuration for the connection with the server
+     */
+    private final CommunicationConfig communicationConfig;
+
     /**
      * ChannelModule employed for communicating with the server
      */
@@ -60,9 +67,29 @@ public class ClientModule {
     public ClientModule(IP4Port serverIp4Port,
                         ChannelAction channelAction,
                         Set<Set<Byte>> concurrentChannels) {
+        this(serverIp4Port, channelAction, concurrentChannels, new CommunicationConfig());
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param serverIp4Port       IP and port of the server to which we will connect
+     * @param channelAction       actions associated to this client for incoming messages from the server
+     * @param concurrentChannels  Sets of channels handled by the same thread. A null value for this attribute indicates that all channels are used,
+     *                            by a unique thread.
+     * @param communicationConfig transport configuration for the connection with the server
+     * @throws IllegalArgumentException the configuration enables the compact format, and channel 255 is among the
+     *                                  concurrent channels (see ChannelModule.checkConcurrentChannels)
+     */
+    public ClientModule(IP4Port serverIp4Port,
+                        ChannelAction channelAction,
+                        Set<Set<Byte>> concurrentChannels,
+                        CommunicationConfig communicationConfig) throws IllegalArgumentException {
+        ChannelModule.checkConcurrentChannels(concurrentChannels, communicationConfig);
         this.serverIp4Port = serverIp4Port;
         this.channelAction = channelAction;
         this.concurrentChannels = concurrentChannels;
+        this.communicationConfig = communicationConfig;
         channelModule = null;
     }
 
@@ -76,8 +103,10 @@ public class ClientModule {
     public synchronized ChannelConnectionPoint connect() throws IOException {
         // we connect to the server and create the ModuloCanal for communication. From it we obtain the
         // ChannelConnectionPoint to be returned. The ModuloCanal is not started here, must be started separately
-        Socket socket = TCPClient.connect(serverIp4Port.getIp(), serverIp4Port.getPort());
-        channelModule = new ChannelModule(socket, channelAction, concurrentChannels);
+        Socket socket = communicationConfig.isEventLoopTransport() ?
+                TCPClient.connectChannel(serverIp4Port.getIp(), serverIp4Port.getPort()) :
+                TCPClient.connect(serverIp4Port.getIp(), serverIp4Port.getPort());
+        channelModule = new ChannelModule("", socket, channelAction, concurrentChannels, AlphaNumFactory.getStaticId(), communicationConfig);
         return channelModule.getChannelConnectionPoint();
     }
 
@@ -91,8 +120,10 @@ public class ClientModule {
     public synchronized ChannelConnectionPoint connect(int timeout) throws IOException {
         // we connect to the server and create the ModuloCanal for communication. From it we obtain the
         // ChannelConnectionPoint to be returned. The ModuloCanal is not started here, must be started separately
-        Socket socket = TCPClient.connect(serverIp4Port.getIp(), serverIp4Port.getPort(), timeout);
-        channelModule = new ChannelModule(socket, channelAction, concurrentChannels);
+        Socket socket = communicationConfig.isEventLoopTransport() ?
+                TCPClient.connectChannel(serverIp4Port.getIp(), serverIp4Port.getPort(), timeout) :
+                TCPClient.connect(serverIp4Port.getIp(), serverIp4Port.getPort(), timeout);
+        channelModule = new ChannelModule("", socket, channelAction, concurrentChannels, AlphaNumFactory.getStaticId(), communicationConfig);
         return channelModule.getChannelConnectionPoint();
     }
 
@@ -51,4 +51,9 @@ class ChannelActionImpl implements ChannelAction {
     public void error(ChannelConnectionPoint ccp, CommError e) {
         serverModule.reportClientError(ccp, e);
     }
+
+    @Override
+    public void writabilityChanged(ChannelConnectionPoint ccp, boolean writable) {
+        // not reported to the server action
+    }
 }
@@ -4,12 +4,17 @@ import org.aanguita.jtcpserver.channel.ChannelConnectionPoint;
 import org.aanguita.jtcpserver.channel.ChannelModule;
 import org.aanguita.jacuzzi.network.IP4Port;
 
-import java.util.*;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * This class handles the set of connected clients, storing the needed info of each of them (ip, port, ccp) and handling the access to this data
  * <p/>
- * Synchronization is not implemented at this level, so accessions to this class should be properly synchronized
+ * This class is thread-safe and lock-free: clients are stored in a concurrent map, so lookups, broadcasts,
+ * connections and disconnections do not block each other, and iterating over the clients does not copy them
  */
 class ConnectedClients {
 
@@ -44,13 +49,13 @@ class ConnectedClients {
     /**
      * Table with all stored clients
      */
-    private final Map<String, ClientInfo> clients;
+    private final ConcurrentMap<String, ClientInfo> clients;
 
     /**
      * Default class constructor
      */
     public ConnectedClients() {
-        clients = new HashMap<>();
+        clients = new ConcurrentHashMap<>();
     }
 
     /**
@@ -59,7 +64,7 @@ class ConnectedClients {
      * @param id id of the client to check
      * @return true if the specified client exists, false otherwise
      */
-    public synchronized boolean existsClient(String id) {
+    public boolean existsClient(String id) {
         return clients.containsKey(id);
     }
 
@@ -68,40 +73,45 @@ class ConnectedClients {
      *
      * @return the number of connected clients
      */
-    public synchronized int getConnectedClientsCount() {
+    public int getConnectedClientsCount() {
         return clients.size();
     }
 
     /**
-     * Retrieves the client ids of the currently connected clients
+     * Retrieves the client ids of the currently connected clients. The returned set is a view, not a copy: it reflects
+     * connections and disconnections, and its iterators are weakly consistent (they never fail due to concurrent
+     * modifications)
      *
-     * @return a set with the ids of the currently connected clients
+     * @return an unmodifiable view of the ids of the currently connected clients
      */
-    public synchronized Set<String> getClientIDs() {
-        return new HashSet<>(clients.keySet());
+    public Set<String> getClientIDs() {
+        return Collections.unmodifiableSet(clients.keySet());
     }
 
     /**
-     * Retrieves the currently connected client ids except for some specific values
+     * Retrieves the channel connection points of the connected clients, without copying them. Iteration is weakly
+     * consistent: clients connecting or disconnecting during the iteration may or may not be included
      *
-     * @param clientsNot set of ids to exclude from the final result
-     * @return collection of connected client ids, excluding the values in clientsNot
+     * @return the channel connection points of the connected clients
      */
-    public synchronized Set<String> getClientIDsExcept(Collection<String> clientsNot) {
-        Set<String> clientIDs = new HashSet<>(clients.keySet());
-        clientIDs.removeAll(clientsNot);
-        return clientIDs;
-    }
-
-    /**
-     * Retrieves the currently connected client ids except for some specific values
-     *
-     * @param clientsNot list of ids to exclude from the final result
-     * @return list of connected client ids, excluding the values in clientsNot
-     */
-    public synchronized Set<String> getClientIDsExcept(String... clientsNot) {
-        Collection<String> clientsNotSet = new HashSet<>(Arrays.asList(clientsNot));
-        return getClientIDsExcept(clientsNotSet);
+    public Iterable<ChannelConnectionPoint> getCCPs() {
+        return new Iterable<ChannelConnectionPoint>() {
+            @Override
+            public Iterator<ChannelConnectionPoint> iterator() {
+                final Iterator<ClientInfo> iterator = clients.values().iterator();
+                return new Iterator<ChannelConnectionPoint>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public ChannelConnectionPoint next() {
+                        return iterator.next().channelConnectionPoint;
+                    }
+                };
+            }
+        };
     }
 
     /**
@@ -110,8 +120,9 @@ class ConnectedClients {
      * @param clientID id of the client
      * @return the channel connection point of the requested client
      */
-    public synchronized ChannelConnectionPoint getCCP(String clientID) {
-        return existsClient(clientID) ? clients.get(clientID).channelConnectionPoint : null;
+    public ChannelConnectionPoint getCCP(String clientID) {
+        ClientInfo clientInfo = clients.get(clientID);
+        return clientInfo != null ? clientInfo.channelConnectionPoint : null;
     }
 
     /**
@@ -120,8 +131,9 @@ class ConnectedClients {
      * @param clientID id of the client
      * @return the IP4Port object of the requested client
      */
-    public synchronized IP4Port getClientIP4Port(String clientID) {
-        return existsClient(clientID) ? clients.get(clientID).ip4Port : null;
+    public IP4Port getClientIP4Port(String clientID) {
+        ClientInfo clientInfo = clients.get(clientID);
+        return clientInfo != null ? clientInfo.ip4Port : null;
     }
 
     /**
@@ -131,7 +143,7 @@ class ConnectedClients {
      * @param ip            ip address of the client
      * @param port          port of the client
      */
-    public synchronized void addClient(ChannelModule channelModule, String ip, int port) {
+    public void addClient(ChannelModule channelModule, String ip, int port) {
         ChannelConnectionPoint ccp = channelModule.getChannelConnectionPoint();
         clients.put(ccp.getId(), new ClientInfo(ccp, ip, port));
     }
@@ -140,8 +152,9 @@ class ConnectedClients {
      * Removes an existing client
      *
      * @param clientID id of the client to remove
+     * @return true if the client existed
      */
-    public synchronized void removeClient(String clientID) {
-        clients.remove(clientID);
+    public boolean removeClient(String clientID) {
+        return clients.remove(clientID) != null;
     }
 }
@@ -1,10 +1,13 @@
 package org.aanguita.jtcpserver.clientserver.server;
 
 import org.aanguita.jtcpserver.communication.CommunicationModule;
+import org.aanguita.jtcpserver.concurrency.ThreadMode;
 import org.aanguita.jtcpserver.tcpconnection.server.TCPServer;
 import org.aanguita.jtcpserver.tcpconnection.server.TCPServerAction;
 import org.aanguita.jacuzzi.concurrency.task_executor.ThreadExecutor;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -17,6 +20,11 @@ import java.net.Socket;
  * <p/>
  * The LightServer uses a TCPServer for implementing the server
  * <p/>
+ * With virtual threads, the listening threads and the threads attending parallel requests are virtual threads (one per request)
+ * <p/>
+ * Requests, their latency and their errors are recorded in live metrics (getMetrics), which can be registered as a
+ * JMX MBean (registerMBean) and served in the Prometheus text format through a built-in HTTP endpoint
+ * (startMetricsEndpoint)
  */
 public class LightServer implements TCPServerAction {
 
@@ -36,22 +44,28 @@ public class LightServer implements TCPServerAction {
 
         private final Socket clientSocket;
 
+        private final long startTime;
+
         private final LightServerActionObject lightServerActionObject;
 
         private final LightServerActionByteArray lightServerActionByteArray;
 
         private final boolean isObjectRequest;
 
-        private ParallelRequestAttender(Socket clientSocket, LightServerActionObject lightServerActionObject, LightServerActionByteArray lightServerActionByteArray, boolean isObjectRequest) {
+        private final LightServerMetrics metrics;
+
+        private ParallelRequestAttender(Socket clientSocket, long startTime, LightServerActionObject lightServerActionObject, LightServerActionByteArray lightServerActionByteArray, boolean isObjectRequest, LightServerMetrics metrics) {
             this.clientSocket = clientSocket;
+            this.startTime = startTime;
             this.lightServerActionObject = lightServerActionObject;
             this.lightServerActionByteArray = lightServerActionByteArray;
             this.isObjectRequest = isObjectRequest;
+            this.metrics = metrics;
         }
 
         @Override
         public void run() {
-            LightServer.attendRequest(clientSocket, lightServerActionObject, lightServerActionByteArray, isObjectRequest);
+            LightServer.attendRequest(clientSocket, startTime, lightServerActionObject, lightServerActionByteArray, isObjectRequest, metrics);
         }
     }
 
@@ -63,22 +77,42 @@ public class LightServer implements TCPServerAction {
 
     private final boolean parallelRequests;
 
+    private final ThreadMode threadMode;
+
     private final TCPServer tcpServer;
 
+    private final LightServerMetrics metrics;
+
+    /**
+     * Exports of the metrics (JMX and HTTP), off until requested
+     */
+    private final MetricsExporter metricsExporter;
+
     public LightServer(int port, LightServerActionObject lightServerActionObject, boolean parallelRequests) {
-        this(port, lightServerActionObject, null, true, parallelRequests);
+        this(port, lightServerActionObject, parallelRequests, ThreadMode.PLATFORM);
     }
 
     public LightServer(int port, LightServerActionByteArray lightServerActionByteArray, boolean parallelRequests) {
-        this(port, null, lightServerActionByteArray, false, parallelRequests);
+        this(port, lightServerActionByteArray, parallelRequests, ThreadMode.PLATFORM);
+    }
+
+    public LightServer(int port, LightServerActionObject lightServerActionObject, boolean parallelRequests, ThreadMode threadMode) {
+        this(port, lightServerActionObject, null, true, parallelRequests, threadMode);
     }
 
-    private LightServer(int port, LightServerActionObject lightServerActionObject, LightServerActionByteArray lightServerActionByteArray, boolean isObjectRequest, boolean parallelRequests) {
+    public LightServer(int port, LightServerActionByteArray lightServerActionByteArray, boolean parallelRequests, ThreadMode threadMode) {
+        this(port, null, lightServerActionByteArray, false, parallelRequests, threadMode);
+    }
+
+    private LightServer(int port, LightServerActionObject lightServerActionObject, LightServerActionByteArray lightServerActionByteArray, boolean isObjectRequest, boolean parallelRequests, ThreadMode threadMode) {
         this.lightServerActionObject = lightServerActionObject;
         this.lightServerActionByteArray = lightServerActionByteArray;
         this.isObjectRequest = isObjectRequest;
         this.parallelRequests = parallelRequests;
-        tcpServer = new TCPServer(port, this);
+        this.threadMode = threadMode;
+        tcpServer = new TCPServer(port, this, false, threadMode);
+        metrics = new LightServerMetrics();
+        metricsExporter = new MetricsExporter("LightServer", metrics);
     }
 
     /**
@@ -98,18 +132,86 @@ public class LightServer implements TCPServerAction {
         ThreadExecutor.shutdownClient(this.getClass().getName());
     }
 
+    /**
+     * Retrieves the actual port opened for listening requests
+     *
+     * @return the listening port (-1 if the server has not been started)
+     */
+    public int getActualPort() {
+        return tcpServer.getActualPort();
+    }
+
+    /**
+     * Retrieves the metrics of this server (see LightServerMetrics)
+     *
+     * @return the metrics of this server
+     */
+    public LightServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Registers the metrics of this server in the platform MBean server (see LightServerMetricsMXBean), under the
+     * name org.aanguita.jtcpserver:type=LightServer,name="name". A previous registration of this server is replaced
+     *
+     * @param name name identifying this server among others
+     * @return the name of the registered MBean
+     * @throws JMException the MBean could not be registered (e.g. the name is already in use)
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        return metricsExporter.registerMBean(name);
+    }
+
+    /**
+     * Unregisters the MBean of this server, if it was registered
+     */
+    public void unregisterMBean() {
+        metricsExporter.unregisterMBean();
+    }
+
+    /**
+     * Starts serving the metrics of this server in the Prometheus text format, at /metrics of a built-in HTTP
+     * endpoint (see MetricsHttpServer). A previous endpoint of this server is stopped
+     *
+     * @param port port for the HTTP endpoint (0 for any free port)
+     * @return the actual port of the endpoint
+     * @throws IOException the port could not be opened
+     */
+    public int startMetricsEndpoint(int port) throws IOException {
+        return metricsExporter.startHttpEndpoint(port);
+    }
+
+    /**
+     * Stops the metrics endpoint, if it was started
+     */
+    public void stopMetricsEndpoint() {
+        metricsExporter.stopHttpEndpoint();
+    }
+
+    /**
+     * Retrieves the port of the metrics endpoint
+     *
+     * @return the port of the metrics endpoint (-1 if not started)
+     */
+    public int getMetricsEndpointPort() {
+        return metricsExporter.getHttpEndpointPort();
+    }
 
     @Override
     public void processNewConnection(Socket clientSocket) {
+        long startTime = System.nanoTime();
         if (!parallelRequests) {
-            attendRequest(clientSocket, lightServerActionObject, lightServerActionByteArray, isObjectRequest);
+            attendRequest(clientSocket, startTime, lightServerActionObject, lightServerActionByteArray, isObjectRequest, metrics);
+        } else if (threadMode == ThreadMode.VIRTUAL) {
+            threadMode.newThread("LightServer", new ParallelRequestAttender(clientSocket, startTime, lightServerActionObject, lightServerActionByteArray, isObjectRequest, metrics)).start();
         } else {
-            ThreadExecutor.submit(new ParallelRequestAttender(clientSocket, lightServerActionObject, lightServerActionByteArray, isObjectRequest), "LightServer");
+            ThreadExecutor.submit(new ParallelRequestAttender(clientSocket, startTime, lightServerActionObject, lightServerActionByteArray, isObjectRequest, metrics), "LightServer");
         }
     }
 
 
-    private static void attendRequest(Socket clientSocket, LightServerActionObject lightServerActionObject, LightServerActionByteArray lightServerActionByteArray, boolean isObjectRequest) {
+    private static void attendRequest(Socket clientSocket, long startTime, LightServerActionObject lightServerActionObject, LightServerActionByteArray lightServerActionByteArray, boolean isObjectRequest, LightServerMetrics metrics) {
+        metrics.requestStarted();
         ObjectOutputStream oos = null;
         try {
             oos = new ObjectOutputStream(clientSocket.getOutputStream());
@@ -121,6 +223,7 @@ public class LightServer implements TCPServerAction {
                 try {
                     response = lightServerActionObject.newClientRequest(clientSocket, clientMessage);
                 } catch (Exception e) {
+                    metrics.requestFailed();
                     oos.writeObject(new LightServerException(e));
                 }
                 if (response != null) {
@@ -132,6 +235,7 @@ public class LightServer implements TCPServerAction {
                 try {
                     response = lightServerActionByteArray.newClientConnection(clientSocket, data);
                 } catch (Exception e) {
+                    metrics.requestFailed();
                     oos.writeObject(new LightServerException(e));
                 }
                 if (response != null) {
@@ -141,7 +245,9 @@ public class LightServer implements TCPServerAction {
             }
         } catch (IOException e) {
             // the communication channel could not be correctly created. Ignore, since we don't want to maintain communication with the client
+            metrics.connectionError();
         } catch (ClassNotFoundException e) {
+            metrics.requestFailed();
             try {
                 oos.writeObject(new LightServerException(e));
             } catch (Exception e1) {
@@ -153,6 +259,7 @@ public class LightServer implements TCPServerAction {
             } catch (IOException e) {
                 // ignore, we don't care at this point
             }
+            metrics.requestFinished(startTime);
         }
     }
 
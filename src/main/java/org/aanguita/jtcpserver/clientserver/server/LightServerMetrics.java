@@ -0,0 +1,137 @@
+package org.aanguita.jtcpserver.clientserver.server;
+
+import org.aanguita.jtcpserver.metrics.LatencyHistogram;
+import org.aanguita.jtcpserver.metrics.MetricsSource;
+import org.aanguita.jtcpserver.metrics.PrometheusWriter;
+import org.aanguita.jtcpserver.metrics.RateMeter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a LightServer, always recorded:
+ * - requests attended, and their rate
+ * - requests currently being attended
+ * - failed requests: those for which the server action threw an exception (the client receives a
+ * LightServerException)
+ * - connection errors: requests that could not be read or answered due to I/O errors
+ * - request latency: time from the acceptance of the connection to the response
+ * <p/>
+ * As those of the ServerModule, these are live counters, and can be exposed through JMX (LightServerMetricsMXBean)
+ * and in the Prometheus text format (MetricsSource).
+ * <p/>
+ * This class is thread-safe
+ */
+public final class LightServerMetrics implements LightServerMetricsMXBean, MetricsSource {
+
+    private static final String PREFIX = "jtcpserver_lightserver_";
+
+    /**
+     * Seconds over which the rate of requests is averaged for JMX
+     */
+    private static final int RATE_SECONDS = 10;
+
+    private final RateMeter requests;
+
+    private final AtomicLong activeRequests;
+
+    private final LongAdder failedRequests;
+
+    private final LongAdder connectionErrors;
+
+    private final LatencyHistogram requestLatency;
+
+    LightServerMetrics() {
+        requests = new RateMeter();
+        activeRequests = new AtomicLong();
+        failedRequests = new LongAdder();
+        connectionErrors = new LongAdder();
+        requestLatency = new LatencyHistogram();
+    }
+
+    void requestStarted() {
+        requests.mark();
+        activeRequests.incrementAndGet();
+    }
+
+    /**
+     * A request was attended (successfully or not)
+     *
+     * @param startTime System.nanoTime at which the request was accepted
+     */
+    void requestFinished(long startTime) {
+        activeRequests.decrementAndGet();
+        requestLatency.record(System.nanoTime() - startTime);
+    }
+
+    void requestFailed() {
+        failedRequests.increment();
+    }
+
+    void connectionError() {
+        connectionErrors.increment();
+    }
+
+    /**
+     * Retrieves the requests attended by the server (see RateMeter for their rate)
+     *
+     * @return the attended requests
+     */
+    public RateMeter getRequests() {
+        return requests;
+    }
+
+    public LatencyHistogram getRequestLatency() {
+        return requestLatency;
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requests.getCount();
+    }
+
+    @Override
+    public double getRequestRate() {
+        return requests.getRatePerSecond(RATE_SECONDS);
+    }
+
+    @Override
+    public long getActiveRequests() {
+        return activeRequests.get();
+    }
+
+    @Override
+    public long getFailedRequests() {
+        return failedRequests.sum();
+    }
+
+    @Override
+    public long getConnectionErrors() {
+        return connectionErrors.sum();
+    }
+
+    @Override
+    public long getRequestLatencyMean() {
+        return requestLatency.getMeanNanos();
+    }
+
+    @Override
+    public long getRequestLatency99thPercentile() {
+        return requestLatency.getPercentileNanos(99d);
+    }
+
+    @Override
+    public void writeMetrics(PrometheusWriter writer) {
+        writer.counter(PREFIX + "requests_total", "Requests attended by the server", getRequestCount());
+        writer.gauge(PREFIX + "active_requests", "Requests currently being attended", getActiveRequests());
+        writer.counter(PREFIX + "failed_requests_total", "Requests for which the server action threw an exception", getFailedRequests());
+        writer.counter(PREFIX + "connection_errors_total", "Requests that could not be read or answered due to I/O errors", getConnectionErrors());
+        writer.histogram(PREFIX + "request_latency_seconds", "Time from the acceptance of a request to its response", requestLatency);
+    }
+
+    @Override
+    public String toString() {
+        return "requests: " + requests + "\nactive requests: " + getActiveRequests() + ", failed requests: " + getFailedRequests() +
+                ", connection errors: " + getConnectionErrors() + "\nrequest latency: " + requestLatency;
+    }
+}
@@ -0,0 +1,26 @@
+package org.aanguita.jtcpserver.clientserver.server;
+
+/**
+ * JMX view of the metrics of a LightServer (see LightServer.registerMBean). Latencies are given in nanoseconds
+ */
+public interface LightServerMetricsMXBean {
+
+    public long getRequestCount();
+
+    /**
+     * Retrieves the rate of requests over the last seconds
+     *
+     * @return requests per second, averaged over the last 10 seconds
+     */
+    public double getRequestRate();
+
+    public long getActiveRequests();
+
+    public long getFailedRequests();
+
+    public long getConnectionErrors();
+
+    public long getRequestLatencyMean();
+
+    public long getRequestLatency99thPercentile();
+}
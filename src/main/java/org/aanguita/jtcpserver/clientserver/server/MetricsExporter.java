@@ -0,0 +1,79 @@
+package org.aanguita.jtcpserver.clientserver.server;
+
+import org.aanguita.jtcpserver.metrics.MetricsHttpServer;
+import org.aanguita.jtcpserver.metrics.MetricsSource;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Optional exports of the metrics of a server: an MBean registered in the platform MBean server, and a
+ * MetricsHttpServer serving them in the Prometheus text format. Both are off until requested
+ */
+final class MetricsExporter {
+
+    private static final String JMX_DOMAIN = "org.aanguita.jtcpserver";
+
+    /**
+     * Type of the server, for the names of its MBeans
+     */
+    private final String type;
+
+    /**
+     * The metrics, which must implement a management interface too
+     */
+    private final MetricsSource metrics;
+
+    private ObjectName objectName;
+
+    private MetricsHttpServer metricsHttpServer;
+
+    MetricsExporter(String type, MetricsSource metrics) {
+        this.type = type;
+        this.metrics = metrics;
+    }
+
+    synchronized ObjectName registerMBean(String name) throws JMException {
+        unregisterMBean();
+        ObjectName newObjectName = new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, newObjectName);
+        objectName = newObjectName;
+        return objectName;
+    }
+
+    synchronized void unregisterMBean() {
+        if (objectName != null) {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            try {
+                if (mBeanServer.isRegistered(objectName)) {
+                    mBeanServer.unregisterMBean(objectName);
+                }
+            } catch (JMException e) {
+                // already unregistered by someone else
+            }
+            objectName = null;
+        }
+    }
+
+    synchronized int startHttpEndpoint(int port) throws IOException {
+        stopHttpEndpoint();
+        MetricsHttpServer newMetricsHttpServer = new MetricsHttpServer(port, metrics);
+        newMetricsHttpServer.start();
+        metricsHttpServer = newMetricsHttpServer;
+        return metricsHttpServer.getActualPort();
+    }
+
+    synchronized void stopHttpEndpoint() {
+        if (metricsHttpServer != null) {
+            metricsHttpServer.stop();
+            metricsHttpServer = null;
+        }
+    }
+
+    synchronized int getHttpEndpointPort() {
+        return metricsHttpServer != null ? metricsHttpServer.getActualPort() : -1;
+    }
+}
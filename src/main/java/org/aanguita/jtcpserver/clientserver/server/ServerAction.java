@@ -2,6 +2,7 @@ package org.aanguita.jtcpserver.clientserver.server;
 
 import org.aanguita.jtcpserver.channel.ChannelConnectionPoint;
 import org.aanguita.jtcpserver.communication.CommError;
+import org.aanguita.jtcpserver.communication.SlowConsumerPolicy;
 import org.aanguita.jacuzzi.network.IP4Port;
 
 /**
@@ -22,6 +23,7 @@ import org.aanguita.jacuzzi.network.IP4Port;
  * will follow them
  * - The newClientConnection, newConnectionError and TCPServerError methods are executed by an independent thread, so none of these three can overlap
  * - TCPServerErrors produced on server start are issued by the same thread that invoked the start method.
+ * - clientSlow is called by the thread that sends the message to several clients (writeAll and similar methods)
  * - None of these calls will ever hold the ServerModule synchronized
  */
 public interface ServerAction {
@@ -85,6 +87,19 @@ public interface ServerAction {
      */
     void clientError(String clientID, ChannelConnectionPoint ccp, CommError e);
 
+    /**
+     * A client did not keep up with the messages sent to several clients, and its slow consumer policy was applied, or
+     * its outbound queue was full and a broadcast message was discarded for it (see ServerModule.writeAllIn). It is
+     * invoked once, and again only after the client has caught up. Clients with the DISCONNECT policy are disconnected
+     * right after this invocation. By default, it is ignored
+     *
+     * @param clientID ID of the slow client
+     * @param ccp      ChannelConnectionPoint object of the slow client
+     * @param policy   slow consumer policy of the client (null if it has none, and its queue was full)
+     */
+    default void clientSlow(String clientID, ChannelConnectionPoint ccp, SlowConsumerPolicy policy) {
+    }
+
     /**
      * Error listening to a new connection. This new connection was ignored, server keeps running. It is basically
      * useful for logging, as the service will keep running normally
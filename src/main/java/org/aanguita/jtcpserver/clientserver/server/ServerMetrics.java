@@ -0,0 +1,294 @@
+package org.aanguita.jtcpserver.clientserver.server;
+
+import org.aanguita.jtcpserver.channel.ChannelMetrics;
+import org.aanguita.jtcpserver.communication.CommError;
+import org.aanguita.jtcpserver.communication.ConnectionMetrics;
+import org.aanguita.jtcpserver.metrics.MetricsSource;
+import org.aanguita.jtcpserver.metrics.PrometheusWriter;
+import org.aanguita.jtcpserver.metrics.RateMeter;
+import org.aanguita.jtcpserver.metrics.TrafficCounters;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a ServerModule, always recorded:
+ * - the metrics of all its client connections, aggregated (traffic per channel, queued incoming messages, and
+ * latencies of encoding, decoding, writing and handling messages)
+ * - accepted connections, and their rate
+ * - live connections (clients currently connected)
+ * - disconnections, errors of each type that closed client connections, and connections that could not be set up
+ * <p/>
+ * All values are kept in live counters, updated as events happen, so reading them does not walk the connected
+ * clients. They can be exposed through JMX (ServerMetricsMXBean) and in the Prometheus text format (MetricsSource).
+ * <p/>
+ * This class is thread-safe
+ */
+public final class ServerMetrics implements ServerMetricsMXBean, MetricsSource {
+
+    private static final String PREFIX = "jtcpserver_server_";
+
+    /**
+     * Seconds over which the rate of accepted connections is averaged for JMX
+     */
+    private static final int RATE_SECONDS = 10;
+
+    /**
+     * Counters of each channel (see perChannel)
+     */
+    private static final int MESSAGES_RECEIVED = 0;
+
+    private static final int BYTES_RECEIVED = 1;
+
+    private static final int MESSAGES_SENT = 2;
+
+    private static final int BYTES_SENT = 3;
+
+    private final ChannelMetrics clientMetrics;
+
+    private final RateMeter acceptedConnections;
+
+    private final AtomicLong liveConnections;
+
+    private final LongAdder disconnections;
+
+    private final AtomicLongArray errors;
+
+    private final LongAdder connectionErrors;
+
+    ServerMetrics() {
+        clientMetrics = new ChannelMetrics();
+        acceptedConnections = new RateMeter();
+        liveConnections = new AtomicLong();
+        disconnections = new LongAdder();
+        errors = new AtomicLongArray(CommError.Type.values().length);
+        connectionErrors = new LongAdder();
+    }
+
+    void connectionAccepted() {
+        acceptedConnections.mark();
+    }
+
+    void clientAdded() {
+        liveConnections.incrementAndGet();
+    }
+
+    void clientDisconnected() {
+        liveConnections.decrementAndGet();
+        disconnections.increment();
+    }
+
+    void clientError(CommError.Type type) {
+        liveConnections.decrementAndGet();
+        errors.incrementAndGet(type.ordinal());
+    }
+
+    void connectionError() {
+        connectionErrors.increment();
+    }
+
+    /**
+     * Retrieves the aggregated metrics of all the client connections (those of past clients included)
+     *
+     * @return the metrics of the client connections
+     */
+    public ChannelMetrics getClientMetrics() {
+        return clientMetrics;
+    }
+
+    /**
+     * Retrieves the connections accepted by the server (see RateMeter for their rate)
+     *
+     * @return the accepted connections
+     */
+    public RateMeter getAcceptedConnections() {
+        return acceptedConnections;
+    }
+
+    @Override
+    public long getAcceptedConnectionCount() {
+        return acceptedConnections.getCount();
+    }
+
+    @Override
+    public double getAcceptedConnectionRate() {
+        return acceptedConnections.getRatePerSecond(RATE_SECONDS);
+    }
+
+    @Override
+    public long getLiveConnections() {
+        return liveConnections.get();
+    }
+
+    /**
+     * Retrieves the client connections that were closed without errors
+     *
+     * @return the disconnections
+     */
+    @Override
+    public long getDisconnections() {
+        return disconnections.sum();
+    }
+
+    /**
+     * Retrieves the client connections closed by an error of a given type
+     *
+     * @param type the type of error
+     * @return the connections closed by errors of this type
+     */
+    public long getErrors(CommError.Type type) {
+        return errors.get(type.ordinal());
+    }
+
+    /**
+     * Retrieves the accepted connections that could not be set up
+     *
+     * @return the failed connections
+     */
+    @Override
+    public long getConnectionErrors() {
+        return connectionErrors.sum();
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        Map<String, Long> errorCounts = new LinkedHashMap<>();
+        for (CommError.Type type : CommError.Type.values()) {
+            errorCounts.put(type.name(), getErrors(type));
+        }
+        return errorCounts;
+    }
+
+    @Override
+    public Map<String, Long> getMessagesReceivedPerChannel() {
+        return perChannel(MESSAGES_RECEIVED);
+    }
+
+    @Override
+    public Map<String, Long> getBytesReceivedPerChannel() {
+        return perChannel(BYTES_RECEIVED);
+    }
+
+    @Override
+    public Map<String, Long> getMessagesSentPerChannel() {
+        return perChannel(MESSAGES_SENT);
+    }
+
+    @Override
+    public Map<String, Long> getBytesSentPerChannel() {
+        return perChannel(BYTES_SENT);
+    }
+
+    /**
+     * Collects a traffic counter of the channels that carried messages
+     *
+     * @param counter the counter (MESSAGES_RECEIVED, BYTES_RECEIVED, MESSAGES_SENT or BYTES_SENT)
+     * @return the value of the counter for each channel ("none" for messages sent without channel)
+     */
+    private Map<String, Long> perChannel(int counter) {
+        TrafficCounters traffic = clientMetrics.getConnectionMetrics().getTraffic();
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (int lane = TrafficCounters.DEFAULT_LANE; lane < 256; lane++) {
+            if (traffic.isLaneUsed(lane)) {
+                String channel = lane == TrafficCounters.DEFAULT_LANE ? "none" : Integer.toString(lane);
+                switch (counter) {
+                    case MESSAGES_RECEIVED:
+                        values.put(channel, traffic.getMessagesIn(lane));
+                        break;
+                    case BYTES_RECEIVED:
+                        values.put(channel, traffic.getBytesIn(lane));
+                        break;
+                    case MESSAGES_SENT:
+                        values.put(channel, traffic.getMessagesOut(lane));
+                        break;
+                    default:
+                        values.put(channel, traffic.getBytesOut(lane));
+                }
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public long getSocketBytesRead() {
+        return clientMetrics.getConnectionMetrics().getTraffic().getBytesRead();
+    }
+
+    @Override
+    public long getSocketBytesWritten() {
+        return clientMetrics.getConnectionMetrics().getTraffic().getBytesWritten();
+    }
+
+    @Override
+    public long getQueuedMessages() {
+        return clientMetrics.getQueuedMessages();
+    }
+
+    @Override
+    public long getMaxQueueDepth() {
+        return clientMetrics.getMaxQueueDepth();
+    }
+
+    @Override
+    public long getHandlerLatencyMean() {
+        return clientMetrics.getHandlerLatency().getMeanNanos();
+    }
+
+    @Override
+    public long getHandlerLatency99thPercentile() {
+        return clientMetrics.getHandlerLatency().getPercentileNanos(99d);
+    }
+
+    @Override
+    public long getEncodeLatency99thPercentile() {
+        return clientMetrics.getConnectionMetrics().getEncodeLatency().getPercentileNanos(99d);
+    }
+
+    @Override
+    public long getDecodeLatency99thPercentile() {
+        return clientMetrics.getConnectionMetrics().getDecodeLatency().getPercentileNanos(99d);
+    }
+
+    @Override
+    public long getWriteLatency99thPercentile() {
+        return clientMetrics.getConnectionMetrics().getWriteLatency().getPercentileNanos(99d);
+    }
+
+    @Override
+    public void writeMetrics(PrometheusWriter writer) {
+        ConnectionMetrics connectionMetrics = clientMetrics.getConnectionMetrics();
+        writer.counter(PREFIX + "accepted_connections_total", "Connections accepted by the server", getAcceptedConnectionCount());
+        writer.gauge(PREFIX + "live_connections", "Clients currently connected", getLiveConnections());
+        writer.counter(PREFIX + "disconnections_total", "Client connections closed without errors", getDisconnections());
+        writer.counter(PREFIX + "connection_errors_total", "Accepted connections that could not be set up", getConnectionErrors());
+        writer.counter(PREFIX + "client_errors_total", "Client connections closed by errors, per type of error", "type", getErrorCounts());
+        writer.counter(PREFIX + "messages_received_total", "Messages received from clients, per channel", "channel", getMessagesReceivedPerChannel());
+        writer.counter(PREFIX + "received_bytes_total", "Bytes of the messages received from clients, per channel", "channel", getBytesReceivedPerChannel());
+        writer.counter(PREFIX + "messages_sent_total", "Messages sent to clients, per channel", "channel", getMessagesSentPerChannel());
+        writer.counter(PREFIX + "sent_bytes_total", "Bytes of the messages sent to clients, per channel", "channel", getBytesSentPerChannel());
+        writer.counter(PREFIX + "socket_read_bytes_total", "Bytes read from the client sockets", getSocketBytesRead());
+        writer.counter(PREFIX + "socket_written_bytes_total", "Bytes written to the client sockets", getSocketBytesWritten());
+        writer.gauge(PREFIX + "queued_messages", "Incoming messages waiting in the channel set queues", getQueuedMessages());
+        writer.gauge(PREFIX + "max_queue_depth", "Longest channel set queue observed", getMaxQueueDepth());
+        writer.histogram(PREFIX + "encode_latency_seconds", "Time taken to encode outgoing messages", connectionMetrics.getEncodeLatency());
+        writer.histogram(PREFIX + "decode_latency_seconds", "Time taken to decode incoming messages", connectionMetrics.getDecodeLatency());
+        writer.histogram(PREFIX + "write_latency_seconds", "Time taken to write to the client sockets", connectionMetrics.getWriteLatency());
+        writer.histogram(PREFIX + "handler_latency_seconds", "Time taken to handle incoming messages", clientMetrics.getHandlerLatency());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder errorCounts = new StringBuilder();
+        for (CommError.Type type : CommError.Type.values()) {
+            if (getErrors(type) > 0) {
+                errorCounts.append(", ").append(type).append(": ").append(getErrors(type));
+            }
+        }
+        return "accepted connections: " + acceptedConnections + "\nlive connections: " + getLiveConnections() +
+                ", disconnections: " + getDisconnections() + ", connection errors: " + getConnectionErrors() + errorCounts +
+                "\n" + clientMetrics;
+    }
+}
@@ -0,0 +1,53 @@
+package org.aanguita.jtcpserver.clientserver.server;
+
+import java.util.Map;
+
+/**
+ * JMX view of the metrics of a ServerModule (see ServerModule.registerMBean). Per-channel values are given as maps
+ * from the channel (or "none", for messages sent without channel) to the value. Latencies are given in nanoseconds
+ */
+public interface ServerMetricsMXBean {
+
+    public long getAcceptedConnectionCount();
+
+    /**
+     * Retrieves the rate of accepted connections over the last seconds
+     *
+     * @return accepted connections per second, averaged over the last 10 seconds
+     */
+    public double getAcceptedConnectionRate();
+
+    public long getLiveConnections();
+
+    public long getDisconnections();
+
+    public long getConnectionErrors();
+
+    public Map<String, Long> getErrorCounts();
+
+    public Map<String, Long> getMessagesReceivedPerChannel();
+
+    public Map<String, Long> getBytesReceivedPerChannel();
+
+    public Map<String, Long> getMessagesSentPerChannel();
+
+    public Map<String, Long> getBytesSentPerChannel();
+
+    public long getSocketBytesRead();
+
+    public long getSocketBytesWritten();
+
+    public long getQueuedMessages();
+
+    public long getMaxQueueDepth();
+
+    public long getHandlerLatencyMean();
+
+    public long getHandlerLatency99thPercentile();
+
+    public long getEncodeLatency99thPercentile();
+
+    public long getDecodeLatency99thPercentile();
+
+    public long getWriteLatency99thPercentile();
+}
@@ -2,14 +2,28 @@ package org.aanguita.jtcpserver.clientserver.server;
 
 import org.aanguita.jtcpserver.channel.ChannelConnectionPoint;
 import org.aanguita.jtcpserver.channel.ChannelModule;
+import org.aanguita.jtcpserver.channel.EncodedChannelMessage;
 import org.aanguita.jtcpserver.communication.CommError;
+import org.aanguita.jtcpserver.communication.CommunicationConfig;
+import org.aanguita.jtcpserver.communication.OutboundQueueFullException;
+import org.aanguita.jtcpserver.communication.SlowConsumerPolicy;
 import org.aanguita.jtcpserver.tcpconnection.server.TCPServer;
+import org.aanguita.jacuzzi.id.AlphaNumFactory;
 import org.aanguita.jacuzzi.network.IP4Port;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class implements a server to which clients can connect from the internet. The server performs the specific
@@ -25,6 +39,17 @@ import java.util.Set;
  * <p/>
  * Communication with each client is handled though the channel module package. Thus, the ability to send messages
  * through 256 different channels is included.
+ * <p/>
+ * A CommunicationConfig can be provided for the client connections. If it includes an EventLoopGroup, client connections are accepted as
+ * socket channels and multiplexed over the event loops, instead of using one reader thread per client.
+ * <p/>
+ * Messages sent to several clients (writeAll, writeAllIn and writeAllBut) are encoded only once, and the encoded
+ * frame is written to all their connections in parallel, without waiting for them. Clients that cannot keep up with
+ * these messages are handled according to the SlowConsumerPolicy of their connection.
+ * <p/>
+ * The metrics of all client connections are aggregated, together with the accepted and live connections and the
+ * errors that closed them (getMetrics). Optionally, they can be registered as a JMX MBean (registerMBean) and served
+ * in the Prometheus text format through a built-in HTTP endpoint (startMetricsEndpoint).
  */
 public class ServerModule {
 
@@ -48,6 +73,23 @@ public class ServerModule {
      */
     private final Set<Set<Byte>> concurrentChannels;
 
+    /**
+     * Transport configuration for the client connections
+     */
+    private final CommunicationConfig communicationConfig;
+
+    /**
+     * IDs of the clients currently classified as slow consumers (already reported to the server action)
+     */
+    private final Set<String> slowClients;
+
+    private final ServerMetrics metrics;
+
+    /**
+     * Exports of the metrics (JMX and HTTP), off until requested
+     */
+    private final MetricsExporter metricsExporter;
+
     /**
      * Class constructor
      *
@@ -56,11 +98,30 @@ public class ServerModule {
      * @param concurrentChannels sets of concurrent channels to establish for new client connections
      */
     public ServerModule(int port, ServerAction serverAction, Set<Set<Byte>> concurrentChannels) {
+        this(port, serverAction, concurrentChannels, new CommunicationConfig());
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param port                port where the server will be listening to new connections
+     * @param serverAction        actions to carry out by the ServerModule upon different events
+     * @param concurrentChannels  sets of concurrent channels to establish for new client connections
+     * @param communicationConfig transport configuration for the client connections
+     * @throws IllegalArgumentException the configuration enables the compact format, and channel 255 is among the
+     *                                  concurrent channels (see ChannelModule.checkConcurrentChannels)
+     */
+    public ServerModule(int port, ServerAction serverAction, Set<Set<Byte>> concurrentChannels, CommunicationConfig communicationConfig) throws IllegalArgumentException {
+        ChannelModule.checkConcurrentChannels(concurrentChannels, communicationConfig);
         // the concurrent channels are copied, so the given parameter does not affect us in the future
         this.connectedClients = new ConnectedClients();
         this.serverAction = serverAction;
         this.concurrentChannels = concurrentChannels;
-        tcpServer = new TCPServer(port, new TCPServerActionImpl(this));
+        this.communicationConfig = communicationConfig;
+        slowClients = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        metrics = new ServerMetrics();
+        metricsExporter = new MetricsExporter("ServerModule", metrics);
+        tcpServer = new TCPServer(port, new TCPServerActionImpl(this), communicationConfig.isEventLoopTransport(), communicationConfig.getThreadMode());
     }
 
     /**
@@ -114,6 +175,84 @@ public class ServerModule {
         return connectedClients.getConnectedClientsCount();
     }
 
+    /**
+     * Retrieves the metrics of this server (see ServerMetrics)
+     *
+     * @return the metrics of this server
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Registers the metrics of this server in the platform MBean server (see ServerMetricsMXBean), under the name
+     * org.aanguita.jtcpserver:type=ServerModule,name="name". A previous registration of this server is replaced
+     *
+     * @param name name identifying this server among others
+     * @return the name of the registered MBean
+     * @throws JMException the MBean could not be registered (e.g. the name is already in use)
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        return metricsExporter.registerMBean(name);
+    }
+
+    /**
+     * Unregisters the MBean of this server, if it was registered
+     */
+    public void unregisterMBean() {
+        metricsExporter.unregisterMBean();
+    }
+
+    /**
+     * Starts serving the metrics of this server in the Prometheus text format, at /metrics of a built-in HTTP
+     * endpoint (see MetricsHttpServer). A previous endpoint of this server is stopped. The endpoint is independent
+     * from the listening of client connections
+     *
+     * @param port port for the HTTP endpoint (0 for any free port)
+     * @return the actual port of the endpoint
+     * @throws IOException the port could not be opened
+     */
+    public int startMetricsEndpoint(int port) throws IOException {
+        return metricsExporter.startHttpEndpoint(port);
+    }
+
+    /**
+     * Stops the metrics endpoint, if it was started
+     */
+    public void stopMetricsEndpoint() {
+        metricsExporter.stopHttpEndpoint();
+    }
+
+    /**
+     * Retrieves the port of the metrics endpoint
+     *
+     * @return the port of the metrics endpoint (-1 if not started)
+     */
+    public int getMetricsEndpointPort() {
+        return metricsExporter.getHttpEndpointPort();
+    }
+
+    /**
+     * Retrieves the IDs of the connected clients. The returned set is an unmodifiable view which reflects later
+     * connections and disconnections (its iteration is weakly consistent)
+     *
+     * @return the IDs of the connected clients
+     */
+    public Set<String> getClientIDs() {
+        return connectedClients.getClientIDs();
+    }
+
+    /**
+     * Retrieves the channel connection points of the connected clients, for iterating over them without looking up
+     * each client ID. No copy is made: iteration is weakly consistent, and clients connecting or disconnecting during
+     * the iteration may or may not be included
+     *
+     * @return the channel connection points of the connected clients
+     */
+    public Iterable<ChannelConnectionPoint> getCCPs() {
+        return connectedClients.getCCPs();
+    }
+
     /**
      * Retrieves the channel connection point of a client
      *
@@ -150,10 +289,8 @@ public class ServerModule {
      * Disconnects all connected clients. This method can be invoked with the server running or stopped
      */
     public void disconnectAllClients() {
-        Set<String> clientIDs;
-        clientIDs = connectedClients.getClientIDs();
-        for (String clientID : clientIDs) {
-            disconnectClient(clientID);
+        for (ChannelConnectionPoint ccp : connectedClients.getCCPs()) {
+            ccp.disconnect();
         }
     }
 
@@ -189,85 +326,195 @@ public class ServerModule {
     }
 
     /**
-     * Sends a message to all connected clients
+     * Sends a message to all connected clients. The message is encoded once, and offered to every client without
+     * waiting for the writes (see writeAllIn(Set, EncodedChannelMessage))
      *
      * @param channel channel for sending the message
      * @param message the message to send
-     * @throws java.io.IOException exception raised when sending the message
+     * @throws java.io.IOException the message could not be encoded
      */
     public void writeAll(byte channel, Serializable message) throws IOException {
-        Set<String> clientIDs;
-        clientIDs = connectedClients.getClientIDs();
-        writeAllIn(clientIDs, channel, message);
+        broadcast(encode(channel, message), Collections.<String>emptySet());
     }
 
     /**
-     * Sends a message to all connected clients
+     * Sends an array of bytes to all connected clients, without waiting for the writes (see
+     * writeAllIn(Set, EncodedChannelMessage))
      *
      * @param channel channel for sending the message
      * @param data    the data to send
-     * @throws java.io.IOException exception raised when sending the message
+     * @throws java.io.IOException never thrown (byte arrays need no encoding). Declared for compatibility
      */
     public void writeAll(byte channel, byte[] data) throws IOException {
-        Set<String> clientIDs;
-        clientIDs = connectedClients.getClientIDs();
-        writeAllIn(clientIDs, channel, data);
+        broadcast(EncodedChannelMessage.of(channel, data), Collections.<String>emptySet());
     }
 
     /**
-     * Sends a message to a list of clients
+     * Sends a message to a list of clients. The message is encoded only once, and the resulting frame is shared by
+     * all the client connections (see writeAllIn(Set, EncodedChannelMessage))
      *
      * @param clientIDs IDs of the clients to send the message
      * @param channel   channel for sending the message
      * @param message   message to send
-     * @throws java.io.IOException exception raised when sending the message
+     * @throws java.io.IOException the message could not be encoded
      */
     public void writeAllIn(Set<String> clientIDs, byte channel, Serializable message) throws IOException {
-        for (String clientID : clientIDs) {
-            write(clientID, channel, message);
-        }
+        writeAllIn(clientIDs, encode(channel, message));
     }
 
     /**
-     * Sends an array of bytes to a list of clients
+     * Sends an array of bytes to a list of clients. The channel frame is built only once and shared by all the
+     * client connections
      *
      * @param clientIDs IDs of the clients to send the message
      * @param channel   channel for sending the message
      * @param data      the data to send
-     * @throws java.io.IOException exception raised when sending the message
+     * @throws java.io.IOException never thrown (byte arrays need no encoding). Declared for compatibility
      */
     public void writeAllIn(Set<String> clientIDs, byte channel, byte[] data) throws IOException {
+        writeAllIn(clientIDs, EncodedChannelMessage.of(channel, data));
+    }
+
+    /**
+     * Sends an already encoded message to a list of clients. The message is offered to the outbound queue of each
+     * client connection, so the writes to the different clients are carried out in parallel by their writers (the
+     * event loops or the writer threads of the connections). This method does not wait for the writes, so a slow
+     * client never delays the rest.
+     * <p/>
+     * Clients that fall behind are handled with their slow consumer policy (see setSlowConsumerPolicy). When a client
+     * is found behind, the clientSlow method of the server action is invoked (once, until the client catches up), and
+     * clients with the DISCONNECT policy are disconnected.
+     * <p/>
+     * Regardless of the policy, a client whose outbound queue is full (CommunicationConfig.setOutboundQueueLimit) does
+     * not get the message. This is reported through clientSlow as well (with a null policy, for clients without one),
+     * so broadcasts are never lost silently. Clients that closed meanwhile do not get the message either, and their
+     * disconnection is reported as usual
+     *
+     * @param clientIDs IDs of the clients to send the message
+     * @param message   the encoded message, created with the CommunicationConfig of this server
+     */
+    public void writeAllIn(Set<String> clientIDs, EncodedChannelMessage message) {
         for (String clientID : clientIDs) {
-            write(clientID, channel, data);
+            ChannelConnectionPoint ccp = connectedClients.getCCP(clientID);
+            if (ccp != null) {
+                offer(ccp, message);
+            }
+        }
+    }
+
+    /**
+     * Encodes a message for many clients, recording the time taken in the metrics of the client connections
+     *
+     * @param channel channel for sending the message
+     * @param message the message to encode
+     * @return the encoded message
+     * @throws IOException the message could not be encoded
+     */
+    private EncodedChannelMessage encode(byte channel, Serializable message) throws IOException {
+        long start = System.nanoTime();
+        EncodedChannelMessage encodedMessage = EncodedChannelMessage.of(channel, message, communicationConfig);
+        metrics.getClientMetrics().getConnectionMetrics().getEncodeLatency().record(System.nanoTime() - start);
+        return encodedMessage;
+    }
+
+    /**
+     * Offers an encoded message to all connected clients except the given ones (see writeAllIn). The clients are
+     * iterated directly, without copying or looking up their IDs
+     *
+     * @param message      the encoded message
+     * @param clientIDsOut IDs of the clients to exclude
+     */
+    private void broadcast(EncodedChannelMessage message, Set<String> clientIDsOut) {
+        for (ChannelConnectionPoint ccp : connectedClients.getCCPs()) {
+            if (!clientIDsOut.contains(ccp.getId())) {
+                offer(ccp, message);
+            }
+        }
+    }
+
+    private void offer(ChannelConnectionPoint ccp, EncodedChannelMessage message) {
+        CompletableFuture<Void> future = ccp.offer(message);
+        // a full queue rejects the frame right away, so the future is already complete
+        if (future.isCompletedExceptionally() && isQueueFull(future)) {
+            String clientID = ccp.getId();
+            if (slowClients.add(clientID)) {
+                serverAction.clientSlow(clientID, ccp, ccp.getSlowConsumerPolicy());
+            }
+        } else {
+            checkSlowConsumer(ccp);
+        }
+    }
+
+    private static boolean isQueueFull(CompletableFuture<Void> future) {
+        try {
+            future.getNow(null);
+            return false;
+        } catch (CompletionException e) {
+            return e.getCause() instanceof OutboundQueueFullException;
+        } catch (CancellationException e) {
+            // discarded by the slow consumer policy
+            return false;
         }
     }
 
     /**
-     * Sends a message to all clients excepts a list of given ids
+     * Sets the slow consumer policy of a connected client. The policy for new clients is taken from the
+     * CommunicationConfig of this server
+     *
+     * @param clientID ID of the client
+     * @param policy   policy applied to the broadcasts sent to this client (null for no policy)
+     */
+    public void setSlowConsumerPolicy(String clientID, SlowConsumerPolicy policy) {
+        ChannelConnectionPoint ccp = connectedClients.getCCP(clientID);
+        if (ccp != null) {
+            ccp.setSlowConsumerPolicy(policy);
+        }
+    }
+
+    /**
+     * Checks if a client has just been classified as slow consumer after a broadcast, and applies its policy
+     *
+     * @param ccp ChannelConnectionPoint of the client
+     */
+    private void checkSlowConsumer(ChannelConnectionPoint ccp) {
+        String clientID = ccp.getId();
+        if (ccp.isSlowConsumer()) {
+            if (slowClients.add(clientID)) {
+                SlowConsumerPolicy policy = ccp.getSlowConsumerPolicy();
+                serverAction.clientSlow(clientID, ccp, policy);
+                if (policy != null && policy.getType() == SlowConsumerPolicy.Type.DISCONNECT) {
+                    ccp.disconnect();
+                }
+            }
+        } else {
+            slowClients.remove(clientID);
+        }
+    }
+
+    /**
+     * Sends a message to all clients excepts a list of given ids, without waiting for the writes (see
+     * writeAllIn(Set, EncodedChannelMessage))
      *
      * @param channel      channel for sending the message
      * @param message      message to send
      * @param clientIDsOut the ids of the clients to exclude
-     * @throws java.io.IOException exception raised when sending the message to some client
+     * @throws java.io.IOException the message could not be encoded
      */
     public void writeAllBut(byte channel, Serializable message, String... clientIDsOut) throws IOException {
-        Set<String> clientIDs;
-        clientIDs = connectedClients.getClientIDsExcept(clientIDsOut);
-        writeAllIn(clientIDs, channel, message);
+        broadcast(encode(channel, message), new HashSet<>(Arrays.asList(clientIDsOut)));
     }
 
     /**
-     * Sends a message to all clients excepts a list of given ids
+     * Sends a message to all clients excepts a list of given ids, without waiting for the writes (see
+     * writeAllIn(Set, EncodedChannelMessage))
      *
      * @param channel      channel for sending the message
      * @param data         the data to send
      * @param clientIDsOut the ids of the clients to exclude
-     * @throws java.io.IOException exception raised when sending the message to some client
+     * @throws java.io.IOException never thrown (byte arrays need no encoding). Declared for compatibility
      */
     public void writeAllBut(byte channel, byte[] data, String... clientIDsOut) throws IOException {
-        Set<String> clientIDs;
-        clientIDs = connectedClients.getClientIDsExcept(clientIDsOut);
-        writeAllIn(clientIDs, channel, data);
+        broadcast(EncodedChannelMessage.of(channel, data), new HashSet<>(Arrays.asList(clientIDsOut)));
     }
 
 
@@ -288,12 +535,18 @@ public class ServerModule {
     }
 
     void reportClientDisconnected(ChannelConnectionPoint ccp, boolean expected) {
-        removeClient(ccp.getId());
+        if (removeClient(ccp.getId())) {
+            metrics.clientDisconnected();
+        }
+        slowClients.remove(ccp.getId());
         serverAction.clientDisconnected(ccp.getId(), ccp, expected);
     }
 
     void reportClientError(ChannelConnectionPoint ccp, CommError e) {
-        removeClient(ccp.getId());
+        if (removeClient(ccp.getId())) {
+            metrics.clientError(e.getType());
+        }
+        slowClients.remove(ccp.getId());
         serverAction.clientError(ccp.getId(), ccp, e);
     }
 
@@ -309,14 +562,16 @@ public class ServerModule {
         Exception exception = null;
         // first check that the tcp server is running, otherwise no connections are accepted
         if (tcpServer.isRunning()) {
+            metrics.connectionAccepted();
             // the ChannelModule for this new client is created and initialized using the information from the socket
             clientPort = socket.getPort();
             clientIP = socket.getInetAddress().getHostAddress();
             ChannelActionImpl channelActionImpl = new ChannelActionImpl(this);
 
             try {
-                channelModule = new ChannelModule(socket, channelActionImpl, concurrentChannels);
+                channelModule = new ChannelModule("", socket, channelActionImpl, concurrentChannels, AlphaNumFactory.getStaticId(), communicationConfig, metrics.getClientMetrics());
                 connectedClients.addClient(channelModule, clientIP, clientPort);
+                metrics.clientAdded();
             } catch (IOException e) {
                 exception = e;
             }
@@ -327,6 +582,7 @@ public class ServerModule {
             // now we can startListeningConnections processing client's incoming messages
             channelModule.start();
         } else if (exception != null) {
+            metrics.connectionError();
             serverAction.newConnectionError(exception, new IP4Port(clientIP, clientPort));
         }
     }
@@ -344,8 +600,9 @@ public class ServerModule {
      * Removes the stored information of a client (but does not disconnect it)
      *
      * @param clientID the id of the client to remove
+     * @return true if the client was stored
      */
-    private void removeClient(String clientID) {
-        connectedClients.removeClient(clientID);
+    private boolean removeClient(String clientID) {
+        return connectedClients.removeClient(clientID);
     }
 }
@@ -0,0 +1,249 @@
+package org.aanguita.jtcpserver.clientserver.test;
+
+import org.aanguita.jtcpserver.channel.ChannelConnectionPoint;
+import org.aanguita.jtcpserver.channel.EncodedChannelMessage;
+import org.aanguita.jtcpserver.clientserver.server.ServerAction;
+import org.aanguita.jtcpserver.clientserver.server.ServerModule;
+import org.aanguita.jtcpserver.communication.CommError;
+import org.aanguita.jtcpserver.communication.CommunicationConfig;
+import org.aanguita.jtcpserver.communication.EventLoopGroup;
+import org.aanguita.jacuzzi.network.IP4Port;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Broadcast benchmark. A ServerModule sends the same object message to all its clients, and the time until every
+ * client has received it is measured, together with the bytes allocated by the whole process per broadcast. The
+ * measure is repeated for increasing client counts, with:
+ * <p/>
+ * - legacy: one ccp.write per client, which encodes and writes the message again for each client (the former
+ * behaviour of writeAll)
+ * - shared: ServerModule.writeAll, which encodes the message once and writes the shared frame to all clients in
+ * parallel
+ * <p/>
+ * Clients are plain socket channels handled by a single selector thread, which only counts the received bytes.
+ * <p/>
+ * Usage: BroadcastBenchmark [blocking|eventloop] [client counts, comma separated] [broadcasts per count]
+ * <p/>
+ * Connections are spread over several loopback addresses (127.0.0.x), 20000 per address. Large runs need a high open
+ * files limit (ulimit -n).
+ */
+public class BroadcastBenchmark {
+
+    private static final int CONNECTIONS_PER_LOCAL_ADDRESS = 20000;
+
+    private static final byte CHANNEL = 0;
+
+    private static final AtomicLong receivedBytes = new AtomicLong();
+
+    private static volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "blocking";
+        String[] clientCounts = (args.length > 1 ? args[1] : "100,1000,5000").split(",");
+        int broadcasts = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+        CommunicationConfig communicationConfig = new CommunicationConfig();
+        EventLoopGroup eventLoopGroup = null;
+        if (mode.equals("eventloop")) {
+            eventLoopGroup = new EventLoopGroup("benchmark");
+            communicationConfig.setEventLoopGroup(eventLoopGroup);
+        }
+        Set<Set<Byte>> concurrentChannels = new HashSet<>();
+        Set<Byte> channels = new HashSet<>();
+        channels.add(CHANNEL);
+        concurrentChannels.add(channels);
+        ServerModule serverModule = new ServerModule(0, new SilentServerAction(), concurrentChannels, communicationConfig);
+        serverModule.startListeningConnections();
+        int port = serverModule.getActualListeningPort();
+
+        Serializable message = buildMessage();
+        int frameLength = EncodedChannelMessage.of(CHANNEL, message, communicationConfig).length();
+        System.out.println("Mode: " + mode + ", frame length: " + frameLength + " bytes, broadcasts per measure: " + broadcasts);
+
+        final Selector selector = Selector.open();
+        final List<SocketChannel> clients = new ArrayList<>();
+        final Object registrationLock = new Object();
+        Thread clientThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume(selector, registrationLock);
+            }
+        }, "benchmarkClients");
+        clientThread.start();
+
+        for (String clientCount : clientCounts) {
+            int count = Integer.parseInt(clientCount.trim());
+            while (clients.size() < count) {
+                SocketChannel socketChannel = SocketChannel.open();
+                socketChannel.bind(new InetSocketAddress("127.0.0." + (1 + clients.size() / CONNECTIONS_PER_LOCAL_ADDRESS), 0));
+                socketChannel.connect(new InetSocketAddress("127.0.0.1", port));
+                socketChannel.configureBlocking(false);
+                synchronized (registrationLock) {
+                    selector.wakeup();
+                    socketChannel.register(selector, SelectionKey.OP_READ);
+                }
+                clients.add(socketChannel);
+            }
+            while (serverModule.getConnectedClientsCount() < count) {
+                Thread.sleep(10);
+            }
+            // warm up both modes before measuring
+            runBroadcasts(serverModule, message, false, count, frameLength, Math.max(1, broadcasts / 5));
+            runBroadcasts(serverModule, message, true, count, frameLength, Math.max(1, broadcasts / 5));
+            report(count, "legacy", runBroadcasts(serverModule, message, false, count, frameLength, broadcasts), broadcasts);
+            report(count, "shared", runBroadcasts(serverModule, message, true, count, frameLength, broadcasts), broadcasts);
+        }
+
+        running = false;
+        selector.wakeup();
+        clientThread.join();
+        for (SocketChannel client : clients) {
+            closeQuietly(client);
+        }
+        selector.close();
+        serverModule.stopAndDisconnect();
+        if (eventLoopGroup != null) {
+            eventLoopGroup.shutdown();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Performs the given number of broadcasts, each one waiting until all clients received the previous one
+     *
+     * @return total nanoseconds and total allocated bytes
+     */
+    private static long[] runBroadcasts(ServerModule serverModule, Serializable message, boolean shared, int clientCount, int frameLength, int broadcasts) throws IOException, InterruptedException {
+        long nanos = 0L;
+        long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < broadcasts; i++) {
+            long expected = receivedBytes.get() + (long) clientCount * frameLength;
+            long start = System.nanoTime();
+            if (shared) {
+                serverModule.writeAll(CHANNEL, message);
+            } else {
+                for (String clientID : serverModule.getClientIDs()) {
+                    serverModule.getCCP(clientID).write(CHANNEL, message);
+                }
+            }
+            while (receivedBytes.get() < expected) {
+                Thread.yield();
+            }
+            nanos += System.nanoTime() - start;
+        }
+        return new long[]{nanos, allocatedBytes() - allocatedBefore};
+    }
+
+    private static void report(int clientCount, String mode, long[] result, int broadcasts) {
+        System.out.println("Clients: " + clientCount + ", " + mode + ": latency " + (result[0] / broadcasts / 1000) + " us/broadcast, allocated " +
+                (result[1] / broadcasts / 1024) + " KB/broadcast (" + (result[1] / broadcasts / clientCount) + " B/client)");
+    }
+
+    /**
+     * Bytes allocated so far by all live threads of the process (HotSpot specific)
+     */
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0L;
+        for (long allocated : threadMXBean.getThreadAllocatedBytes(threadMXBean.getAllThreadIds())) {
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+        return total;
+    }
+
+    private static Serializable buildMessage() {
+        ArrayList<String> message = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            message.add("broadcast item number " + i);
+        }
+        return message;
+    }
+
+    private static void consume(Selector selector, Object registrationLock) {
+        ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+        try {
+            while (running) {
+                selector.select();
+                // wait for any ongoing registration
+                synchronized (registrationLock) {
+                }
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    readBuffer.clear();
+                    int read = ((SocketChannel) key.channel()).read(readBuffer);
+                    if (read > 0) {
+                        receivedBytes.addAndGet(read);
+                    } else if (read < 0) {
+                        key.cancel();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel socketChannel) {
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private static class SilentServerAction implements ServerAction {
+
+        @Override
+        public void newClientConnection(String clientID, ChannelConnectionPoint ccp, IP4Port ip4Port) {
+        }
+
+        @Override
+        public void newMessage(String clientID, ChannelConnectionPoint ccp, byte channel, Object message) {
+        }
+
+        @Override
+        public void newMessage(String clientID, ChannelConnectionPoint ccp, byte channel, byte[] data) {
+        }
+
+        @Override
+        public void channelFreed(String clientID, ChannelConnectionPoint ccp, byte channel) {
+        }
+
+        @Override
+        public void clientDisconnected(String clientID, ChannelConnectionPoint ccp, boolean expected) {
+        }
+
+        @Override
+        public void clientError(String clientID, ChannelConnectionPoint ccp, CommError e) {
+            System.out.println("Client error: " + e);
+        }
+
+        @Override
+        public void newConnectionError(Exception e, IP4Port ip4Port) {
+            e.printStackTrace();
+        }
+
+        @Override
+        public void TCPServerError(Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
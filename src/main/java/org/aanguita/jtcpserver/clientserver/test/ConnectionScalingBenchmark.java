@@ -0,0 +1,248 @@
+package org.aanguita.jtcpserver.clientserver.test;
+
+import org.aanguita.jtcpserver.channel.ChannelConnectionPoint;
+import org.aanguita.jtcpserver.clientserver.server.ServerAction;
+import org.aanguita.jtcpserver.clientserver.server.ServerModule;
+import org.aanguita.jtcpserver.communication.CommError;
+import org.aanguita.jtcpserver.communication.CommunicationConfig;
+import org.aanguita.jtcpserver.communication.EventLoopGroup;
+import org.aanguita.jtcpserver.concurrency.ThreadMode;
+import org.aanguita.jacuzzi.network.IP4Port;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection scaling benchmark. A ServerModule is opened with the requested thread mode (platform or virtual threads,
+ * or the event loop transport), and the given number of connections is established from a single selector-driven
+ * client thread (so the client side does not need one thread per connection). Idle connections only connect; active
+ * connections send a small byte array message every period, which the server echoes. The pooled mode uses the event
+ * loop transport plus a shared worker executor (twice as many threads as processors) for the ChannelModules, instead
+ * of their dedicated threads.
+ * <p/>
+ * Reported figures: connection time, live platform threads, used heap, resident set size, context switches of the
+ * process during the measure (Linux only) and echoed messages per second.
+ * <p/>
+ * Usage: ConnectionScalingBenchmark [platform|virtual|eventloop|pooled] [connections] [idle|active] [seconds]
+ * <p/>
+ * Virtual threads require a Java 21 runtime. Connections are spread over several loopback addresses (127.0.0.x),
+ * 20000 per address, to avoid running out of ephemeral ports. Large runs need a high open files limit (ulimit -n).
+ */
+public class ConnectionScalingBenchmark {
+
+    private static final int CONNECTIONS_PER_LOCAL_ADDRESS = 20000;
+
+    private static final long ACTIVE_PERIOD_MILLIS = 1000;
+
+    private static final int PAYLOAD_SIZE = 8;
+
+    private static final AtomicLong serverMessages = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "platform";
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        boolean active = args.length > 2 && args[2].equals("active");
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        CommunicationConfig communicationConfig = new CommunicationConfig();
+        EventLoopGroup eventLoopGroup = null;
+        ExecutorService workerPool = null;
+        if (mode.equals("virtual")) {
+            communicationConfig.setThreadMode(ThreadMode.VIRTUAL);
+        } else if (mode.equals("eventloop") || mode.equals("pooled")) {
+            eventLoopGroup = new EventLoopGroup("benchmark");
+            communicationConfig.setEventLoopGroup(eventLoopGroup);
+        }
+        if (mode.equals("pooled")) {
+            workerPool = Executors.newFixedThreadPool(2 * Runtime.getRuntime().availableProcessors());
+            communicationConfig.setWorkerExecutor(workerPool);
+        }
+        Set<Set<Byte>> concurrentChannels = new HashSet<>();
+        Set<Byte> channels = new HashSet<>();
+        channels.add((byte) 0);
+        concurrentChannels.add(channels);
+
+        ServerModule serverModule = new ServerModule(0, new EchoServerAction(), concurrentChannels, communicationConfig);
+        serverModule.startListeningConnections();
+        int port = serverModule.getActualListeningPort();
+        System.out.println("Mode: " + mode + ", connections: " + connections + ", " + (active ? "active" : "idle"));
+
+        long start = System.currentTimeMillis();
+        Selector selector = Selector.open();
+        List<SocketChannel> clients = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            SocketChannel socketChannel = SocketChannel.open();
+            socketChannel.bind(new InetSocketAddress("127.0.0." + (1 + i / CONNECTIONS_PER_LOCAL_ADDRESS), 0));
+            socketChannel.connect(new InetSocketAddress("127.0.0.1", port));
+            socketChannel.configureBlocking(false);
+            socketChannel.register(selector, SelectionKey.OP_READ);
+            clients.add(socketChannel);
+        }
+        while (serverModule.getConnectedClientsCount() < connections) {
+            Thread.sleep(10);
+        }
+        System.out.println("Connected in " + (System.currentTimeMillis() - start) + " ms");
+        printResources();
+
+        // byte array frame: one length byte, the channel byte and the payload
+        ByteBuffer frame = ByteBuffer.allocate(2 + PAYLOAD_SIZE);
+        frame.put((byte) (1 + PAYLOAD_SIZE)).put((byte) 0);
+        ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+        long echoedBytes = 0;
+        long contextSwitchesBefore = contextSwitches();
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        long nextSend = 0;
+        while (System.currentTimeMillis() < end) {
+            if (active && System.currentTimeMillis() >= nextSend) {
+                for (SocketChannel client : clients) {
+                    frame.rewind();
+                    client.write(frame);
+                }
+                nextSend = System.currentTimeMillis() + ACTIVE_PERIOD_MILLIS;
+            }
+            selector.select(100);
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                readBuffer.clear();
+                int read = ((SocketChannel) key.channel()).read(readBuffer);
+                if (read > 0) {
+                    echoedBytes += read;
+                }
+            }
+        }
+        System.out.println("Messages handled by the server: " + serverMessages.get() + " (" + (serverMessages.get() / seconds) + "/s)");
+        System.out.println("Echoed messages received: " + (echoedBytes / frame.capacity()));
+        long contextSwitches = contextSwitches() - contextSwitchesBefore;
+        System.out.println("Context switches of live threads: " + (contextSwitches >= 0 ? contextSwitches + " (" + (contextSwitches / seconds) + "/s)" : "n/a"));
+        printResources();
+
+        for (SocketChannel client : clients) {
+            closeQuietly(client);
+        }
+        selector.close();
+        serverModule.stopAndDisconnect();
+        if (eventLoopGroup != null) {
+            eventLoopGroup.shutdown();
+        }
+        if (workerPool != null) {
+            workerPool.shutdown();
+        }
+        System.exit(0);
+    }
+
+    private static void printResources() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long rss = statusValue(new File("/proc/self/status"), "VmRSS:");
+        System.out.println("Live platform threads: " + ManagementFactory.getThreadMXBean().getThreadCount() +
+                ", used heap: " + (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024) + " MB" +
+                ", RSS: " + (rss >= 0 ? (rss / 1024) + " MB" : "n/a"));
+    }
+
+    /**
+     * Voluntary plus involuntary context switches of all live threads of the process (Linux only)
+     *
+     * @return the number of context switches, or -1 if not available
+     */
+    private static long contextSwitches() {
+        File[] tasks = new File("/proc/self/task").listFiles();
+        if (tasks == null) {
+            return -1L;
+        }
+        long total = 0L;
+        for (File task : tasks) {
+            File status = new File(task, "status");
+            long voluntary = statusValue(status, "voluntary_ctxt_switches:");
+            long involuntary = statusValue(status, "nonvoluntary_ctxt_switches:");
+            // threads may terminate while iterating
+            if (voluntary >= 0 && involuntary >= 0) {
+                total += voluntary + involuntary;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Reads a numeric field of a /proc status file (in kB for memory fields)
+     *
+     * @return the value of the field, or -1 if not available
+     */
+    private static long statusValue(File status, String field) {
+        try {
+            for (String line : Files.readAllLines(status.toPath(), StandardCharsets.US_ASCII)) {
+                if (line.startsWith(field)) {
+                    return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not available
+        }
+        return -1L;
+    }
+
+    private static void closeQuietly(SocketChannel socketChannel) {
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private static class EchoServerAction implements ServerAction {
+
+        @Override
+        public void newClientConnection(String clientID, ChannelConnectionPoint ccp, IP4Port ip4Port) {
+        }
+
+        @Override
+        public void newMessage(String clientID, ChannelConnectionPoint ccp, byte channel, Object message) {
+        }
+
+        @Override
+        public void newMessage(String clientID, ChannelConnectionPoint ccp, byte channel, byte[] data) {
+            serverMessages.incrementAndGet();
+            ccp.write(channel, data);
+        }
+
+        @Override
+        public void channelFreed(String clientID, ChannelConnectionPoint ccp, byte channel) {
+        }
+
+        @Override
+        public void clientDisconnected(String clientID, ChannelConnectionPoint ccp, boolean expected) {
+        }
+
+        @Override
+        public void clientError(String clientID, ChannelConnectionPoint ccp, CommError e) {
+            System.out.println("Client error: " + e);
+        }
+
+        @Override
+        public void newConnectionError(Exception e, IP4Port ip4Port) {
+            e.printStackTrace();
+        }
+
+        @Override
+        public void TCPServerError(Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
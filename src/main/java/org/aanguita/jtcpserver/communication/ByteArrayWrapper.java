@@ -9,10 +9,20 @@ package org.aanguita.jtcpserver.communication;
  */
 public class ByteArrayWrapper {
 
+    /**
+     * First byte of the received array, if the CommunicationModule uses prefixed byte arrays (0 otherwise)
+     */
+    private final byte prefix;
+
+    /**
+     * Session to which the array is bound, or CommunicationModule.NO_SESSION
+     */
+    private final int session;
+
     /**
      * The stored bytes
      */
-    private byte[] data;
+    private final byte[] data;
 
     /**
      * Class constructor
@@ -20,9 +30,51 @@ public class ByteArrayWrapper {
      * @param data the bytes to store
      */
     ByteArrayWrapper(byte[] data) {
+        this((byte) 0, data);
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param prefix first byte of the received array
+     * @param data   the rest of the bytes
+     */
+    ByteArrayWrapper(byte prefix, byte[] data) {
+        this(prefix, CommunicationModule.NO_SESSION, data);
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param prefix  first byte of the received array
+     * @param session session to which the array is bound
+     * @param data    the rest of the bytes
+     */
+    ByteArrayWrapper(byte prefix, int session, byte[] data) {
+        this.prefix = prefix;
+        this.session = session;
         this.data = data;
     }
 
+    /**
+     * Retrieves the first byte of the received array, when the CommunicationModule was created for prefixed byte
+     * arrays (in that case, it is not included in the data)
+     *
+     * @return the prefix of the array, or 0 if the module does not use prefixed byte arrays
+     */
+    public byte getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Retrieves the session to which the array is bound (see CommunicationModule.write(byte, int, byte[], boolean))
+     *
+     * @return the session of the array, or CommunicationModule.NO_SESSION if it is not bound to a session
+     */
+    public int getSession() {
+        return session;
+    }
+
     /**
      * Retrieves the bytes stored in this ByteArrayWrapper
      *
@@ -1,5 +1,7 @@
 package org.aanguita.jtcpserver.communication;
 
+import java.io.IOException;
+
 /**
  * Different communication error types
  */
@@ -10,7 +12,9 @@ public class CommError {
         CLASS_CANNOT_BE_SERIALIZED("Unable to serialize a class when writing"),
         UNKNOWN_CLASS_RECEIVED("An unknown class was received"),
         IO_CHANNEL_FAILED_WRITING("IO channel failed when writing"),
-        IO_CHANNEL_FAILED_READING("IO channel failed when reading");
+        IO_CHANNEL_FAILED_READING("IO channel failed when reading"),
+        FRAME_TOO_LARGE("A received frame exceeded the maximum frame size"),
+        IDLE_TIMEOUT("The connection was idle for too long");
 //        IO_CHANNEL_FAILED_DISCONNECTING("IO channel failed when disconnecting");
 
         String str;
@@ -32,6 +36,16 @@ public class CommError {
         this.e = e;
     }
 
+    /**
+     * Creates the error for a failed read (FRAME_TOO_LARGE if an oversized frame was rejected)
+     *
+     * @param e exception raised while reading
+     * @return the error to notify
+     */
+    static CommError readingFailed(IOException e) {
+        return new CommError(e instanceof FrameTooLargeException ? Type.FRAME_TOO_LARGE : Type.IO_CHANNEL_FAILED_READING, e);
+    }
+
     public Type getType() {
         return type;
     }
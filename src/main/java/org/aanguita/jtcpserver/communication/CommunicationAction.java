@@ -0,0 +1,40 @@
+package org.aanguita.jtcpserver.communication;
+
+/**
+ * This interface allows a client of the CommunicationModule to have incoming messages pushed to it, instead of
+ * pulling them with the read method. It is used by upper layers (e.g. the ChannelModule), so they do not need an
+ * additional thread for reading messages.
+ * <p/>
+ * Concurrency-related considerations:
+ * - All invocations are performed by the same thread, in order of arrival of the messages. Depending on the
+ * transport, this is the reader thread of the CommunicationModule or one of the threads of an EventLoopGroup. In the
+ * latter case the thread is shared with other connections, so implementations must not block or write to the
+ * CommunicationModule inside these methods (suspendReading should be used to apply backpressure instead).
+ * - The stopped method is invoked only once, after the last message has been delivered
+ * - writabilityChanged is invoked by the writing thread or the writer whose activity crosses a water mark of the
+ * outbound queue, while holding the lock of that queue. It must return quickly and must not write
+ */
+public interface CommunicationAction {
+
+    /**
+     * A new message has been received
+     *
+     * @param message the received message. Byte arrays are received as ByteArrayWrapper objects
+     */
+    void newMessage(Object message);
+
+    /**
+     * The CommunicationModule stopped reading messages, either due to a disconnection or an error. The isError and
+     * getError methods of the CommunicationModule tell the reason
+     */
+    void stopped();
+
+    /**
+     * The outbound queue of the CommunicationModule went above the high water mark (the connection is no longer
+     * writable) or back below the low water mark (it is writable again). By default, it is ignored
+     *
+     * @param writable true if the connection became writable, false if it became unwritable
+     */
+    default void writabilityChanged(boolean writable) {
+    }
+}
@@ -0,0 +1,463 @@
+package org.aanguita.jtcpserver.communication;
+
+import org.aanguita.jtcpserver.communication.codec.Codec;
+import org.aanguita.jtcpserver.communication.codec.JavaSerializationCodec;
+import org.aanguita.jtcpserver.concurrency.HashedTimerWheel;
+import org.aanguita.jtcpserver.concurrency.ThreadMode;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Transport settings for CommunicationModules. The same configuration object can be shared by all the modules of a
+ * server. A default configuration (created with the empty constructor) reproduces the classic transport: one reader
+ * thread per connection, blocking on the socket streams.
+ */
+public class CommunicationConfig {
+
+    /**
+     * Event loops used for multiplexing the connections (null for using one reader thread per connection)
+     */
+    private EventLoopGroup eventLoopGroup;
+
+    /**
+     * Kind of threads created for reading, dispatching and handling messages
+     */
+    private ThreadMode threadMode;
+
+    /**
+     * Codec for object messages
+     */
+    private Codec codec;
+
+    /**
+     * The outbound queue of a connection is reported as writable again when its size falls below this value (bytes)
+     */
+    private int writeBufferLowWaterMark;
+
+    /**
+     * The outbound queue of a connection is reported as not writable when its size exceeds this value (bytes)
+     */
+    private int writeBufferHighWaterMark;
+
+    /**
+     * Maximum size of the outbound queue of a connection (bytes). Asynchronous writes beyond this limit fail
+     */
+    private long outboundQueueLimit;
+
+    /**
+     * Policy applied to offered frames (e.g. server broadcasts) when a connection falls behind. Null for treating them
+     * as any other asynchronous write
+     */
+    private SlowConsumerPolicy slowConsumerPolicy;
+
+    /**
+     * Executor shared by the ChannelModules for handling their incoming messages and invoking their actions (null for
+     * using dedicated threads in each module)
+     */
+    private Executor workerExecutor;
+
+    /**
+     * Whether ChannelModules propose the compact channel wire format to the other point
+     */
+    private boolean compactChannelFormat;
+
+    /**
+     * Maximum bytes of a message carried by each fragment, for ChannelModules that agreed on the fragmentation of big
+     * messages (0 for not fragmenting messages)
+     */
+    private int fragmentSize;
+
+    /**
+     * Maximum length of received frames and fragmented messages (bytes), which also bounds the fragmented messages
+     * being received at a time. Bigger ones are rejected without allocating them, and the connection is closed
+     */
+    private int maxFrameSize;
+
+    /**
+     * Size of the chunks in which ChannelModule streams are sent (bytes)
+     */
+    private int streamChunkSize;
+
+    /**
+     * Messages that the other point can send through each channel of a ChannelModule before being granted more
+     * (0 for no flow control of channels)
+     */
+    private int channelCreditWindow;
+
+    /**
+     * Time that the RPC calls of ChannelModules wait for their response by default (millis, 0 for no timeout)
+     */
+    private long rpcTimeoutMillis;
+
+    /**
+     * Timer wheel on which the timeouts of the modules run
+     */
+    private HashedTimerWheel timerWheel;
+
+    /**
+     * Time between the heartbeat pings of ChannelModules (millis, 0 for no heartbeats)
+     */
+    private long heartbeatIntervalMillis;
+
+    /**
+     * Time without reading anything after which a connection is closed (millis, 0 for no read idle timeout)
+     */
+    private long readIdleTimeoutMillis;
+
+    /**
+     * Time without writing anything after which a connection is closed (millis, 0 for no write idle timeout)
+     */
+    private long writeIdleTimeoutMillis;
+
+    /**
+     * Creates a default configuration
+     */
+    public CommunicationConfig() {
+        eventLoopGroup = null;
+        threadMode = ThreadMode.PLATFORM;
+        codec = new JavaSerializationCodec();
+        writeBufferLowWaterMark = 32 * 1024;
+        writeBufferHighWaterMark = 64 * 1024;
+        outboundQueueLimit = 64L * 1024 * 1024;
+        slowConsumerPolicy = null;
+        workerExecutor = null;
+        compactChannelFormat = false;
+        fragmentSize = 0;
+        maxFrameSize = 64 * 1024 * 1024;
+        streamChunkSize = 64 * 1024;
+        channelCreditWindow = 0;
+        rpcTimeoutMillis = 30000L;
+        timerWheel = HashedTimerWheel.getDefault();
+        heartbeatIntervalMillis = 0L;
+        readIdleTimeoutMillis = 0L;
+        writeIdleTimeoutMillis = 0L;
+    }
+
+    public EventLoopGroup getEventLoopGroup() {
+        return eventLoopGroup;
+    }
+
+    /**
+     * Sets the event loops employed for reading from the connections. Only connections whose sockets are created from
+     * a SocketChannel (see TCPClient.connectChannel and the TCPServer socket channel mode) can be multiplexed
+     *
+     * @param eventLoopGroup event loops for multiplexing the connections, or null for using one reader thread per
+     *                       connection
+     */
+    public void setEventLoopGroup(EventLoopGroup eventLoopGroup) {
+        this.eventLoopGroup = eventLoopGroup;
+    }
+
+    /**
+     * Says whether this configuration uses the selector-based transport
+     *
+     * @return true if an event loop group is set
+     */
+    public boolean isEventLoopTransport() {
+        return eventLoopGroup != null;
+    }
+
+    public ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    /**
+     * Sets the kind of threads created by the modules using this configuration (reader threads of CommunicationModules,
+     * channel set threads and action executors of ChannelModules, listening threads of servers). With virtual threads,
+     * the thread-per-connection transport no longer pins one platform thread per connection
+     *
+     * @param threadMode kind of threads to create
+     */
+    public void setThreadMode(ThreadMode threadMode) {
+        this.threadMode = threadMode;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Sets the codec for encoding and decoding object messages. Both points of a connection must use equivalent
+     * codecs. By default, standard Java serialization is used (a JavaSerializationCodec)
+     *
+     * @param codec codec for object messages
+     */
+    public void setCodec(Codec codec) {
+        this.codec = codec;
+    }
+
+    public int getWriteBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    public int getWriteBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    /**
+     * Sets the water marks of the outbound queues (see CommunicationModule.writeAsync). Defaults are 32KB and 64KB
+     *
+     * @param lowWaterMark  size (bytes) below which an unwritable connection becomes writable again
+     * @param highWaterMark size (bytes) above which a connection becomes unwritable
+     * @throws IllegalArgumentException if the low water mark is negative or greater than the high water mark
+     */
+    public void setWriteBufferWaterMarks(int lowWaterMark, int highWaterMark) throws IllegalArgumentException {
+        if (lowWaterMark < 0 || lowWaterMark > highWaterMark) {
+            throw new IllegalArgumentException("Invalid water marks: " + lowWaterMark + ", " + highWaterMark);
+        }
+        this.writeBufferLowWaterMark = lowWaterMark;
+        this.writeBufferHighWaterMark = highWaterMark;
+    }
+
+    public long getOutboundQueueLimit() {
+        return outboundQueueLimit;
+    }
+
+    /**
+     * Sets the maximum size of the outbound queues. Asynchronous writes and offered frames that do not fit are
+     * discarded, and their futures fail with an OutboundQueueFullException. Default is 64MB
+     *
+     * @param outboundQueueLimit maximum bytes queued for writing in a connection
+     */
+    public void setOutboundQueueLimit(long outboundQueueLimit) {
+        this.outboundQueueLimit = outboundQueueLimit;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * Sets the slow consumer policy of the connections (see CommunicationModule.offer). It can be changed later for
+     * each connection. Default is null (no policy)
+     *
+     * @param slowConsumerPolicy the policy for new connections
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    public Executor getWorkerExecutor() {
+        return workerExecutor;
+    }
+
+    /**
+     * Sets an executor shared by all the ChannelModules (and thus all the clients of a ServerModule) using this
+     * configuration. Instead of one thread per concurrent channel set plus one thread for the actions, each module
+     * then uses lightweight serial queues on top of this executor, which keep the messages of each channel set, and
+     * the actions of each module, in order. The executor is not shut down by the modules. A fixed size pool (e.g.
+     * Executors.newFixedThreadPool) is the typical choice. Default is null (dedicated threads)
+     *
+     * @param workerExecutor the shared executor, or null for dedicated threads
+     */
+    public void setWorkerExecutor(Executor workerExecutor) {
+        this.workerExecutor = workerExecutor;
+    }
+
+    public boolean isCompactChannelFormat() {
+        return compactChannelFormat;
+    }
+
+    /**
+     * Sets whether ChannelModules propose the compact channel wire format when they are started. In the legacy format,
+     * object messages are encoded together with their channel as a ChannelMessage. In the compact format, the channel
+     * travels in the frame header and the message is encoded alone, which saves the wrapper (tens of bytes per
+     * message with Java serialization) and one level of encoding and decoding.
+     * <p/>
+     * The proposal is a handshake message sent through channel 255. Only modules with this setting enabled answer it,
+     * so both points must enable it, and each point switches to the compact format once it knows that the other
+     * supports it. Points with this setting disabled, or running older versions of this library, do not answer, and
+     * keep receiving the legacy format (but they get the handshake as a byte array message in channel 255, if they
+     * use that channel). With this setting enabled, channel 255 is reserved for the handshake, and cannot be among the
+     * concurrent channels of the modules (see ChannelModule.checkConcurrentChannels).
+     * <p/>
+     * This setting only changes the wire format. Fragmentation (setFragmentSize) and flow control
+     * (setChannelCreditWindow) are negotiated in the same handshake, but each is off until configured. Default is false
+     *
+     * @param compactChannelFormat true for proposing the compact format
+     */
+    public void setCompactChannelFormat(boolean compactChannelFormat) {
+        this.compactChannelFormat = compactChannelFormat;
+    }
+
+    public int getFragmentSize() {
+        return fragmentSize;
+    }
+
+    /**
+     * Sets the size of the fragments in which ChannelModules send their big messages (see
+     * CommunicationModule.setFragmentSize). Fragmentation is only used when both points support it, which they tell in
+     * the compact format handshake (see setCompactChannelFormat). Default is 0 (big messages are not fragmented). 64KB
+     * is a reasonable size
+     *
+     * @param fragmentSize maximum bytes of a message per fragment, or 0 for not fragmenting messages
+     * @throws IllegalArgumentException if the size is negative
+     */
+    public void setFragmentSize(int fragmentSize) throws IllegalArgumentException {
+        if (fragmentSize < 0) {
+            throw new IllegalArgumentException("Invalid fragment size: " + fragmentSize);
+        }
+        this.fragmentSize = fragmentSize;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Sets the maximum length of the frames received by the connections using this configuration (the whole message,
+     * for fragmented messages). A frame announcing a bigger length is rejected before allocating anything for it, and
+     * the connection is closed with a FRAME_TOO_LARGE error. Sharing the configuration of a server thus bounds the
+     * memory that any client can make it allocate for one message. The fragmented messages being received at a time
+     * (see setFragmentSize) can not add up to more than this size either. Bigger data can still be sent as a stream (see
+     * ChannelConnectionPoint.openStream), whose chunks are checked one by one. Default is 64MB
+     *
+     * @param maxFrameSize maximum length of received frames (bytes)
+     * @throws IllegalArgumentException if the size is not positive
+     */
+    public void setMaxFrameSize(int maxFrameSize) throws IllegalArgumentException {
+        if (maxFrameSize <= 0) {
+            throw new IllegalArgumentException("Invalid maximum frame size: " + maxFrameSize);
+        }
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    public int getStreamChunkSize() {
+        return streamChunkSize;
+    }
+
+    /**
+     * Sets the size of the chunks in which the streams of ChannelModules are sent (see
+     * ChannelConnectionPoint.openStream). It should not exceed the maximum frame size of the other point. Default is
+     * 64KB
+     *
+     * @param streamChunkSize size of the stream chunks (bytes)
+     * @throws IllegalArgumentException if the size is not positive
+     */
+    public void setStreamChunkSize(int streamChunkSize) throws IllegalArgumentException {
+        if (streamChunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid stream chunk size: " + streamChunkSize);
+        }
+        this.streamChunkSize = streamChunkSize;
+    }
+
+    public int getChannelCreditWindow() {
+        return channelCreditWindow;
+    }
+
+    /**
+     * Sets the credit window of the channels of ChannelModules. Each channel lets the other point send this amount of
+     * messages in advance, and grants it more as the messages are consumed, so a channel set whose messages are not
+     * consumed (e.g. paused) only stops the writers of its own channels, instead of the reading of the whole
+     * connection. It is applied if both points support it, which they tell in the compact format handshake (see
+     * setCompactChannelFormat). Default is 0 (no flow control). 32 messages is a reasonable window
+     *
+     * @param channelCreditWindow messages per channel, or 0 for disabling the flow control of channels
+     * @throws IllegalArgumentException if the window is negative
+     */
+    public void setChannelCreditWindow(int channelCreditWindow) throws IllegalArgumentException {
+        if (channelCreditWindow < 0) {
+            throw new IllegalArgumentException("Invalid channel credit window: " + channelCreditWindow);
+        }
+        this.channelCreditWindow = channelCreditWindow;
+    }
+
+    public long getRpcTimeoutMillis() {
+        return rpcTimeoutMillis;
+    }
+
+    /**
+     * Sets the time that the RPC calls of ChannelModules wait for their response when no timeout is given (see
+     * ChannelConnectionPoint.call). Calls not answered in time fail with a TimeoutException. Default is 30 seconds
+     *
+     * @param rpcTimeoutMillis the default timeout (millis), or 0 for waiting indefinitely
+     * @throws IllegalArgumentException if the timeout is negative
+     */
+    public void setRpcTimeoutMillis(long rpcTimeoutMillis) throws IllegalArgumentException {
+        if (rpcTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Invalid RPC timeout: " + rpcTimeoutMillis);
+        }
+        this.rpcTimeoutMillis = rpcTimeoutMillis;
+    }
+
+    public HashedTimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
+    /**
+     * Sets the timer wheel on which the timeouts of the modules run (timed channel FSMs, RPC calls, heartbeats and
+     * idle timeouts). Its tick is the precision of these timeouts. Default is the wheel shared by the whole library
+     * (HashedTimerWheel.getDefault), with a tick of 10 millis
+     *
+     * @param timerWheel the timer wheel
+     * @throws IllegalArgumentException if the timer wheel is null
+     */
+    public void setTimerWheel(HashedTimerWheel timerWheel) throws IllegalArgumentException {
+        if (timerWheel == null) {
+            throw new IllegalArgumentException("Invalid timer wheel: null");
+        }
+        this.timerWheel = timerWheel;
+    }
+
+    public long getHeartbeatIntervalMillis() {
+        return heartbeatIntervalMillis;
+    }
+
+    /**
+     * Sets the interval of the heartbeats of ChannelModules. Each connection sends a ping to the other point with
+     * this period, and the other point answers it with a pong. Heartbeats are handled by the CommunicationModules and
+     * never reach the channel actions. They keep the connection from being idle, let the read idle timeout detect
+     * peers that silently vanished (setReadIdleTimeoutMillis), and give an estimate of the round trip time of the
+     * connection (ChannelConnectionPoint.getRoundTripTimeNanos). They are only sent if both points agree on it in the
+     * format handshake (see setCompactChannelFormat). Default is 0 (no heartbeats)
+     *
+     * @param heartbeatIntervalMillis time between pings (millis), or 0 for no heartbeats
+     * @throws IllegalArgumentException if the interval is negative
+     */
+    public void setHeartbeatIntervalMillis(long heartbeatIntervalMillis) throws IllegalArgumentException {
+        if (heartbeatIntervalMillis < 0) {
+            throw new IllegalArgumentException("Invalid heartbeat interval: " + heartbeatIntervalMillis);
+        }
+        this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+    }
+
+    public long getReadIdleTimeoutMillis() {
+        return readIdleTimeoutMillis;
+    }
+
+    /**
+     * Sets the read idle timeout of the connections. A connection from which nothing (heartbeats included) is read
+     * during this time is closed with an IDLE_TIMEOUT error, so servers evict their dead or idle clients through the
+     * usual error notification. With heartbeats, it should span several heartbeat intervals, and a connection is only
+     * closed if the other point is gone or stuck. Time while the reading of the connection is suspended does not
+     * count. Default is 0 (no timeout)
+     *
+     * @param readIdleTimeoutMillis the read idle timeout (millis), or 0 for no timeout
+     * @throws IllegalArgumentException if the timeout is negative
+     */
+    public void setReadIdleTimeoutMillis(long readIdleTimeoutMillis) throws IllegalArgumentException {
+        if (readIdleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Invalid read idle timeout: " + readIdleTimeoutMillis);
+        }
+        this.readIdleTimeoutMillis = readIdleTimeoutMillis;
+    }
+
+    public long getWriteIdleTimeoutMillis() {
+        return writeIdleTimeoutMillis;
+    }
+
+    /**
+     * Sets the write idle timeout of the connections. A connection to which nothing is written during this time is
+     * closed with an IDLE_TIMEOUT error. With heartbeats (which are written like any other frame), this only happens
+     * if the other point stopped reading and the outbound queue cannot be written. Default is 0 (no timeout)
+     *
+     * @param writeIdleTimeoutMillis the write idle timeout (millis), or 0 for no timeout
+     * @throws IllegalArgumentException if the timeout is negative
+     */
+    public void setWriteIdleTimeoutMillis(long writeIdleTimeoutMillis) throws IllegalArgumentException {
+        if (writeIdleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Invalid write idle timeout: " + writeIdleTimeoutMillis);
+        }
+        this.writeIdleTimeoutMillis = writeIdleTimeoutMillis;
+    }
+}
@@ -1,12 +1,24 @@
 package org.aanguita.jtcpserver.communication;
 
+import org.aanguita.jtcpserver.communication.codec.Codec;
+import org.aanguita.jtcpserver.concurrency.MessageLoop;
+import org.aanguita.jtcpserver.metrics.TrafficCounters;
 import org.aanguita.jacuzzi.date_time.TimeElapsed;
-import org.aanguita.jacuzzi.io.serialization.MutableOffset;
-import org.aanguita.jacuzzi.io.serialization.Serializer;
-import org.aanguita.jacuzzi.queues.event_processing.MessageProcessor;
+import org.aanguita.jacuzzi.queues.event_processing.MessageHandler;
+import org.aanguita.jacuzzi.queues.event_processing.StopReadingMessages;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This class offers a module for point to point TCP based communications. Both objects and arrays of bytes can be sent
@@ -25,20 +37,125 @@ import java.net.Socket;
  * <p/>
  * A disconnected module cannot be again reconnected. A new module should be created to do this.
  * <p/>
+ * Two transports are available. By default, a reader thread is created for each module, blocking on the socket input
+ * stream. Alternatively, if an EventLoopGroup is given in the CommunicationConfig and the socket was created from a
+ * SocketChannel, the connection is multiplexed with many others over the event loops of the group, and no thread is
+ * created for this module. Messages can be either read with the read method, or pushed to a CommunicationAction.
+ * <p/>
+ * Upper layers that put a one byte header in front of their byte arrays (like the channel of the ChannelModule) can
+ * write the header and the data separately (write(byte, byte[], boolean)), and create the module for prefixed byte
+ * arrays, so received ByteArrayWrappers carry that byte apart from the data (getPrefix). The bytes sent are the same,
+ * but the arrays are never joined or split with additional copies.
+ * <p/>
+ * Objects can carry such a header too (write(byte, Serializable, boolean)). The prefix travels in the frame header
+ * instead of being encoded with the object, and modules created for prefixed frames return these objects inside a
+ * PrefixedObject. Only peers created for prefixed frames accept them, so upper layers must agree on their use with
+ * the other point before sending them.
+ * <p/>
+ * Frames can be assigned to lanes (0 to 255). Frames written with a prefix use the prefix as their lane, and other
+ * write methods take the lane as an optional parameter. By default all lanes share one FIFO queue, but lanes can be
+ * given a priority and a weight (setLaneScheduling), so that frames waiting for the connection are interleaved across
+ * lanes instead of being written in order of arrival (see OutboundQueue). The queueing delay of each lane is recorded
+ * (getQueueingDelay). Lanes can also be flow controlled with credits given by the other point (enableLaneCredits), so
+ * that a lane whose receiver falls behind only stops its own writers.
+ * <p/>
+ * Big messages with prefix can be sent in fragments (setFragmentSize), so they do not hold the connection while other
+ * lanes are waiting: fragments are interleaved with the frames of the other lanes, and the other point puts the
+ * messages together again. This changes the wire format, so it must only be enabled when the other point is known
+ * to accept fragments (ChannelModules agree on it in their handshake).
+ * <p/>
+ * Messages with prefix can also be bound to a session (write(byte, int, Serializable, boolean)), an int ID carried
+ * in the frame header that lets upper layers run many conversations over the same prefix. Received messages carry
+ * their session in their PrefixedObject or ByteArrayWrapper. The other point must accept fragments, since session
+ * messages use the same format (they are not split, though).
+ * <p/>
+ * Connections can be closed when nothing is read from them or written to them for a while (read and write idle
+ * timeouts of the CommunicationConfig), with an IDLE_TIMEOUT error. Modules can also exchange heartbeats
+ * (setHeartbeatInterval): pings that the other point answers with pongs, as control frames that are never delivered
+ * to the reader of the module. They keep a live connection from being idle, so a read idle timeout only expires when
+ * the other point is gone, and give an estimate of the round trip time (getRoundTripTimeNanos). Timeouts and pings
+ * run on the timer wheel of the configuration.
+ * <p/>
+ * Each module records its traffic per lane and the latencies of encoding, decoding and writing (getMetrics). Modules
+ * can aggregate their metrics in shared ones, given at construction time (see ConnectionMetrics).
+ * <p/>
  * All public methods in this class are thread-safe
  */
 public class CommunicationModule {
 
     /**
-     * Message processor for reading messages from the input stream and storing them in a queue
+     * Capacity of the queue of received messages when no CommunicationAction is used. Reading is suspended when it
+     * fills up, and resumed when it gets half empty
+     */
+    private static final int READ_QUEUE_CAPACITY = 100;
+
+    /**
+     * Maximum number of queued frames taken by the drainer at once
+     */
+    static final int DRAIN_BATCH_SIZE = 64;
+
+    /**
+     * Lane of the frames written without lane
+     */
+    public static final int DEFAULT_LANE = OutboundQueue.DEFAULT_LANE;
+
+    /**
+     * Session of received messages not bound to a session
+     */
+    public static final int NO_SESSION = FrameEncoder.NO_SESSION;
+
+    /**
+     * Message loop for reading messages from the input stream and storing them in a queue (or handing them to the
+     * communication action). Null if the event loop transport is used
+     */
+    private final MessageLoop messageLoop;
+
+    /**
+     * Connection handled by an event loop. Null if the thread-per-connection transport is used
+     */
+    private final NioConnection nioConnection;
+
+    /**
+     * Receiver of the incoming messages. If null, messages are stored until retrieved with the read method
+     */
+    private final CommunicationAction communicationAction;
+
+    /**
+     * Received messages, when no communication action is used (null otherwise)
+     */
+    private final BlockingQueue<Object> incomingQueue;
+
+    /**
+     * Lock for the suspension of reading (the monitor of this object is not used, since it is held by writers)
      */
-    private MessageProcessor messageProcessor;
+    private final Object readingLock;
+
+    /**
+     * Whether the delivery of incoming messages is currently suspended
+     */
+    private boolean readingSuspended;
+
+    /**
+     * Set as soon as the socket is closed, so a suspended reader does not wait forever
+     */
+    private volatile boolean socketClosed;
+
+    /**
+     * Whether reading has already been started
+     */
+    private boolean started;
+
+    /**
+     * Lock for the connection state (connected, manually disconnected and error). The monitor of this object is the
+     * write lock, which is held during socket writes, so it is not used for the state
+     */
+    private final Object stateLock;
 
     /**
      * Whether this CommunicationModule is currently connected or not. Initially, it is true (connection is established
      * at construction time)
      */
-    private boolean connected;
+    private volatile boolean connected;
 
     /**
      * Whether this comm module was manually disconnected or not
@@ -56,10 +173,78 @@ public class CommunicationModule {
     private OutputStream oos;
 
     /**
-     * Fixed size array for sending the one-byte overheads in the messages (this attribute is here for performance
-     * reasons)
+     * Encoder for outgoing frames. Header and payload are assembled in its buffer, so each message is sent with a
+     * single write (guarded by the monitor of this object)
+     */
+    private final FrameEncoder frameEncoder;
+
+    /**
+     * Codec for object messages
+     */
+    private final Codec codec;
+
+    /**
+     * Frames waiting to be written. Asynchronous writes are placed here, and synchronous writes too when the output
+     * is busy, so all frames keep their order
+     */
+    private final OutboundQueue outboundQueue;
+
+    /**
+     * Thread draining the outbound queue in the thread-per-connection transport (null with the event loop transport,
+     * where the loop drains it). The thread is only created when the queue is used
+     */
+    private final ExecutorService writerExecutor;
+
+    private final Runnable drainTask;
+
+    /**
+     * Thread running the drain task of the thread-per-connection transport (null until it first runs)
+     */
+    private volatile Thread writerThread;
+
+    /**
+     * Buffers of the frames being drained (only accessed by the drainer)
+     */
+    private ByteBuffer[] drainBuffers;
+
+    /**
+     * Buffer where small queued frames are gathered, so they are sent with a single write (only accessed by the
+     * drainer)
+     */
+    private byte[] coalescingBuffer;
+
+    /**
+     * Policy for offered frames (null if there is none)
+     */
+    private volatile SlowConsumerPolicy slowConsumerPolicy;
+
+    /**
+     * Maximum bytes of a message with prefix carried by each fragment (0 if messages are not fragmented)
+     */
+    private volatile int fragmentSize;
+
+    /**
+     * Whether the first byte of received byte arrays is delivered as a prefix, apart from the data, and objects with
+     * prefix are accepted
+     */
+    private final boolean prefixedFrames;
+
+    /**
+     * Maximum length of the payload of received frames and fragmented messages
+     */
+    private final int maxFrameSize;
+
+    /**
+     * Heartbeats and idle timeouts of the connection
+     */
+    private final IdleMonitor idleMonitor;
+
+    /**
+     * Metrics of this module, and their traffic counters
      */
-    private byte[] oneLengthArray;
+    private final ConnectionMetrics metrics;
+
+    private final TrafficCounters traffic;
 
     /**
      * If an error has happened, this variable stores the issued error
@@ -84,63 +269,233 @@ public class CommunicationModule {
      * @throws IOException if the input and output channels cannot be correctly initialized
      */
     public CommunicationModule(String name, Socket socket) throws IOException {
+        this(name, socket, null, new CommunicationConfig());
+    }
+
+    /**
+     * Class constructor
+     * <p/>
+     * If a communication action is given, incoming messages are pushed to it instead of being stored for the read
+     * method, and reading does not begin until the start method is invoked. Otherwise, reading begins immediately
+     *
+     * @param name                name of this communication module
+     * @param socket              socket for communicating with the other point. Must be correctly initialized
+     * @param communicationAction receiver of incoming messages (null for reading them through the read method)
+     * @param config              transport configuration
+     * @throws IOException if the input and output channels cannot be correctly initialized
+     */
+    public CommunicationModule(String name, Socket socket, CommunicationAction communicationAction, CommunicationConfig config) throws IOException {
+        this(name, socket, communicationAction, config, false);
+    }
+
+    /**
+     * Class constructor, for modules whose received byte arrays start with a one byte prefix, and that accept objects
+     * sent with a prefix
+     *
+     * @param name                name of this communication module
+     * @param socket              socket for communicating with the other point. Must be correctly initialized
+     * @param communicationAction receiver of incoming messages (null for reading them through the read method)
+     * @param config              transport configuration
+     * @param prefixedFrames      true if the first byte of each received byte array must be separated from the data
+     *                            (see ByteArrayWrapper.getPrefix), and objects sent with a prefix are accepted (see
+     *                            PrefixedObject). Received arrays cannot be empty then
+     * @throws IOException if the input and output channels cannot be correctly initialized
+     */
+    public CommunicationModule(String name, Socket socket, final CommunicationAction communicationAction, CommunicationConfig config, boolean prefixedFrames) throws IOException {
+        this(name, socket, communicationAction, config, prefixedFrames, null);
+    }
+
+    /**
+     * Class constructor, for modules whose metrics are aggregated in shared ones (see
+     * CommunicationModule(String, Socket, CommunicationAction, CommunicationConfig, boolean))
+     *
+     * @param name                name of this communication module
+     * @param socket              socket for communicating with the other point. Must be correctly initialized
+     * @param communicationAction receiver of incoming messages (null for reading them through the read method)
+     * @param config              transport configuration
+     * @param prefixedFrames      true if the first byte of each received byte array must be separated from the data,
+     *                            and objects sent with a prefix are accepted
+     * @param aggregateMetrics    metrics where the metrics of this module are aggregated (null for metrics of its own
+     *                            only)
+     * @throws IOException if the input and output channels cannot be correctly initialized
+     */
+    public CommunicationModule(String name, Socket socket, final CommunicationAction communicationAction, CommunicationConfig config, boolean prefixedFrames, ConnectionMetrics aggregateMetrics) throws IOException {
         this.socket = socket;
-        // order of these two gets cannot be modified, or it will not work
-        oos = socket.getOutputStream();
-        InputStream ois = socket.getInputStream();
-        messageProcessor = new MessageProcessor(name + "/commMod", new MessageReaderImpl(this, ois));
+        metrics = aggregateMetrics != null ? new ConnectionMetrics(aggregateMetrics) : new ConnectionMetrics();
+        traffic = metrics.getTraffic();
+        this.prefixedFrames = prefixedFrames;
+        maxFrameSize = config.getMaxFrameSize();
+        this.communicationAction = communicationAction;
+        codec = config.getCodec();
+        stateLock = new Object();
+        slowConsumerPolicy = config.getSlowConsumerPolicy();
+        outboundQueue = new OutboundQueue(config.getWriteBufferLowWaterMark(), config.getWriteBufferHighWaterMark(), config.getOutboundQueueLimit(), new OutboundQueue.WritabilityListener() {
+            @Override
+            public void writabilityChanged(boolean writable) {
+                if (communicationAction != null) {
+                    communicationAction.writabilityChanged(writable);
+                }
+            }
+        });
+        readingLock = new Object();
+        readingSuspended = false;
+        socketClosed = false;
+        idleMonitor = new IdleMonitor(this, config.getTimerWheel(), config.getReadIdleTimeoutMillis(), config.getWriteIdleTimeoutMillis());
+        if (config.isEventLoopTransport() && socket.getChannel() != null) {
+            nioConnection = new NioConnection(this, socket.getChannel(), config.getEventLoopGroup().next());
+            messageLoop = null;
+            writerExecutor = null;
+            drainTask = null;
+            oos = nioConnection.getOutputStream();
+        } else {
+            nioConnection = null;
+            // order of these two gets cannot be modified, or it will not work
+            oos = socket.getOutputStream();
+            InputStream ois = socket.getInputStream();
+            messageLoop = new MessageLoop(name + "/commMod", new MessageReaderImpl(this, ois), new MessageHandler() {
+                @Override
+                public void handleMessage(Object o) {
+                    if (o instanceof MessageBatch) {
+                        deliverBatch((MessageBatch) o);
+                    } else {
+                        deliverMessage(o);
+                    }
+                }
+
+                @Override
+                public void finalizeHandler() {
+                    // no resources to close
+                }
+            }, config.getThreadMode());
+            writerExecutor = Executors.newSingleThreadExecutor(config.getThreadMode().threadFactory(name + "/commModWriter"));
+            drainTask = new Runnable() {
+                @Override
+                public void run() {
+                    writerThread = Thread.currentThread();
+                    drainToStream();
+                }
+            };
+        }
+        incomingQueue = communicationAction == null ? new LinkedBlockingQueue<>() : null;
         this.oos.flush();
         manuallyDisconnected = false;
         connected = true;
 
-        oneLengthArray = new byte[1];
+        frameEncoder = new FrameEncoder();
         error = null;
+        started = false;
+
+        if (communicationAction == null) {
+            start();
+        }
+    }
 
-        messageProcessor.start();
+    /**
+     * Begins reading incoming messages (and the idle timeouts). Only needed if a communication action was provided at
+     * construction time. Successive invocations have no effect
+     */
+    public synchronized void start() {
+        if (!started) {
+            started = true;
+            idleMonitor.start();
+            if (nioConnection != null) {
+                nioConnection.start();
+            } else {
+                messageLoop.start();
+            }
+        }
     }
 
     /**
      * Disconnects this CommunicationModule. No communications can be performed from this moment (although already
      * stored messages can still be read)
      */
-    public synchronized void disconnect() {
-        if (connected) {
-            manuallyDisconnected = true;
-            connected = false;
+    public void disconnect() {
+        synchronized (stateLock) {
+            if (connected) {
+                manuallyDisconnected = true;
+                connected = false;
+                closeSocket();
+            }
+        }
+    }
+
+    /**
+     * Closes the socket, which makes the reader stop. With the event loop transport, the stop is notified by the loop
+     */
+    private void closeSocket() {
+        socketClosed = true;
+        closeOutbound();
+        if (nioConnection != null) {
+            nioConnection.close();
+        } else {
             try {
                 socket.close();
             } catch (IOException e) {
                 // ignore, assume that the read operation finished ok
             }
         }
+        synchronized (readingLock) {
+            readingLock.notifyAll();
+        }
+    }
+
+    /**
+     * The reader finished (disconnection or error). The communication action, if any, is notified
+     */
+    void readerStopped() {
+        notifyDisconnected();
+        if (communicationAction != null) {
+            communicationAction.stopped();
+        } else {
+            incomingQueue.add(new StopReadingMessages());
+        }
+    }
+
+    void notifyDisconnected() {
+        synchronized (stateLock) {
+            connected = false;
+        }
+        closeOutbound();
     }
 
-    synchronized void notifyDisconnected() {
-        connected = false;
+    /**
+     * Discards the frames waiting to be written (their futures fail) and stops the writer thread, if any
+     */
+    private void closeOutbound() {
+        idleMonitor.stop();
+        outboundQueue.close(new IOException("Connection closed"));
+        if (writerExecutor != null) {
+            writerExecutor.shutdown();
+        }
     }
 
-    public synchronized boolean isManuallyDisconnected() {
-        return manuallyDisconnected;
+    public boolean isManuallyDisconnected() {
+        synchronized (stateLock) {
+            return manuallyDisconnected;
+        }
     }
 
-    synchronized void notifyError(CommError commError) {
-        if (!isError()) {
-            // only the first error is registered
-            this.error = commError;
-            try {
-                socket.close();
-            } catch (IOException e) {
-                // ignore
+    void notifyError(CommError commError) {
+        synchronized (stateLock) {
+            if (!isError()) {
+                // only the first error is registered
+                this.error = commError;
+                closeSocket();
             }
         }
     }
 
-    public synchronized boolean isError() {
-        return error != null;
+    public boolean isError() {
+        synchronized (stateLock) {
+            return error != null;
+        }
     }
 
-    public synchronized CommError getError() {
-        return error;
+    public CommError getError() {
+        synchronized (stateLock) {
+            return error;
+        }
     }
 
     /**
@@ -152,192 +507,1251 @@ public class CommunicationModule {
      * @throws InterruptedException the thread waiting for a message is interrupted
      */
     public Object read() throws InterruptedException {
-        return messageProcessor.takeMessage();
-    }
-
-    public static byte[] readByteArrayFromStream(InputStream ois) throws IOException {
-        byte[] oneLengthArray = new byte[1];
-        readBytes(ois, oneLengthArray);
-        return readByteArrayFromStreamAux(ois, oneLengthArray);
+        if (incomingQueue == null) {
+            throw new IllegalStateException("Messages of this module are delivered to a CommunicationAction");
+        }
+        Object message = incomingQueue.take();
+        synchronized (readingLock) {
+            if (readingSuspended && incomingQueue.size() <= READ_QUEUE_CAPACITY / 2) {
+                resumeReading();
+            }
+        }
+        return message;
     }
 
-    public static byte[] readByteArrayFromStreamAux(InputStream ois, byte[] oneLengthArray) throws IOException {
-        int length = Serializer.deserializeByteValue(oneLengthArray, new MutableOffset()) & 0xFF;
-        if (length == 255) {
-            byte[] twoLengthArray = new byte[2];
-            readBytes(ois, twoLengthArray);
-            length = Serializer.deserializeShortValue(twoLengthArray, new MutableOffset()) & 0xFFFF;
-            if (length == 0) {
-                byte[] fourLengthArray = new byte[4];
-                readBytes(ois, fourLengthArray);
-                length = Serializer.deserializeIntValue(fourLengthArray, new MutableOffset());
+    /**
+     * Suspends the delivery of incoming messages, until resumeReading is invoked. Messages already in transit are
+     * kept, and once the receiving buffers are full the other end is slowed down by TCP flow control.
+     * <p/>
+     * This method can be safely invoked from a communication action
+     */
+    public void suspendReading() {
+        synchronized (readingLock) {
+            if (!readingSuspended) {
+                readingSuspended = true;
+                if (nioConnection != null) {
+                    nioConnection.suspendReading();
+                }
             }
         }
-        byte[] data = new byte[length];
-        readBytes(ois, data);
-        return data;
     }
 
     /**
-     * Reads a series of bytes from the input stream and stores them in a byte array. The number of bytes read
-     * corresponds to the length of the passed array
-     *
-     * @param array where the bytes will be stored
-     * @throws IOException problems reading from the stream
+     * Resumes the delivery of incoming messages
      */
-    static void readBytes(InputStream ois, byte[] array) throws IOException {
-        int bytesRead = 0;
-        try {
-            while (bytesRead < array.length) {
-                int length = ois.read(array, bytesRead, array.length - bytesRead);
-                if (length < 0) {
-                    // socket closed
-                    throw new IOException();
+    public void resumeReading() {
+        synchronized (readingLock) {
+            if (readingSuspended) {
+                readingSuspended = false;
+                if (nioConnection != null) {
+                    nioConnection.resumeReading();
                 } else {
-                    bytesRead += length;
+                    readingLock.notifyAll();
                 }
             }
-        } catch (IndexOutOfBoundsException e) {
-            // we did not get all expected bytes -> generate an IOException to cover this issue
-            throw new IOException(e.getMessage());
         }
     }
 
+    boolean isReadingSuspended() {
+        synchronized (readingLock) {
+            return readingSuspended;
+        }
+    }
 
     /**
-     * Writes an object message to the other point. An overhead of 1 bytes is added to the message size.
-     * <p/>
-     * If this CommunicationModule is disconnected, the message is ignored
+     * Blocks the reader thread while reading is suspended (thread-per-connection transport only)
      *
-     * @param message the object to send
+     * @throws InterruptedException if the reader thread is interrupted
      */
-    public synchronized long write(Serializable message) {
-        return write(message, true);
+    void awaitReadingAllowed() throws InterruptedException {
+        synchronized (readingLock) {
+            while (readingSuspended && !socketClosed) {
+                readingLock.wait();
+            }
+        }
     }
 
-    public synchronized long write(Serializable message, boolean flush) {
-        CommError commError = null;
-        long time = 0L;
-        if (connected) {
+    /**
+     * A complete frame was received by the event loop transport. It is decoded and delivered
+     *
+     * @param frameDecoder the decoder that received the frame
+     */
+    void frameReceived(FrameDecoder frameDecoder) {
+        Object message;
+        if (frameDecoder.isControlFrame()) {
+            controlFrameReceived(frameDecoder.getControlType(), frameDecoder.getControlValue());
+            return;
+        }
+        messageReceived(frameDecoder);
+        if (frameDecoder.isObjectFrame()) {
             try {
-                // one byte containing a zero is sent before the object, to tell the other point that he must read an object
-                commError = writeOneLengthArray((byte) 0);
-                if (commError == null) {
-                    TimeElapsed timeElapsed = new TimeElapsed();
-                    byte[] encodedObject = Serializer.serializeObject(message);
-                    oos.write(encodedObject);
-                    if (flush) {
-                        oos.flush();
-                    }
-                    time = timeElapsed.measureTime();
+                message = decodeObject(frameDecoder.getPayload());
+                if (frameDecoder.hasPrefix()) {
+                    message = new PrefixedObject(frameDecoder.getPrefix(), frameDecoder.getSession(), message);
                 }
-            } catch (InvalidClassException e) {
-                commError = new CommError(CommError.Type.CLASS_CANNOT_BE_SERIALIZED, e);
-            } catch (NotSerializableException e) {
-                commError = new CommError(CommError.Type.WRITE_NON_SERIALIZABLE_OBJECT, e);
+            } catch (ClassNotFoundException e) {
+                notifyError(new CommError(CommError.Type.UNKNOWN_CLASS_RECEIVED, e));
+                return;
             } catch (IOException e) {
-                commError = new CommError(CommError.Type.IO_CHANNEL_FAILED_WRITING, e);
+                notifyError(new CommError(CommError.Type.IO_CHANNEL_FAILED_READING, e));
+                return;
             }
+        } else if (frameDecoder.isStreamChunk()) {
+            message = new StreamChunk(frameDecoder.getPrefix(), frameDecoder.getPayload(), frameDecoder.isStreamEnd());
+        } else {
+            message = new ByteArrayWrapper(frameDecoder.getPrefix(), frameDecoder.getSession(), frameDecoder.getPayload());
         }
-        if (commError != null) {
-            notifyError(commError);
-        }
-        return time;
+        deliverMessage(message);
     }
 
     /**
-     * Writes an array of bytes to the other end. An overhead is added to the message size, depending on the array
-     * length.
-     * if 0 < length < 255:      overhead of 1 byte
-     * if 255 <= length < 65536: overhead of 3 bytes
-     * if length >= 65536:       overhead of 7 bytes
-     * <p/>
-     * If this CommunicationModule is disconnected, the message is ignored
+     * Counts the last frame of a decoder (not a control frame) as a received message, in the lane of its prefix
      *
-     * @param data the array of bytes to send.
+     * @param frameDecoder the decoder that received the frame
      */
-    public synchronized long write(byte[] data) {
-        return write(data, true);
+    void messageReceived(FrameDecoder frameDecoder) {
+        traffic.messageIn(frameDecoder.hasPrefix() ? frameDecoder.getPrefix() & 0xFF : DEFAULT_LANE, frameDecoder.getFrameBytes());
     }
 
-    public synchronized long write(byte[] data, boolean flush) {
-        CommError commError = null;
-        TimeElapsed timeElapsed = new TimeElapsed();
-        // the first byte sent indicates that an array of bytes is going to be sent.
-        // If the value sent is between 1 and 254, then an array of that size is sent.
-        // If the value is 255, then the next two bytes indicate the size of the array (btw 255 and 2^16 - 1)
-        // if those two bytes are zero, then the next four bytes indicate the size of the array
-        // (greater than 2^16 - 1)
-        if (connected) {
-            try {
-                writeByteArrayToStream(oos, data);
-                if (flush) {
-                    oos.flush();
-                }
-            } catch (IOException e) {
-                commError = new CommError(CommError.Type.IO_CHANNEL_FAILED_WRITING, e);
-            }
-        }
-        if (commError != null) {
-            notifyError(commError);
+    /**
+     * A control frame was received. Pings are answered with a pong carrying the same value, and pongs update the
+     * round trip time
+     *
+     * @param type  type of the control frame
+     * @param value value of the control frame
+     */
+    void controlFrameReceived(int type, long value) {
+        if (type == FrameEncoder.CONTROL_PING) {
+            sendControlFrame(FrameEncoder.CONTROL_PONG, value);
+        } else {
+            idleMonitor.pongReceived(value);
         }
-        return timeElapsed.measureTime();
     }
 
-    public synchronized long flush() {
-        CommError commError = null;
-        long time = 0L;
+    /**
+     * Queues a control frame, without blocking
+     *
+     * @param type  type of the control frame
+     * @param value value of the control frame
+     */
+    void sendControlFrame(int type, long value) {
         if (connected) {
-            try {
-                TimeElapsed timeElapsed = new TimeElapsed();
-                oos.flush();
-                time = timeElapsed.measureTime();
-            } catch (IOException e) {
-                commError = new CommError(CommError.Type.IO_CHANNEL_FAILED_WRITING, e);
-            }
-        }
-        if (commError != null) {
-            notifyError(commError);
-        }
-        return time;
-    }
-
-    public static void writeByteArrayToStream(OutputStream oos, byte[] data) throws IOException {
-        if (data.length > 0) {
-            if (data.length < 255) {
-                oos.write(Serializer.serialize((byte) data.length));
-            } else {
-                oos.write(Serializer.serialize((byte) 255));
-                if (data.length < 65536) {
-                    oos.write(Serializer.serialize((short) data.length));
-                } else {
-                    oos.write(Serializer.serialize((short) 0));
-                    oos.write(Serializer.serialize(data.length));
-                }
+            // not counted as a sent message
+            if (outboundQueue.enqueue(new OutboundQueue.Frame(FrameEncoder.encodeControlFrame(type, value), DEFAULT_LANE))) {
+                startDrain();
             }
-            oos.write(data);
         }
     }
 
     /**
-     * Sends the oneLengthArray to the other point, with the passed value in its only position
+     * Bytes were read from the socket (invoked by the transports)
      *
-     * @param value the value to put in the only position of the array before sending it
-     * @return a CommError object if there was an error writing the byte, or null if everything went fine
+     * @param bytes number of read bytes
      */
-    private CommError writeOneLengthArray(byte value) {
-        oneLengthArray[0] = value;
+    void dataRead(int bytes) {
+        idleMonitor.dataRead();
+        traffic.bytesRead(bytes);
+    }
+
+    /**
+     * Bytes were written to the socket (invoked by the transports)
+     *
+     * @param bytes     number of written bytes
+     * @param startTime System.nanoTime at which the write began
+     */
+    void dataWritten(long bytes, long startTime) {
+        metrics.getWriteLatency().record(System.nanoTime() - startTime);
+        idleMonitor.dataWritten();
+        traffic.bytesWritten(bytes);
+    }
+
+    /**
+     * An idle timeout expired. The connection is closed with an IDLE_TIMEOUT error
+     *
+     * @param e description of the expired timeout
+     */
+    void idleTimeout(IdleTimeoutException e) {
+        notifyError(new CommError(CommError.Type.IDLE_TIMEOUT, e));
+    }
+
+    /**
+     * Starts sending heartbeat pings to the other point with the given period, or changes their period. The other
+     * point answers them with pongs, which give the round trip time of the connection (getRoundTripTimeNanos). Pings
+     * and pongs are control frames that the other point must understand, so upper layers must agree on their use
+     * first (ChannelModules do it in their handshake). Heartbeats begin once the module is started
+     *
+     * @param heartbeatIntervalMillis time between pings (millis), or 0 for stopping them
+     * @throws IllegalArgumentException if the interval is negative
+     */
+    public void setHeartbeatInterval(long heartbeatIntervalMillis) throws IllegalArgumentException {
+        if (heartbeatIntervalMillis < 0) {
+            throw new IllegalArgumentException("Invalid heartbeat interval: " + heartbeatIntervalMillis);
+        }
+        idleMonitor.setHeartbeatInterval(heartbeatIntervalMillis);
+    }
+
+    /**
+     * Retrieves the metrics of this module (see ConnectionMetrics)
+     *
+     * @return the metrics of this module
+     */
+    public ConnectionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Retrieves the smoothed round trip time of the connection, measured with the heartbeats. It includes the time
+     * that the pings wait in the outbound queue
+     *
+     * @return the round trip time (nanos), or -1 if no pong has been received yet
+     */
+    public long getRoundTripTimeNanos() {
+        return idleMonitor.getRoundTripNanos();
+    }
+
+    boolean isPrefixedFrames() {
+        return prefixedFrames;
+    }
+
+    int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Decodes the payload of a received object frame with the configured codec
+     *
+     * @param payload the encoded object
+     * @return the decoded object
+     * @throws IOException            if the payload is not correctly encoded
+     * @throws ClassNotFoundException if the payload refers to an unknown class
+     */
+    Object decodeObject(byte[] payload) throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        Object object = codec.decode(payload);
+        metrics.getDecodeLatency().record(System.nanoTime() - start);
+        return object;
+    }
+
+    /**
+     * Encodes an object with the configured codec
+     *
+     * @param message the object to encode
+     * @return the encoded object
+     * @throws IOException if the object cannot be encoded
+     */
+    private byte[] encodeObject(Serializable message) throws IOException {
+        long start = System.nanoTime();
+        byte[] encodedObject = codec.encode(message);
+        metrics.getEncodeLatency().record(System.nanoTime() - start);
+        return encodedObject;
+    }
+
+    /**
+     * Delivers the messages of a batch decoded by the blocking reader. Reading can get suspended in the middle of a
+     * batch, so the suspension is checked before each message (this runs in the reader thread)
+     *
+     * @param messageBatch the decoded messages
+     */
+    private void deliverBatch(MessageBatch messageBatch) {
+        try {
+            for (Object message : messageBatch.getMessages()) {
+                try {
+                    awaitReadingAllowed();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                deliverMessage(message);
+            }
+        } finally {
+            // the reader reuses the batch for its next read
+            messageBatch.clear();
+        }
+    }
+
+    /**
+     * Hands a received message to the communication action, or stores it for the read method
+     *
+     * @param message the received message
+     */
+    private void deliverMessage(Object message) {
+        if (communicationAction != null) {
+            communicationAction.newMessage(message);
+        } else {
+            synchronized (readingLock) {
+                incomingQueue.add(message);
+                if (incomingQueue.size() >= READ_QUEUE_CAPACITY) {
+                    suspendReading();
+                }
+            }
+        }
+    }
+
+    public static byte[] readByteArrayFromStream(InputStream ois) throws IOException {
+        return readByteArrayFromStream(ois, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads a byte array frame from a stream, rejecting arrays longer than a given size before allocating them
+     *
+     * @param ois       stream from which the frame is read
+     * @param maxLength maximum accepted length of the array
+     * @return the read array
+     * @throws IOException problems reading from the stream, or invalid length
+     */
+    public static byte[] readByteArrayFromStream(InputStream ois, int maxLength) throws IOException {
+        byte[] oneLengthArray = new byte[1];
+        readBytes(ois, oneLengthArray);
+        return readByteArrayFromStreamAux(ois, oneLengthArray, maxLength);
+    }
+
+    public static byte[] readByteArrayFromStreamAux(InputStream ois, byte[] oneLengthArray) throws IOException {
+        return readByteArrayFromStreamAux(ois, oneLengthArray, Integer.MAX_VALUE);
+    }
+
+    public static byte[] readByteArrayFromStreamAux(InputStream ois, byte[] oneLengthArray, int maxLength) throws IOException {
+        int length = oneLengthArray[0] & 0xFF;
+        if (length == 255) {
+            // the same array is used for the short and for the int length, which are decoded in place
+            byte[] lengthArray = new byte[4];
+            readBytes(ois, lengthArray, 2);
+            length = ((lengthArray[0] & 0xFF) << 8) | (lengthArray[1] & 0xFF);
+            if (length == 0) {
+                readBytes(ois, lengthArray, 4);
+                length = ((lengthArray[0] & 0xFF) << 24) | ((lengthArray[1] & 0xFF) << 16) | ((lengthArray[2] & 0xFF) << 8) | (lengthArray[3] & 0xFF);
+            }
+        }
+        if (length < 0) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        if (length > maxLength) {
+            throw new FrameTooLargeException(length, maxLength);
+        }
+        byte[] data = new byte[length];
+        readBytes(ois, data);
+        return data;
+    }
+
+    /**
+     * Reads a series of bytes from the input stream and stores them in a byte array. The number of bytes read
+     * corresponds to the length of the passed array
+     *
+     * @param array where the bytes will be stored
+     * @throws IOException problems reading from the stream
+     */
+    static void readBytes(InputStream ois, byte[] array) throws IOException {
+        readBytes(ois, array, array.length);
+    }
+
+    /**
+     * Reads a series of bytes from the input stream and stores them at the beginning of a byte array
+     *
+     * @param array where the bytes will be stored
+     * @param count number of bytes to read
+     * @throws IOException problems reading from the stream
+     */
+    static void readBytes(InputStream ois, byte[] array, int count) throws IOException {
+        int bytesRead = 0;
         try {
-            oos.write(oneLengthArray);
-            return null;
+            while (bytesRead < count) {
+                int length = ois.read(array, bytesRead, count - bytesRead);
+                if (length < 0) {
+                    // socket closed
+                    throw new IOException();
+                } else {
+                    bytesRead += length;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // we did not get all expected bytes -> generate an IOException to cover this issue
+            throw new IOException(e.getMessage());
+        }
+    }
+
+
+    /**
+     * Writes an object message to the other point. An overhead of 1 bytes is added to the message size.
+     * <p/>
+     * The object is encoded by the calling thread before the write lock is taken, so concurrent writers encode their
+     * messages in parallel and only the write of the resulting frames is serialized. If asynchronous writes are
+     * pending, the message is queued behind them and this method waits until it is written.
+     * <p/>
+     * If this CommunicationModule is disconnected, the message is ignored
+     *
+     * @param message the object to send
+     */
+    public long write(Serializable message) {
+        return write(message, true);
+    }
+
+    public long write(Serializable message, boolean flush) {
+        return write(message, DEFAULT_LANE, flush);
+    }
+
+    /**
+     * Writes an object message in a given lane (see write(Serializable))
+     *
+     * @param message the object to send
+     * @param lane    lane of the frame (0 to 255, or DEFAULT_LANE)
+     * @param flush   whether the output must be flushed after the write
+     */
+    public long write(Serializable message, int lane, boolean flush) {
+        TimeElapsed timeElapsed = new TimeElapsed();
+        byte[] encodedObject;
+        try {
+            encodedObject = encodeObject(message);
         } catch (IOException e) {
-            return new CommError(CommError.Type.IO_CHANNEL_FAILED_WRITING, e);
+            encodingFailed(e);
+            return 0L;
         }
+        // one byte containing a zero is sent before the object, to tell the other point that he must read an object,
+        // followed by the length of the encoded object. Both are sent in the same write as the object
+        return writeFrameSync(true, FrameEncoder.NO_PREFIX, encodedObject, null, lane, flush) ? timeElapsed.measureTime() : 0L;
+    }
+
+    /**
+     * Writes an object message preceded by a one byte prefix. The prefix is placed in the frame header, right after
+     * the length of the encoded object (an overhead of 6 bytes in total). The other point must have been created for
+     * prefixed frames, and receives the object inside a PrefixedObject.
+     * <p/>
+     * If this CommunicationModule is disconnected, the message is ignored
+     *
+     * @param prefix  the prefix of the object
+     * @param message the object to send
+     * @param flush   whether the output must be flushed after the write
+     */
+    public long write(byte prefix, Serializable message, boolean flush) {
+        TimeElapsed timeElapsed = new TimeElapsed();
+        byte[] encodedObject;
+        try {
+            encodedObject = encodeObject(message);
+            if (isFragmented(encodedObject.length)) {
+                return writeFragmentedSync(prefix & 0xFF, true, encodedObject) ? timeElapsed.measureTime() : 0L;
+            }
+            FrameEncoder.checkPrefixedObjectLength(encodedObject.length);
+        } catch (IOException e) {
+            encodingFailed(e);
+            return 0L;
+        }
+        return writeFrameSync(true, prefix & 0xFF, encodedObject, null, prefix & 0xFF, flush) ? timeElapsed.measureTime() : 0L;
+    }
+
+    /**
+     * Writes an array of bytes to the other end. An overhead is added to the message size, depending on the array
+     * length.
+     * if 0 < length < 255:      overhead of 1 byte
+     * if 255 <= length < 65536: overhead of 3 bytes
+     * if length >= 65536:       overhead of 7 bytes
+     * <p/>
+     * If this CommunicationModule is disconnected, the message is ignored
+     *
+     * @param data the array of bytes to send.
+     */
+    public long write(byte[] data) {
+        return write(data, true);
+    }
+
+    public long write(byte[] data, boolean flush) {
+        TimeElapsed timeElapsed = new TimeElapsed();
+        // the first byte sent indicates that an array of bytes is going to be sent.
+        // If the value sent is between 1 and 254, then an array of that size is sent.
+        // If the value is 255, then the next two bytes indicate the size of the array (btw 255 and 2^16 - 1)
+        // if those two bytes are zero, then the next four bytes indicate the size of the array
+        // (greater than 2^16 - 1)
+        if (data.length > 0) {
+            writeFrameSync(false, FrameEncoder.NO_PREFIX, data, null, DEFAULT_LANE, flush);
+        }
+        return timeElapsed.measureTime();
+    }
+
+    /**
+     * Writes an array of bytes preceded by a one byte prefix. The other point receives a single array with the prefix
+     * followed by the data (or, if it uses prefixed byte arrays, the data with the prefix apart). Prefix and data are
+     * not joined in a new array: the prefix is placed right after the frame header.
+     * <p/>
+     * If this CommunicationModule is disconnected, the message is ignored
+     *
+     * @param prefix the first byte of the sent array
+     * @param data   the rest of the array (can be empty)
+     * @param flush  whether the output must be flushed after the write
+     */
+    public long write(byte prefix, byte[] data, boolean flush) {
+        TimeElapsed timeElapsed = new TimeElapsed();
+        if (isFragmented(data.length)) {
+            writeFragmentedSync(prefix & 0xFF, false, data);
+        } else {
+            writeFrameSync(false, prefix & 0xFF, data, null, prefix & 0xFF, flush);
+        }
+        return timeElapsed.measureTime();
+    }
+
+    /**
+     * Writes an object message with prefix, bound to a session (see write(byte, Serializable, boolean)). The session
+     * ID is placed in the frame header, and the other point receives it in the PrefixedObject. The other point must
+     * accept fragments (see setFragmentSize). Messages bound to a session are never fragmented.
+     * <p/>
+     * If this CommunicationModule is disconnected, the message is ignored
+     *
+     * @param prefix  the prefix of the object
+     * @param session the session of the object (not negative)
+     * @param message the object to send
+     * @param flush   whether the output must be flushed after the write
+     * @throws IllegalArgumentException if the session is negative
+     */
+    public long write(byte prefix, int session, Serializable message, boolean flush) throws IllegalArgumentException {
+        checkSession(session);
+        TimeElapsed timeElapsed = new TimeElapsed();
+        byte[] frame;
+        try {
+            frame = FrameEncoder.encodeSessionFrame(prefix & 0xFF, session, true, encodeObject(message));
+        } catch (IOException e) {
+            encodingFailed(e);
+            return 0L;
+        }
+        return writeFrameSync(false, FrameEncoder.NO_PREFIX, null, frame, prefix & 0xFF, flush) ? timeElapsed.measureTime() : 0L;
+    }
+
+    /**
+     * Writes an array of bytes with prefix, bound to a session (see write(byte, int, Serializable, boolean))
+     *
+     * @param prefix  the prefix of the array
+     * @param session the session of the array (not negative)
+     * @param data    the rest of the array (can be empty)
+     * @param flush   whether the output must be flushed after the write
+     * @throws IllegalArgumentException if the session is negative
+     */
+    public long write(byte prefix, int session, byte[] data, boolean flush) throws IllegalArgumentException {
+        checkSession(session);
+        TimeElapsed timeElapsed = new TimeElapsed();
+        byte[] frame;
+        try {
+            frame = FrameEncoder.encodeSessionFrame(prefix & 0xFF, session, false, data);
+        } catch (IOException e) {
+            encodingFailed(e);
+            return 0L;
+        }
+        return writeFrameSync(false, FrameEncoder.NO_PREFIX, null, frame, prefix & 0xFF, flush) ? timeElapsed.measureTime() : 0L;
+    }
+
+    private static void checkSession(int session) throws IllegalArgumentException {
+        if (session < 0) {
+            throw new IllegalArgumentException("Invalid session: " + session);
+        }
+    }
+
+    /**
+     * Writes a chunk of a stream, preceded by a one byte prefix that identifies the stream (e.g. a channel). The other
+     * point receives each chunk as a StreamChunk, without putting the stream together, so streams of any length can
+     * be sent and received with bounded memory. The chunks of a stream travel in the lane of its prefix, and the
+     * caller waits until each one is written, so a slow connection slows the writer down. The other point must accept
+     * fragments (see setFragmentSize).
+     * <p/>
+     * If this CommunicationModule is disconnected, the chunk is ignored
+     *
+     * @param prefix the prefix of the stream
+     * @param data   array containing the data of the chunk
+     * @param offset position of the data in the array
+     * @param length length of the data (can be 0)
+     * @param last   true if this chunk ends the stream
+     * @return true if the chunk was written, false if the module is disconnected or the write failed
+     */
+    public boolean writeStreamChunk(byte prefix, byte[] data, int offset, int length, boolean last) {
+        return writeFrameSync(false, prefix & 0xFF, null, FrameEncoder.encodeStreamChunk(prefix & 0xFF, data, offset, length, last), prefix & 0xFF, true);
+    }
+
+    /**
+     * Writes a frame that was already encoded (e.g. the same message sent to many connections). The frame is written
+     * as is, without encoding or copying it again
+     * <p/>
+     * If this CommunicationModule is disconnected, the frame is ignored
+     *
+     * @param encodedFrame the frame to send
+     * @param flush        whether the output must be flushed after the write
+     */
+    public long write(EncodedFrame encodedFrame, boolean flush) {
+        return write(encodedFrame, DEFAULT_LANE, flush);
+    }
+
+    /**
+     * Writes an already encoded frame in a given lane (see write(EncodedFrame, boolean))
+     *
+     * @param encodedFrame the frame to send
+     * @param lane         lane of the frame (0 to 255, or DEFAULT_LANE)
+     * @param flush        whether the output must be flushed after the write
+     */
+    public long write(EncodedFrame encodedFrame, int lane, boolean flush) {
+        TimeElapsed timeElapsed = new TimeElapsed();
+        return writeFrameSync(false, FrameEncoder.NO_PREFIX, null, encodedFrame.getFrame(), lane, flush) ? timeElapsed.measureTime() : 0L;
+    }
+
+    /**
+     * Writes an object message without blocking. The encoded message is placed in the outbound queue of this module,
+     * and written by the event loop of the connection or by a dedicated writer thread.
+     * <p/>
+     * The returned future completes when the whole message has been handed to the kernel, or exceptionally if the
+     * message could not be encoded, the outbound queue limit is reached or the connection is closed before the
+     * message is written. Dependent actions run in the writer thread, so they should not block. Synchronous writes
+     * issued from them (or from any other code running in the event loop) do not wait for the frame to be written:
+     * the frame is queued and the write returns immediately.
+     * <p/>
+     * When the queued bytes exceed the high water mark of the configuration, the communication action is notified
+     * that the connection is not writable, and again when they go below the low water mark
+     *
+     * @param message the object to send
+     * @return a future completing when the message is written
+     */
+    public CompletableFuture<Void> writeAsync(Serializable message) {
+        return writeAsync(message, DEFAULT_LANE);
+    }
+
+    /**
+     * Writes an object message in a given lane without blocking (see writeAsync(Serializable))
+     *
+     * @param message the object to send
+     * @param lane    lane of the frame (0 to 255, or DEFAULT_LANE)
+     * @return a future completing when the message is written
+     */
+    public CompletableFuture<Void> writeAsync(Serializable message, int lane) {
+        byte[] encodedObject;
+        try {
+            encodedObject = encodeObject(message);
+        } catch (IOException e) {
+            encodingFailed(e);
+            return failedFuture(e);
+        }
+        return enqueueFrame(new OutboundQueue.Frame(FrameEncoder.encodeFrame(true, encodedObject), lane));
+    }
+
+    /**
+     * Writes an object message preceded by a one byte prefix without blocking (see write(byte, Serializable, boolean)
+     * and writeAsync(Serializable))
+     *
+     * @param prefix  the prefix of the object
+     * @param message the object to send
+     * @return a future completing when the message is written
+     */
+    public CompletableFuture<Void> writeAsync(byte prefix, Serializable message) {
+        byte[] encodedObject;
+        try {
+            encodedObject = encodeObject(message);
+            if (isFragmented(encodedObject.length)) {
+                return enqueueFrame(new OutboundQueue.Frame(prefix & 0xFF, true, encodedObject, fragmentSize));
+            }
+            FrameEncoder.checkPrefixedObjectLength(encodedObject.length);
+        } catch (IOException e) {
+            encodingFailed(e);
+            return failedFuture(e);
+        }
+        return enqueueFrame(new OutboundQueue.Frame(FrameEncoder.encodeFrame(true, prefix & 0xFF, encodedObject), prefix & 0xFF));
+    }
+
+    /**
+     * Writes an object message with prefix, bound to a session, without blocking (see write(byte, int, Serializable,
+     * boolean) and writeAsync(Serializable))
+     *
+     * @param prefix  the prefix of the object
+     * @param session the session of the object (not negative)
+     * @param message the object to send
+     * @return a future completing when the message is written
+     * @throws IllegalArgumentException if the session is negative
+     */
+    public CompletableFuture<Void> writeAsync(byte prefix, int session, Serializable message) throws IllegalArgumentException {
+        checkSession(session);
+        byte[] frame;
+        try {
+            frame = FrameEncoder.encodeSessionFrame(prefix & 0xFF, session, true, encodeObject(message));
+        } catch (IOException e) {
+            encodingFailed(e);
+            return failedFuture(e);
+        }
+        return enqueueFrame(new OutboundQueue.Frame(frame, prefix & 0xFF));
+    }
+
+    /**
+     * Writes an array of bytes with prefix, bound to a session, without blocking (see writeAsync(byte, int,
+     * Serializable))
+     *
+     * @param prefix  the prefix of the array
+     * @param session the session of the array (not negative)
+     * @param data    the rest of the array (can be empty)
+     * @return a future completing when the array is written
+     * @throws IllegalArgumentException if the session is negative
+     */
+    public CompletableFuture<Void> writeAsync(byte prefix, int session, byte[] data) throws IllegalArgumentException {
+        checkSession(session);
+        byte[] frame;
+        try {
+            frame = FrameEncoder.encodeSessionFrame(prefix & 0xFF, session, false, data);
+        } catch (IOException e) {
+            encodingFailed(e);
+            return failedFuture(e);
+        }
+        return enqueueFrame(new OutboundQueue.Frame(frame, prefix & 0xFF));
+    }
+
+    /**
+     * Writes an array of bytes without blocking (see writeAsync(Serializable))
+     *
+     * @param data the array of bytes to send
+     * @return a future completing when the array is written
+     */
+    public CompletableFuture<Void> writeAsync(byte[] data) {
+        if (data.length == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return enqueueFrame(new OutboundQueue.Frame(FrameEncoder.encodeFrame(false, data), DEFAULT_LANE));
+    }
+
+    /**
+     * Writes an array of bytes preceded by a one byte prefix without blocking (see write(byte, byte[], boolean) and
+     * writeAsync(Serializable)). Prefix and data are copied once, directly into the queued frame
+     *
+     * @param prefix the first byte of the sent array
+     * @param data   the rest of the array (can be empty)
+     * @return a future completing when the array is written
+     */
+    public CompletableFuture<Void> writeAsync(byte prefix, byte[] data) {
+        if (isFragmented(data.length)) {
+            // the fragments are encoded later, from a copy of the data
+            return enqueueFrame(new OutboundQueue.Frame(prefix & 0xFF, false, data.clone(), fragmentSize));
+        }
+        return enqueueFrame(new OutboundQueue.Frame(FrameEncoder.encodeFrame(false, prefix & 0xFF, data), prefix & 0xFF));
+    }
+
+    /**
+     * Writes an already encoded frame without blocking (see writeAsync(Serializable)). The queued frame shares the
+     * bytes of the given one, so queueing the same frame in many connections does not copy it
+     *
+     * @param encodedFrame the frame to send
+     * @return a future completing when the frame is written
+     */
+    public CompletableFuture<Void> writeAsync(EncodedFrame encodedFrame) {
+        return writeAsync(encodedFrame, DEFAULT_LANE);
+    }
+
+    /**
+     * Writes an already encoded frame in a given lane without blocking (see writeAsync(EncodedFrame))
+     *
+     * @param encodedFrame the frame to send
+     * @param lane         lane of the frame (0 to 255, or DEFAULT_LANE)
+     * @return a future completing when the frame is written
+     */
+    public CompletableFuture<Void> writeAsync(EncodedFrame encodedFrame, int lane) {
+        return enqueueFrame(new OutboundQueue.Frame(encodedFrame.getFrame(), lane));
+    }
+
+    /**
+     * Offers an already encoded frame without blocking. Unlike writeAsync, the frame is subject to the slow consumer
+     * policy of this module: if the connection is behind, the frame or older offered frames may be discarded (their
+     * futures are cancelled), or the frame may be spilled to disk (see SlowConsumerPolicy). Without policy, this is
+     * equivalent to writeAsync.
+     * <p/>
+     * This is intended for data that is sent to many connections (e.g. server broadcasts), where one slow connection
+     * must not hold the others
+     *
+     * @param encodedFrame  the frame to send
+     * @param conflationKey key identifying frames that replace each other under the CONFLATE policy (can be null)
+     * @return a future completing when the frame is written
+     */
+    public CompletableFuture<Void> offer(EncodedFrame encodedFrame, Object conflationKey) {
+        return offer(encodedFrame, DEFAULT_LANE, conflationKey);
+    }
+
+    /**
+     * Offers an already encoded frame in a given lane (see offer(EncodedFrame, Object))
+     *
+     * @param encodedFrame  the frame to send
+     * @param lane          lane of the frame (0 to 255, or DEFAULT_LANE)
+     * @param conflationKey key identifying frames that replace each other under the CONFLATE policy (can be null)
+     * @return a future completing when the frame is written
+     */
+    public CompletableFuture<Void> offer(EncodedFrame encodedFrame, int lane, Object conflationKey) {
+        SlowConsumerPolicy policy = slowConsumerPolicy;
+        if (policy == null) {
+            return writeAsync(encodedFrame, lane);
+        }
+        OutboundQueue.Frame frame = new OutboundQueue.Frame(encodedFrame.getFrame(), lane, conflationKey);
+        if (outboundQueue.offer(frame, policy)) {
+            startDrain();
+        }
+        frameQueued(frame);
+        return frame.getFuture();
+    }
+
+    /**
+     * Gives a lane its own priority and weight in the outbound queue. While frames of higher priority lanes are
+     * waiting, frames of lower priority lanes are not written. Waiting lanes of the same priority share the
+     * connection in proportion to their weights (deficit round robin, in bytes). Lanes without settings share a
+     * default FIFO lane with priority 0 and weight 1.
+     * <p/>
+     * Scheduling only affects frames that wait for the connection: a frame that is already being written (or was
+     * handed to the writer shortly before) is not interrupted, so big frames still delay the rest
+     *
+     * @param lane     the lane (0 to 255)
+     * @param priority priority of the lane (higher values are written first)
+     * @param weight   weight of the lane among the lanes of its priority (at least 1)
+     * @throws IllegalArgumentException if the lane or the weight are not valid
+     */
+    public void setLaneScheduling(int lane, int priority, int weight) throws IllegalArgumentException {
+        checkLane(lane);
+        if (weight < 1) {
+            throw new IllegalArgumentException("Lane weight must be at least 1: " + weight);
+        }
+        outboundQueue.setLane(lane, priority, weight);
+    }
+
+    /**
+     * Removes the scheduling settings of a lane, whose frames go back to the default lane
+     *
+     * @param lane the lane (0 to 255)
+     * @throws IllegalArgumentException if the lane is not valid
+     */
+    public void clearLaneScheduling(int lane) throws IllegalArgumentException {
+        checkLane(lane);
+        outboundQueue.clearLane(lane);
+    }
+
+    /**
+     * Retrieves the time that the frames of a lane waited until they were written
+     *
+     * @param lane the lane (0 to 255, or DEFAULT_LANE)
+     * @return the queueing delay of the lane since this module was created
+     * @throws IllegalArgumentException if the lane is not valid
+     */
+    public QueueingDelay getQueueingDelay(int lane) throws IllegalArgumentException {
+        if (lane != DEFAULT_LANE) {
+            checkLane(lane);
+        }
+        return outboundQueue.getQueueingDelay(lane);
+    }
+
+    /**
+     * Enables credit-based flow control of the lanes 0 to 254, on behalf of the other point. Each frame written in
+     * these lanes (each message, for fragmented ones) takes one credit. A lane without credits is blocked: synchronous
+     * writers wait and asynchronous frames stay queued until the other point grants more credits (grantLaneCredits),
+     * while the other lanes go on. Lane 255 and the default lane are not flow controlled, so they can carry the
+     * credit grants themselves. This also gives each lane its own queue (see setFragmentSize). If already enabled,
+     * nothing happens
+     *
+     * @param initialCredits credits of each lane
+     */
+    public void enableLaneCredits(int initialCredits) {
+        outboundQueue.enableCredits(initialCredits);
+    }
+
+    /**
+     * Adds credits to a flow controlled lane (see enableLaneCredits). Its waiting frames, if any, are written
+     *
+     * @param lane    the lane (0 to 254)
+     * @param credits credits granted by the other point
+     * @throws IllegalArgumentException if the lane is not valid
+     */
+    public void grantLaneCredits(int lane, int credits) throws IllegalArgumentException {
+        checkLane(lane);
+        if (outboundQueue.grantCredits(lane, credits)) {
+            startDrain();
+        }
+    }
+
+    /**
+     * Retrieves the credits left to a lane
+     *
+     * @param lane the lane (0 to 255)
+     * @return the credits of the lane, or -1 if it is not flow controlled
+     * @throws IllegalArgumentException if the lane is not valid
+     */
+    public long getLaneCredits(int lane) throws IllegalArgumentException {
+        checkLane(lane);
+        return outboundQueue.getCredits(lane);
+    }
+
+    private static void checkLane(int lane) throws IllegalArgumentException {
+        if (lane < 0 || lane >= OutboundQueue.LANE_COUNT) {
+            throw new IllegalArgumentException("Invalid lane: " + lane);
+        }
+    }
+
+    /**
+     * Sets the maximum size of the fragments of big messages with prefix (objects and byte arrays written with a
+     * prefix, synchronously or not). Messages bigger than this are queued whole, and sent in fragments of this size
+     * interleaved with the frames of other lanes. Encoded frames are never fragmented.
+     * <p/>
+     * Fragmentation gives each lane without scheduling settings its own queue (see OutboundQueue), so frames of
+     * different lanes are no longer written in order of arrival (the order within each lane is kept). The other
+     * point must accept prefixed frames and fragments. Default is 0 (no fragmentation)
+     *
+     * @param fragmentSize maximum bytes of a message per fragment, or 0 for not fragmenting messages (once enabled,
+     *                     the fair lanes are kept)
+     * @throws IllegalArgumentException if the size is negative
+     */
+    public void setFragmentSize(int fragmentSize) throws IllegalArgumentException {
+        if (fragmentSize < 0) {
+            throw new IllegalArgumentException("Invalid fragment size: " + fragmentSize);
+        }
+        if (fragmentSize > 0) {
+            outboundQueue.enableFairLanes();
+        }
+        this.fragmentSize = fragmentSize;
+    }
+
+    public int getFragmentSize() {
+        return fragmentSize;
+    }
+
+    /**
+     * Says whether a message with prefix is sent in fragments
+     *
+     * @param payloadLength length of the message
+     * @return true if the message must be fragmented
+     */
+    private boolean isFragmented(int payloadLength) {
+        int size = fragmentSize;
+        return size > 0 && payloadLength > size && FrameEncoder.fragmentedLength(payloadLength, size) <= Integer.MAX_VALUE;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * Sets the policy applied to offered frames
+     *
+     * @param slowConsumerPolicy the new policy (null for no policy)
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    /**
+     * Says whether offered frames found this connection behind its slow consumer policy, and it has not caught up
+     * yet (its queue has not fallen to half of the policy limit)
+     *
+     * @return true if the other point is currently a slow consumer
+     */
+    public boolean isSlowConsumer() {
+        return outboundQueue.isSlowConsumer();
+    }
+
+    /**
+     * Says whether the outbound queue is below the high water mark (or has gone back below the low water mark)
+     *
+     * @return true if the connection is writable
+     */
+    public boolean isWritable() {
+        return outboundQueue.isWritable();
+    }
+
+    /**
+     * Retrieves the number of bytes waiting in the outbound queue
+     *
+     * @return the queued bytes
+     */
+    public long getQueuedBytes() {
+        return outboundQueue.getQueuedBytes();
+    }
+
+    public synchronized long flush() {
+        CommError commError = null;
+        long time = 0L;
+        if (connected) {
+            // queued frames are written and flushed by the drainer
+            try {
+                TimeElapsed timeElapsed = new TimeElapsed();
+                oos.flush();
+                time = timeElapsed.measureTime();
+            } catch (IOException e) {
+                commError = new CommError(CommError.Type.IO_CHANNEL_FAILED_WRITING, e);
+            }
+        }
+        if (commError != null) {
+            notifyError(commError);
+        }
+        return time;
+    }
+
+    /**
+     * Writes a byte array frame to a stream. Header and data are sent in a single write, unless the frame is too big
+     * to be worth copying
+     *
+     * @param oos  stream where the frame is written
+     * @param data the array of bytes to send (empty arrays are not sent)
+     * @throws IOException problems writing to the stream
+     */
+    public static void writeByteArrayToStream(OutputStream oos, byte[] data) throws IOException {
+        if (data.length > 0) {
+            int headerLength = FrameEncoder.headerLength(false, data.length);
+            if (headerLength + data.length <= FrameEncoder.MAX_ASSEMBLED_FRAME_SIZE) {
+                byte[] frame = new byte[headerLength + data.length];
+                FrameEncoder.writeHeader(frame, 0, false, data.length);
+                System.arraycopy(data, 0, frame, headerLength, data.length);
+                oos.write(frame);
+            } else {
+                byte[] header = new byte[headerLength];
+                FrameEncoder.writeHeader(header, 0, false, data.length);
+                oos.write(header);
+                oos.write(data);
+            }
+        }
+    }
+
+    /**
+     * Sends a frame to the other point. Small and medium frames are assembled and sent with one write. For big frames,
+     * header and payload are sent with a gathering write in the event loop transport, or with two writes otherwise
+     *
+     * @param objectFrame true if the payload is an encoded object, false if it is a byte array
+     * @param prefix      prefix of a byte array frame, or FrameEncoder.NO_PREFIX
+     * @param payload     payload of the frame
+     * @return the length of the frame
+     * @throws IOException problems writing to the socket
+     */
+    private int writeFrame(boolean objectFrame, int prefix, byte[] payload) throws IOException {
+        int length = frameEncoder.encode(objectFrame, prefix, payload);
+        if (length > 0) {
+            oos.write(frameEncoder.getBuffer(), 0, length);
+            return length;
+        } else if (nioConnection != null) {
+            nioConnection.writeFully(new ByteBuffer[]{ByteBuffer.wrap(frameEncoder.getBuffer(), 0, -length), ByteBuffer.wrap(payload)});
+        } else {
+            oos.write(frameEncoder.getBuffer(), 0, -length);
+            oos.write(payload);
+        }
+        return -length + payload.length;
+    }
+
+    /**
+     * Writes a frame from the calling thread. If the output is idle, the frame is written directly. Otherwise, it is
+     * queued behind the pending frames and the caller waits until it is written (the queue limit does not apply to
+     * it, since the caller does not go on until then).
+     * <p/>
+     * The event loop thread and the writer thread cannot wait for their own drain: from them, the frame is always
+     * queued, and the method returns without waiting
+     *
+     * @param objectFrame  true if the payload is an encoded object, false if it is a byte array
+     * @param prefix       prefix of a byte array frame, or FrameEncoder.NO_PREFIX
+     * @param payload      payload of the frame
+     * @param encodedFrame the whole frame, if it was already encoded (prefix and payload are ignored then), or null
+     * @param lane         lane of the frame
+     * @param flush        whether the output must be flushed after the write
+     * @return true if the frame was written (or queued, from the writer thread), false if the module is disconnected
+     * or the write failed
+     */
+    private boolean writeFrameSync(boolean objectFrame, int prefix, byte[] payload, byte[] encodedFrame, int lane, boolean flush) {
+        boolean writerThread = inWriterThread();
+        CompletableFuture<Void> future;
+        synchronized (this) {
+            if (!connected) {
+                return false;
+            }
+            if (!writerThread && outboundQueue.acquireIfIdle(lane)) {
+                CommError commError = null;
+                try {
+                    long start = System.nanoTime();
+                    int length;
+                    if (encodedFrame != null) {
+                        oos.write(encodedFrame);
+                        length = encodedFrame.length;
+                    } else {
+                        length = writeFrame(objectFrame, prefix, payload);
+                    }
+                    if (flush) {
+                        oos.flush();
+                    }
+                    dataWritten(length, start);
+                    traffic.messageOut(lane, length);
+                } catch (IOException e) {
+                    commError = new CommError(CommError.Type.IO_CHANNEL_FAILED_WRITING, e);
+                    notifyError(commError);
+                }
+                if (outboundQueue.release(lane)) {
+                    startDrain();
+                }
+                return commError == null;
+            }
+            OutboundQueue.Frame frame = new OutboundQueue.Frame(encodedFrame != null ? encodedFrame : FrameEncoder.encodeFrame(objectFrame, prefix, payload), lane);
+            if (outboundQueue.enqueue(frame, false)) {
+                startDrain();
+            }
+            frameQueued(frame);
+            future = frame.getFuture();
+        }
+        if (writerThread) {
+            // waiting here would block the drain that writes the frame
+            return !future.isCompletedExceptionally();
+        }
+        try {
+            future.get();
+            return true;
+        } catch (ExecutionException e) {
+            // the error was already notified by the drainer
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Writes a message in fragments from the calling thread. The message is queued (not copied), and the caller
+     * waits until its last fragment is written (except in the writer thread, see writeFrameSync)
+     *
+     * @param prefix        prefix of the message
+     * @param objectMessage true if the message is an encoded object, false if it is a byte array
+     * @param message       the message
+     * @return true if the message was written, false if the module is disconnected or the write failed
+     */
+    private boolean writeFragmentedSync(int prefix, boolean objectMessage, byte[] message) {
+        if (!connected) {
+            return false;
+        }
+        OutboundQueue.Frame frame = new OutboundQueue.Frame(prefix, objectMessage, message, fragmentSize);
+        if (outboundQueue.enqueue(frame, false)) {
+            startDrain();
+        }
+        frameQueued(frame);
+        if (inWriterThread()) {
+            return !frame.getFuture().isCompletedExceptionally();
+        }
+        try {
+            frame.getFuture().get();
+            return true;
+        } catch (ExecutionException e) {
+            // the error was already notified by the drainer
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private CompletableFuture<Void> enqueueFrame(OutboundQueue.Frame frame) {
+        if (outboundQueue.enqueue(frame)) {
+            startDrain();
+        }
+        frameQueued(frame);
+        return frame.getFuture();
+    }
+
+    /**
+     * Counts a frame given to the outbound queue as a sent message, unless the queue rejected it
+     *
+     * @param frame the queued frame
+     */
+    private void frameQueued(OutboundQueue.Frame frame) {
+        if (!frame.getFuture().isCompletedExceptionally()) {
+            traffic.messageOut(frame.getLane(), frame.getLength());
+        }
+    }
+
+    /**
+     * Checks whether the calling thread is the one draining the outbound queue (the event loop of the connection, or
+     * the writer thread of the thread-per-connection transport)
+     *
+     * @return true if the calling thread drains the outbound queue
+     */
+    private boolean inWriterThread() {
+        if (nioConnection != null) {
+            return nioConnection.inLoopThread();
+        } else {
+            return Thread.currentThread() == writerThread;
+        }
+    }
+
+    private void startDrain() {
+        if (nioConnection != null) {
+            nioConnection.drainOutbound(outboundQueue);
+        } else {
+            try {
+                writerExecutor.execute(drainTask);
+            } catch (RejectedExecutionException e) {
+                // the module was closed, and the queue with it
+            }
+        }
+    }
+
+    /**
+     * Writes the queued frames to the socket stream (thread-per-connection transport). Consecutive small frames are
+     * gathered in a buffer and sent with a single write
+     */
+    private void drainToStream() {
+        if (drainBuffers == null) {
+            drainBuffers = new ByteBuffer[DRAIN_BATCH_SIZE];
+            coalescingBuffer = new byte[FrameEncoder.MAX_ASSEMBLED_FRAME_SIZE];
+        }
+        List<CompletableFuture<Void>> completed = new ArrayList<>();
+        try {
+            int count;
+            while ((count = outboundQueue.headBuffers(drainBuffers)) > 0) {
+                long start = System.nanoTime();
+                long written = 0L;
+                int coalesced = 0;
+                for (int i = 0; i < count; i++) {
+                    ByteBuffer buffer = drainBuffers[i];
+                    int remaining = buffer.remaining();
+                    if (coalesced + remaining > coalescingBuffer.length && coalesced > 0) {
+                        oos.write(coalescingBuffer, 0, coalesced);
+                        coalesced = 0;
+                    }
+                    if (remaining <= coalescingBuffer.length) {
+                        buffer.get(coalescingBuffer, coalesced, remaining);
+                        coalesced += remaining;
+                    } else {
+                        oos.write(buffer.array(), buffer.arrayOffset() + buffer.position(), remaining);
+                        buffer.position(buffer.limit());
+                    }
+                    written += remaining;
+                    drainBuffers[i] = null;
+                }
+                if (coalesced > 0) {
+                    oos.write(coalescingBuffer, 0, coalesced);
+                }
+                oos.flush();
+                dataWritten(written, start);
+                outboundQueue.removeWritten(written, completed);
+                completeFutures(completed);
+            }
+        } catch (IOException e) {
+            // the queue is closed with the socket, which completes the pending futures
+            notifyError(new CommError(CommError.Type.IO_CHANNEL_FAILED_WRITING, e));
+        }
+    }
+
+    /**
+     * Completes the futures of written frames, and clears the list
+     *
+     * @param completed futures to complete
+     */
+    static void completeFutures(List<CompletableFuture<Void>> completed) {
+        for (CompletableFuture<Void> future : completed) {
+            future.complete(null);
+        }
+        completed.clear();
+    }
+
+    private void encodingFailed(IOException e) {
+        CommError commError;
+        if (e instanceof InvalidClassException) {
+            commError = new CommError(CommError.Type.CLASS_CANNOT_BE_SERIALIZED, e);
+        } else if (e instanceof NotSerializableException) {
+            commError = new CommError(CommError.Type.WRITE_NON_SERIALIZABLE_OBJECT, e);
+        } else {
+            commError = new CommError(CommError.Type.IO_CHANNEL_FAILED_WRITING, e);
+        }
+        synchronized (stateLock) {
+            if (connected) {
+                notifyError(commError);
+            }
+        }
+    }
+
+    private static CompletableFuture<Void> failedFuture(Throwable e) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
     }
 
     @Override
     protected void finalize() throws Throwable {
         super.finalize();
-        socket.close();
+        closeSocket();
     }
 }
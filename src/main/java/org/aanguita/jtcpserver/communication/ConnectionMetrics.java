@@ -0,0 +1,77 @@
+package org.aanguita.jtcpserver.communication;
+
+import org.aanguita.jtcpserver.metrics.LatencyHistogram;
+import org.aanguita.jtcpserver.metrics.TrafficCounters;
+
+/**
+ * Metrics of a CommunicationModule, always recorded:
+ * - traffic: messages and bytes sent and received in each lane, and bytes read from and written to the socket. Sent
+ * messages are counted when they are written or accepted in the outbound queue, with the size of their frames (all
+ * their fragments, for fragmented ones). Received messages are counted in the lane of their prefix (DEFAULT_LANE if
+ * they have none, as the messages of the legacy channel format), with the bytes they took on the wire. Control frames
+ * (heartbeats) only count as bytes read and written
+ * - encode latency: time taken by the codec for encoding each sent object
+ * - decode latency: time taken by the codec for decoding each received object
+ * - write latency: time taken by each write to the socket (a single frame written directly, or a batch of queued
+ * frames)
+ * <p/>
+ * The metrics of a module can be aggregated with others (e.g. all the clients of a server). The traffic of the module
+ * is then counted in the traffic of the aggregate too, and the latencies are recorded directly in the histograms of
+ * the aggregate, which the module shares (histograms take a few KB each, too much for every connection of a big
+ * server).
+ * <p/>
+ * This class is thread-safe
+ */
+public final class ConnectionMetrics {
+
+    private final TrafficCounters traffic;
+
+    private final LatencyHistogram encodeLatency;
+
+    private final LatencyHistogram decodeLatency;
+
+    private final LatencyHistogram writeLatency;
+
+    /**
+     * Creates metrics of their own (for a standalone module, or for aggregating other metrics)
+     */
+    public ConnectionMetrics() {
+        traffic = new TrafficCounters();
+        encodeLatency = new LatencyHistogram();
+        decodeLatency = new LatencyHistogram();
+        writeLatency = new LatencyHistogram();
+    }
+
+    /**
+     * Creates metrics that are aggregated in other metrics
+     *
+     * @param aggregate metrics where these are aggregated
+     */
+    ConnectionMetrics(ConnectionMetrics aggregate) {
+        traffic = new TrafficCounters(aggregate.traffic);
+        encodeLatency = aggregate.encodeLatency;
+        decodeLatency = aggregate.decodeLatency;
+        writeLatency = aggregate.writeLatency;
+    }
+
+    public TrafficCounters getTraffic() {
+        return traffic;
+    }
+
+    public LatencyHistogram getEncodeLatency() {
+        return encodeLatency;
+    }
+
+    public LatencyHistogram getDecodeLatency() {
+        return decodeLatency;
+    }
+
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    @Override
+    public String toString() {
+        return traffic + "\nencode: " + encodeLatency + "\ndecode: " + decodeLatency + "\nwrite: " + writeLatency;
+    }
+}
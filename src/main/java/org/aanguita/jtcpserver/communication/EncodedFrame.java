@@ -0,0 +1,92 @@
+package org.aanguita.jtcpserver.communication;
+
+import org.aanguita.jtcpserver.communication.codec.Codec;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * A complete frame (header and payload), encoded once and ready to be written to any number of connections. It is
+ * used for sending the same message to many points (e.g. server broadcasts) without encoding it again for each of
+ * them.
+ * <p/>
+ * Objects of this class are immutable, and can be shared by several threads. The frame bytes are never copied when
+ * written: each connection reads them through its own view of the array.
+ * <p/>
+ * Object frames must be written only to connections using the same codec that encoded them
+ */
+public final class EncodedFrame {
+
+    private final byte[] frame;
+
+    private EncodedFrame(byte[] frame) {
+        this.frame = frame;
+    }
+
+    /**
+     * Encodes an object message
+     *
+     * @param codec   codec used by the destination connections
+     * @param message the object to encode
+     * @return the encoded frame
+     * @throws IOException if the object cannot be encoded
+     */
+    public static EncodedFrame ofObject(Codec codec, Serializable message) throws IOException {
+        return new EncodedFrame(FrameEncoder.encodeFrame(true, codec.encode(message)));
+    }
+
+    /**
+     * Encodes an object message preceded by a one byte prefix (see CommunicationModule.write(byte, Serializable,
+     * boolean))
+     *
+     * @param codec   codec used by the destination connections
+     * @param prefix  the prefix of the object
+     * @param message the object to encode
+     * @return the encoded frame
+     * @throws IOException if the object cannot be encoded, or is too big for a frame with prefix (1GB)
+     */
+    public static EncodedFrame ofObject(Codec codec, byte prefix, Serializable message) throws IOException {
+        byte[] encodedObject = codec.encode(message);
+        FrameEncoder.checkPrefixedObjectLength(encodedObject.length);
+        return new EncodedFrame(FrameEncoder.encodeFrame(true, prefix & 0xFF, encodedObject));
+    }
+
+    /**
+     * Encodes an array of bytes
+     *
+     * @param data the data to encode (must not be empty)
+     * @return the encoded frame
+     * @throws IllegalArgumentException if the array is empty
+     */
+    public static EncodedFrame ofBytes(byte[] data) throws IllegalArgumentException {
+        if (data.length == 0) {
+            throw new IllegalArgumentException("Empty byte arrays cannot be sent");
+        }
+        return new EncodedFrame(FrameEncoder.encodeFrame(false, data));
+    }
+
+    /**
+     * Encodes an array of bytes preceded by a one byte prefix (see CommunicationModule.write(byte, byte[], boolean)).
+     * Prefix and data are copied once, directly into the frame
+     *
+     * @param prefix the first byte of the array
+     * @param data   the rest of the array (can be empty)
+     * @return the encoded frame
+     */
+    public static EncodedFrame ofBytes(byte prefix, byte[] data) {
+        return new EncodedFrame(FrameEncoder.encodeFrame(false, prefix & 0xFF, data));
+    }
+
+    /**
+     * Retrieves the length of the frame, header included
+     *
+     * @return the number of bytes written to each connection
+     */
+    public int length() {
+        return frame.length;
+    }
+
+    byte[] getFrame() {
+        return frame;
+    }
+}
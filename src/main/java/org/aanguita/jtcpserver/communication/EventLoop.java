@@ -0,0 +1,172 @@
+package org.aanguita.jtcpserver.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A selector-based loop handling the reads of many connections with a single thread. Operations on the selection keys
+ * are only performed by the loop thread. Other threads submit them as tasks, through the execute method.
+ * <p/>
+ * Anything thrown while handling a connection (by its decoding, by the code receiving its messages, or by one of its
+ * tasks) fails that connection only: it is notified an error and closed, and the loop goes on serving the rest.
+ */
+class EventLoop implements Runnable {
+
+    /**
+     * A task run by the loop thread on behalf of a connection, which is failed if the task throws
+     */
+    abstract static class Task implements Runnable {
+
+        private final NioConnection nioConnection;
+
+        Task(NioConnection nioConnection) {
+            this.nioConnection = nioConnection;
+        }
+    }
+
+    /**
+     * Size of the buffer where the bytes read from any connection are stored before being decoded
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+
+    /**
+     * Tasks submitted by other threads, to be run by the loop thread
+     */
+    private final Queue<Task> tasks;
+
+    /**
+     * Read buffer shared by all connections of this loop. Decoders keep their own partial frames, so this buffer is
+     * fully consumed after each read
+     */
+    private final ByteBuffer readBuffer;
+
+    private volatile boolean running;
+
+    private volatile Thread loopThread;
+
+    /**
+     * Set when the loop thread has finished. From then on, submitted tasks are run by the submitting thread
+     */
+    private volatile boolean terminated;
+
+    EventLoop() throws IOException {
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<>();
+        readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        running = true;
+        terminated = false;
+    }
+
+    /**
+     * Submits a task to be run by the loop thread
+     *
+     * @param task the task to run
+     */
+    void execute(Task task) {
+        tasks.add(task);
+        if (terminated) {
+            runTasks();
+        } else if (Thread.currentThread() != loopThread) {
+            selector.wakeup();
+        }
+    }
+
+    boolean inLoopThread() {
+        return Thread.currentThread() == loopThread;
+    }
+
+    /**
+     * Registers a new connection in this loop. The connection starts being read as soon as the registration is
+     * processed by the loop thread
+     *
+     * @param nioConnection the connection to register
+     */
+    void register(final NioConnection nioConnection) {
+        execute(new Task(nioConnection) {
+            @Override
+            public void run() {
+                try {
+                    nioConnection.registered(nioConnection.getChannel().register(selector, SelectionKey.OP_READ, nioConnection));
+                } catch (IOException e) {
+                    nioConnection.failed(e);
+                } catch (ClosedSelectorException e) {
+                    nioConnection.failed(new IOException("Event loop is shut down"));
+                }
+            }
+        });
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        loopThread = Thread.currentThread();
+        while (running) {
+            try {
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+            } catch (IOException e) {
+                // the selector cannot be used any longer
+                break;
+            }
+            runTasks();
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                NioConnection nioConnection = (NioConnection) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        nioConnection.handleReadable(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        nioConnection.handleWritable();
+                    }
+                } catch (CancelledKeyException e) {
+                    // the connection was closed meanwhile
+                    nioConnection.close();
+                } catch (Throwable t) {
+                    nioConnection.failed(t);
+                }
+            }
+        }
+        // loop finished -> disconnect every remaining connection
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            ((NioConnection) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        terminated = true;
+        runTasks();
+    }
+
+    private void runTasks() {
+        Task task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                task.nioConnection.failed(t);
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.aanguita.jtcpserver.communication;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of selector-based event loops, shared by any number of CommunicationModules. Each connection is
+ * assigned to one of the loops (round robin) when its CommunicationModule is created, and all its reads are performed
+ * by that loop. This allows handling thousands of connections with a handful of threads.
+ * <p/>
+ * The loops start running at construction time, and run until shutdown is invoked. Shutting down the group
+ * disconnects all connections still registered in it.
+ * <p/>
+ * All public methods in this class are thread-safe
+ */
+public class EventLoopGroup {
+
+    /**
+     * Event loops of this group
+     */
+    private final EventLoop[] eventLoops;
+
+    /**
+     * Index used for assigning connections to loops
+     */
+    private final AtomicInteger nextLoop;
+
+    /**
+     * Creates a group with as many event loops as available processors
+     *
+     * @param name name of the group (used for naming the threads)
+     * @throws IOException if the selectors cannot be opened
+     */
+    public EventLoopGroup(String name) throws IOException {
+        this(name, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a group with a specific number of event loops
+     *
+     * @param name      name of the group (used for naming the threads)
+     * @param loopCount number of event loops (and threads) in this group
+     * @throws IOException if the selectors cannot be opened
+     */
+    public EventLoopGroup(String name, int loopCount) throws IOException {
+        if (loopCount < 1) {
+            throw new IllegalArgumentException("At least one event loop is required: " + loopCount);
+        }
+        eventLoops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            eventLoops[i] = new EventLoop();
+        }
+        for (int i = 0; i < loopCount; i++) {
+            Thread thread = new Thread(eventLoops[i], name + "/eventLoop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        nextLoop = new AtomicInteger(0);
+    }
+
+    /**
+     * Retrieves the number of event loops in this group
+     *
+     * @return the number of event loops
+     */
+    public int getLoopCount() {
+        return eventLoops.length;
+    }
+
+    /**
+     * Stops all event loops. Connections still registered are disconnected
+     */
+    public void shutdown() {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+    }
+
+    /**
+     * Selects the event loop for a new connection
+     *
+     * @return the event loop that will handle the new connection
+     */
+    EventLoop next() {
+        return eventLoops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length];
+    }
+}
@@ -0,0 +1,656 @@
+package org.aanguita.jtcpserver.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Incremental decoder for the framing used by the CommunicationModule. Bytes are fed through ByteBuffers of any size,
+ * and complete frames are extracted one at a time. Partially received frames are kept inside the decoder until the
+ * rest of their bytes arrive, so the fed buffers can be reused by the caller as soon as the decoding call returns.
+ * <p/>
+ * The recognized frames are:
+ * - object frames: one byte with value 0, four bytes with the length of the encoded object and the encoded object
+ * - byte array frames: one byte with the length of the array (1 to 254), or the value 255 followed by two bytes with
+ * the length (255 to 65535), or the value 255 followed by two zero bytes and four bytes with the length. The array
+ * itself follows.
+ * <p/>
+ * Length headers are decoded in place (big endian, like the Serializer does), so the only allocation per frame is the
+ * payload array itself.
+ * <p/>
+ * If the decoder is created for prefixed frames, the first byte of each byte array frame is decoded as part of
+ * the header (see getPrefix), and the payload array only contains the rest of the frame. Upper layers that place a
+ * one byte header in their arrays (the channel of ChannelModules) thus receive their data without further copies.
+ * Object frames can carry a prefix too: they mark it with the highest bit of their length (a negative length is
+ * invalid otherwise), and the prefix follows the length.
+ * <p/>
+ * Prefixed frames may also be fragments of bigger messages (see FrameEncoder). Fragments are not returned: their data
+ * is placed directly in the array of the message they belong to (one per prefix, so messages of different prefixes
+ * can be interleaved), and the message is returned as a single frame when its last fragment arrives. The total length
+ * announced by the first fragment is only used for validation: the array of the message grows (doubling, up to that
+ * length) as fragments arrive, so a peer can not make the decoder allocate memory for data it never sends. Stream chunks
+ * are returned one by one, as byte array frames (see isStreamChunk). Messages bound to a session carry its ID in
+ * their first fragment (see getSession).
+ * <p/>
+ * Control frames (heartbeats of the CommunicationModule, see FrameEncoder.encodeControlFrame) are returned as well,
+ * and must be told apart with isControlFrame. Their value is decoded in place too, so they allocate nothing.
+ * <p/>
+ * The bytes taken on the wire by each frame, header included, are counted (getFrameBytes). For fragmented messages,
+ * the bytes of all their fragments are added up.
+ * <p/>
+ * Frames (and fragmented messages) longer than the maximum frame size of the decoder are rejected with a
+ * FrameTooLargeException as soon as their length is known, without allocating their payload. The arrays of all the
+ * messages being put together at a time are bounded by the maximum frame size as well, so interleaving fragments of
+ * many prefixes does not multiply the memory a peer can make the decoder hold.
+ * <p/>
+ * This class is not thread-safe. Each connection must use its own decoder
+ */
+class FrameDecoder {
+
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
+    private enum State {
+        TYPE,
+        OBJECT_LENGTH,
+        SHORT_LENGTH,
+        INT_LENGTH,
+        PREFIX,
+        FRAGMENT_FLAGS,
+        FRAGMENT_TOTAL_LENGTH,
+        FRAGMENT_SESSION,
+        CONTROL_VALUE,
+        PAYLOAD
+    }
+
+    /**
+     * Whether byte array frames start with a one byte prefix (and object frames may carry one)
+     */
+    private final boolean prefixedFrames;
+
+    /**
+     * Maximum length of the payload of frames and fragmented messages
+     */
+    private final int maxFrameSize;
+
+    /**
+     * Current decoding state
+     */
+    private State state;
+
+    /**
+     * Whether the frame being decoded is an object frame (false for byte array frames)
+     */
+    private boolean objectFrame;
+
+    /**
+     * Value of the length header being decoded
+     */
+    private int headerValue;
+
+    /**
+     * Bytes still missing for the length header being decoded
+     */
+    private int headerBytesMissing;
+
+    /**
+     * Whether the frame being decoded carries a prefix
+     */
+    private boolean hasPrefix;
+
+    /**
+     * Prefix of the frame being decoded
+     */
+    private byte prefix;
+
+    /**
+     * Whether the frame being decoded is a fragment, its flags, and its length (prefix and flags included)
+     */
+    private boolean fragment;
+
+    private int fragmentFlags;
+
+    private int fragmentFrameLength;
+
+    /**
+     * Messages being put together from fragments, indexed by prefix, the bytes received of each one and their total
+     * length (created on first use). The arrays of the messages grow as their fragments arrive
+     */
+    private byte[][] fragmentedPayloads;
+
+    private int[] fragmentedOffsets;
+
+    private int[] fragmentedLengths;
+
+    private boolean[] fragmentedObjects;
+
+    private int[] fragmentedSessions;
+
+    /**
+     * Bytes of the fragments of each message being put together
+     */
+    private long[] fragmentedBytes;
+
+    /**
+     * Number of messages being put together
+     */
+    private int pendingFragmentedMessages;
+
+    /**
+     * Added length of the arrays of the messages being put together
+     */
+    private long reassemblyBytes;
+
+    /**
+     * Payload of the frame being decoded (for fragments, the array of their message)
+     */
+    private byte[] payload;
+
+    /**
+     * Position of the payload array where the next received byte goes
+     */
+    private int payloadOffset;
+
+    /**
+     * Position of the payload array where the frame being decoded ends
+     */
+    private int payloadEnd;
+
+    /**
+     * Whether the last decoded frame was an object frame
+     */
+    private boolean lastFrameIsObject;
+
+    /**
+     * Whether the frame being decoded, and the last decoded frame, are stream chunks, and whether they end their stream
+     */
+    private boolean streamChunk;
+
+    private boolean lastStreamChunk;
+
+    private boolean lastStreamEnd;
+
+    /**
+     * Session of the message being decoded, and of the last decoded frame (FrameEncoder.NO_SESSION if none)
+     */
+    private int session;
+
+    private int lastSession;
+
+    /**
+     * Type of the control frame being decoded, and of the last decoded frame (0 if it is not a control frame)
+     */
+    private int controlType;
+
+    private int lastControlType;
+
+    /**
+     * Value of the control frame being decoded, the bytes of it still missing, and the value of the last decoded
+     * control frame
+     */
+    private long controlValue;
+
+    private int controlBytesMissing;
+
+    private long lastControlValue;
+
+    /**
+     * Whether the last decoded frame carried a prefix
+     */
+    private boolean lastHasPrefix;
+
+    /**
+     * Prefix of the last decoded frame
+     */
+    private byte lastPrefix;
+
+    /**
+     * Payload of the last decoded frame
+     */
+    private byte[] lastPayload;
+
+    /**
+     * Bytes of the frame being decoded consumed so far, and bytes of the last decoded frame
+     */
+    private long frameBytes;
+
+    private long lastFrameBytes;
+
+    FrameDecoder() {
+        this(false);
+    }
+
+    FrameDecoder(boolean prefixedFrames) {
+        this(prefixedFrames, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param prefixedFrames true if the first byte of byte array frames must be decoded as a prefix, and object frames
+     *                       with prefix are accepted
+     * @param maxFrameSize   maximum length of the payload of the accepted frames
+     */
+    FrameDecoder(boolean prefixedFrames, int maxFrameSize) {
+        this.prefixedFrames = prefixedFrames;
+        this.maxFrameSize = maxFrameSize;
+        state = State.TYPE;
+        hasPrefix = false;
+        prefix = 0;
+        fragmentedPayloads = null;
+        pendingFragmentedMessages = 0;
+        reassemblyBytes = 0L;
+    }
+
+    /**
+     * Attempts to decode the next frame from the given buffer. The buffer position is advanced past the consumed
+     * bytes. If a complete frame is available, it can be retrieved with isObjectFrame and getPayload until the next
+     * invocation of this method
+     *
+     * @param buffer buffer with the received bytes, ready for being read
+     * @return true if a complete frame was decoded, false if more bytes are needed (the buffer was fully consumed)
+     * @throws IOException if a frame with an invalid length header is received
+     */
+    boolean decodeNext(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            switch (state) {
+                case TYPE:
+                    int type = buffer.get() & 0xFF;
+                    hasPrefix = false;
+                    fragment = false;
+                    streamChunk = false;
+                    session = FrameEncoder.NO_SESSION;
+                    if (type == 0) {
+                        objectFrame = true;
+                        startHeader(State.OBJECT_LENGTH, 4);
+                    } else if (type == 255) {
+                        objectFrame = false;
+                        startHeader(State.SHORT_LENGTH, 2);
+                    } else {
+                        objectFrame = false;
+                        startByteArray(type);
+                    }
+                    break;
+
+                case OBJECT_LENGTH:
+                    if (readHeader(buffer)) {
+                        if (headerValue < 0 && prefixedFrames) {
+                            // object frame with prefix, or fragment. headerValue keeps the frame length
+                            fragment = (headerValue & FrameEncoder.FRAGMENT_BIT) != 0;
+                            headerValue &= FrameEncoder.MAX_PREFIXED_OBJECT_LENGTH;
+                            state = State.PREFIX;
+                        } else {
+                            startPayload(headerValue);
+                        }
+                    }
+                    break;
+
+                case SHORT_LENGTH:
+                    if (readHeader(buffer)) {
+                        if (headerValue == 0) {
+                            startHeader(State.INT_LENGTH, 4);
+                        } else if (headerValue == FrameEncoder.CONTROL_PING || headerValue == FrameEncoder.CONTROL_PONG) {
+                            // such short lengths are never encoded in this form -> control frame
+                            controlType = headerValue;
+                            controlValue = 0L;
+                            controlBytesMissing = 8;
+                            state = State.CONTROL_VALUE;
+                        } else {
+                            startByteArray(headerValue);
+                        }
+                    }
+                    break;
+
+                case INT_LENGTH:
+                    if (readHeader(buffer)) {
+                        startByteArray(headerValue);
+                    }
+                    break;
+
+                case PREFIX:
+                    hasPrefix = true;
+                    prefix = buffer.get();
+                    if (fragment) {
+                        fragmentFrameLength = headerValue;
+                        state = State.FRAGMENT_FLAGS;
+                    } else {
+                        // the prefix counts in the frame length
+                        startPayload(headerValue - 1);
+                    }
+                    break;
+
+                case FRAGMENT_FLAGS:
+                    fragmentFlags = buffer.get();
+                    if ((fragmentFlags & FrameEncoder.FRAGMENT_STREAM) != 0) {
+                        // stream chunks are returned as they are
+                        fragment = false;
+                        streamChunk = true;
+                        objectFrame = false;
+                        startPayload(fragmentFrameLength - 2);
+                    } else if ((fragmentFlags & FrameEncoder.FRAGMENT_FIRST) != 0) {
+                        startHeader(State.FRAGMENT_TOTAL_LENGTH, 4);
+                    } else {
+                        continueFragmentedMessage(fragmentFrameLength - 2);
+                    }
+                    break;
+
+                case FRAGMENT_TOTAL_LENGTH:
+                    if (readHeader(buffer)) {
+                        startFragmentedMessage(headerValue);
+                        if ((fragmentFlags & FrameEncoder.FRAGMENT_SESSION) != 0) {
+                            startHeader(State.FRAGMENT_SESSION, 4);
+                        } else {
+                            continueFragmentedMessage(fragmentFrameLength - 6);
+                        }
+                    }
+                    break;
+
+                case FRAGMENT_SESSION:
+                    if (readHeader(buffer)) {
+                        if (headerValue < 0) {
+                            throw new IOException("Invalid session: " + headerValue);
+                        }
+                        fragmentedSessions[prefix & 0xFF] = headerValue;
+                        continueFragmentedMessage(fragmentFrameLength - 10);
+                    }
+                    break;
+
+                case CONTROL_VALUE:
+                    while (controlBytesMissing > 0 && buffer.hasRemaining()) {
+                        controlValue = (controlValue << 8) | (buffer.get() & 0xFF);
+                        controlBytesMissing--;
+                    }
+                    if (controlBytesMissing == 0) {
+                        state = State.TYPE;
+                        lastFrameBytes = frameBytes + buffer.position() - start;
+                        frameBytes = 0L;
+                        lastControlType = controlType;
+                        lastControlValue = controlValue;
+                        lastFrameIsObject = false;
+                        lastStreamChunk = false;
+                        lastPayload = null;
+                        return true;
+                    }
+                    break;
+
+                case PAYLOAD:
+                    int count = Math.min(buffer.remaining(), payloadEnd - payloadOffset);
+                    buffer.get(payload, payloadOffset, count);
+                    payloadOffset += count;
+                    break;
+            }
+            if (state == State.PAYLOAD && payloadOffset == payloadEnd) {
+                state = State.TYPE;
+                frameBytes += buffer.position() - start;
+                start = buffer.position();
+                if (fragment && !fragmentReceived()) {
+                    // more fragments of the message are needed
+                    continue;
+                }
+                lastControlType = 0;
+                lastFrameIsObject = objectFrame;
+                lastStreamChunk = streamChunk;
+                lastStreamEnd = streamChunk && (fragmentFlags & FrameEncoder.FRAGMENT_LAST) != 0;
+                lastHasPrefix = hasPrefix;
+                lastPrefix = prefix;
+                lastSession = session;
+                lastPayload = payload;
+                lastFrameBytes = frameBytes;
+                frameBytes = 0L;
+                payload = null;
+                return true;
+            }
+        }
+        frameBytes += buffer.position() - start;
+        return false;
+    }
+
+    /**
+     * Whether the last decoded frame contains an encoded object
+     *
+     * @return true for object frames, false for byte array frames
+     */
+    boolean isObjectFrame() {
+        return lastFrameIsObject;
+    }
+
+    /**
+     * Whether the last decoded frame is a control frame (see getControlType and getControlValue)
+     *
+     * @return true for control frames
+     */
+    boolean isControlFrame() {
+        return lastControlType != 0;
+    }
+
+    /**
+     * Retrieves the type of the last decoded control frame
+     *
+     * @return FrameEncoder.CONTROL_PING or FrameEncoder.CONTROL_PONG
+     */
+    int getControlType() {
+        return lastControlType;
+    }
+
+    /**
+     * Retrieves the value carried by the last decoded control frame
+     *
+     * @return the value of the control frame
+     */
+    long getControlValue() {
+        return lastControlValue;
+    }
+
+    /**
+     * Whether the last decoded frame is a stream chunk (a prefixed byte array frame, whose data is a piece of a
+     * stream)
+     *
+     * @return true for stream chunks
+     */
+    boolean isStreamChunk() {
+        return lastStreamChunk;
+    }
+
+    /**
+     * Whether the last decoded frame is the last chunk of its stream
+     *
+     * @return true if the last decoded frame ends a stream
+     */
+    boolean isStreamEnd() {
+        return lastStreamEnd;
+    }
+
+    /**
+     * Says whether the last decoded frame carried a prefix
+     *
+     * @return true if the last frame had a prefix
+     */
+    boolean hasPrefix() {
+        return lastHasPrefix;
+    }
+
+    /**
+     * Retrieves the prefix of the last decoded frame (only meaningful if it had one)
+     *
+     * @return the prefix of the last decoded frame
+     */
+    byte getPrefix() {
+        return lastPrefix;
+    }
+
+    /**
+     * Retrieves the session of the last decoded frame
+     *
+     * @return the session of the last decoded frame, or FrameEncoder.NO_SESSION if it is not bound to a session
+     */
+    int getSession() {
+        return lastSession;
+    }
+
+    /**
+     * Retrieves the payload of the last decoded frame
+     *
+     * @return the payload of the last decoded frame
+     */
+    byte[] getPayload() {
+        return lastPayload;
+    }
+
+    /**
+     * Retrieves the bytes taken on the wire by the last decoded frame, header included (for fragmented messages, the
+     * bytes of all their fragments)
+     *
+     * @return the bytes of the last decoded frame
+     */
+    long getFrameBytes() {
+        return lastFrameBytes;
+    }
+
+    /**
+     * Says if the decoder is between frames, i.e. no partially received frame is stored
+     *
+     * @return true if no bytes of an incomplete frame are stored in this decoder
+     */
+    boolean isAtFrameBoundary() {
+        return state == State.TYPE && pendingFragmentedMessages == 0;
+    }
+
+    private void startHeader(State headerState, int length) {
+        state = headerState;
+        headerValue = 0;
+        headerBytesMissing = length;
+    }
+
+    private boolean readHeader(ByteBuffer buffer) {
+        while (headerBytesMissing > 0 && buffer.hasRemaining()) {
+            headerValue = (headerValue << 8) | (buffer.get() & 0xFF);
+            headerBytesMissing--;
+        }
+        return headerBytesMissing == 0;
+    }
+
+    private void startByteArray(int length) throws IOException {
+        if (prefixedFrames) {
+            // headerValue keeps the frame length
+            headerValue = length;
+            state = State.PREFIX;
+        } else {
+            startPayload(length);
+        }
+    }
+
+    private void startPayload(int length) throws IOException {
+        if (length < 0) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        if (length > maxFrameSize) {
+            throw new FrameTooLargeException(length, maxFrameSize);
+        }
+        state = State.PAYLOAD;
+        payload = new byte[length];
+        payloadOffset = 0;
+        payloadEnd = length;
+    }
+
+    /**
+     * The first fragment of a message was received. The array of the message is created empty, and grows with the
+     * data of its fragments
+     *
+     * @param totalLength length of the message
+     * @throws IOException if the length is not valid, or another message with the same prefix is not complete
+     */
+    private void startFragmentedMessage(int totalLength) throws IOException {
+        if (totalLength < 0) {
+            throw new IOException("Invalid fragmented message length: " + totalLength);
+        }
+        if (totalLength > maxFrameSize) {
+            throw new FrameTooLargeException(totalLength, maxFrameSize);
+        }
+        if (fragmentedPayloads == null) {
+            fragmentedPayloads = new byte[256][];
+            fragmentedOffsets = new int[256];
+            fragmentedLengths = new int[256];
+            fragmentedObjects = new boolean[256];
+            fragmentedSessions = new int[256];
+            fragmentedBytes = new long[256];
+        }
+        int index = prefix & 0xFF;
+        if (fragmentedPayloads[index] != null) {
+            throw new IOException("New fragmented message before the end of the previous one, prefix " + index);
+        }
+        fragmentedPayloads[index] = EMPTY_PAYLOAD;
+        fragmentedOffsets[index] = 0;
+        fragmentedLengths[index] = totalLength;
+        fragmentedObjects[index] = (fragmentFlags & FrameEncoder.FRAGMENT_OBJECT) != 0;
+        fragmentedSessions[index] = FrameEncoder.NO_SESSION;
+        fragmentedBytes[index] = 0L;
+        pendingFragmentedMessages++;
+    }
+
+    /**
+     * Prepares the reception of the data of a fragment, directly into the array of its message. The array is grown
+     * first if it cannot hold the fragment
+     *
+     * @param length bytes of the message carried by the fragment
+     * @throws IOException if the fragment does not belong to a started message, or exceeds its length, or the
+     *                     messages being put together would exceed the maximum frame size (FrameTooLargeException)
+     */
+    private void continueFragmentedMessage(int length) throws IOException {
+        int index = prefix & 0xFF;
+        byte[] message = fragmentedPayloads != null ? fragmentedPayloads[index] : null;
+        if (message == null) {
+            throw new IOException("Fragment without a started message, prefix " + index);
+        }
+        int offset = fragmentedOffsets[index];
+        if (length < 0 || length > fragmentedLengths[index] - offset) {
+            throw new IOException("Invalid fragment length: " + length);
+        }
+        if (offset + length > message.length) {
+            // at least double the array, so a message costs a logarithmic number of copies. It never exceeds the
+            // total length, so the last fragment leaves the array with the exact length of the message
+            int capacity = (int) Math.min(fragmentedLengths[index], Math.max(offset + length, 2L * message.length));
+            if (reassemblyBytes + capacity - message.length > maxFrameSize) {
+                // no room for doubling: grow just what this fragment needs
+                capacity = offset + length;
+                if (reassemblyBytes + capacity - message.length > maxFrameSize) {
+                    throw new FrameTooLargeException("Fragmented messages being received exceed the maximum frame size (" + maxFrameSize + " bytes)",
+                            reassemblyBytes + capacity - message.length, maxFrameSize);
+                }
+            }
+            reassemblyBytes += capacity - message.length;
+            message = Arrays.copyOf(message, capacity);
+            fragmentedPayloads[index] = message;
+        }
+        state = State.PAYLOAD;
+        payload = message;
+        payloadOffset = offset;
+        payloadEnd = offset + length;
+    }
+
+    /**
+     * The data of a fragment was received
+     *
+     * @return true if the fragment completed its message (which is then ready in payload and objectFrame)
+     * @throws IOException if the last fragment does not complete the message
+     */
+    private boolean fragmentReceived() throws IOException {
+        int index = prefix & 0xFF;
+        fragmentedOffsets[index] = payloadEnd;
+        fragmentedBytes[index] += frameBytes;
+        frameBytes = 0L;
+        if ((fragmentFlags & FrameEncoder.FRAGMENT_LAST) == 0) {
+            payload = null;
+            return false;
+        }
+        frameBytes = fragmentedBytes[index];
+        if (payloadEnd != fragmentedLengths[index]) {
+            throw new IOException("Fragmented message incomplete, prefix " + index);
+        }
+        objectFrame = fragmentedObjects[index];
+        session = fragmentedSessions[index];
+        fragmentedPayloads[index] = null;
+        pendingFragmentedMessages--;
+        reassemblyBytes -= payload.length;
+        return true;
+    }
+}
@@ -0,0 +1,396 @@
+package org.aanguita.jtcpserver.communication;
+
+import java.io.IOException;
+
+/**
+ * Builds outgoing frames (the counterpart of the FrameDecoder). Header and payload are assembled in a reusable buffer,
+ * so a frame can be handed to the socket in one single write, and length headers are encoded in place without
+ * allocating any array.
+ * <p/>
+ * The buffer grows as needed up to MAX_ASSEMBLED_FRAME_SIZE. Bigger frames are not copied: only their header is
+ * placed in the buffer, and the payload is written separately (for such sizes, the copy would cost more than the
+ * additional write).
+ * <p/>
+ * Byte array frames can carry a one byte prefix (e.g. the channel of a ChannelModule). The prefix is counted in the
+ * length of the frame and placed right after the header, so the wire format is the same as for an array formed by
+ * the prefix and the data, but the two never need to be joined in a new array. Object frames can carry a prefix as
+ * well, placed after the length, which then has its highest bit set (only peers decoding prefixed frames accept
+ * these).
+ * <p/>
+ * Big prefixed messages (objects or byte arrays) can be split into fragments, which are sent as object frames with
+ * prefix whose length has also its second highest bit set (so object frames with prefix are limited to
+ * MAX_PREFIXED_OBJECT_LENGTH). After the prefix, a fragment carries a flags byte (FRAGMENT_FIRST, FRAGMENT_LAST and
+ * FRAGMENT_OBJECT), the total length of the message (first fragment only) and a piece of the message. Fragments of
+ * messages with different prefixes can be interleaved; the FrameDecoder puts each message together again. Streams
+ * of unknown length are sent in the same way, as chunks with the FRAGMENT_STREAM flag (and without total length).
+ * <p/>
+ * Messages can also be bound to a session of their prefix (e.g. a conversation within a channel). Such messages are
+ * sent with the fragment format too, with the FRAGMENT_SESSION flag and the session ID right after the total length
+ * of the message (see encodeSessionFrame).
+ * <p/>
+ * Finally, the CommunicationModules exchange control frames (heartbeat pings and pongs), which are never delivered to
+ * upper layers. They use a byte array header that no byte array frame uses (the value 255 followed by a short
+ * length of CONTROL_PING or CONTROL_PONG, which would be encoded in one byte), and carry an 8 byte value.
+ * <p/>
+ * This class is not thread-safe. Each connection must use its own encoder, under its write lock
+ */
+class FrameEncoder {
+
+    /**
+     * Maximum length of a frame header (byte array frames with an int length)
+     */
+    static final int MAX_HEADER_SIZE = 7;
+
+    /**
+     * Prefix value of frames without prefix
+     */
+    static final int NO_PREFIX = -1;
+
+    /**
+     * Bit of the length of object frames with prefix that marks fragments
+     */
+    static final int FRAGMENT_BIT = 0x40000000;
+
+    /**
+     * Maximum length of object frames with prefix (prefix included)
+     */
+    static final int MAX_PREFIXED_OBJECT_LENGTH = FRAGMENT_BIT - 1;
+
+    /**
+     * Flags of fragments: first fragment of a message (the total length follows the flags), last fragment, and
+     * message containing an encoded object (otherwise, it contains a byte array)
+     */
+    static final int FRAGMENT_FIRST = 1;
+
+    static final int FRAGMENT_LAST = 2;
+
+    static final int FRAGMENT_OBJECT = 4;
+
+    /**
+     * Flag of stream chunks: pieces of a stream of unknown length, which are delivered one by one instead of being put
+     * together (only FRAGMENT_LAST can go with it, marking the end of the stream, and no total length follows)
+     */
+    static final int FRAGMENT_STREAM = 8;
+
+    /**
+     * Flag of first fragments of messages bound to a session: the session ID follows the total length
+     */
+    static final int FRAGMENT_SESSION = 16;
+
+    /**
+     * Session value of messages not bound to a session (session IDs are not negative)
+     */
+    static final int NO_SESSION = -1;
+
+    /**
+     * Types of control frames: heartbeat ping (the value is a token chosen by the sender) and its pong (the value
+     * echoes the token of the ping)
+     */
+    static final int CONTROL_PING = 1;
+
+    static final int CONTROL_PONG = 2;
+
+    /**
+     * Length of control frames (header and value)
+     */
+    static final int CONTROL_FRAME_SIZE = 11;
+
+    /**
+     * Length of the header of fragments (type, length, prefix and flags), without the total length of first fragments
+     */
+    private static final int FRAGMENT_HEADER_SIZE = 7;
+
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Frames up to this size are assembled in the buffer
+     */
+    static final int MAX_ASSEMBLED_FRAME_SIZE = 64 * 1024;
+
+    private byte[] buffer;
+
+    FrameEncoder() {
+        buffer = null;
+    }
+
+    /**
+     * Places the header of a frame at the beginning of the buffer, followed by the payload if the whole frame fits in
+     * the buffer
+     *
+     * @param objectFrame true for object frames, false for byte array frames
+     * @param prefix      prefix of a byte array frame (0 to 255), or NO_PREFIX
+     * @param payload     payload of the frame
+     * @return the length of the assembled frame, or, if the payload was not copied, the negated length of the header
+     * (prefix included)
+     */
+    int encode(boolean objectFrame, int prefix, byte[] payload) {
+        int prefixLength = prefix == NO_PREFIX ? 0 : 1;
+        int frameLength = headerLength(objectFrame, prefixLength + payload.length) + prefixLength + payload.length;
+        if (frameLength <= MAX_ASSEMBLED_FRAME_SIZE) {
+            ensureCapacity(frameLength);
+            int headerLength = writeHeaderAndPrefix(buffer, objectFrame, prefix, payload.length);
+            System.arraycopy(payload, 0, buffer, headerLength, payload.length);
+            return frameLength;
+        } else {
+            ensureCapacity(MAX_HEADER_SIZE + 1);
+            return -writeHeaderAndPrefix(buffer, objectFrame, prefix, payload.length);
+        }
+    }
+
+    /**
+     * Retrieves the buffer with the last encoded frame (or header)
+     *
+     * @return the internal buffer of this encoder
+     */
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    private void ensureCapacity(int length) {
+        if (buffer == null || buffer.length < length) {
+            int capacity = buffer == null ? INITIAL_BUFFER_SIZE : buffer.length;
+            while (capacity < length) {
+                capacity *= 2;
+            }
+            buffer = new byte[Math.min(capacity, MAX_ASSEMBLED_FRAME_SIZE)];
+        }
+    }
+
+    /**
+     * Builds a complete frame in a new array, for frames that must outlive the encoder buffer (queued frames)
+     *
+     * @param objectFrame true for object frames, false for byte array frames
+     * @param payload     payload of the frame
+     * @return the frame, header included
+     */
+    static byte[] encodeFrame(boolean objectFrame, byte[] payload) {
+        return encodeFrame(objectFrame, NO_PREFIX, payload);
+    }
+
+    /**
+     * Builds a complete frame in a new array (see encodeFrame(boolean, byte[])), with an optional prefix
+     *
+     * @param objectFrame true for object frames, false for byte array frames
+     * @param prefix      prefix of a byte array frame (0 to 255), or NO_PREFIX
+     * @param payload     payload of the frame
+     * @return the frame, header and prefix included
+     */
+    static byte[] encodeFrame(boolean objectFrame, int prefix, byte[] payload) {
+        int prefixLength = prefix == NO_PREFIX ? 0 : 1;
+        byte[] frame = new byte[headerLength(objectFrame, prefixLength + payload.length) + prefixLength + payload.length];
+        int headerLength = writeHeaderAndPrefix(frame, objectFrame, prefix, payload.length);
+        System.arraycopy(payload, 0, frame, headerLength, payload.length);
+        return frame;
+    }
+
+    /**
+     * Computes the bytes needed for sending a message split in fragments
+     *
+     * @param payloadLength length of the message
+     * @param fragmentSize  maximum bytes of the message carried by each fragment
+     * @return the total length of the fragments, headers included
+     */
+    static long fragmentedLength(int payloadLength, int fragmentSize) {
+        long fragments = Math.max(1, (payloadLength + (long) fragmentSize - 1) / fragmentSize);
+        return payloadLength + fragments * FRAGMENT_HEADER_SIZE + 4;
+    }
+
+    /**
+     * Computes the length of a fragment of a message (see encodeFragment)
+     *
+     * @param payloadLength length of the message
+     * @param offset        position of the message where the fragment starts
+     * @param fragmentSize  maximum bytes of the message carried by each fragment
+     * @return the length of the fragment, header included
+     */
+    static int fragmentLength(int payloadLength, int offset, int fragmentSize) {
+        return (offset == 0 ? FRAGMENT_HEADER_SIZE + 4 : FRAGMENT_HEADER_SIZE) + Math.min(fragmentSize, payloadLength - offset);
+    }
+
+    /**
+     * Builds a stream chunk in a new array
+     *
+     * @param prefix prefix of the stream (0 to 255)
+     * @param data   array containing the data of the chunk
+     * @param offset position of the data in the array
+     * @param length length of the data
+     * @param last   true if the chunk ends the stream
+     * @return the chunk, header included
+     */
+    static byte[] encodeStreamChunk(int prefix, byte[] data, int offset, int length, boolean last) {
+        byte[] chunk = new byte[FRAGMENT_HEADER_SIZE + length];
+        writeHeader(chunk, 0, true, FRAGMENT_HEADER_SIZE - 5 + length);
+        chunk[1] |= (byte) ((0x80000000 | FRAGMENT_BIT) >>> 24);
+        chunk[5] = (byte) prefix;
+        chunk[6] = (byte) (last ? FRAGMENT_STREAM | FRAGMENT_LAST : FRAGMENT_STREAM);
+        System.arraycopy(data, offset, chunk, FRAGMENT_HEADER_SIZE, length);
+        return chunk;
+    }
+
+    /**
+     * Builds a message bound to a session in a new array. The message is sent whole, as a single fragment carrying the
+     * session ID
+     *
+     * @param prefix        prefix of the message (0 to 255)
+     * @param session       session of the message (not negative)
+     * @param objectPayload true if the message is an encoded object, false if it is a byte array
+     * @param payload       the message
+     * @return the frame, header included
+     * @throws IOException if the message is too big for a single frame
+     */
+    static byte[] encodeSessionFrame(int prefix, int session, boolean objectPayload, byte[] payload) throws IOException {
+        int headerLength = FRAGMENT_HEADER_SIZE + 8;
+        if (payload.length > MAX_PREFIXED_OBJECT_LENGTH - (headerLength - 5)) {
+            throw new IOException("Message too big for a session frame: " + payload.length + " bytes");
+        }
+        byte[] frame = new byte[headerLength + payload.length];
+        writeHeader(frame, 0, true, headerLength - 5 + payload.length);
+        frame[1] |= (byte) ((0x80000000 | FRAGMENT_BIT) >>> 24);
+        frame[5] = (byte) prefix;
+        frame[6] = (byte) (FRAGMENT_FIRST | FRAGMENT_LAST | FRAGMENT_SESSION | (objectPayload ? FRAGMENT_OBJECT : 0));
+        writeInt(frame, FRAGMENT_HEADER_SIZE, payload.length);
+        writeInt(frame, FRAGMENT_HEADER_SIZE + 4, session);
+        System.arraycopy(payload, 0, frame, headerLength, payload.length);
+        return frame;
+    }
+
+    /**
+     * Builds a control frame in a new array
+     *
+     * @param type  type of the control frame (CONTROL_PING or CONTROL_PONG)
+     * @param value value carried by the frame
+     * @return the frame
+     */
+    static byte[] encodeControlFrame(int type, long value) {
+        byte[] frame = new byte[CONTROL_FRAME_SIZE];
+        frame[0] = (byte) 255;
+        frame[1] = 0;
+        frame[2] = (byte) type;
+        writeInt(frame, 3, (int) (value >>> 32));
+        writeInt(frame, 7, (int) value);
+        return frame;
+    }
+
+    /**
+     * Checks that an encoded object fits in an object frame with prefix
+     *
+     * @param payloadLength length of the encoded object
+     * @throws IOException if the object is too big (it can only be sent in fragments)
+     */
+    static void checkPrefixedObjectLength(int payloadLength) throws IOException {
+        if (payloadLength >= MAX_PREFIXED_OBJECT_LENGTH) {
+            throw new IOException("Encoded object too big for a frame with prefix: " + payloadLength + " bytes");
+        }
+    }
+
+    /**
+     * Builds one fragment of a message in a new array
+     *
+     * @param prefix        prefix of the message (0 to 255)
+     * @param objectPayload true if the message is an encoded object, false if it is a byte array
+     * @param payload       the whole message
+     * @param offset        position of the message where the fragment starts
+     * @param fragmentSize  maximum bytes of the message carried by each fragment
+     * @return the fragment, header included
+     */
+    static byte[] encodeFragment(int prefix, boolean objectPayload, byte[] payload, int offset, int fragmentSize) {
+        int length = Math.min(fragmentSize, payload.length - offset);
+        int flags = objectPayload ? FRAGMENT_OBJECT : 0;
+        int headerLength = FRAGMENT_HEADER_SIZE;
+        if (offset == 0) {
+            flags |= FRAGMENT_FIRST;
+            headerLength += 4;
+        }
+        if (offset + length == payload.length) {
+            flags |= FRAGMENT_LAST;
+        }
+        byte[] fragment = new byte[headerLength + length];
+        // the frame length counts everything after the length itself
+        writeHeader(fragment, 0, true, headerLength - 5 + length);
+        fragment[1] |= (byte) ((0x80000000 | FRAGMENT_BIT) >>> 24);
+        fragment[5] = (byte) prefix;
+        fragment[6] = (byte) flags;
+        if (offset == 0) {
+            writeInt(fragment, FRAGMENT_HEADER_SIZE, payload.length);
+        }
+        System.arraycopy(payload, offset, fragment, headerLength, length);
+        return fragment;
+    }
+
+    /**
+     * Writes the header of a frame at the beginning of the given array, followed by the prefix (if any)
+     *
+     * @return the number of bytes written
+     */
+    private static int writeHeaderAndPrefix(byte[] target, boolean objectFrame, int prefix, int payloadLength) {
+        if (prefix == NO_PREFIX) {
+            return writeHeader(target, 0, objectFrame, payloadLength);
+        } else {
+            int headerLength = writeHeader(target, 0, objectFrame, payloadLength + 1);
+            if (objectFrame) {
+                // highest bit of the length, which marks object frames with prefix
+                target[1] |= (byte) 0x80;
+            }
+            target[headerLength] = (byte) prefix;
+            return headerLength + 1;
+        }
+    }
+
+    /**
+     * Computes the length of the header of a frame
+     *
+     * @param objectFrame   true for object frames, false for byte array frames
+     * @param payloadLength length of the payload
+     * @return the number of bytes of the header
+     */
+    static int headerLength(boolean objectFrame, int payloadLength) {
+        if (objectFrame) {
+            return 5;
+        } else if (payloadLength < 255) {
+            return 1;
+        } else if (payloadLength < 65536) {
+            return 3;
+        } else {
+            return 7;
+        }
+    }
+
+    /**
+     * Writes the header of a frame in the given array. The header of object frames is a zero byte followed by the
+     * length of the encoded object. The header of byte array frames is explained in the CommunicationModule
+     *
+     * @param target        array where the header is written
+     * @param offset        position of the array where the header starts
+     * @param objectFrame   true for object frames, false for byte array frames
+     * @param payloadLength length of the payload
+     * @return the number of bytes written
+     */
+    static int writeHeader(byte[] target, int offset, boolean objectFrame, int payloadLength) {
+        if (objectFrame) {
+            target[offset] = 0;
+            writeInt(target, offset + 1, payloadLength);
+            return 5;
+        } else if (payloadLength < 255) {
+            target[offset] = (byte) payloadLength;
+            return 1;
+        } else if (payloadLength < 65536) {
+            target[offset] = (byte) 255;
+            target[offset + 1] = (byte) (payloadLength >>> 8);
+            target[offset + 2] = (byte) payloadLength;
+            return 3;
+        } else {
+            target[offset] = (byte) 255;
+            target[offset + 1] = 0;
+            target[offset + 2] = 0;
+            writeInt(target, offset + 3, payloadLength);
+            return 7;
+        }
+    }
+
+    private static void writeInt(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+}
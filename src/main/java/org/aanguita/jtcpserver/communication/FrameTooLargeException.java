@@ -0,0 +1,41 @@
+package org.aanguita.jtcpserver.communication;
+
+import java.io.IOException;
+
+/**
+ * A received frame announced a length greater than the maximum frame size of the connection (see
+ * CommunicationConfig.setMaxFrameSize), or the fragmented messages being received at a time added up to more than
+ * that. The frame is rejected before allocating its payload, and the connection is closed with a FRAME_TOO_LARGE error
+ */
+public class FrameTooLargeException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long length;
+
+    private final int maxFrameSize;
+
+    FrameTooLargeException(long length, int maxFrameSize) {
+        this("Frame of " + length + " bytes exceeds the maximum frame size (" + maxFrameSize + " bytes)", length, maxFrameSize);
+    }
+
+    FrameTooLargeException(String message, long length, int maxFrameSize) {
+        super(message);
+        this.length = length;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Retrieves the length announced by the rejected frame (or the bytes that the fragmented messages being received
+     * would have taken)
+     *
+     * @return the length of the frame
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+}
@@ -0,0 +1,201 @@
+package org.aanguita.jtcpserver.communication;
+
+import org.aanguita.jtcpserver.concurrency.HashedTimerWheel;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heartbeats and idle timeouts of a CommunicationModule. A periodic check runs on the timer wheel of the module: it
+ * sends the heartbeat pings, and closes the connection with an IDLE_TIMEOUT error if nothing was read or written
+ * during the configured timeouts.
+ * <p/>
+ * Reads and writes only raise a flag, which the check clears, so the transports neither read the clock nor allocate
+ * anything per frame. The activity is thus timed with the precision of the check period, a fraction of the shortest
+ * timeout.
+ * <p/>
+ * Pings carry the System.nanoTime at which they were sent, and the other point echoes it in its pong, so the round
+ * trip time is measured without keeping any state about the pings in flight. Samples are smoothed as in TCP
+ * (srtt = 7/8 srtt + 1/8 sample). They include the time that the ping waited in the outbound queue of the connection
+ */
+class IdleMonitor implements Runnable {
+
+    /**
+     * Fraction of the idle timeouts used as period of the check
+     */
+    private static final int CHECKS_PER_TIMEOUT = 4;
+
+    private final CommunicationModule communicationModule;
+
+    private final HashedTimerWheel.Timeout timeout;
+
+    private final long tickNanos;
+
+    private final long readIdleTimeoutNanos;
+
+    private final long writeIdleTimeoutNanos;
+
+    /**
+     * Time between pings (nanos, 0 if no pings are sent)
+     */
+    private volatile long heartbeatIntervalNanos;
+
+    /**
+     * Set by the transports when bytes are read or written, and cleared by the check
+     */
+    private volatile boolean readActivity;
+
+    private volatile boolean writeActivity;
+
+    /**
+     * Last time that the check saw read or write activity, and last time that a ping was sent (only accessed by the
+     * check)
+     */
+    private long lastRead;
+
+    private long lastWrite;
+
+    private long lastPing;
+
+    /**
+     * Smoothed round trip time (nanos, -1 until the first pong is received). Only written by the reader
+     */
+    private volatile long smoothedRoundTripNanos;
+
+    private volatile boolean started;
+
+    private volatile boolean stopped;
+
+    /**
+     * Class constructor
+     *
+     * @param communicationModule    the monitored module
+     * @param timerWheel             wheel on which the check runs
+     * @param readIdleTimeoutMillis  time without reading after which the connection is closed (0 for no timeout)
+     * @param writeIdleTimeoutMillis time without writing after which the connection is closed (0 for no timeout)
+     */
+    IdleMonitor(CommunicationModule communicationModule, HashedTimerWheel timerWheel, long readIdleTimeoutMillis, long writeIdleTimeoutMillis) {
+        this.communicationModule = communicationModule;
+        timeout = timerWheel.newTimeout(this);
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(timerWheel.getTickMillis());
+        readIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(readIdleTimeoutMillis);
+        writeIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeIdleTimeoutMillis);
+        heartbeatIntervalNanos = 0L;
+        readActivity = false;
+        writeActivity = false;
+        smoothedRoundTripNanos = -1L;
+        started = false;
+        stopped = false;
+    }
+
+    /**
+     * Begins the checks. The connection counts as active at this moment
+     */
+    void start() {
+        long now = System.nanoTime();
+        lastRead = now;
+        lastWrite = now;
+        lastPing = now;
+        started = true;
+        scheduleCheck();
+    }
+
+    /**
+     * Stops the checks (the connection was closed)
+     */
+    void stop() {
+        stopped = true;
+        timeout.cancel();
+    }
+
+    /**
+     * Starts (or changes the interval of) the heartbeats
+     *
+     * @param heartbeatIntervalMillis time between pings (millis), or 0 for stopping them
+     */
+    void setHeartbeatInterval(long heartbeatIntervalMillis) {
+        heartbeatIntervalNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatIntervalMillis);
+        // the check period may be shorter now
+        scheduleCheck();
+    }
+
+    void dataRead() {
+        if (!readActivity) {
+            readActivity = true;
+        }
+    }
+
+    void dataWritten() {
+        if (!writeActivity) {
+            writeActivity = true;
+        }
+    }
+
+    /**
+     * A pong was received
+     *
+     * @param pingTime nanoTime at which its ping was sent
+     */
+    void pongReceived(long pingTime) {
+        long sample = System.nanoTime() - pingTime;
+        if (sample < 0) {
+            // not a token of ours
+            return;
+        }
+        long smoothed = smoothedRoundTripNanos;
+        smoothedRoundTripNanos = smoothed < 0 ? sample : smoothed + (sample - smoothed) / 8;
+    }
+
+    long getRoundTripNanos() {
+        return smoothedRoundTripNanos;
+    }
+
+    @Override
+    public void run() {
+        if (stopped) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (readActivity || communicationModule.isReadingSuspended()) {
+            // time while reading is suspended does not count
+            readActivity = false;
+            lastRead = now;
+        } else if (readIdleTimeoutNanos > 0 && now - lastRead >= readIdleTimeoutNanos) {
+            communicationModule.idleTimeout(new IdleTimeoutException(true, TimeUnit.NANOSECONDS.toMillis(now - lastRead)));
+            return;
+        }
+        if (writeActivity) {
+            writeActivity = false;
+            lastWrite = now;
+        } else if (writeIdleTimeoutNanos > 0 && now - lastWrite >= writeIdleTimeoutNanos) {
+            communicationModule.idleTimeout(new IdleTimeoutException(false, TimeUnit.NANOSECONDS.toMillis(now - lastWrite)));
+            return;
+        }
+        long heartbeatInterval = heartbeatIntervalNanos;
+        if (heartbeatInterval > 0 && now - lastPing >= heartbeatInterval - tickNanos) {
+            lastPing = now;
+            communicationModule.sendControlFrame(FrameEncoder.CONTROL_PING, now);
+        }
+        scheduleCheck();
+    }
+
+    private void scheduleCheck() {
+        long period = Long.MAX_VALUE;
+        if (readIdleTimeoutNanos > 0) {
+            period = Math.min(period, readIdleTimeoutNanos / CHECKS_PER_TIMEOUT);
+        }
+        if (writeIdleTimeoutNanos > 0) {
+            period = Math.min(period, writeIdleTimeoutNanos / CHECKS_PER_TIMEOUT);
+        }
+        if (heartbeatIntervalNanos > 0) {
+            period = Math.min(period, heartbeatIntervalNanos);
+        }
+        if (period == Long.MAX_VALUE || !started || stopped) {
+            return;
+        }
+        timeout.schedule(Math.max(period, tickNanos), TimeUnit.NANOSECONDS);
+        if (stopped) {
+            // stopped meanwhile
+            timeout.cancel();
+        }
+    }
+}
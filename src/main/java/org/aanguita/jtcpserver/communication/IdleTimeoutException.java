@@ -0,0 +1,41 @@
+package org.aanguita.jtcpserver.communication;
+
+import java.io.IOException;
+
+/**
+ * Nothing was read from (or written to) a connection during its idle timeout (see
+ * CommunicationConfig.setReadIdleTimeoutMillis and CommunicationConfig.setWriteIdleTimeoutMillis). The connection is
+ * closed with an IDLE_TIMEOUT error
+ */
+public class IdleTimeoutException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean readTimeout;
+
+    private final long idleMillis;
+
+    IdleTimeoutException(boolean readTimeout, long idleMillis) {
+        super("Nothing " + (readTimeout ? "read" : "written") + " for " + idleMillis + " ms");
+        this.readTimeout = readTimeout;
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * Says which timeout expired
+     *
+     * @return true if nothing was read, false if nothing was written
+     */
+    public boolean isReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Retrieves the time that the connection had been idle when it was closed
+     *
+     * @return the idle time (millis)
+     */
+    public long getIdleMillis() {
+        return idleMillis;
+    }
+}
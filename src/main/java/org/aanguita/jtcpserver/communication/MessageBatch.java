@@ -0,0 +1,32 @@
+package org.aanguita.jtcpserver.communication;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A group of messages decoded from one single read of the input stream. The reader hands them together to the
+ * message loop, and the CommunicationModule delivers them one by one.
+ * <p/>
+ * Each reader reuses one single batch for its whole connection. This is safe because the message loop of the
+ * CommunicationModule reads and handles in the same thread, so a batch is always delivered (and emptied) before the
+ * next read fills it again
+ */
+class MessageBatch {
+
+    private final List<Object> messages;
+
+    MessageBatch() {
+        messages = new ArrayList<>();
+    }
+
+    List<Object> getMessages() {
+        return messages;
+    }
+
+    /**
+     * Empties the batch once delivered, so its messages are not retained while the next read blocks
+     */
+    void clear() {
+        messages.clear();
+    }
+}
@@ -1,19 +1,29 @@
 package org.aanguita.jtcpserver.communication;
 
-import org.aanguita.jacuzzi.io.serialization.MutableOffset;
-import org.aanguita.jacuzzi.io.serialization.Serializer;
 import org.aanguita.jacuzzi.queues.event_processing.MessageReader;
 import org.aanguita.jacuzzi.queues.event_processing.StopReadingMessages;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
- * This class implements the reading of messages from an ObjectInputStream. It is sent to a MessageProcessor, who
+ * This class implements the reading of messages from an ObjectInputStream. It is sent to a MessageLoop, who
  * executes it.
+ * <p/>
+ * The input stream is read in big chunks into a buffer that is reused for the whole connection, and the frames are
+ * extracted from it with a FrameDecoder. All frames completed by one read are returned together in a MessageBatch,
+ * so small messages do not cost one system call each. The batch is reused for the whole connection, so reads do not
+ * allocate containers either.
  */
 class MessageReaderImpl implements MessageReader {
 
+    /**
+     * Size of the buffer for reading from the input stream
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
     /**
      * CommunicationModule associated to this MessageReaderImpl
      */
@@ -24,6 +34,23 @@ class MessageReaderImpl implements MessageReader {
      */
     private InputStream ois;
 
+    /**
+     * Buffer for the bytes read from the input stream. Its remaining bytes are the ones not yet decoded
+     */
+    private final ByteBuffer readBuffer;
+
+    private final FrameDecoder frameDecoder;
+
+    /**
+     * Batch for the messages decoded by each read (delivered before the next read, see MessageBatch)
+     */
+    private final MessageBatch messageBatch;
+
+    /**
+     * Set when the reading must stop, but there were decoded messages to return first
+     */
+    private boolean stopPending;
+
     /**
      * Class constructor
      *
@@ -33,46 +60,124 @@ class MessageReaderImpl implements MessageReader {
     MessageReaderImpl(CommunicationModule communicationModule, InputStream ois) {
         this.communicationModule = communicationModule;
         this.ois = ois;
+        readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        readBuffer.limit(0);
+        frameDecoder = new FrameDecoder(communicationModule.isPrefixedFrames(), communicationModule.getMaxFrameSize());
+        messageBatch = new MessageBatch();
+        stopPending = false;
     }
 
     public Object readMessage() {
         try {
-            byte[] oneLengthArray = new byte[1];
+            communicationModule.awaitReadingAllowed();
+        } catch (InterruptedException e) {
+            return new StopReadingMessages();
+        }
+        if (stopPending) {
+            return new StopReadingMessages();
+        }
+        messageBatch.clear();
+        List<Object> messages = messageBatch.getMessages();
+        try {
+            while (messages.isEmpty()) {
+                if (!readBuffer.hasRemaining()) {
+                    readBuffer.clear();
+                    int length = ois.read(readBuffer.array(), 0, readBuffer.capacity());
+                    if (length < 0) {
+                        // socket closed
+                        readBuffer.limit(0);
+                        return stop(new IOException("Connection closed"));
+                    }
+                    readBuffer.limit(length);
+                    communicationModule.dataRead(length);
+                }
+                while (frameDecoder.decodeNext(readBuffer)) {
+                    if (!addMessage(messages)) {
+                        return messagesBeforeStop(messages);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Object stop = stop(e);
+            return messages.isEmpty() ? stop : messagesBeforeStop(messages);
+        }
+        return readMessages(messages);
+    }
+
+    /**
+     * Retrieves what must be returned for the decoded messages: the message itself if only one was decoded, or the
+     * batch otherwise
+     *
+     * @param messages messages decoded by this read (not empty)
+     * @return the message or the batch
+     */
+    private Object readMessages(List<Object> messages) {
+        if (messages.size() == 1) {
+            Object message = messages.get(0);
+            messageBatch.clear();
+            return message;
+        }
+        return messageBatch;
+    }
+
+    /**
+     * Converts the last decoded frame into a message
+     *
+     * @param messages list where the message is added
+     * @return true if the message was added (or the frame was a control frame), false if an error was notified and reading must stop
+     */
+    private boolean addMessage(List<Object> messages) {
+        if (frameDecoder.isControlFrame()) {
+            // heartbeats are handled by the module, and never delivered
+            communicationModule.controlFrameReceived(frameDecoder.getControlType(), frameDecoder.getControlValue());
+            return true;
+        }
+        communicationModule.messageReceived(frameDecoder);
+        if (frameDecoder.isObjectFrame()) {
             try {
-                CommunicationModule.readBytes(ois, oneLengthArray);
+                Object object = communicationModule.decodeObject(frameDecoder.getPayload());
+                messages.add(frameDecoder.hasPrefix() ? new PrefixedObject(frameDecoder.getPrefix(), frameDecoder.getSession(), object) : object);
+            } catch (ClassNotFoundException e) {
+                // the class for an received object was not found. This is notified with an error and a stop
+                communicationModule.notifyError(new CommError(CommError.Type.UNKNOWN_CLASS_RECEIVED, e));
+                return false;
             } catch (IOException e) {
-                // socket closed
-                return new StopReadingMessages();
-            }
-            // an object is next
-            if (oneLengthArray[0] == 0) {
-                // first, we receive a byte array encoding an int value, with the length of the object
-                byte[] encodedInt = new byte[4];
-                CommunicationModule.readBytes(ois, encodedInt);
-                int objectLength = Serializer.deserializeIntValue(encodedInt, new MutableOffset());
-                // read those bytes, and decode the object
-                byte[] encodedObject = new byte[objectLength];
-                CommunicationModule.readBytes(ois, encodedObject);
-                return Serializer.deserializeObjectWithoutLengthHeader(encodedObject);
-            }
-            // an array of bytes is next
-            else {
-                byte[] data = CommunicationModule.readByteArrayFromStreamAux(ois, oneLengthArray);
-                return new ByteArrayWrapper(data);
+                communicationModule.notifyError(new CommError(CommError.Type.IO_CHANNEL_FAILED_READING, e));
+                return false;
             }
-        } catch (ClassNotFoundException e) {
-            // the class for an received object was not found. This is notified with an error and a stop
-            communicationModule.notifyError(new CommError(CommError.Type.UNKNOWN_CLASS_RECEIVED, e));
-            return new StopReadingMessages();
-        } catch (IOException e) {
+        } else if (frameDecoder.isStreamChunk()) {
+            messages.add(new StreamChunk(frameDecoder.getPrefix(), frameDecoder.getPayload(), frameDecoder.isStreamEnd()));
+        } else {
+            messages.add(new ByteArrayWrapper(frameDecoder.getPrefix(), frameDecoder.getSession(), frameDecoder.getPayload()));
+        }
+        return true;
+    }
+
+    /**
+     * The input stream failed or was closed. If this happened between two frames, it is a normal disconnection.
+     * Otherwise, it is notified with an error
+     *
+     * @param e the exception raised by the stream
+     * @return a StopReadingMessages object
+     */
+    private Object stop(IOException e) {
+        if (!frameDecoder.isAtFrameBoundary()) {
             // some IOException when reading from the channel. This is notified with an error
-            communicationModule.notifyError(new CommError(CommError.Type.IO_CHANNEL_FAILED_READING, e));
+            communicationModule.notifyError(CommError.readingFailed(e));
+        }
+        return new StopReadingMessages();
+    }
+
+    private Object messagesBeforeStop(List<Object> messages) {
+        if (messages.isEmpty()) {
             return new StopReadingMessages();
         }
+        stopPending = true;
+        return readMessages(messages);
     }
 
     public void stopped() {
         // the reading process was stopped, inform the comm module
-        communicationModule.notifyDisconnected();
+        communicationModule.readerStopped();
     }
 }
@@ -0,0 +1,411 @@
+package org.aanguita.jtcpserver.communication;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A connection handled by an event loop. Incoming bytes are read by the loop thread and decoded incrementally, and
+ * complete frames are handed to the owning CommunicationModule. Writes are performed by the writing threads directly
+ * on the non-blocking channel; when the kernel send buffer is full, the writing thread waits until the loop reports
+ * the channel as writable again.
+ */
+class NioConnection {
+
+    private final CommunicationModule communicationModule;
+
+    private final SocketChannel channel;
+
+    private final EventLoop eventLoop;
+
+    private final FrameDecoder frameDecoder;
+
+    /**
+     * Selection key of this connection in the loop selector (only accessed by the loop thread)
+     */
+    private SelectionKey key;
+
+    /**
+     * Bytes already read but not yet decoded because reading was suspended (only accessed by the loop thread)
+     */
+    private ByteBuffer pendingInput;
+
+    private volatile boolean readingSuspended;
+
+    private final AtomicBoolean closed;
+
+    private final Object writeMonitor;
+
+    private boolean writeReady;
+
+    private final OutputStream outputStream;
+
+    private final EventLoop.Task resumeTask;
+
+    private final EventLoop.Task enableWriteTask;
+
+    /**
+     * Outbound queue of the module, set when the loop is asked to drain it
+     */
+    private volatile OutboundQueue outboundQueue;
+
+    private final EventLoop.Task drainTask;
+
+    /**
+     * Whether the loop is draining the outbound queue and waiting for the channel to become writable (only accessed
+     * by the loop thread)
+     */
+    private boolean drainPending;
+
+    /**
+     * Buffers of the frames being drained, and futures of the written frames (only accessed by the loop thread)
+     */
+    private ByteBuffer[] drainBuffers;
+
+    private List<CompletableFuture<Void>> completedFutures;
+
+    NioConnection(CommunicationModule communicationModule, SocketChannel channel, EventLoop eventLoop) throws IOException {
+        this.communicationModule = communicationModule;
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        channel.configureBlocking(false);
+        frameDecoder = new FrameDecoder(communicationModule.isPrefixedFrames(), communicationModule.getMaxFrameSize());
+        key = null;
+        pendingInput = null;
+        readingSuspended = false;
+        closed = new AtomicBoolean(false);
+        writeMonitor = new Object();
+        writeReady = true;
+        outputStream = new ChannelOutputStream();
+        resumeTask = new EventLoop.Task(this) {
+            @Override
+            public void run() {
+                resumeInLoop();
+            }
+        };
+        enableWriteTask = new EventLoop.Task(this) {
+            @Override
+            public void run() {
+                enableWriteInLoop();
+            }
+        };
+        outboundQueue = null;
+        drainTask = new EventLoop.Task(this) {
+            @Override
+            public void run() {
+                drainInLoop();
+            }
+        };
+        drainPending = false;
+    }
+
+    /**
+     * Registers this connection in its event loop, so incoming data starts being read
+     */
+    void start() {
+        eventLoop.register(this);
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    void registered(SelectionKey key) {
+        this.key = key;
+        if (closed.get()) {
+            key.cancel();
+        } else if (readingSuspended) {
+            key.interestOps(0);
+        }
+    }
+
+    void failed(IOException e) {
+        communicationModule.notifyError(CommError.readingFailed(e));
+        close();
+    }
+
+    /**
+     * Something unexpected was thrown while handling this connection in the loop thread (e.g. a RuntimeException of
+     * the code receiving the messages, or a StackOverflowError decoding one). Only this connection is closed
+     *
+     * @param t what was thrown
+     */
+    void failed(Throwable t) {
+        communicationModule.notifyError(CommError.readingFailed(new IOException("Unexpected failure handling the connection", t)));
+        close();
+    }
+
+    /**
+     * Stops delivering incoming messages until resumeReading is invoked. Bytes already received are kept, and the
+     * kernel receive buffer eventually fills up, which slows down the other end
+     */
+    void suspendReading() {
+        readingSuspended = true;
+    }
+
+    /**
+     * Resumes the delivery of incoming messages
+     */
+    void resumeReading() {
+        readingSuspended = false;
+        eventLoop.execute(resumeTask);
+    }
+
+    void handleReadable(ByteBuffer readBuffer) {
+        if (readingSuspended) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            return;
+        }
+        readBuffer.clear();
+        int count;
+        try {
+            count = channel.read(readBuffer);
+        } catch (IOException e) {
+            readFailed(e);
+            return;
+        }
+        if (count < 0) {
+            readFailed(new EOFException());
+            return;
+        }
+        communicationModule.dataRead(count);
+        readBuffer.flip();
+        decode(readBuffer);
+        if (readBuffer.hasRemaining() && !closed.get()) {
+            // reading was suspended in the middle of the buffer -> keep the rest until reading is resumed
+            pendingInput = ByteBuffer.allocate(readBuffer.remaining());
+            pendingInput.put(readBuffer);
+            pendingInput.flip();
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    void handleWritable() {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        signalWriteReady();
+        if (drainPending) {
+            drainInLoop();
+        }
+    }
+
+    boolean inLoopThread() {
+        return eventLoop.inLoopThread();
+    }
+
+    /**
+     * Asks the loop to write the frames of the outbound queue. The caller must own the output of the queue
+     *
+     * @param outboundQueue the queue to drain
+     */
+    void drainOutbound(OutboundQueue outboundQueue) {
+        this.outboundQueue = outboundQueue;
+        eventLoop.execute(drainTask);
+    }
+
+    /**
+     * Closes the channel and stops reading. The CommunicationModule is notified (only once) by the loop thread
+     */
+    void close() {
+        if (closed.compareAndSet(false, true)) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            signalWriteReady();
+            // the notification is always issued as a loop task, so it never runs inside the caller's locks
+            eventLoop.execute(new EventLoop.Task(this) {
+                @Override
+                public void run() {
+                    if (key != null) {
+                        key.cancel();
+                    }
+                    communicationModule.readerStopped();
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes all the bytes of a buffer, waiting for the channel to become writable when the kernel send buffer is full
+     *
+     * @param buffer the bytes to write
+     * @throws IOException if the channel fails or is closed
+     */
+    void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                awaitWritable();
+            }
+        }
+    }
+
+    /**
+     * Gathering version of writeFully, so several buffers are written with a single system call when possible
+     *
+     * @param buffers buffers to write, in order
+     * @throws IOException if the channel fails, or the writing thread is interrupted
+     */
+    void writeFully(ByteBuffer[] buffers) throws IOException {
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining()) {
+            if (channel.write(buffers) == 0) {
+                awaitWritable();
+            }
+        }
+    }
+
+    private void decode(ByteBuffer buffer) {
+        try {
+            while (!readingSuspended && !closed.get() && frameDecoder.decodeNext(buffer)) {
+                communicationModule.frameReceived(frameDecoder);
+            }
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    private void readFailed(IOException e) {
+        // same criteria as the blocking reader: a connection closed between frames is a normal disconnection
+        if (!frameDecoder.isAtFrameBoundary()) {
+            communicationModule.notifyError(CommError.readingFailed(e));
+        }
+        close();
+    }
+
+    private void resumeInLoop() {
+        if (closed.get() || readingSuspended) {
+            return;
+        }
+        if (pendingInput != null) {
+            decode(pendingInput);
+            if (pendingInput.hasRemaining()) {
+                // suspended again
+                return;
+            }
+            pendingInput = null;
+        }
+        if (key != null && key.isValid() && !readingSuspended) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Writes queued frames with gathering writes until the queue is empty or the kernel send buffer is full. In the
+     * latter case, the drain continues when the channel becomes writable
+     */
+    private void drainInLoop() {
+        drainPending = false;
+        if (closed.get()) {
+            return;
+        }
+        if (drainBuffers == null) {
+            drainBuffers = new ByteBuffer[CommunicationModule.DRAIN_BATCH_SIZE];
+            completedFutures = new ArrayList<>();
+        }
+        int count;
+        while (true) {
+            long written;
+            long start;
+            try {
+                count = outboundQueue.headBuffers(drainBuffers);
+                if (count == 0) {
+                    return;
+                }
+                start = System.nanoTime();
+                written = channel.write(drainBuffers, 0, count);
+            } catch (IOException e) {
+                Arrays.fill(drainBuffers, null);
+                communicationModule.notifyError(new CommError(CommError.Type.IO_CHANNEL_FAILED_WRITING, e));
+                close();
+                return;
+            }
+            boolean full = drainBuffers[count - 1].hasRemaining();
+            Arrays.fill(drainBuffers, 0, count, null);
+            if (written > 0) {
+                communicationModule.dataWritten(written, start);
+            }
+            outboundQueue.removeWritten(written, completedFutures);
+            CommunicationModule.completeFutures(completedFutures);
+            if (full) {
+                // the kernel send buffer is full -> continue when the channel is writable
+                drainPending = true;
+                if (key != null && key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                } else {
+                    // not registered yet, try again later
+                    eventLoop.execute(drainTask);
+                }
+                return;
+            }
+        }
+    }
+
+    private void enableWriteInLoop() {
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } else {
+            signalWriteReady();
+        }
+    }
+
+    private void awaitWritable() throws IOException {
+        if (eventLoop.inLoopThread()) {
+            throw new IOException("Blocking write attempted from an event loop thread");
+        }
+        synchronized (writeMonitor) {
+            writeReady = false;
+        }
+        eventLoop.execute(enableWriteTask);
+        synchronized (writeMonitor) {
+            while (!writeReady) {
+                try {
+                    writeMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        if (closed.get()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private void signalWriteReady() {
+        synchronized (writeMonitor) {
+            writeReady = true;
+            writeMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Output stream view of the non-blocking channel, used by the CommunicationModule write methods
+     */
+    private class ChannelOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeFully(ByteBuffer.wrap(b, off, len));
+        }
+    }
+}
@@ -0,0 +1,1056 @@
+package org.aanguita.jtcpserver.communication;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Bounded queue of encoded frames waiting to be written to a connection. Frames are appended by the writing threads
+ * and drained by a writer (the event loop of the connection, or a dedicated writer thread).
+ * <p/>
+ * The queue also arbitrates the ownership of the connection output: at most one party writes to the socket at any
+ * time, either a synchronous writer that found the queue idle, or the writer draining the queue. This keeps frames
+ * whole and in order.
+ * <p/>
+ * The number of queued bytes is compared with a high and a low water mark. When it rises above the high mark the
+ * connection is reported as not writable, and when it falls below the low mark it is reported as writable again.
+ * The listener is invoked while holding the lock of the queue, so it must return quickly.
+ * <p/>
+ * Frames can also be offered under a SlowConsumerPolicy, which decides what to do with them when the connection falls
+ * behind. Offered frames that are being written (or about to be) are never discarded. Spilled frames keep their place
+ * in the queue, and are read back from the spill file when the drainer reaches them.
+ * <p/>
+ * Each frame belongs to a lane (e.g. the channel of a ChannelModule). By default all frames are written in FIFO
+ * order. Lanes can be given their own scheduling settings (setLane): frames of such lanes wait in separate queues,
+ * and the drainer picks the next frame with strict priority between priority levels, and deficit round robin
+ * (weighted by bytes) between the lanes of the same level. Frames of lanes without settings share the default lane
+ * (priority 0, weight 1), and keep their FIFO order among them. The drainer only schedules a few frames ahead of the
+ * writes (SCHEDULE_AHEAD_BYTES), so a frame of a high priority lane waits at most for those.
+ * <p/>
+ * The time that frames wait until they are completely written is recorded per lane (getQueueingDelay). Frames
+ * written directly by synchronous writers count with zero delay.
+ * <p/>
+ * Big prefixed messages can be queued whole, for being fragmented (see FrameEncoder). Fragments are encoded lazily,
+ * one by one, when the drainer schedules them, so the fragments of a message are interleaved with the frames of
+ * other lanes. Fragmentation requires fair lanes (enableFairLanes): every lane without scheduling settings gets its
+ * own queue (priority 0, weight 1) instead of sharing the default lane, so a big message only delays the frames of
+ * its own lane. The order of the frames of each lane is kept, but not the order across lanes.
+ * <p/>
+ * Lanes can also be flow controlled with credits (enableCredits), given by the receiver of the frames: each frame (or
+ * message to be fragmented) of a credited lane takes one credit when it is scheduled. A lane without credits is
+ * blocked: its frames wait, out of the round robin, until more credits are granted, while the other lanes go on. The
+ * last lane (LANE_COUNT - 1) and the default lane are never flow controlled.
+ */
+class OutboundQueue {
+
+    /**
+     * Receiver of writability changes
+     */
+    interface WritabilityListener {
+
+        void writabilityChanged(boolean writable);
+    }
+
+    /**
+     * Lane of the frames written without lane
+     */
+    static final int DEFAULT_LANE = -1;
+
+    /**
+     * Number of lanes that can be given their own scheduling settings (0 to LANE_COUNT - 1)
+     */
+    static final int LANE_COUNT = 256;
+
+    /**
+     * Bytes added to the deficit of a lane per unit of weight, each time its round robin turn comes
+     */
+    private static final int QUANTUM = 16 * 1024;
+
+    /**
+     * Maximum bytes handed to the drainer ahead of the writes (at least one frame is always handed)
+     */
+    private static final int SCHEDULE_AHEAD_BYTES = 64 * 1024;
+
+    /**
+     * An encoded frame and the future that completes when it has been fully written. It can also be a whole message
+     * waiting to be fragmented, whose future completes when its last fragment has been written
+     */
+    static class Frame {
+
+        /**
+         * Contents of the frame (null while the frame is spilled)
+         */
+        private ByteBuffer buffer;
+
+        private final int length;
+
+        /**
+         * Future of the frame (null for fragments other than the last one of their message)
+         */
+        private final CompletableFuture<Void> future;
+
+        private final long enqueueNanos;
+
+        /**
+         * Whether the frame was offered under a slow consumer policy (only these frames can be discarded)
+         */
+        private final boolean offered;
+
+        private final Object conflationKey;
+
+        private final int lane;
+
+        /**
+         * Whether the frame was handed to the drainer. From then on, it cannot be discarded
+         */
+        private boolean inFlight;
+
+        private long spillOffset;
+
+        /**
+         * For messages waiting to be fragmented (null otherwise): the message, whether it is an encoded object, the
+         * maximum size of the fragments and the position of the next fragment
+         */
+        private final byte[] message;
+
+        private final boolean objectMessage;
+
+        private final int fragmentSize;
+
+        private int fragmentOffset;
+
+        Frame(byte[] frame, int lane) {
+            this(frame, lane, false, null);
+        }
+
+        Frame(byte[] frame, int lane, Object conflationKey) {
+            this(frame, lane, true, conflationKey);
+        }
+
+        private Frame(byte[] frame, int lane, boolean offered, Object conflationKey) {
+            this(frame, frame.length, lane, new CompletableFuture<Void>(), System.nanoTime(), offered, conflationKey, null, false, 0);
+        }
+
+        /**
+         * Creates a message to be sent in fragments
+         *
+         * @param prefix        prefix of the message, which is also its lane
+         * @param objectMessage true if the message is an encoded object, false if it is a byte array
+         * @param message       the message (it must not be modified until the future completes)
+         * @param fragmentSize  maximum bytes of the message carried by each fragment
+         */
+        Frame(int prefix, boolean objectMessage, byte[] message, int fragmentSize) {
+            this(null, (int) FrameEncoder.fragmentedLength(message.length, fragmentSize), prefix, new CompletableFuture<Void>(), System.nanoTime(), false, null, message, objectMessage, fragmentSize);
+        }
+
+        private Frame(byte[] frame, int length, int lane, CompletableFuture<Void> future, long enqueueNanos, boolean offered, Object conflationKey, byte[] message, boolean objectMessage, int fragmentSize) {
+            buffer = frame != null ? ByteBuffer.wrap(frame) : null;
+            this.length = length;
+            this.future = future;
+            this.enqueueNanos = enqueueNanos;
+            this.offered = offered;
+            this.conflationKey = conflationKey;
+            this.lane = lane;
+            inFlight = false;
+            spillOffset = -1L;
+            this.message = message;
+            this.objectMessage = objectMessage;
+            this.fragmentSize = fragmentSize;
+            fragmentOffset = 0;
+        }
+
+        /**
+         * Encodes the next fragment of this message. The last fragment carries the future of the message
+         *
+         * @return the fragment
+         */
+        private Frame nextFragment() {
+            byte[] fragment = FrameEncoder.encodeFragment(lane, objectMessage, message, fragmentOffset, fragmentSize);
+            fragmentOffset += Math.min(fragmentSize, message.length - fragmentOffset);
+            boolean last = fragmentOffset == message.length;
+            return new Frame(fragment, fragment.length, lane, last ? future : null, enqueueNanos, false, null, null, false, 0);
+        }
+
+        /**
+         * Computes the length of the next fragment of this message, without encoding it
+         */
+        private int nextFragmentLength() {
+            return FrameEncoder.fragmentLength(message.length, fragmentOffset, fragmentSize);
+        }
+
+        CompletableFuture<Void> getFuture() {
+            return future;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        int getLane() {
+            return lane;
+        }
+    }
+
+    /**
+     * Queue of the frames of a lane with scheduling settings (or of the default lane), waiting to be scheduled
+     */
+    private static class Lane {
+
+        /**
+         * Lane of the frames of this queue (DEFAULT_LANE for the default lane)
+         */
+        private final int id;
+
+        private final ArrayDeque<Frame> frames;
+
+        private int priority;
+
+        private int weight;
+
+        /**
+         * Bytes that the lane can still send in its current round robin turn
+         */
+        private long deficit;
+
+        /**
+         * Whether the quantum of the current turn was already added to the deficit
+         */
+        private boolean granted;
+
+        /**
+         * Whether the lane was given scheduling settings with setLane (otherwise, it is a fair lane with the default
+         * settings)
+         */
+        private boolean configured;
+
+        private Lane(int id, int priority, int weight) {
+            this.id = id;
+            frames = new ArrayDeque<>();
+            this.priority = priority;
+            this.weight = weight;
+            deficit = 0L;
+            granted = false;
+            configured = true;
+        }
+    }
+
+    /**
+     * Queueing delay accumulated by the frames of a lane
+     */
+    private static class DelayStats {
+
+        private long frames;
+
+        private long totalNanos;
+
+        private long maxNanos;
+
+        private void record(long nanos) {
+            frames++;
+            totalNanos += nanos;
+            if (nanos > maxNanos) {
+                maxNanos = nanos;
+            }
+        }
+    }
+
+    /**
+     * Frames scheduled for writing, in write order. The drainer writes them from the head
+     */
+    private final ArrayDeque<Frame> frames;
+
+    /**
+     * Lanes with scheduling settings, indexed by lane (null until some lane is given settings). While null, all
+     * frames go directly to the scheduled frames
+     */
+    private Lane[] lanes;
+
+    /**
+     * Lane of the frames without own scheduling settings, once some lane has them
+     */
+    private Lane defaultLane;
+
+    /**
+     * Whether each lane without scheduling settings gets its own queue, instead of sharing the default lane
+     */
+    private boolean fairLanes;
+
+    /**
+     * Credits of the lanes, indexed by lane (null while flow control is not enabled)
+     */
+    private long[] credits;
+
+    /**
+     * Lanes with frames waiting to be scheduled, by decreasing priority (lanes of the same priority keep their
+     * activation order)
+     */
+    private final List<Lane> activeLanes;
+
+    /**
+     * Position of the round robin in activeLanes
+     */
+    private int roundRobin;
+
+    /**
+     * Frames and bytes waiting in the lanes, not yet scheduled
+     */
+    private int pendingFrames;
+
+    private long pendingBytes;
+
+    /**
+     * Queueing delay of each lane, indexed by lane + 1 (created on first use)
+     */
+    private DelayStats[] delayStats;
+
+    private final int lowWaterMark;
+
+    private final int highWaterMark;
+
+    private final long limit;
+
+    private final WritabilityListener writabilityListener;
+
+    /**
+     * Bytes of the queued frames not yet written
+     */
+    private long queuedBytes;
+
+    /**
+     * Whether some party is currently writing to the connection
+     */
+    private boolean owned;
+
+    private boolean writable;
+
+    /**
+     * Set when the connection is closed. If not null, new frames are rejected with this exception
+     */
+    private IOException closedException;
+
+    /**
+     * Set when an offered frame finds the connection behind, and cleared when the queued bytes fall to half of the
+     * limit of the policy
+     */
+    private boolean slowConsumer;
+
+    private long slowConsumerResetBytes;
+
+    /**
+     * Spill file (created on first use) and the bytes and frames currently stored in it
+     */
+    private File spillFile;
+
+    private RandomAccessFile spill;
+
+    private long spillPosition;
+
+    private long spilledBytes;
+
+    private int spilledFrames;
+
+    OutboundQueue(int lowWaterMark, int highWaterMark, long limit, WritabilityListener writabilityListener) {
+        frames = new ArrayDeque<>();
+        lanes = null;
+        defaultLane = null;
+        fairLanes = false;
+        credits = null;
+        activeLanes = new ArrayList<>();
+        roundRobin = 0;
+        pendingFrames = 0;
+        pendingBytes = 0L;
+        delayStats = null;
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+        this.limit = limit;
+        this.writabilityListener = writabilityListener;
+        queuedBytes = 0L;
+        owned = false;
+        writable = true;
+        closedException = null;
+        slowConsumer = false;
+        slowConsumerResetBytes = 0L;
+        spillFile = null;
+        spill = null;
+        spillPosition = 0L;
+        spilledBytes = 0L;
+        spilledFrames = 0;
+    }
+
+    /**
+     * Takes the ownership of the output for a direct write, if nobody is writing, there are no frames waiting to be
+     * written (frames of blocked lanes do not count) and the lane of the frame has credits (one is taken)
+     *
+     * @param lane lane of the frame to write
+     * @return true if the ownership was taken (it must be returned with release), false otherwise
+     */
+    synchronized boolean acquireIfIdle(int lane) {
+        if (owned || !frames.isEmpty() || !activeLanes.isEmpty()) {
+            return false;
+        }
+        if (isCredited(lane)) {
+            if (credits[lane] == 0) {
+                return false;
+            }
+            credits[lane]--;
+        }
+        owned = true;
+        return true;
+    }
+
+    /**
+     * Returns the ownership taken with acquireIfIdle. If frames were queued in the meantime, the ownership is kept for
+     * draining them
+     *
+     * @param lane lane of the frame written directly (recorded with zero queueing delay)
+     * @return true if a drain of the queue must be started
+     */
+    synchronized boolean release(int lane) {
+        recordDelay(lane, 0L);
+        owned = !frames.isEmpty() || !activeLanes.isEmpty();
+        return owned;
+    }
+
+    /**
+     * Gives a lane its own scheduling settings, or changes them
+     *
+     * @param lane     the lane (0 to LANE_COUNT - 1)
+     * @param priority priority of the lane. While frames of higher priority lanes are waiting, frames of lower
+     *                 priority lanes are not written. The default lane has priority 0
+     * @param weight   share of the bandwidth among the waiting lanes of the same priority (at least 1). The default
+     *                 lane has weight 1
+     */
+    synchronized void setLane(int lane, int priority, int weight) {
+        createLanes();
+        Lane laneQueue = lanes[lane];
+        if (laneQueue == null) {
+            lanes[lane] = new Lane(lane, priority, weight);
+        } else {
+            changeSettings(laneQueue, priority, weight);
+            laneQueue.configured = true;
+        }
+    }
+
+    /**
+     * Removes the scheduling settings of a lane. Its new frames go to the default lane (frames already waiting are
+     * still scheduled with the former settings). With fair lanes, the lane keeps its own queue, with the default
+     * settings
+     *
+     * @param lane the lane (0 to LANE_COUNT - 1)
+     */
+    synchronized void clearLane(int lane) {
+        if (lanes != null) {
+            if (fairLanes && lanes[lane] != null) {
+                changeSettings(lanes[lane], 0, 1);
+                lanes[lane].configured = false;
+            } else {
+                lanes[lane] = null;
+            }
+        }
+    }
+
+    /**
+     * Gives each lane without scheduling settings its own queue (priority 0, weight 1), so the lanes share the
+     * connection fairly instead of waiting in FIFO order. This is needed for fragmenting messages, and cannot be
+     * undone. Frames waiting in the default lane are scheduled right away, so they keep their order with the new
+     * frames of their lanes
+     */
+    synchronized void enableFairLanes() {
+        if (fairLanes) {
+            return;
+        }
+        createLanes();
+        fairLanes = true;
+        if (!defaultLane.frames.isEmpty()) {
+            pendingFrames -= defaultLane.frames.size();
+            for (Frame frame : defaultLane.frames) {
+                pendingBytes -= frame.length;
+            }
+            frames.addAll(defaultLane.frames);
+            defaultLane.frames.clear();
+            deactivate(defaultLane);
+        }
+    }
+
+    private void createLanes() {
+        if (lanes == null) {
+            lanes = new Lane[LANE_COUNT];
+            defaultLane = new Lane(DEFAULT_LANE, 0, 1);
+        }
+    }
+
+    /**
+     * Enables the flow control of the lanes (except the last one and the default lane) with credits. Fair lanes are
+     * enabled too, so a blocked lane only holds its own frames. If already enabled, nothing happens
+     *
+     * @param initialCredits credits of each lane
+     */
+    synchronized void enableCredits(int initialCredits) {
+        if (credits != null) {
+            return;
+        }
+        enableFairLanes();
+        credits = new long[LANE_COUNT];
+        for (int i = 0; i < LANE_COUNT - 1; i++) {
+            credits[i] = initialCredits;
+        }
+    }
+
+    /**
+     * Adds credits to a lane. If the lane was blocked, its waiting frames can be scheduled again
+     *
+     * @param lane    the lane (0 to LANE_COUNT - 2)
+     * @param granted credits to add
+     * @return true if a drain of the queue must be started
+     */
+    synchronized boolean grantCredits(int lane, int granted) {
+        if (credits == null || !isCredited(lane) || closedException != null) {
+            return false;
+        }
+        credits[lane] += granted;
+        Lane laneQueue = lanes[lane];
+        if (laneQueue != null && !laneQueue.frames.isEmpty() && !activeLanes.contains(laneQueue)) {
+            activate(laneQueue);
+            if (!owned) {
+                owned = true;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Retrieves the credits of a lane
+     *
+     * @param lane the lane
+     * @return the credits of the lane, or -1 if it is not flow controlled
+     */
+    synchronized long getCredits(int lane) {
+        return isCredited(lane) ? credits[lane] : -1L;
+    }
+
+    /**
+     * Says whether a lane is flow controlled
+     */
+    private boolean isCredited(int lane) {
+        return credits != null && lane >= 0 && lane < LANE_COUNT - 1;
+    }
+
+    /**
+     * Says whether a lane with frames must wait for credits: it has none left, and the frame at its head (which is
+     * not a message already partially fragmented) needs one
+     */
+    private boolean isBlocked(Lane lane) {
+        if (!isCredited(lane.id) || credits[lane.id] > 0) {
+            return false;
+        }
+        Frame head = lane.frames.peek();
+        return head.message == null || head.fragmentOffset == 0;
+    }
+
+    /**
+     * Lanes with frames waiting to be scheduled, including the blocked ones
+     */
+    private List<Lane> waitingLanes() {
+        if (credits == null) {
+            return new ArrayList<>(activeLanes);
+        }
+        List<Lane> waitingLanes = new ArrayList<>();
+        for (Lane lane : lanes) {
+            if (lane != null && !lane.frames.isEmpty()) {
+                waitingLanes.add(lane);
+            }
+        }
+        if (!defaultLane.frames.isEmpty()) {
+            waitingLanes.add(defaultLane);
+        }
+        return waitingLanes;
+    }
+
+    private void changeSettings(Lane lane, int priority, int weight) {
+        if (lane.priority != priority || lane.weight != weight) {
+            boolean active = deactivate(lane);
+            lane.priority = priority;
+            lane.weight = weight;
+            if (active) {
+                activate(lane);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the queueing delay recorded for the frames of a lane
+     *
+     * @param lane the lane (0 to LANE_COUNT - 1, or DEFAULT_LANE)
+     * @return the queueing delay of the lane
+     */
+    synchronized QueueingDelay getQueueingDelay(int lane) {
+        DelayStats stats = delayStats != null ? delayStats[lane + 1] : null;
+        return stats != null ? new QueueingDelay(stats.frames, stats.totalNanos, stats.maxNanos) : new QueueingDelay(0L, 0L, 0L);
+    }
+
+    private void recordDelay(int lane, long nanos) {
+        if (delayStats == null) {
+            delayStats = new DelayStats[LANE_COUNT + 1];
+        }
+        DelayStats stats = delayStats[lane + 1];
+        if (stats == null) {
+            stats = new DelayStats();
+            delayStats[lane + 1] = stats;
+        }
+        stats.record(nanos);
+    }
+
+    /**
+     * Appends a frame to the queue. If the connection is closed or the queue limit would be exceeded, the future of
+     * the frame is completed exceptionally and the frame is discarded
+     *
+     * @param frame the frame to append
+     * @return true if a drain of the queue must be started
+     */
+    boolean enqueue(Frame frame) {
+        return enqueue(frame, true);
+    }
+
+    /**
+     * Appends a frame to the queue, optionally ignoring the queue limit (synchronous writers, which wait for their
+     * frames, are not limited)
+     *
+     * @param frame   the frame to append
+     * @param limited whether the queue limit applies to the frame
+     * @return true if a drain of the queue must be started
+     */
+    boolean enqueue(Frame frame, boolean limited) {
+        IOException rejection = null;
+        boolean startDrain = false;
+        synchronized (this) {
+            if (closedException != null) {
+                rejection = closedException;
+            } else if (limited && queuedBytes - spilledBytes + frame.length > limit) {
+                rejection = new OutboundQueueFullException(limit);
+            } else {
+                startDrain = append(frame);
+            }
+        }
+        if (rejection != null) {
+            frame.future.completeExceptionally(rejection);
+        }
+        return startDrain;
+    }
+
+    /**
+     * Appends a frame under a slow consumer policy. If the connection is behind, the policy is applied (see
+     * SlowConsumerPolicy) and the connection is marked as slow consumer
+     *
+     * @param frame  the frame to append, created with a conflation key
+     * @param policy the policy to apply
+     * @return true if a drain of the queue must be started
+     */
+    boolean offer(Frame frame, SlowConsumerPolicy policy) {
+        IOException rejection = null;
+        boolean cancel = false;
+        boolean startDrain = false;
+        List<Frame> discarded = null;
+        synchronized (this) {
+            long max = policy.getMaxQueuedBytes();
+            boolean behind;
+            if (policy.getType() == SlowConsumerPolicy.Type.SPILL) {
+                // the limit applies to the frames in memory. Once some frame is spilled, the next ones follow it
+                behind = spilledFrames > 0 || queuedBytes - spilledBytes + frame.length > max;
+            } else {
+                behind = queuedBytes + frame.length > max || (policy.getMaxLagMillis() >= 0 && queuedBytes > 0 &&
+                        System.nanoTime() - oldestEnqueueNanos() > policy.getMaxLagMillis() * 1000000L);
+            }
+            if (closedException != null) {
+                rejection = closedException;
+            } else if (queuedBytes - spilledBytes + frame.length > limit && !(behind && policy.getType() == SlowConsumerPolicy.Type.SPILL)) {
+                // the limit applies to the frames kept in memory
+                rejection = new OutboundQueueFullException(limit);
+            } else if (behind) {
+                slowConsumer = true;
+                slowConsumerResetBytes = max / 2;
+                switch (policy.getType()) {
+                    case DROP_OLDEST:
+                        discarded = discardOffered(null, queuedBytes + frame.length - max);
+                        startDrain = append(frame);
+                        break;
+                    case CONFLATE:
+                        discarded = discardOffered(frame.conflationKey, Long.MAX_VALUE);
+                        startDrain = append(frame);
+                        break;
+                    case SPILL:
+                        try {
+                            spill(frame, policy.getSpillDirectory());
+                            startDrain = append(frame);
+                        } catch (IOException e) {
+                            rejection = e;
+                        }
+                        break;
+                    default:
+                        // DROP_NEWEST and DISCONNECT
+                        cancel = true;
+                }
+            } else {
+                startDrain = append(frame);
+            }
+        }
+        if (rejection != null) {
+            frame.future.completeExceptionally(rejection);
+        } else if (cancel) {
+            frame.future.cancel(false);
+        }
+        if (discarded != null) {
+            for (Frame discardedFrame : discarded) {
+                discardedFrame.future.cancel(false);
+            }
+        }
+        return startDrain;
+    }
+
+    private boolean append(Frame frame) {
+        Lane lane = laneOf(frame.lane);
+        if (lane == null) {
+            frames.add(frame);
+        } else {
+            lane.frames.add(frame);
+            pendingFrames++;
+            pendingBytes += frame.length;
+            if (lane.frames.size() == 1 && !isBlocked(lane)) {
+                activate(lane);
+            }
+        }
+        queuedBytes += frame.length;
+        if (writable && queuedBytes > highWaterMark) {
+            writable = false;
+            writabilityListener.writabilityChanged(false);
+        }
+        if (!owned) {
+            owned = true;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Retrieves the lane queue where a new frame must wait. With fair lanes, the queue of the lane is created if
+     * needed
+     *
+     * @param lane lane of the frame
+     * @return the lane queue, or null if the frame goes directly to the scheduled frames
+     */
+    private Lane laneOf(int lane) {
+        if (lanes == null) {
+            return null;
+        }
+        if (lane == DEFAULT_LANE) {
+            return defaultLane;
+        }
+        Lane laneQueue = lanes[lane];
+        if (laneQueue == null && fairLanes) {
+            laneQueue = new Lane(lane, 0, 1);
+            laneQueue.configured = false;
+            lanes[lane] = laneQueue;
+        }
+        return laneQueue != null ? laneQueue : defaultLane;
+    }
+
+    /**
+     * Adds a lane to the active lanes, after the active lanes with the same or higher priority
+     */
+    private void activate(Lane lane) {
+        int index = 0;
+        while (index < activeLanes.size() && activeLanes.get(index).priority >= lane.priority) {
+            index++;
+        }
+        activeLanes.add(index, lane);
+        if (index <= roundRobin && activeLanes.size() > 1) {
+            // keep the round robin at the same lane
+            roundRobin++;
+        }
+    }
+
+    /**
+     * Removes a lane from the active lanes, and resets its round robin state
+     *
+     * @return true if the lane was active
+     */
+    private boolean deactivate(Lane lane) {
+        int index = activeLanes.indexOf(lane);
+        if (index < 0) {
+            return false;
+        }
+        activeLanes.remove(index);
+        if (index < roundRobin) {
+            roundRobin--;
+        }
+        lane.deficit = 0L;
+        lane.granted = false;
+        return true;
+    }
+
+    /**
+     * Takes the next frame from the lanes: strict priority between priority levels, deficit round robin between the
+     * lanes of the highest waiting priority. Messages to be fragmented give one fragment each time. Frames of credited
+     * lanes take a credit (messages, with their first fragment), and lanes left without credits are blocked. There
+     * must be some active lane
+     *
+     * @return the next frame to write
+     */
+    private Frame nextPendingFrame() {
+        int topPriority = activeLanes.get(0).priority;
+        while (true) {
+            if (roundRobin >= activeLanes.size() || activeLanes.get(roundRobin).priority != topPriority) {
+                roundRobin = 0;
+            }
+            Lane lane = activeLanes.get(roundRobin);
+            if (!lane.granted) {
+                lane.deficit += (long) QUANTUM * lane.weight;
+                lane.granted = true;
+            }
+            Frame frame = lane.frames.peek();
+            int length = frame.message != null ? frame.nextFragmentLength() : frame.length;
+            if (length <= lane.deficit) {
+                lane.deficit -= length;
+                pendingBytes -= length;
+                if (isCredited(lane.id) && (frame.message == null || frame.fragmentOffset == 0)) {
+                    credits[lane.id]--;
+                }
+                if (frame.message != null) {
+                    frame = frame.nextFragment();
+                    if (frame.future == null) {
+                        // more fragments to go
+                        return frame;
+                    }
+                }
+                lane.frames.poll();
+                pendingFrames--;
+                if (lane.frames.isEmpty() || isBlocked(lane)) {
+                    // the round robin moves on to the next lane, which takes the place of this one
+                    deactivate(lane);
+                }
+                return frame;
+            }
+            // the turn of this lane is over, its deficit is kept for the next one
+            lane.granted = false;
+            roundRobin++;
+        }
+    }
+
+    /**
+     * Moves frames from the lanes to the scheduled frames, until enough bytes are scheduled ahead of the writes
+     *
+     * @param maxFrames maximum number of scheduled frames
+     */
+    private void schedule(int maxFrames) {
+        while (!activeLanes.isEmpty() && frames.size() < maxFrames && (frames.isEmpty() || queuedBytes - pendingBytes < SCHEDULE_AHEAD_BYTES)) {
+            frames.add(nextPendingFrame());
+        }
+    }
+
+    private long oldestEnqueueNanos() {
+        long oldest = frames.isEmpty() ? Long.MAX_VALUE : frames.peek().enqueueNanos;
+        for (Lane lane : waitingLanes()) {
+            oldest = Math.min(oldest, lane.frames.peek().enqueueNanos);
+        }
+        return oldest;
+    }
+
+    /**
+     * Removes queued offered frames which are not in flight: first the scheduled ones, then those waiting in each
+     * lane (oldest first within each lane)
+     *
+     * @param conflationKey if not null, only the frames with this conflation key are removed
+     * @param bytes         number of bytes to remove (removal stops when reached)
+     * @return the removed frames
+     */
+    private List<Frame> discardOffered(Object conflationKey, long bytes) {
+        List<Frame> discarded = new ArrayList<>();
+        bytes = discardOffered(frames, conflationKey, bytes, discarded);
+        for (Lane lane : waitingLanes()) {
+            int removed = discarded.size();
+            long laneBytes = bytes;
+            bytes = discardOffered(lane.frames, conflationKey, bytes, discarded);
+            pendingFrames -= discarded.size() - removed;
+            pendingBytes -= laneBytes - bytes;
+            if (lane.frames.isEmpty()) {
+                deactivate(lane);
+            }
+        }
+        return discarded;
+    }
+
+    private long discardOffered(ArrayDeque<Frame> queue, Object conflationKey, long bytes, List<Frame> discarded) {
+        Iterator<Frame> iterator = queue.iterator();
+        while (bytes > 0 && iterator.hasNext()) {
+            Frame frame = iterator.next();
+            if (frame.offered && !frame.inFlight && (conflationKey == null || conflationKey.equals(frame.conflationKey))) {
+                iterator.remove();
+                queuedBytes -= frame.length;
+                bytes -= frame.length;
+                if (frame.buffer == null) {
+                    spilledBytes -= frame.length;
+                    spilledFrames--;
+                }
+                discarded.add(frame);
+            }
+        }
+        return bytes;
+    }
+
+    private void spill(Frame frame, File spillDirectory) throws IOException {
+        if (spill == null) {
+            spillFile = File.createTempFile("jtcpserver", ".spill", spillDirectory);
+            spillFile.deleteOnExit();
+            spill = new RandomAccessFile(spillFile, "rw");
+        }
+        spill.seek(spillPosition);
+        spill.write(frame.buffer.array(), frame.buffer.arrayOffset() + frame.buffer.position(), frame.length);
+        frame.spillOffset = spillPosition;
+        frame.buffer = null;
+        spillPosition += frame.length;
+        spilledBytes += frame.length;
+        spilledFrames++;
+    }
+
+    private void unspill(Frame frame) throws IOException {
+        byte[] data = new byte[frame.length];
+        spill.seek(frame.spillOffset);
+        spill.readFully(data);
+        frame.buffer = ByteBuffer.wrap(data);
+        spilledBytes -= frame.length;
+        spilledFrames--;
+        if (spilledFrames == 0) {
+            // all spilled frames are back in memory, the file can be reused from the beginning
+            spill.setLength(0L);
+            spillPosition = 0L;
+        }
+    }
+
+    /**
+     * Retrieves the buffers of the first queued frames, for being written by the drainer. Spilled frames are read
+     * back from the spill file. If the queue is empty, the ownership of the output is released
+     *
+     * @param target array where the buffers are placed
+     * @return the number of buffers placed in the array (0 if the queue is empty)
+     * @throws IOException error reading spilled frames
+     */
+    synchronized int headBuffers(ByteBuffer[] target) throws IOException {
+        schedule(target.length);
+        int count = 0;
+        for (Frame frame : frames) {
+            if (count == target.length) {
+                break;
+            }
+            if (frame.buffer == null) {
+                unspill(frame);
+            }
+            frame.inFlight = true;
+            target[count++] = frame.buffer;
+        }
+        if (count == 0) {
+            owned = false;
+        }
+        return count;
+    }
+
+    /**
+     * Removes the frames whose buffers have been fully written
+     *
+     * @param written number of bytes written since the last invocation
+     * @param completed list where the futures of the removed frames are added, for being completed by the caller
+     */
+    synchronized void removeWritten(long written, List<CompletableFuture<Void>> completed) {
+        if (closedException != null) {
+            // the pending futures were already completed by close
+            return;
+        }
+        queuedBytes -= written;
+        long now = System.nanoTime();
+        while (!frames.isEmpty() && frames.peek().buffer != null && !frames.peek().buffer.hasRemaining()) {
+            Frame frame = frames.poll();
+            if (frame.future != null) {
+                recordDelay(frame.lane, now - frame.enqueueNanos);
+                completed.add(frame.future);
+            }
+        }
+        if (!writable && queuedBytes < lowWaterMark) {
+            writable = true;
+            writabilityListener.writabilityChanged(true);
+        }
+        if (slowConsumer && queuedBytes <= slowConsumerResetBytes) {
+            slowConsumer = false;
+        }
+    }
+
+    /**
+     * Says whether offered frames found the connection behind, and it has not caught up yet
+     *
+     * @return true if the connection is a slow consumer
+     */
+    synchronized boolean isSlowConsumer() {
+        return slowConsumer;
+    }
+
+    synchronized boolean isWritable() {
+        return writable;
+    }
+
+    synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Closes the queue. Queued frames are discarded and their futures completed exceptionally, and new frames are
+     * rejected
+     *
+     * @param e exception for completing the futures
+     */
+    void close(IOException e) {
+        List<Frame> discarded;
+        synchronized (this) {
+            if (closedException != null) {
+                return;
+            }
+            closedException = e;
+            discarded = new ArrayList<>(frames);
+            frames.clear();
+            for (Lane lane : waitingLanes()) {
+                discarded.addAll(lane.frames);
+                lane.frames.clear();
+                lane.deficit = 0L;
+                lane.granted = false;
+            }
+            activeLanes.clear();
+            pendingFrames = 0;
+            pendingBytes = 0L;
+            queuedBytes = 0L;
+            closeSpill();
+        }
+        for (Frame frame : discarded) {
+            if (frame.future != null) {
+                frame.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void closeSpill() {
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            spillFile.delete();
+            spill = null;
+        }
+        spilledBytes = 0L;
+        spilledFrames = 0;
+    }
+}
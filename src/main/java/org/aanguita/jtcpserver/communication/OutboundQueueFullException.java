@@ -0,0 +1,28 @@
+package org.aanguita.jtcpserver.communication;
+
+import java.io.IOException;
+
+/**
+ * An asynchronous write or an offered frame was rejected because the outbound queue of the connection was full (see
+ * CommunicationConfig.setOutboundQueueLimit). The frame is discarded, but the connection stays open
+ */
+public class OutboundQueueFullException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long limit;
+
+    OutboundQueueFullException(long limit) {
+        super("Outbound queue limit reached (" + limit + " bytes)");
+        this.limit = limit;
+    }
+
+    /**
+     * Retrieves the limit of the queue that rejected the frame
+     *
+     * @return the maximum bytes of the queue
+     */
+    public long getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,78 @@
+package org.aanguita.jtcpserver.communication;
+
+/**
+ * An object received together with a one byte prefix. When the CommunicationModule uses prefixed frames and the other
+ * point sends an object with a prefix (write(byte, Serializable, boolean)), the read object is returned inside a
+ * PrefixedObject.
+ * <p/>
+ * This object can only be created by classes of this package. However, it can be returned as a result of a read
+ * operation on the CommunicationModule
+ */
+public class PrefixedObject {
+
+    /**
+     * The prefix sent with the object
+     */
+    private final byte prefix;
+
+    /**
+     * Session to which the object is bound, or CommunicationModule.NO_SESSION
+     */
+    private final int session;
+
+    /**
+     * The received object
+     */
+    private final Object object;
+
+    /**
+     * Class constructor
+     *
+     * @param prefix the prefix sent with the object
+     * @param object the received object
+     */
+    PrefixedObject(byte prefix, Object object) {
+        this(prefix, CommunicationModule.NO_SESSION, object);
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param prefix  the prefix sent with the object
+     * @param session session to which the object is bound
+     * @param object  the received object
+     */
+    PrefixedObject(byte prefix, int session, Object object) {
+        this.prefix = prefix;
+        this.session = session;
+        this.object = object;
+    }
+
+    /**
+     * Retrieves the prefix sent with the object
+     *
+     * @return the prefix of the object
+     */
+    public byte getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Retrieves the session to which the object is bound (see CommunicationModule.write(byte, int, Serializable,
+     * boolean))
+     *
+     * @return the session of the object, or CommunicationModule.NO_SESSION if it is not bound to a session
+     */
+    public int getSession() {
+        return session;
+    }
+
+    /**
+     * Retrieves the received object
+     *
+     * @return the received object
+     */
+    public Object getObject() {
+        return object;
+    }
+}
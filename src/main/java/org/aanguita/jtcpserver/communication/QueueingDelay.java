@@ -0,0 +1,54 @@
+package org.aanguita.jtcpserver.communication;
+
+/**
+ * Time that the frames of a lane (e.g. a channel) waited in the outbound queue of a connection, from the moment they
+ * were written or queued until they were completely handed to the kernel. Frames written directly, without
+ * waiting for other frames, count with zero delay.
+ * <p/>
+ * Objects of this class are immutable snapshots
+ */
+public final class QueueingDelay {
+
+    private final long frames;
+
+    private final long totalNanos;
+
+    private final long maxNanos;
+
+    QueueingDelay(long frames, long totalNanos, long maxNanos) {
+        this.frames = frames;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+    }
+
+    /**
+     * Retrieves the number of frames written
+     *
+     * @return the frames written so far
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * Retrieves the average delay of the written frames
+     *
+     * @return the average delay, in nanoseconds (0 if no frames were written)
+     */
+    public long getAverageNanos() {
+        return frames > 0 ? totalNanos / frames : 0L;
+    }
+
+    @Override
+    public String toString() {
+        return "frames: " + frames + ", average: " + getAverageNanos() / 1000 + " us, max: " + maxNanos / 1000 + " us";
+    }
+}
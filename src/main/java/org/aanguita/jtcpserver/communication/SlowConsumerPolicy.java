@@ -0,0 +1,107 @@
+package org.aanguita.jtcpserver.communication;
+
+import java.io.File;
+
+/**
+ * Policy applied to the frames offered to a connection (CommunicationModule.offer) when the other point does not
+ * read them as fast as they are produced, typically a client that falls behind the broadcasts of a server. Frames
+ * written with write or writeAsync are never affected.
+ * <p/>
+ * The policy is evaluated each time a frame is offered. The connection is behind when its queued bytes would exceed
+ * maxQueuedBytes, or (DISCONNECT only) when its oldest queued frame has waited more than maxLagMillis. In that case:
+ * <p/>
+ * - DROP_OLDEST: the oldest offered frames not yet being written are discarded to make room for the new one
+ * - DROP_NEWEST: the new frame is discarded
+ * - CONFLATE: queued offered frames with the same conflation key as the new one (e.g. the same channel) are
+ * discarded, so only the most recent frame of each key is kept
+ * - DISCONNECT: the new frame is discarded, and the owner of the connection is expected to disconnect it
+ * - SPILL: the new frame is stored in a temporary file, and read back when the connection catches up
+ * <p/>
+ * Discarded frames have their futures cancelled. Objects of this class are immutable
+ */
+public final class SlowConsumerPolicy {
+
+    public enum Type {
+        DROP_OLDEST,
+        DROP_NEWEST,
+        CONFLATE,
+        DISCONNECT,
+        SPILL
+    }
+
+    private final Type type;
+
+    private final long maxQueuedBytes;
+
+    private final long maxLagMillis;
+
+    private final File spillDirectory;
+
+    private SlowConsumerPolicy(Type type, long maxQueuedBytes, long maxLagMillis, File spillDirectory) throws IllegalArgumentException {
+        if (maxQueuedBytes <= 0) {
+            throw new IllegalArgumentException("Max queued bytes must be positive: " + maxQueuedBytes);
+        }
+        this.type = type;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.maxLagMillis = maxLagMillis;
+        this.spillDirectory = spillDirectory;
+    }
+
+    public static SlowConsumerPolicy dropOldest(long maxQueuedBytes) throws IllegalArgumentException {
+        return new SlowConsumerPolicy(Type.DROP_OLDEST, maxQueuedBytes, -1L, null);
+    }
+
+    public static SlowConsumerPolicy dropNewest(long maxQueuedBytes) throws IllegalArgumentException {
+        return new SlowConsumerPolicy(Type.DROP_NEWEST, maxQueuedBytes, -1L, null);
+    }
+
+    public static SlowConsumerPolicy conflate(long maxQueuedBytes) throws IllegalArgumentException {
+        return new SlowConsumerPolicy(Type.CONFLATE, maxQueuedBytes, -1L, null);
+    }
+
+    /**
+     * Policy for disconnecting connections that fall behind
+     *
+     * @param maxQueuedBytes maximum bytes queued in the connection
+     * @param maxLagMillis   maximum time that a frame can wait in the queue, or a negative value for no time limit
+     * @return the policy
+     * @throws IllegalArgumentException if maxQueuedBytes is not positive
+     */
+    public static SlowConsumerPolicy disconnect(long maxQueuedBytes, long maxLagMillis) throws IllegalArgumentException {
+        return new SlowConsumerPolicy(Type.DISCONNECT, maxQueuedBytes, maxLagMillis, null);
+    }
+
+    /**
+     * Policy for spilling to disk the frames of connections that fall behind
+     *
+     * @param maxQueuedBytes maximum bytes kept in memory for the connection
+     * @param spillDirectory directory where the temporary spill files are created (null for the default temporary
+     *                       directory)
+     * @return the policy
+     * @throws IllegalArgumentException if maxQueuedBytes is not positive
+     */
+    public static SlowConsumerPolicy spill(long maxQueuedBytes, File spillDirectory) throws IllegalArgumentException {
+        return new SlowConsumerPolicy(Type.SPILL, maxQueuedBytes, -1L, spillDirectory);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    public long getMaxLagMillis() {
+        return maxLagMillis;
+    }
+
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    @Override
+    public String toString() {
+        return type + " (max queued bytes: " + maxQueuedBytes + (maxLagMillis >= 0 ? ", max lag: " + maxLagMillis + " ms)" : ")");
+    }
+}
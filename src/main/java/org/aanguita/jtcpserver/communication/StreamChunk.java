@@ -0,0 +1,42 @@
+package org.aanguita.jtcpserver.communication;
+
+/**
+ * A piece of a stream sent with CommunicationModule.writeStreamChunk. Chunks are received in order, one by one, so
+ * the stream never needs to be held whole in memory. The chunk marked as last ends the stream (its data can be
+ * empty).
+ * <p/>
+ * This object can only be created by classes of this package. It is returned as a result of a read operation on the
+ * CommunicationModule, or handed to its CommunicationAction
+ */
+public class StreamChunk {
+
+    /**
+     * Prefix of the stream (e.g. the channel of a ChannelModule)
+     */
+    private final byte prefix;
+
+    private final byte[] data;
+
+    /**
+     * Whether this chunk ends the stream
+     */
+    private final boolean last;
+
+    StreamChunk(byte prefix, byte[] data, boolean last) {
+        this.prefix = prefix;
+        this.data = data;
+        this.last = last;
+    }
+
+    public byte getPrefix() {
+        return prefix;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public boolean isLast() {
+        return last;
+    }
+}
@@ -0,0 +1,313 @@
+package org.aanguita.jtcpserver.communication.codec;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact codec. Each value is written as a one-byte tag followed by its contents, without any class descriptor:
+ * <p/>
+ * - null, Boolean, Byte, Short, Character, Integer, Long, Float, Double, String and byte[] are written natively
+ * (integers and lengths as variable-length integers)
+ * - ArrayList, HashMap and LinkedHashMap are written natively with their elements (other List and Map implementations
+ * are not, since they would be received as a different class)
+ * - classes registered with a TypeSerializer are written as their integer type ID plus the contents written by the
+ * serializer
+ * - any other Serializable object is written with Java serialization
+ * <p/>
+ * Both points of a connection must register the same classes with the same type IDs. Negative type IDs are reserved
+ * for the classes of jtcpserver itself.
+ * <p/>
+ * Values can be nested (collections and registered classes containing other values) up to MAX_NESTING_DEPTH levels.
+ * Deeper values are rejected with a StreamCorruptedException, both when encoding (e.g. a list containing itself) and
+ * when decoding, so a malicious peer cannot exhaust the stack of the reading thread.
+ * <p/>
+ * This class is thread-safe. Classes can be registered at any time, although they should be registered before any
+ * message of that class is sent or received
+ */
+public class BinaryCodec implements Codec {
+
+    private static final byte NULL = 0;
+
+    private static final byte TRUE = 1;
+
+    private static final byte FALSE = 2;
+
+    private static final byte BYTE = 3;
+
+    private static final byte SHORT = 4;
+
+    private static final byte CHAR = 5;
+
+    private static final byte INT = 6;
+
+    private static final byte LONG = 7;
+
+    private static final byte FLOAT = 8;
+
+    private static final byte DOUBLE = 9;
+
+    private static final byte STRING = 10;
+
+    private static final byte BYTE_ARRAY = 11;
+
+    private static final byte ARRAY_LIST = 12;
+
+    private static final byte HASH_MAP = 13;
+
+    private static final byte LINKED_HASH_MAP = 14;
+
+    private static final byte REGISTERED = 15;
+
+    private static final byte JAVA_SERIALIZED = 16;
+
+    /**
+     * Maximum levels of nested values in an encoded message (a top-level value is at level 1)
+     */
+    public static final int MAX_NESTING_DEPTH = 256;
+
+    private static class Registration {
+
+        private final int typeId;
+
+        private final Class<?> type;
+
+        private final TypeSerializer<Object> serializer;
+
+        private Registration(int typeId, Class<?> type, TypeSerializer<Object> serializer) {
+            this.typeId = typeId;
+            this.type = type;
+            this.serializer = serializer;
+        }
+    }
+
+    private final Map<Class<?>, Registration> registrationsByClass;
+
+    private final Map<Integer, Registration> registrationsById;
+
+    /**
+     * Codec for the objects not supported natively
+     */
+    private final JavaSerializationCodec javaSerializationCodec;
+
+    public BinaryCodec() {
+        registrationsByClass = new ConcurrentHashMap<>();
+        registrationsById = new ConcurrentHashMap<>();
+        javaSerializationCodec = new JavaSerializationCodec();
+    }
+
+    /**
+     * Registers a class, so its objects are encoded with the given serializer. Only objects of this exact class (not
+     * subclasses) are affected. Registering again the same class with the same type ID has no effect
+     *
+     * @param typeId     ID identifying the class in the encoded data
+     * @param type       the class to register
+     * @param serializer serializer for objects of the class
+     * @param <T>        the class to register
+     * @throws IllegalArgumentException if the class or the type ID are already registered with a different type ID
+     *                                  or class
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> void register(int typeId, Class<T> type, TypeSerializer<T> serializer) throws IllegalArgumentException {
+        Registration byClass = registrationsByClass.get(type);
+        Registration byId = registrationsById.get(typeId);
+        if (byClass != null && byClass == byId) {
+            // already registered
+            return;
+        } else if (byClass != null || byId != null) {
+            throw new IllegalArgumentException("Type ID " + typeId + " or class " + type.getName() + " already registered");
+        }
+        Registration registration = new Registration(typeId, type, (TypeSerializer<Object>) serializer);
+        registrationsById.put(typeId, registration);
+        registrationsByClass.put(type, registration);
+    }
+
+    /**
+     * Says whether a class is registered in this codec
+     *
+     * @param type the class to check
+     * @return true if the class is registered
+     */
+    public boolean isRegistered(Class<?> type) {
+        return registrationsByClass.containsKey(type);
+    }
+
+    @Override
+    public byte[] encode(Object message) throws IOException {
+        BinaryOutput output = new BinaryOutput(this);
+        writeObject(message, output);
+        return output.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] data) throws IOException, ClassNotFoundException {
+        BinaryInput input = new BinaryInput(this, data, 0, data.length);
+        return readObject(input);
+    }
+
+    void writeObject(Object value, BinaryOutput output) throws IOException {
+        if (++output.depth > MAX_NESTING_DEPTH) {
+            throw new StreamCorruptedException("Values nested deeper than " + MAX_NESTING_DEPTH + " levels");
+        }
+        try {
+            writeValue(value, output);
+        } finally {
+            output.depth--;
+        }
+    }
+
+    private void writeValue(Object value, BinaryOutput output) throws IOException {
+        if (value == null) {
+            output.writeByte(NULL);
+            return;
+        }
+        Class<?> type = value.getClass();
+        if (type == String.class) {
+            output.writeByte(STRING);
+            output.writeString((String) value);
+        } else if (type == Integer.class) {
+            output.writeByte(INT);
+            output.writeVarLong((Integer) value);
+        } else if (type == Long.class) {
+            output.writeByte(LONG);
+            output.writeVarLong((Long) value);
+        } else if (type == byte[].class) {
+            output.writeByte(BYTE_ARRAY);
+            output.writeBytes((byte[]) value);
+        } else if (type == Boolean.class) {
+            output.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (type == Byte.class) {
+            output.writeByte(BYTE);
+            output.writeByte((Byte) value);
+        } else if (type == Short.class) {
+            output.writeByte(SHORT);
+            output.writeShort((Short) value);
+        } else if (type == Character.class) {
+            output.writeByte(CHAR);
+            output.writeChar((Character) value);
+        } else if (type == Float.class) {
+            output.writeByte(FLOAT);
+            output.writeFloat((Float) value);
+        } else if (type == Double.class) {
+            output.writeByte(DOUBLE);
+            output.writeDouble((Double) value);
+        } else if (type == ArrayList.class) {
+            List<?> list = (List<?>) value;
+            output.writeByte(ARRAY_LIST);
+            output.writeVarInt(list.size());
+            for (Object element : list) {
+                writeObject(element, output);
+            }
+        } else if (type == HashMap.class || type == LinkedHashMap.class) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            output.writeByte(type == HashMap.class ? HASH_MAP : LINKED_HASH_MAP);
+            output.writeVarInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeObject(entry.getKey(), output);
+                writeObject(entry.getValue(), output);
+            }
+        } else {
+            Registration registration = registrationsByClass.get(type);
+            if (registration != null) {
+                output.writeByte(REGISTERED);
+                output.writeVarLong(registration.typeId);
+                registration.serializer.write(value, output);
+            } else if (value instanceof Serializable) {
+                output.writeByte(JAVA_SERIALIZED);
+                output.writeBytes(javaSerializationCodec.encode(value));
+            } else {
+                throw new NotSerializableException(type.getName());
+            }
+        }
+    }
+
+    Object readObject(BinaryInput input) throws IOException, ClassNotFoundException {
+        if (++input.depth > MAX_NESTING_DEPTH) {
+            throw new StreamCorruptedException("Values nested deeper than " + MAX_NESTING_DEPTH + " levels");
+        }
+        try {
+            return readValue(input);
+        } finally {
+            input.depth--;
+        }
+    }
+
+    private Object readValue(BinaryInput input) throws IOException, ClassNotFoundException {
+        byte tag = input.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case BYTE:
+                return input.readByte();
+            case SHORT:
+                return input.readShort();
+            case CHAR:
+                return input.readChar();
+            case INT:
+                return (int) input.readVarLong();
+            case LONG:
+                return input.readVarLong();
+            case FLOAT:
+                return input.readFloat();
+            case DOUBLE:
+                return input.readDouble();
+            case STRING:
+                return input.readString();
+            case BYTE_ARRAY:
+                return input.readBytes();
+            case ARRAY_LIST:
+                int size = readSize(input);
+                ArrayList<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readObject(input));
+                }
+                return list;
+            case HASH_MAP:
+            case LINKED_HASH_MAP:
+                int entries = readSize(input);
+                Map<Object, Object> map = tag == HASH_MAP ? new HashMap<>() : new LinkedHashMap<>();
+                for (int i = 0; i < entries; i++) {
+                    Object key = readObject(input);
+                    map.put(key, readObject(input));
+                }
+                return map;
+            case REGISTERED:
+                int typeId = (int) input.readVarLong();
+                Registration registration = registrationsById.get(typeId);
+                if (registration == null) {
+                    throw new ClassNotFoundException("No class registered with type ID " + typeId);
+                }
+                return registration.serializer.read(input);
+            case JAVA_SERIALIZED:
+                int length = input.readLength();
+                Object object = javaSerializationCodec.decode(input.getData(), input.getPosition(), length);
+                input.skip(length);
+                return object;
+            default:
+                throw new StreamCorruptedException("Unknown tag: " + tag);
+        }
+    }
+
+    /**
+     * Reads the number of elements of a collection. Each element takes at least one byte, which bounds the
+     * acceptable values
+     */
+    private static int readSize(BinaryInput input) throws IOException {
+        int size = input.readVarInt();
+        if (size < 0 || size > input.remaining()) {
+            throw new StreamCorruptedException("Invalid collection size: " + size);
+        }
+        return size;
+    }
+}
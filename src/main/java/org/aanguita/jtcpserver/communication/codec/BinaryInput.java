@@ -0,0 +1,156 @@
+package org.aanguita.jtcpserver.communication.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reader of the data written through a BinaryOutput. Reading past the end of the data raises an EOFException
+ */
+public class BinaryInput {
+
+    private final BinaryCodec codec;
+
+    private final byte[] data;
+
+    private int position;
+
+    private final int end;
+
+    /**
+     * Levels of nested values being read, checked by the codec
+     */
+    int depth;
+
+    BinaryInput(BinaryCodec codec, byte[] data, int offset, int length) {
+        this.codec = codec;
+        this.data = data;
+        position = offset;
+        end = offset + length;
+    }
+
+    public byte readByte() throws IOException {
+        require(1);
+        return data[position++];
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public short readShort() throws IOException {
+        require(2);
+        int value = ((data[position] & 0xFF) << 8) | (data[position + 1] & 0xFF);
+        position += 2;
+        return (short) value;
+    }
+
+    public char readChar() throws IOException {
+        return (char) readShort();
+    }
+
+    public int readInt() throws IOException {
+        require(4);
+        int value = ((data[position] & 0xFF) << 24) | ((data[position + 1] & 0xFF) << 16) | ((data[position + 2] & 0xFF) << 8) | (data[position + 3] & 0xFF);
+        position += 4;
+        return value;
+    }
+
+    public long readLong() throws IOException {
+        return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed variable-length int");
+    }
+
+    public long readVarLong() throws IOException {
+        long zigZag = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = readByte();
+            zigZag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigZag >>> 1) ^ -(zigZag & 1);
+            }
+        }
+        throw new StreamCorruptedException("Malformed variable-length long");
+    }
+
+    public String readString() throws IOException {
+        int length = readLength();
+        String value = new String(data, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+    }
+
+    public byte[] readBytes() throws IOException {
+        int length = readLength();
+        byte[] value = Arrays.copyOfRange(data, position, position + length);
+        position += length;
+        return value;
+    }
+
+    public Object readObject() throws IOException, ClassNotFoundException {
+        return codec.readObject(this);
+    }
+
+    /**
+     * Number of bytes not yet read
+     *
+     * @return the remaining bytes
+     */
+    public int remaining() {
+        return end - position;
+    }
+
+    /**
+     * Reads a length value, checking that the data actually contains that many bytes
+     *
+     * @return the read length
+     * @throws IOException if the length is invalid or exceeds the available data
+     */
+    int readLength() throws IOException {
+        int length = readVarInt();
+        if (length < 0) {
+            throw new StreamCorruptedException("Invalid length: " + length);
+        }
+        require(length);
+        return length;
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    int getPosition() {
+        return position;
+    }
+
+    void skip(int length) {
+        position += length;
+    }
+
+    private void require(int length) throws EOFException {
+        if (end - position < length) {
+            throw new EOFException();
+        }
+    }
+}
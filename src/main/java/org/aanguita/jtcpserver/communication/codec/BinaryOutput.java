@@ -0,0 +1,157 @@
+package org.aanguita.jtcpserver.communication.codec;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable output buffer used by the BinaryCodec. Multi-byte values are written in big endian order, and lengths and
+ * integers are written as variable-length integers where indicated
+ */
+public class BinaryOutput {
+
+    private static final int INITIAL_SIZE = 64;
+
+    private final BinaryCodec codec;
+
+    private byte[] buffer;
+
+    private int position;
+
+    /**
+     * Levels of nested values being written, checked by the codec
+     */
+    int depth;
+
+    BinaryOutput(BinaryCodec codec) {
+        this.codec = codec;
+        buffer = new byte[INITIAL_SIZE];
+        position = 0;
+    }
+
+    public void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) value;
+    }
+
+    public void writeBoolean(boolean value) {
+        writeByte(value ? 1 : 0);
+    }
+
+    public void writeShort(int value) {
+        ensureCapacity(2);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    public void writeChar(char value) {
+        writeShort(value);
+    }
+
+    public void writeInt(int value) {
+        ensureCapacity(4);
+        buffer[position++] = (byte) (value >>> 24);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    public void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    public void writeFloat(float value) {
+        writeInt(Float.floatToIntBits(value));
+    }
+
+    public void writeDouble(double value) {
+        writeLong(Double.doubleToLongBits(value));
+    }
+
+    /**
+     * Writes a non-negative int in 1 to 5 bytes (7 bits per byte, smaller values take fewer bytes)
+     *
+     * @param value the value to write
+     */
+    public void writeVarInt(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    /**
+     * Writes a long in 1 to 10 bytes. Values close to zero, positive or negative, take fewer bytes (zig-zag encoding)
+     *
+     * @param value the value to write
+     */
+    public void writeVarLong(long value) {
+        ensureCapacity(10);
+        long zigZag = (value << 1) ^ (value >> 63);
+        while ((zigZag & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((zigZag & 0x7F) | 0x80);
+            zigZag >>>= 7;
+        }
+        buffer[position++] = (byte) zigZag;
+    }
+
+    /**
+     * Writes a String as its UTF-8 length and bytes
+     *
+     * @param value the String to write (not null)
+     */
+    public void writeString(String value) {
+        writeBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a byte array as its length and contents
+     *
+     * @param value the array to write (not null)
+     */
+    public void writeBytes(byte[] value) {
+        writeVarInt(value.length);
+        writeRawBytes(value, 0, value.length);
+    }
+
+    /**
+     * Writes a portion of an array, without length information
+     *
+     * @param value  the array to write
+     * @param offset first position to write
+     * @param length number of bytes to write
+     */
+    public void writeRawBytes(byte[] value, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(value, offset, buffer, position, length);
+        position += length;
+    }
+
+    /**
+     * Writes any object supported by the codec (including null)
+     *
+     * @param value the object to write
+     * @throws IOException if the object cannot be encoded
+     */
+    public void writeObject(Object value) throws IOException {
+        codec.writeObject(value, this);
+    }
+
+    /**
+     * Copies the written bytes into a new array
+     *
+     * @return the written bytes
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+
+    private void ensureCapacity(int length) {
+        if (position + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+        }
+    }
+}
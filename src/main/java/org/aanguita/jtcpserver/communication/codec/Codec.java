@@ -0,0 +1,32 @@
+package org.aanguita.jtcpserver.communication.codec;
+
+import java.io.IOException;
+
+/**
+ * Encoding of the object messages sent through a CommunicationModule. The codec is set in the CommunicationConfig,
+ * and both points of a connection must use equivalent codecs.
+ * <p/>
+ * Implementations must be thread-safe, since a single codec is shared by all the modules using the same configuration
+ */
+public interface Codec {
+
+    /**
+     * Encodes an object message
+     *
+     * @param message the object to encode
+     * @return the encoded object
+     * @throws IOException if the object cannot be encoded (a java.io.NotSerializableException or a
+     *                     java.io.InvalidClassException if the object class is not supported)
+     */
+    byte[] encode(Object message) throws IOException;
+
+    /**
+     * Decodes an object message
+     *
+     * @param data the encoded object
+     * @return the decoded object
+     * @throws IOException            if the data is not correctly encoded
+     * @throws ClassNotFoundException if the data refers to a class or type that is not known to this codec
+     */
+    Object decode(byte[] data) throws IOException, ClassNotFoundException;
+}
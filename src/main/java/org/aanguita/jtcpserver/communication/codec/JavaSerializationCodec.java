@@ -0,0 +1,43 @@
+package org.aanguita.jtcpserver.communication.codec;
+
+import java.io.*;
+
+/**
+ * Codec based on standard Java serialization. This is the default codec, and the one used by the BinaryCodec for
+ * objects it does not support natively. Messages must implement Serializable
+ */
+public class JavaSerializationCodec implements Codec {
+
+    @Override
+    public byte[] encode(Object message) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
+        objectOutputStream.writeObject(message);
+        objectOutputStream.close();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] data) throws IOException, ClassNotFoundException {
+        return decode(data, 0, data.length);
+    }
+
+    /**
+     * Decodes an object stored in a portion of an array
+     *
+     * @param data   array containing the encoded object
+     * @param offset position of the array where the encoded object starts
+     * @param length length of the encoded object
+     * @return the decoded object
+     * @throws IOException            if the data is not correctly encoded
+     * @throws ClassNotFoundException if the class of the object is not found
+     */
+    public Object decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+        ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(data, offset, length));
+        try {
+            return objectInputStream.readObject();
+        } finally {
+            objectInputStream.close();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.aanguita.jtcpserver.communication.codec;
+
+import java.io.IOException;
+
+/**
+ * Encoding of one specific class in the BinaryCodec. Serializers are registered in the codec with an integer type ID,
+ * which is the only class information sent through the network
+ *
+ * @param <T> the class handled by this serializer
+ */
+public interface TypeSerializer<T> {
+
+    /**
+     * Writes the contents of an object. Nested objects can be written with output.writeObject
+     *
+     * @param value  the object to write
+     * @param output the output where the object contents are written
+     * @throws IOException if the object cannot be encoded
+     */
+    void write(T value, BinaryOutput output) throws IOException;
+
+    /**
+     * Reads an object previously written by the write method
+     *
+     * @param input the input with the object contents
+     * @return the read object
+     * @throws IOException            if the data is not correctly encoded
+     * @throws ClassNotFoundException if a nested object refers to an unknown class or type
+     */
+    T read(BinaryInput input) throws IOException, ClassNotFoundException;
+}
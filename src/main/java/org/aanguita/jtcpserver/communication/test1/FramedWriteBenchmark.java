@@ -0,0 +1,146 @@
+package org.aanguita.jtcpserver.communication.test1;
+
+import org.aanguita.jtcpserver.communication.CommunicationModule;
+import org.aanguita.jacuzzi.io.serialization.Serializer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Measures the cost of writing framed messages, comparing the former write path (header fields and payload written
+ * with separate calls, each header field in a freshly serialized array) with the current one (frame assembled and
+ * sent in one write).
+ * <p/>
+ * Every write call on a socket output stream is one send system call, and with TCP_NODELAY every small send leaves
+ * as a separate TCP segment, so writes per message approximate both syscalls and packets per message. Packets can be
+ * confirmed with "tcpdump -i lo port PORT" and syscalls with "strace -f -c -e trace=write,sendto" while the
+ * benchmark runs.
+ * <p/>
+ * Usage: FramedWriteBenchmark [messages per size]
+ */
+public class FramedWriteBenchmark {
+
+    private static final int[] SIZES = {16, 200, 1000, 70000};
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        System.out.println("Port: " + serverSocket.getLocalPort());
+        for (int size : SIZES) {
+            int count = size > 10000 ? messages / 100 : messages;
+            byte[] data = new byte[size];
+            runLegacy(serverSocket, data, count);
+            runCurrent(serverSocket, data, count);
+        }
+        serverSocket.close();
+        System.exit(0);
+    }
+
+    private static void runLegacy(ServerSocket serverSocket, byte[] data, int count) throws Exception {
+        CountingSocket socket = connect(serverSocket);
+        OutputStream outputStream = socket.getOutputStream();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            legacyWriteByteArrayToStream(outputStream, data);
+        }
+        report("legacy", data.length, count, socket.writes, System.nanoTime() - start);
+        socket.close();
+    }
+
+    private static void runCurrent(ServerSocket serverSocket, byte[] data, int count) throws Exception {
+        CountingSocket socket = connect(serverSocket);
+        CommunicationModule communicationModule = new CommunicationModule(socket);
+        long writesBefore = socket.writes;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            communicationModule.write(data);
+        }
+        report("current", data.length, count, socket.writes - writesBefore, System.nanoTime() - start);
+        communicationModule.disconnect();
+    }
+
+    private static CountingSocket connect(ServerSocket serverSocket) throws IOException {
+        CountingSocket socket = new CountingSocket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()));
+        final Socket peer = serverSocket.accept();
+        Thread drainer = new Thread() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[64 * 1024];
+                try {
+                    InputStream inputStream = peer.getInputStream();
+                    while (inputStream.read(buffer) >= 0) {
+                        // discard
+                    }
+                    peer.close();
+                } catch (IOException e) {
+                    // connection closed
+                }
+            }
+        };
+        drainer.setDaemon(true);
+        drainer.start();
+        return socket;
+    }
+
+    private static void report(String mode, int size, int count, long writes, long nanos) {
+        System.out.println(String.format("%-8s size=%6d  writes/message=%.2f  ns/message=%d", mode, size, (double) writes / count, nanos / count));
+    }
+
+    /**
+     * Former implementation of CommunicationModule.writeByteArrayToStream
+     */
+    private static void legacyWriteByteArrayToStream(OutputStream oos, byte[] data) throws IOException {
+        if (data.length > 0) {
+            if (data.length < 255) {
+                oos.write(Serializer.serialize((byte) data.length));
+            } else {
+                oos.write(Serializer.serialize((byte) 255));
+                if (data.length < 65536) {
+                    oos.write(Serializer.serialize((short) data.length));
+                } else {
+                    oos.write(Serializer.serialize((short) 0));
+                    oos.write(Serializer.serialize(data.length));
+                }
+            }
+            oos.write(data);
+        }
+    }
+
+    /**
+     * Socket that counts the write calls reaching its output stream
+     */
+    private static class CountingSocket extends Socket {
+
+        private long writes;
+
+        private OutputStream outputStream;
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (outputStream == null) {
+                outputStream = new FilterOutputStream(super.getOutputStream()) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        writes++;
+                        out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void write(int b) throws IOException {
+                        writes++;
+                        out.write(b);
+                    }
+                };
+            }
+            return outputStream;
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package org.aanguita.jtcpserver.concurrency;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel for running many timeouts with a single thread. Time is divided in ticks of a fixed duration,
+ * and the wheel is an array of buckets, one per tick, which the thread of the wheel visits in turn. Each timeout is
+ * kept in the bucket of the tick of its deadline, so starting, resetting and cancelling a timeout cost O(1)
+ * regardless of the number of timeouts, and each tick only visits the timeouts of its bucket.
+ * <p/>
+ * Timeouts are objects created once (newTimeout) and scheduled as many times as needed. Resetting a scheduled timeout
+ * just updates its deadline, without locking or allocating anything: the timeout stays in its bucket, and is moved to
+ * the bucket of its new deadline when the wheel visits it. Cancelling also just marks the timeout. Deadlines beyond
+ * one turn of the wheel are handled in the same way (the timeout is visited once per turn until its deadline).
+ * <p/>
+ * The duration of the tick is the precision of the wheel: a timeout expires at the first tick at or after its
+ * deadline, so it runs up to one tick late. Shorter ticks are more precise, but wake up the thread more often. The
+ * thread is started with the first timeout, and sleeps while there are no scheduled timeouts.
+ * <p/>
+ * Expired timeouts run in the thread of the wheel, so their tasks must be short (e.g. handing the actual work to
+ * another executor). Anything thrown by a task (errors included) is reported to the uncaught exception handler of the
+ * thread, and does not stop the wheel
+ */
+public class HashedTimerWheel {
+
+    /**
+     * Tick of the default wheel (millis)
+     */
+    public static final long DEFAULT_TICK_MILLIS = 10L;
+
+    /**
+     * Buckets of the default wheel
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * Deadline of timeouts that are not scheduled
+     */
+    private static final long NOT_SCHEDULED = Long.MIN_VALUE;
+
+    private static HashedTimerWheel defaultWheel = null;
+
+    /**
+     * A timeout of the wheel. It runs its task when its deadline is reached, unless it is rescheduled or cancelled
+     * before. A timeout can be scheduled again after it expires (including from its own task)
+     */
+    public static final class Timeout {
+
+        private static final AtomicLongFieldUpdater<Timeout> DEADLINE_UPDATER = AtomicLongFieldUpdater.newUpdater(Timeout.class, "deadline");
+
+        private final HashedTimerWheel wheel;
+
+        private final Runnable task;
+
+        /**
+         * Deadline in System.nanoTime time, or NOT_SCHEDULED
+         */
+        private volatile long deadline;
+
+        /**
+         * Whether this timeout is in a bucket of the wheel. Written under the lock of the wheel
+         */
+        private volatile boolean linked;
+
+        /**
+         * Links of the bucket list (guarded by the lock of the wheel)
+         */
+        private Timeout previous;
+
+        private Timeout next;
+
+        /**
+         * Bucket in which this timeout is linked (guarded by the lock of the wheel)
+         */
+        private int bucket;
+
+        /**
+         * Link of the list of expired timeouts (used only by the thread of the wheel)
+         */
+        private Timeout nextExpired;
+
+        private Timeout(HashedTimerWheel wheel, Runnable task) {
+            this.wheel = wheel;
+            this.task = task;
+            deadline = NOT_SCHEDULED;
+            linked = false;
+        }
+
+        /**
+         * Schedules this timeout, or resets it if already scheduled. A reset of a scheduled timeout neither locks
+         * nor allocates anything. A reset that happens at the same time as the expiration of the timeout may be late,
+         * and then the task is run anyway
+         *
+         * @param delayMillis time until the expiration of this timeout (millis)
+         */
+        public void schedule(long delayMillis) {
+            schedule(delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Schedules this timeout, or resets it if already scheduled
+         *
+         * @param delay time until the expiration of this timeout
+         * @param unit  unit of the delay
+         */
+        public void schedule(long delay, TimeUnit unit) {
+            long newDeadline = System.nanoTime() + unit.toNanos(Math.max(0L, delay));
+            if (newDeadline == NOT_SCHEDULED) {
+                newDeadline++;
+            }
+            deadline = newDeadline;
+            if (!linked) {
+                wheel.link(this);
+            }
+        }
+
+        /**
+         * Cancels this timeout. It stays in the wheel until its bucket is visited, but its task is not run (unless
+         * it was already expiring)
+         */
+        public void cancel() {
+            deadline = NOT_SCHEDULED;
+        }
+
+        /**
+         * Says whether this timeout is scheduled (it has not expired nor been cancelled)
+         *
+         * @return true if the timeout is scheduled
+         */
+        public boolean isScheduled() {
+            return deadline != NOT_SCHEDULED;
+        }
+
+        /**
+         * Marks this timeout as expired, unless its deadline changed
+         *
+         * @param deadline the deadline that was reached
+         * @return true if the timeout expired
+         */
+        private boolean expire(long deadline) {
+            return DEADLINE_UPDATER.compareAndSet(this, deadline, NOT_SCHEDULED);
+        }
+    }
+
+    private final String name;
+
+    private final long tickNanos;
+
+    /**
+     * Heads of the timeout lists of each bucket (guarded by this object)
+     */
+    private final Timeout[] buckets;
+
+    private final int mask;
+
+    private final ThreadMode threadMode;
+
+    /**
+     * Origin of the ticks
+     */
+    private final long startTime;
+
+    /**
+     * Last tick visited by the thread of the wheel (guarded by this object)
+     */
+    private long lastTick;
+
+    /**
+     * Timeouts linked in the buckets (guarded by this object)
+     */
+    private int linkedTimeouts;
+
+    /**
+     * Thread of the wheel, created with the first timeout (guarded by this object)
+     */
+    private Thread thread;
+
+    private volatile boolean stopped;
+
+    /**
+     * Class constructor
+     *
+     * @param name       name of the thread of the wheel
+     * @param tickMillis duration of the ticks (the precision of the timeouts, in millis)
+     * @param wheelSize  number of buckets (rounded up to a power of two). The wheel turns every tickMillis * wheelSize
+     *                   millis, and timeouts beyond that are visited once per turn
+     * @param threadMode kind of thread of the wheel
+     * @throws IllegalArgumentException if the tick or the wheel size are not positive
+     */
+    public HashedTimerWheel(String name, long tickMillis, int wheelSize, ThreadMode threadMode) throws IllegalArgumentException {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Invalid tick: " + tickMillis);
+        }
+        if (wheelSize <= 0 || wheelSize > 1 << 30) {
+            throw new IllegalArgumentException("Invalid wheel size: " + wheelSize);
+        }
+        this.name = name;
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+        buckets = new Timeout[size];
+        mask = size - 1;
+        this.threadMode = threadMode;
+        startTime = System.nanoTime();
+        lastTick = 0L;
+        linkedTimeouts = 0;
+        thread = null;
+        stopped = false;
+    }
+
+    /**
+     * The wheel shared by default by all modules (see CommunicationConfig.setTimerWheel), with a tick of
+     * DEFAULT_TICK_MILLIS. Its thread is a daemon thread
+     *
+     * @return the default wheel
+     */
+    public static synchronized HashedTimerWheel getDefault() {
+        if (defaultWheel == null) {
+            defaultWheel = new HashedTimerWheel("jtcpserver/timerWheel", DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE, ThreadMode.PLATFORM);
+        }
+        return defaultWheel;
+    }
+
+    /**
+     * Creates a new timeout of this wheel (not scheduled)
+     *
+     * @param task code run when the timeout expires
+     * @return the new timeout
+     */
+    public Timeout newTimeout(Runnable task) {
+        return new Timeout(this, task);
+    }
+
+    public long getTickMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+    /**
+     * Number of timeouts currently held by the wheel (including cancelled timeouts not yet visited)
+     *
+     * @return the number of timeouts in the buckets
+     */
+    public synchronized int size() {
+        return linkedTimeouts;
+    }
+
+    /**
+     * Stops the thread of this wheel. Pending timeouts never expire. The default wheel cannot be stopped
+     *
+     * @throws IllegalStateException if this is the default wheel
+     */
+    public void stop() throws IllegalStateException {
+        synchronized (HashedTimerWheel.class) {
+            if (this == defaultWheel) {
+                throw new IllegalStateException("The default wheel cannot be stopped");
+            }
+        }
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+    }
+
+    private synchronized void link(Timeout timeout) {
+        // re-checked under the lock: another thread (or the wheel) may have linked it meanwhile
+        long deadline = timeout.deadline;
+        if (timeout.linked || deadline == NOT_SCHEDULED || stopped) {
+            return;
+        }
+        if (thread == null) {
+            // ticks before the creation of the thread had no timeouts
+            lastTick = tickOf(System.nanoTime()) - 1;
+        }
+        insert(timeout, deadline);
+        if (thread == null) {
+            startThread();
+        } else if (linkedTimeouts == 1) {
+            // the thread may be waiting for timeouts
+            notifyAll();
+        }
+    }
+
+    /**
+     * Starts the thread of the wheel (invoked holding the lock of this object)
+     */
+    private void startThread() {
+        thread = threadMode.newThread(name, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runWheel();
+                } finally {
+                    threadEnded();
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * The thread of the wheel ended. Unless the wheel was stopped, this means that something escaped it (e.g. an
+     * OutOfMemoryError in the wheel itself), so a new thread takes over the pending timeouts
+     */
+    private synchronized void threadEnded() {
+        thread = null;
+        if (!stopped && linkedTimeouts > 0) {
+            startThread();
+        }
+    }
+
+    /**
+     * Links a timeout in the bucket of its deadline (invoked holding the lock of this object)
+     */
+    private void insert(Timeout timeout, long deadline) {
+        // a deadline within the current tick expires in the next one
+        long tick = Math.max(tickOf(deadline), lastTick + 1);
+        int bucket = (int) (tick & mask);
+        timeout.bucket = bucket;
+        timeout.previous = null;
+        timeout.next = buckets[bucket];
+        if (timeout.next != null) {
+            timeout.next.previous = timeout;
+        }
+        buckets[bucket] = timeout;
+        timeout.linked = true;
+        linkedTimeouts++;
+    }
+
+    /**
+     * Unlinks a timeout from its bucket (invoked holding the lock of this object)
+     */
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.linked = false;
+        linkedTimeouts--;
+    }
+
+    /**
+     * Tick in which a given time falls (rounded up, so a deadline never expires before its time)
+     */
+    private long tickOf(long time) {
+        long elapsed = time - startTime;
+        return elapsed <= 0 ? 0L : (elapsed + tickNanos - 1) / tickNanos;
+    }
+
+    private void runWheel() {
+        while (!stopped) {
+            long tick;
+            synchronized (this) {
+                while (linkedTimeouts == 0 && !stopped) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // ignore, only stop ends the wheel
+                    }
+                    // ticks elapsed while waiting had no timeouts
+                    lastTick = Math.max(lastTick, tickOf(System.nanoTime()) - 1);
+                }
+                tick = lastTick + 1;
+            }
+            // sleep until the end of the tick (no sleep if the wheel is behind)
+            long tickEnd = startTime + tick * tickNanos;
+            long sleep;
+            while ((sleep = tickEnd - System.nanoTime()) > 0 && !stopped) {
+                LockSupport.parkNanos(this, sleep);
+            }
+            runExpired(expireBucket(tick));
+        }
+    }
+
+    /**
+     * Visits the bucket of a tick, relinking the timeouts that were reset, discarding the cancelled ones, and
+     * collecting the expired ones
+     *
+     * @return the expired timeouts, linked through nextExpired
+     */
+    private synchronized Timeout expireBucket(long tick) {
+        int bucket = (int) (tick & mask);
+        // timeouts relinked to this same bucket (a turn later) are inserted at its head, behind the visit, so they
+        // are not visited again
+        Timeout timeout = buckets[bucket];
+        lastTick = tick;
+        Timeout expired = null;
+        long now = System.nanoTime();
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            unlink(timeout);
+            // the deadline is read after unlinking: a concurrent schedule either sees the timeout unlinked (and links
+            // it again once this lock is released) or its new deadline is seen here
+            while (true) {
+                long deadline = timeout.deadline;
+                if (deadline == NOT_SCHEDULED) {
+                    break;
+                } else if (deadline - now > 0) {
+                    insert(timeout, deadline);
+                    break;
+                } else if (timeout.expire(deadline)) {
+                    timeout.nextExpired = expired;
+                    expired = timeout;
+                    break;
+                }
+            }
+            timeout = next;
+        }
+        return expired;
+    }
+
+    private void runExpired(Timeout expired) {
+        while (expired != null) {
+            Timeout next = expired.nextExpired;
+            expired.nextExpired = null;
+            try {
+                expired.task.run();
+            } catch (Throwable t) {
+                Thread current = Thread.currentThread();
+                try {
+                    current.getUncaughtExceptionHandler().uncaughtException(current, t);
+                } catch (Throwable handlerFailure) {
+                    // nothing else can be done. The rest of the expired timeouts must still run
+                }
+            }
+            expired = next;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.aanguita.jtcpserver.concurrency;
+
+import org.aanguita.jacuzzi.queues.event_processing.MessageHandler;
+import org.aanguita.jacuzzi.queues.event_processing.MessageReader;
+import org.aanguita.jacuzzi.queues.event_processing.StopReadingMessages;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A loop that continuously reads messages from a MessageReader and hands them to a MessageHandler. It follows the
+ * same contract as the MessageProcessor of jacuzzi (reading stops when a StopReadingMessages object is read, and the
+ * handling of messages can be paused and resumed), but its threads are created according to a ThreadMode, so they
+ * can be virtual threads.
+ * <p/>
+ * Reading and handling can be performed by the same thread, or by two separate threads (so reading is not delayed
+ * by the handling of previous messages).
+ */
+public class MessageLoop {
+
+    private final String name;
+
+    private final MessageReader messageReader;
+
+    private final MessageHandler messageHandler;
+
+    private final ThreadMode threadMode;
+
+    /**
+     * Messages read but not yet handled, when separate threads are used (null otherwise)
+     */
+    private final BlockingQueue<Object> handlingQueue;
+
+    /**
+     * Whether the handling of messages is paused (guarded by this object)
+     */
+    private boolean paused;
+
+    private boolean started;
+
+    /**
+     * Class constructor. Reading and handling are performed by the same thread
+     *
+     * @param name           name of the thread
+     * @param messageReader  reader of messages
+     * @param messageHandler handler of the read messages
+     * @param threadMode     kind of thread to create
+     */
+    public MessageLoop(String name, MessageReader messageReader, MessageHandler messageHandler, ThreadMode threadMode) {
+        this(name, messageReader, messageHandler, false, threadMode);
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param name            name of the threads
+     * @param messageReader   reader of messages
+     * @param messageHandler  handler of the read messages
+     * @param separateThreads true if reading and handling must be performed by two separate threads
+     * @param threadMode      kind of threads to create
+     */
+    public MessageLoop(String name, MessageReader messageReader, MessageHandler messageHandler, boolean separateThreads, ThreadMode threadMode) {
+        this.name = name;
+        this.messageReader = messageReader;
+        this.messageHandler = messageHandler;
+        this.threadMode = threadMode;
+        handlingQueue = separateThreads ? new LinkedBlockingQueue<>() : null;
+        paused = false;
+        started = false;
+    }
+
+    /**
+     * Starts the threads of this loop. Successive invocations have no effect
+     */
+    public synchronized void start() {
+        if (!started) {
+            started = true;
+            if (handlingQueue == null) {
+                threadMode.newThread(name, new Runnable() {
+                    @Override
+                    public void run() {
+                        readAndHandle();
+                    }
+                }).start();
+            } else {
+                threadMode.newThread(name + "/reader", new Runnable() {
+                    @Override
+                    public void run() {
+                        read();
+                    }
+                }).start();
+                threadMode.newThread(name + "/handler", new Runnable() {
+                    @Override
+                    public void run() {
+                        handle();
+                    }
+                }).start();
+            }
+        }
+    }
+
+    /**
+     * Pauses the handling of messages. The message being handled, if any, is completed
+     */
+    public synchronized void pause() {
+        paused = true;
+    }
+
+    /**
+     * Resumes the handling of messages
+     */
+    public synchronized void resume() {
+        paused = false;
+        notifyAll();
+    }
+
+    private void readAndHandle() {
+        while (true) {
+            Object message = messageReader.readMessage();
+            if (message instanceof StopReadingMessages) {
+                messageReader.stopped();
+                messageHandler.finalizeHandler();
+                return;
+            }
+            if (!awaitNotPaused()) {
+                return;
+            }
+            messageHandler.handleMessage(message);
+        }
+    }
+
+    private void read() {
+        while (true) {
+            Object message = messageReader.readMessage();
+            handlingQueue.add(message);
+            if (message instanceof StopReadingMessages) {
+                messageReader.stopped();
+                return;
+            }
+        }
+    }
+
+    private void handle() {
+        while (true) {
+            Object message;
+            try {
+                message = handlingQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (message instanceof StopReadingMessages) {
+                messageHandler.finalizeHandler();
+                return;
+            }
+            if (!awaitNotPaused()) {
+                return;
+            }
+            messageHandler.handleMessage(message);
+        }
+    }
+
+    private synchronized boolean awaitNotPaused() {
+        while (paused) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
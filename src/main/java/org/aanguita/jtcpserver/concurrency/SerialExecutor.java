@@ -0,0 +1,246 @@
+package org.aanguita.jtcpserver.concurrency;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * A lightweight serial task queue on top of a (possibly shared) executor. Tasks submitted to this object are run one
+ * at a time and in submission order, but without a dedicated thread: while there are pending tasks, a single drain
+ * task is scheduled in the underlying executor. This allows many connections to share a small pool of threads while
+ * keeping the handling of each connection sequential.
+ * <p/>
+ * The drain task runs a limited batch of tasks, and then reschedules itself, so a busy queue does not monopolize a
+ * thread of the pool. The queue can be paused (pending tasks are kept until it is resumed) and shut down (further
+ * submissions are rejected, but already submitted tasks are still run).
+ * <p/>
+ * Besides Runnables, events can be delivered to a handler (deliver method). The event and its handler are queued
+ * as they are, so delivering events that already exist (e.g. received messages) to a reusable handler allocates no
+ * objects (beyond the occasional growth of the queue, and whatever the underlying executor allocates for scheduling
+ * the drain task).
+ * <p/>
+ * Anything thrown by tasks (errors included) is reported to the uncaught exception handler of the running thread,
+ * and does not stop the queue
+ */
+public class SerialExecutor implements Executor {
+
+    /**
+     * Maximum tasks run by a drain task before rescheduling itself
+     */
+    private static final int MAX_BATCH = 64;
+
+    /**
+     * Marks the tasks that are plain Runnables (they have no event)
+     */
+    private static final Object NO_EVENT = new Object();
+
+    /**
+     * Executor on which the tasks are actually run
+     */
+    private final Executor executor;
+
+    /**
+     * Pending tasks, stored as pairs (Runnable and NO_EVENT, or handler and event) (guarded by this object)
+     */
+    private final ArrayDeque<Object> tasks;
+
+    /**
+     * Task that runs the pending tasks
+     */
+    private final Runnable drainTask;
+
+    /**
+     * Whether a drain task is scheduled or running (guarded by this object)
+     */
+    private boolean scheduled;
+
+    private boolean paused;
+
+    private boolean shutdown;
+
+    /**
+     * Class constructor
+     *
+     * @param executor executor on which the tasks are run. It can be shared by any number of serial executors
+     */
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+        tasks = new ArrayDeque<>();
+        drainTask = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+        scheduled = false;
+        paused = false;
+        shutdown = false;
+    }
+
+    /**
+     * Submits a task. It will run after all previously submitted tasks have finished
+     *
+     * @param task the task to run
+     * @throws RejectedExecutionException if this serial executor was shut down, or the underlying executor rejected
+     *                                    the drain task
+     */
+    @Override
+    public void execute(Runnable task) throws RejectedExecutionException {
+        enqueue(task, NO_EVENT);
+    }
+
+    /**
+     * Submits an event for a handler. The handler will receive it after all previously submitted tasks have finished
+     *
+     * @param handler handler of the event
+     * @param event   the event (not null)
+     * @param <E>     type of the event
+     * @throws RejectedExecutionException if this serial executor was shut down, or the underlying executor rejected
+     *                                    the drain task
+     */
+    public <E> void deliver(Consumer<? super E> handler, E event) throws RejectedExecutionException {
+        enqueue(handler, event);
+    }
+
+    private void enqueue(Object task, Object event) throws RejectedExecutionException {
+        synchronized (this) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Serial executor is shut down");
+            }
+            tasks.add(task);
+            tasks.add(event);
+            if (scheduled || paused) {
+                return;
+            }
+            scheduled = true;
+        }
+        schedule();
+    }
+
+    private void schedule() throws RejectedExecutionException {
+        try {
+            executor.execute(drainTask);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                scheduled = false;
+            }
+            throw e;
+        }
+    }
+
+    private void drain() {
+        boolean completed = false;
+        try {
+            drainBatches();
+            completed = true;
+        } finally {
+            if (!completed) {
+                // something escaped the drain task: the queue must not stay marked as scheduled
+                drainAborted();
+            }
+        }
+    }
+
+    private void drainAborted() {
+        synchronized (this) {
+            scheduled = !paused && !tasks.isEmpty();
+            if (!scheduled) {
+                return;
+            }
+        }
+        try {
+            schedule();
+        } catch (RejectedExecutionException e) {
+            // the underlying executor no longer accepts tasks. Pending tasks run with the next submission
+        }
+    }
+
+    private void drainBatches() {
+        while (true) {
+            for (int i = 0; i < MAX_BATCH; i++) {
+                Object task;
+                Object event;
+                synchronized (this) {
+                    if (paused || tasks.isEmpty()) {
+                        scheduled = false;
+                        return;
+                    }
+                    task = tasks.poll();
+                    event = tasks.poll();
+                }
+                try {
+                    run(task, event);
+                } catch (Throwable t) {
+                    Thread thread = Thread.currentThread();
+                    try {
+                        thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+                    } catch (Throwable handlerFailure) {
+                        // nothing else can be done. The rest of the tasks must still run
+                    }
+                }
+            }
+            // give other serial executors a chance to use this thread
+            try {
+                executor.execute(drainTask);
+                return;
+            } catch (RejectedExecutionException e) {
+                // the underlying executor no longer accepts tasks -> keep draining in this thread
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void run(Object task, Object event) {
+        if (event == NO_EVENT) {
+            ((Runnable) task).run();
+        } else {
+            ((Consumer<Object>) task).accept(event);
+        }
+    }
+
+    /**
+     * Pauses the execution of tasks. The task currently running (if any) is not affected. If already paused, nothing
+     * happens
+     */
+    public synchronized void pause() {
+        paused = true;
+    }
+
+    /**
+     * Resumes the execution of tasks. If not paused, nothing happens
+     */
+    public void resume() {
+        synchronized (this) {
+            if (!paused) {
+                return;
+            }
+            paused = false;
+            if (scheduled || tasks.isEmpty()) {
+                return;
+            }
+            scheduled = true;
+        }
+        try {
+            schedule();
+        } catch (RejectedExecutionException e) {
+            // the underlying executor was shut down, the pending tasks can no longer run
+        }
+    }
+
+    /**
+     * Rejects further submissions. Tasks already submitted are still run
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+    }
+
+    /**
+     * Retrieves the number of tasks waiting to be run (the running task, if any, is not included)
+     *
+     * @return the number of pending tasks
+     */
+    public synchronized int size() {
+        return tasks.size() / 2;
+    }
+}
@@ -0,0 +1,111 @@
+package org.aanguita.jtcpserver.concurrency;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Kind of threads created by the modules of this library for reading, dispatching and handling messages.
+ * <p/>
+ * Virtual threads require a Java 21 (or later) runtime. They are created through reflection, so the library itself
+ * can still be compiled for and run on older runtimes (where only platform threads are available).
+ */
+public enum ThreadMode {
+
+    /**
+     * Classic operating system threads
+     */
+    PLATFORM,
+
+    /**
+     * Virtual threads. Blocking socket operations in these threads do not pin a platform thread
+     */
+    VIRTUAL;
+
+    /**
+     * Virtual thread builder factory method (Thread.ofVirtual), or null if not supported by the runtime
+     */
+    private static final Method OF_VIRTUAL;
+
+    /**
+     * Thread.Builder.name(String, long) method
+     */
+    private static final Method BUILDER_NAME;
+
+    /**
+     * Thread.Builder.factory() method
+     */
+    private static final Method BUILDER_FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderFactory = null;
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builderClass.getMethod("name", String.class, long.class);
+            builderFactory = builderClass.getMethod("factory");
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            // runtime older than Java 21 -> virtual threads not supported
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+    }
+
+    /**
+     * Says whether the current runtime supports virtual threads
+     *
+     * @return true if virtual threads can be created
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates a factory for threads of this kind
+     *
+     * @param name prefix for the names of the created threads (a sequence number is appended)
+     * @return the thread factory
+     * @throws UnsupportedOperationException if virtual threads are requested but the runtime does not support them
+     */
+    public ThreadFactory threadFactory(final String name) throws UnsupportedOperationException {
+        if (this == PLATFORM) {
+            return new ThreadFactory() {
+
+                private final AtomicInteger threadCount = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, name + "-" + threadCount.getAndIncrement());
+                }
+            };
+        } else {
+            if (!isVirtualThreadsSupported()) {
+                throw new UnsupportedOperationException("Virtual threads require a Java 21 or later runtime");
+            }
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name + "-", 0L);
+                return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new UnsupportedOperationException("Could not create virtual threads", e);
+            }
+        }
+    }
+
+    /**
+     * Creates a new (not started) thread of this kind
+     *
+     * @param name     name of the thread
+     * @param runnable code run by the thread
+     * @return the new thread
+     * @throws UnsupportedOperationException if virtual threads are requested but the runtime does not support them
+     */
+    public Thread newThread(String name, Runnable runnable) throws UnsupportedOperationException {
+        Thread thread = threadFactory(name).newThread(runnable);
+        thread.setName(name);
+        return thread;
+    }
+}
@@ -0,0 +1,182 @@
+package org.aanguita.jtcpserver.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies (in nanoseconds), cheap enough to be always on. Values are counted in log-linear buckets:
+ * each power of two is split in 8 buckets, so the value reported for a percentile is at most 12.5% above the actual
+ * one. Values from 0 to 2^46 nanos (about 19 hours) are told apart, and bigger values fall in the last bucket.
+ * <p/>
+ * Recording a value costs one atomic increment of its bucket plus the update of the total (a LongAdder, so
+ * concurrent recorders do not contend), and never allocates anything once the total has adapted to the contention.
+ * The maximum is only written when it grows. Reads (count, percentiles) walk the buckets, and are meant for
+ * monitoring, not for the recording path.
+ * <p/>
+ * This class is thread-safe. Reads made while values are being recorded may see some of them partially (e.g. in
+ * the count, but not yet in the total)
+ */
+public final class LatencyHistogram {
+
+    /**
+     * Number of buckets of each power of two (as a number of bits)
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Highest power of two told apart
+     */
+    private static final int MAX_EXPONENT = 45;
+
+    /**
+     * Number of buckets of every histogram
+     */
+    public static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets;
+
+    private final LongAdder totalNanos;
+
+    private final AtomicLong maxNanos;
+
+    public LatencyHistogram() {
+        buckets = new AtomicLongArray(BUCKET_COUNT);
+        totalNanos = new LongAdder();
+        maxNanos = new AtomicLong();
+    }
+
+    /**
+     * Records a latency
+     *
+     * @param nanos the latency (nanos). Negative values count as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucketIndex(nanos));
+        totalNanos.add(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * Computes the bucket of a value
+     *
+     * @param value the value (not negative)
+     * @return the index of its bucket
+     */
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Retrieves the highest value counted in a bucket
+     *
+     * @param index index of the bucket (0 to BUCKET_COUNT - 1)
+     * @return the upper bound of the bucket (nanos, Long.MAX_VALUE for the last bucket)
+     */
+    public static long getBucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        } else if (index == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((long) (SUB_BUCKETS + subBucket)) * width + width - 1;
+    }
+
+    /**
+     * Retrieves the number of values counted in a bucket
+     *
+     * @param index index of the bucket (0 to BUCKET_COUNT - 1)
+     * @return the values of the bucket
+     */
+    public long getBucketCount(int index) {
+        return buckets.get(index);
+    }
+
+    /**
+     * Retrieves the number of recorded values
+     *
+     * @return the recorded values
+     */
+    public long getCount() {
+        long count = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * Retrieves the average of the recorded values
+     *
+     * @return the average latency (nanos, 0 if nothing was recorded)
+     */
+    public long getMeanNanos() {
+        long count = getCount();
+        return count > 0 ? getTotalNanos() / count : 0L;
+    }
+
+    /**
+     * Retrieves a percentile of the recorded values
+     *
+     * @param percentile the percentile (greater than 0, up to 100)
+     * @return the upper bound of the bucket where the percentile falls (never above the maximum), or 0 if nothing
+     * was recorded
+     * @throws IllegalArgumentException if the percentile is not valid
+     */
+    public long getPercentileNanos(double percentile) throws IllegalArgumentException {
+        if (!(percentile > 0d && percentile <= 100d)) {
+            throw new IllegalArgumentException("Invalid percentile: " + percentile);
+        }
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0L;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100d);
+        long accumulated = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            accumulated += counts[i];
+            if (accumulated >= rank) {
+                return Math.min(getBucketUpperBound(i), getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+
+    @Override
+    public String toString() {
+        return "count: " + getCount() + ", mean: " + getMeanNanos() / 1000 + " us, p50: " + getPercentileNanos(50d) / 1000 +
+                " us, p99: " + getPercentileNanos(99d) / 1000 + " us, max: " + getMaxNanos() / 1000 + " us";
+    }
+}
@@ -0,0 +1,266 @@
+package org.aanguita.jtcpserver.metrics;
+
+import org.aanguita.jtcpserver.tcpconnection.server.TCPServer;
+import org.aanguita.jtcpserver.tcpconnection.server.TCPServerAction;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal HTTP listener that serves the metrics of a MetricsSource in the Prometheus text format, for scraping. It
+ * answers GET requests to /metrics (or /) and closes each connection after the response. The listening is done by a
+ * TCPServer.
+ * <p/>
+ * Requests are attended one by one by the thread of the TCPServer, since scrapes are rare and cheap (the metrics are
+ * read from live counters). A client must send its whole request (request line and headers) within REQUEST_TIMEOUT,
+ * however slowly it trickles the bytes, or it is disconnected, so it cannot hold the listener for long. Requests are
+ * read with a fixed budget of bytes, lines and headers, and bigger ones are answered with a 400 error without
+ * reading the rest.
+ */
+public final class MetricsHttpServer implements TCPServerAction {
+
+    /**
+     * Time given to clients for sending their whole request (millis)
+     */
+    private static final int REQUEST_TIMEOUT = 5000;
+
+    /**
+     * Longest request line accepted
+     */
+    private static final int MAX_REQUEST_LINE = 2048;
+
+    /**
+     * Longest header line accepted
+     */
+    private static final int MAX_HEADER_LINE = 2048;
+
+    /**
+     * Maximum number of headers accepted
+     */
+    private static final int MAX_HEADERS = 64;
+
+    /**
+     * Maximum bytes of a request (request line and headers)
+     */
+    private static final int MAX_REQUEST_BYTES = 8192;
+
+    /**
+     * The request of a client exceeded the limits of its lines, headers or bytes
+     */
+    private static final class RequestTooLargeException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Reads the lines of the request of a client. All the reads share one deadline (the timeout of the socket is
+     * set before each one to the time left) and one budget of bytes
+     */
+    private static final class RequestReader {
+
+        private final Socket socket;
+
+        private final InputStream inputStream;
+
+        /**
+         * System.nanoTime by which the request must have been read
+         */
+        private final long deadline;
+
+        private final byte[] buffer;
+
+        private int position;
+
+        private int limit;
+
+        private int remainingBytes;
+
+        private RequestReader(Socket socket) throws IOException {
+            this.socket = socket;
+            inputStream = socket.getInputStream();
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REQUEST_TIMEOUT);
+            buffer = new byte[512];
+            position = 0;
+            limit = 0;
+            remainingBytes = MAX_REQUEST_BYTES;
+        }
+
+        /**
+         * Reads a line, without its line terminator (LF or CRLF)
+         *
+         * @param maxLength maximum length of the line
+         * @return the line, or null if the client closed the connection before sending any byte of it
+         * @throws IOException the client closed the connection in the middle of the line, did not send it in time,
+         *                     or exceeded the limits (RequestTooLargeException)
+         */
+        private String readLine(int maxLength) throws IOException {
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                if (position == limit && !fill()) {
+                    if (line.length() == 0) {
+                        return null;
+                    }
+                    throw new IOException("Connection closed in the middle of a line");
+                }
+                if (remainingBytes-- == 0) {
+                    throw new RequestTooLargeException();
+                }
+                char c = (char) (buffer[position++] & 0xFF);
+                if (c == '\n') {
+                    int length = line.length();
+                    if (length > 0 && line.charAt(length - 1) == '\r') {
+                        line.setLength(length - 1);
+                    }
+                    return line.toString();
+                }
+                if (line.length() > maxLength) {
+                    // one more char is allowed, for the CR of the terminator
+                    throw new RequestTooLargeException();
+                }
+                line.append(c);
+            }
+        }
+
+        private boolean fill() throws IOException {
+            long timeLeft = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (timeLeft <= 0) {
+                throw new SocketTimeoutException("Request not received in time");
+            }
+            socket.setSoTimeout((int) timeLeft);
+            int read = inputStream.read(buffer);
+            if (read < 0) {
+                return false;
+            }
+            position = 0;
+            limit = read;
+            return true;
+        }
+    }
+
+    private final MetricsSource metricsSource;
+
+    private final TCPServer tcpServer;
+
+    /**
+     * Class constructor
+     *
+     * @param port          port for listening scrapes (0 for any free port)
+     * @param metricsSource metrics to serve
+     */
+    public MetricsHttpServer(int port, MetricsSource metricsSource) {
+        this.metricsSource = metricsSource;
+        tcpServer = new TCPServer(port, this);
+    }
+
+    /**
+     * Starts serving the metrics. If already started, this method does nothing
+     *
+     * @throws IOException the listening socket could not be opened
+     */
+    public void start() throws IOException {
+        tcpServer.startServer();
+    }
+
+    /**
+     * Stops serving the metrics. The server can be started again
+     */
+    public void stop() {
+        tcpServer.stopServer();
+    }
+
+    public boolean isRunning() {
+        return tcpServer.isRunning();
+    }
+
+    /**
+     * Retrieves the actual port opened for listening scrapes
+     *
+     * @return the listening port (-1 if the server is not running)
+     */
+    public int getActualPort() {
+        return tcpServer.getActualPort();
+    }
+
+    /**
+     * Generates the current exposition of the metrics
+     *
+     * @return the metrics, in the Prometheus text format
+     */
+    public String scrape() {
+        PrometheusWriter writer = new PrometheusWriter();
+        metricsSource.writeMetrics(writer);
+        return writer.toString();
+    }
+
+    @Override
+    public void processNewConnection(Socket clientSocket) {
+        try {
+            RequestReader reader = new RequestReader(clientSocket);
+            String requestLine;
+            try {
+                requestLine = reader.readLine(MAX_REQUEST_LINE);
+                if (requestLine == null) {
+                    return;
+                }
+                // skip the headers
+                int headers = 0;
+                String header = reader.readLine(MAX_HEADER_LINE);
+                while (header != null && !header.isEmpty()) {
+                    if (++headers > MAX_HEADERS) {
+                        throw new RequestTooLargeException();
+                    }
+                    header = reader.readLine(MAX_HEADER_LINE);
+                }
+            } catch (RequestTooLargeException e) {
+                respond(clientSocket, "400 Bad Request", "text/plain; charset=utf-8", "Request too large\n", true);
+                return;
+            }
+            String[] request = requestLine.split(" ");
+            if (request.length < 2) {
+                respond(clientSocket, "400 Bad Request", "text/plain; charset=utf-8", "Bad request\n", true);
+            } else if (!request[0].equals("GET") && !request[0].equals("HEAD")) {
+                respond(clientSocket, "405 Method Not Allowed", "text/plain; charset=utf-8", "Method not allowed\n", true);
+            } else if (!isMetricsPath(request[1])) {
+                respond(clientSocket, "404 Not Found", "text/plain; charset=utf-8", "Not found\n", !request[0].equals("HEAD"));
+            } else {
+                respond(clientSocket, "200 OK", PrometheusWriter.CONTENT_TYPE, scrape(), !request[0].equals("HEAD"));
+            }
+        } catch (IOException e) {
+            // the client went away or did not send its request in time -> nothing to answer
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static boolean isMetricsPath(String target) {
+        int query = target.indexOf('?');
+        String path = query >= 0 ? target.substring(0, query) : target;
+        return path.equals("/metrics") || path.equals("/");
+    }
+
+    private static void respond(Socket clientSocket, String status, String contentType, String body, boolean includeBody) throws IOException {
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + "\r\nContent-Type: " + contentType + "\r\nContent-Length: " + bodyBytes.length +
+                "\r\nConnection: close\r\n\r\n";
+        OutputStream outputStream = clientSocket.getOutputStream();
+        outputStream.write(head.getBytes(StandardCharsets.ISO_8859_1));
+        if (includeBody) {
+            outputStream.write(bodyBytes);
+        }
+        outputStream.flush();
+    }
+
+    @Override
+    public void error(Exception e) {
+        // the listening socket failed. The TCPServer is stopped, and can be started again with start
+    }
+}
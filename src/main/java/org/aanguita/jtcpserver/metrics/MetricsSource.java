@@ -0,0 +1,15 @@
+package org.aanguita.jtcpserver.metrics;
+
+/**
+ * A set of metrics that can be exposed in the Prometheus text format (see MetricsHttpServer)
+ */
+public interface MetricsSource {
+
+    /**
+     * Writes the current value of the metrics. Values must be read from live counters, as this method is invoked
+     * with every scrape
+     *
+     * @param writer writer of the exposition
+     */
+    public void writeMetrics(PrometheusWriter writer);
+}
@@ -0,0 +1,161 @@
+package org.aanguita.jtcpserver.metrics;
+
+import java.util.Map;
+
+/**
+ * Writes metrics in the Prometheus text exposition format (version 0.0.4). Each metric is written as a header (help
+ * and type lines) followed by its samples.
+ * <p/>
+ * Latency histograms are exposed in seconds, with one bucket per power of two from about 1 microsecond to about 34
+ * seconds (the buckets of LatencyHistogram are grouped).
+ * <p/>
+ * This class is not thread-safe. A new writer is used for each exposition
+ */
+public final class PrometheusWriter {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * Powers of two of the first and last latency buckets exposed (in nanos)
+     */
+    private static final int MIN_EXPOSED_EXPONENT = 9;
+
+    private static final int MAX_EXPOSED_EXPONENT = 34;
+
+    private static final double NANOS_PER_SECOND = 1e9d;
+
+    private final StringBuilder text;
+
+    public PrometheusWriter() {
+        text = new StringBuilder();
+    }
+
+    /**
+     * Writes the help and type lines of a metric
+     *
+     * @param name name of the metric
+     * @param help description of the metric
+     * @param type type of the metric (counter, gauge or histogram)
+     */
+    public void header(String name, String help, String type) {
+        text.append("# HELP ").append(name).append(' ').append(help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Writes a sample without labels
+     *
+     * @param name  name of the metric
+     * @param value value of the sample
+     */
+    public void sample(String name, long value) {
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Writes a sample without labels
+     *
+     * @param name  name of the metric
+     * @param value value of the sample
+     */
+    public void sample(String name, double value) {
+        text.append(name).append(' ').append(formatDouble(value)).append('\n');
+    }
+
+    /**
+     * Writes a sample with one label
+     *
+     * @param name       name of the metric
+     * @param labelName  name of the label
+     * @param labelValue value of the label
+     * @param value      value of the sample
+     */
+    public void sample(String name, String labelName, String labelValue, long value) {
+        text.append(name).append('{').append(labelName).append("=\"").append(escapeLabelValue(labelValue)).append("\"} ").append(value).append('\n');
+    }
+
+    /**
+     * Writes a counter without labels
+     *
+     * @param name  name of the counter (ending in _total)
+     * @param help  description of the counter
+     * @param value value of the counter
+     */
+    public void counter(String name, String help, long value) {
+        header(name, help, "counter");
+        sample(name, value);
+    }
+
+    /**
+     * Writes a gauge without labels
+     *
+     * @param name  name of the gauge
+     * @param help  description of the gauge
+     * @param value value of the gauge
+     */
+    public void gauge(String name, String help, long value) {
+        header(name, help, "gauge");
+        sample(name, value);
+    }
+
+    /**
+     * Writes a latency histogram, in seconds
+     *
+     * @param name      name of the histogram (ending in _seconds)
+     * @param help      description of the histogram
+     * @param histogram the histogram
+     */
+    public void histogram(String name, String help, LatencyHistogram histogram) {
+        header(name, help, "histogram");
+        // counts are read once, so that buckets and count are consistent with each other
+        long cumulative = 0L;
+        int exponent = MIN_EXPOSED_EXPONENT;
+        int nextExposed = lastBucketOfExponent(exponent);
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            cumulative += histogram.getBucketCount(i);
+            if (i == nextExposed && exponent <= MAX_EXPOSED_EXPONENT) {
+                String le = formatDouble((LatencyHistogram.getBucketUpperBound(i) + 1) / NANOS_PER_SECOND);
+                text.append(name).append("_bucket{le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+                nextExposed = lastBucketOfExponent(++exponent);
+            }
+        }
+        text.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        sample(name + "_sum", histogram.getTotalNanos() / NANOS_PER_SECOND);
+        sample(name + "_count", cumulative);
+    }
+
+    /**
+     * Writes a counter with one sample per value of a label
+     *
+     * @param name      name of the counter (ending in _total)
+     * @param help      description of the counter
+     * @param labelName name of the label
+     * @param samples   value of the counter for each value of the label
+     */
+    public void counter(String name, String help, String labelName, Map<String, Long> samples) {
+        header(name, help, "counter");
+        for (Map.Entry<String, Long> sample : samples.entrySet()) {
+            sample(name, labelName, sample.getKey(), sample.getValue());
+        }
+    }
+
+    private static int lastBucketOfExponent(int exponent) {
+        return LatencyHistogram.bucketIndex((1L << (exponent + 1)) - 1);
+    }
+
+    private static String formatDouble(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String escapeLabelValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+}
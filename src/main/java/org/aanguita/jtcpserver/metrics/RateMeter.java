@@ -0,0 +1,103 @@
+package org.aanguita.jtcpserver.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events and measures their rate over the last seconds. Events are counted in a ring of per-second buckets,
+ * covering the last minute. A bucket is reused when its second has passed: the first event of the new second resets
+ * it.
+ * <p/>
+ * Marking an event takes an atomic increment (plus a compare-and-set at the first event of each second) and does not
+ * allocate. This class is thread-safe
+ */
+public final class RateMeter {
+
+    /**
+     * Seconds covered by the ring (one more second is kept, as the current one is still being counted)
+     */
+    public static final int MAX_SECONDS = 60;
+
+    private static final int BUCKETS = MAX_SECONDS + 1;
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long origin;
+
+    private final LongAdder count;
+
+    private final AtomicLongArray bucketCounts;
+
+    /**
+     * Second (since the origin) that each bucket is counting
+     */
+    private final AtomicLongArray bucketSeconds;
+
+    public RateMeter() {
+        origin = System.nanoTime();
+        count = new LongAdder();
+        bucketCounts = new AtomicLongArray(BUCKETS);
+        bucketSeconds = new AtomicLongArray(BUCKETS);
+    }
+
+    /**
+     * Counts one event
+     */
+    public void mark() {
+        count.increment();
+        long second = currentSecond();
+        int bucket = (int) (second % BUCKETS);
+        long bucketSecond = bucketSeconds.get(bucket);
+        if (bucketSecond != second) {
+            if (bucketSecond < second && bucketSeconds.compareAndSet(bucket, bucketSecond, second)) {
+                bucketCounts.set(bucket, 0L);
+            }
+            // else, another thread reset it (an event of a past second reaching this point late is lost)
+        }
+        bucketCounts.incrementAndGet(bucket);
+    }
+
+    /**
+     * Retrieves the number of events counted since this meter was created
+     *
+     * @return the counted events
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Retrieves the average rate of the events over the last complete seconds
+     *
+     * @param seconds number of seconds to average (1 to MAX_SECONDS)
+     * @return the events per second
+     * @throws IllegalArgumentException if the number of seconds is not valid
+     */
+    public double getRatePerSecond(int seconds) throws IllegalArgumentException {
+        if (seconds < 1 || seconds > MAX_SECONDS) {
+            throw new IllegalArgumentException("Invalid number of seconds: " + seconds);
+        }
+        long current = currentSecond();
+        long events = 0L;
+        for (long second = current - seconds; second < current; second++) {
+            if (second < 0) {
+                continue;
+            }
+            int bucket = (int) (second % BUCKETS);
+            if (bucketSeconds.get(bucket) == second) {
+                events += bucketCounts.get(bucket);
+            }
+        }
+        return (double) events / seconds;
+    }
+
+    private long currentSecond() {
+        return (System.nanoTime() - origin) / NANOS_PER_SECOND;
+    }
+
+    @Override
+    public String toString() {
+        return "count: " + getCount() + ", rate (1s): " + getRatePerSecond(1) + "/s, rate (" + MAX_SECONDS + "s): " + getRatePerSecond(MAX_SECONDS) + "/s";
+    }
+}
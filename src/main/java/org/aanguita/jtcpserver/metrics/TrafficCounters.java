@@ -0,0 +1,217 @@
+package org.aanguita.jtcpserver.metrics;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the messages and bytes that flow through a connection (or through a group of them), in each direction and
+ * per lane. Lanes are the channels of the channel layer (0 to 255), plus a default lane (-1) for the messages of the
+ * communication layer that do not belong to any channel. Besides, the bytes actually read from and written to the
+ * socket are counted, including the framing and the frames that are not messages (handshakes, heartbeats).
+ * <p/>
+ * The counters of a lane are created at its first message. Afterwards, counting takes two increments of LongAdders,
+ * so concurrent writers do not contend and nothing is allocated. If a parent is given, everything counted here is
+ * counted in it too (this is how the server aggregates the traffic of all its clients).
+ * <p/>
+ * This class is thread-safe
+ */
+public final class TrafficCounters {
+
+    /**
+     * Lane of the messages that do not belong to any channel
+     */
+    public static final int DEFAULT_LANE = -1;
+
+    private static final int LANES = 257;
+
+    private static final class LaneCounters {
+
+        private final LongAdder messagesIn = new LongAdder();
+
+        private final LongAdder bytesIn = new LongAdder();
+
+        private final LongAdder messagesOut = new LongAdder();
+
+        private final LongAdder bytesOut = new LongAdder();
+    }
+
+    private final TrafficCounters parent;
+
+    private final AtomicReferenceArray<LaneCounters> lanes;
+
+    private final LongAdder bytesRead;
+
+    private final LongAdder bytesWritten;
+
+    public TrafficCounters() {
+        this(null);
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param parent counters that also count everything counted here (null for none)
+     */
+    public TrafficCounters(TrafficCounters parent) {
+        this.parent = parent;
+        lanes = new AtomicReferenceArray<>(LANES);
+        bytesRead = new LongAdder();
+        bytesWritten = new LongAdder();
+    }
+
+    /**
+     * Counts a received message
+     *
+     * @param lane  lane of the message (0 to 255, or DEFAULT_LANE)
+     * @param bytes size of the message on the wire
+     */
+    public void messageIn(int lane, long bytes) {
+        LaneCounters counters = laneCounters(lane);
+        counters.messagesIn.increment();
+        counters.bytesIn.add(bytes);
+        if (parent != null) {
+            parent.messageIn(lane, bytes);
+        }
+    }
+
+    /**
+     * Counts a sent message
+     *
+     * @param lane  lane of the message (0 to 255, or DEFAULT_LANE)
+     * @param bytes size of the message on the wire
+     */
+    public void messageOut(int lane, long bytes) {
+        LaneCounters counters = laneCounters(lane);
+        counters.messagesOut.increment();
+        counters.bytesOut.add(bytes);
+        if (parent != null) {
+            parent.messageOut(lane, bytes);
+        }
+    }
+
+    /**
+     * Counts bytes read from the socket
+     *
+     * @param bytes the read bytes
+     */
+    public void bytesRead(long bytes) {
+        bytesRead.add(bytes);
+        if (parent != null) {
+            parent.bytesRead(bytes);
+        }
+    }
+
+    /**
+     * Counts bytes written to the socket
+     *
+     * @param bytes the written bytes
+     */
+    public void bytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+        if (parent != null) {
+            parent.bytesWritten(bytes);
+        }
+    }
+
+    private static int laneIndex(int lane) {
+        return lane == DEFAULT_LANE ? LANES - 1 : lane & 0xFF;
+    }
+
+    private LaneCounters laneCounters(int lane) {
+        int index = laneIndex(lane);
+        LaneCounters counters = lanes.get(index);
+        if (counters == null) {
+            lanes.compareAndSet(index, null, new LaneCounters());
+            counters = lanes.get(index);
+        }
+        return counters;
+    }
+
+    /**
+     * Tells whether a lane has carried any message
+     *
+     * @param lane the lane (0 to 255, or DEFAULT_LANE)
+     * @return true if some message was counted in the lane
+     */
+    public boolean isLaneUsed(int lane) {
+        return lanes.get(laneIndex(lane)) != null;
+    }
+
+    public long getMessagesIn(int lane) {
+        LaneCounters counters = lanes.get(laneIndex(lane));
+        return counters != null ? counters.messagesIn.sum() : 0L;
+    }
+
+    public long getBytesIn(int lane) {
+        LaneCounters counters = lanes.get(laneIndex(lane));
+        return counters != null ? counters.bytesIn.sum() : 0L;
+    }
+
+    public long getMessagesOut(int lane) {
+        LaneCounters counters = lanes.get(laneIndex(lane));
+        return counters != null ? counters.messagesOut.sum() : 0L;
+    }
+
+    public long getBytesOut(int lane) {
+        LaneCounters counters = lanes.get(laneIndex(lane));
+        return counters != null ? counters.bytesOut.sum() : 0L;
+    }
+
+    public long getTotalMessagesIn() {
+        long total = 0L;
+        for (int i = 0; i < LANES; i++) {
+            LaneCounters counters = lanes.get(i);
+            if (counters != null) {
+                total += counters.messagesIn.sum();
+            }
+        }
+        return total;
+    }
+
+    public long getTotalBytesIn() {
+        long total = 0L;
+        for (int i = 0; i < LANES; i++) {
+            LaneCounters counters = lanes.get(i);
+            if (counters != null) {
+                total += counters.bytesIn.sum();
+            }
+        }
+        return total;
+    }
+
+    public long getTotalMessagesOut() {
+        long total = 0L;
+        for (int i = 0; i < LANES; i++) {
+            LaneCounters counters = lanes.get(i);
+            if (counters != null) {
+                total += counters.messagesOut.sum();
+            }
+        }
+        return total;
+    }
+
+    public long getTotalBytesOut() {
+        long total = 0L;
+        for (int i = 0; i < LANES; i++) {
+            LaneCounters counters = lanes.get(i);
+            if (counters != null) {
+                total += counters.bytesOut.sum();
+            }
+        }
+        return total;
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "messages in: " + getTotalMessagesIn() + " (" + getTotalBytesIn() + " bytes), messages out: " + getTotalMessagesOut() +
+                " (" + getTotalBytesOut() + " bytes), bytes read: " + getBytesRead() + ", bytes written: " + getBytesWritten();
+    }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 
 /**
  * This class implements a method for connecting to a TCP server. The method is static, as no data is stored in its objects
@@ -39,4 +40,37 @@ public class TCPClient {
         socket.connect(new InetSocketAddress(ip, port), timeout);
         return socket;
     }
+
+    /**
+     * Attempts to connect to an open TCP server, creating the socket from a SocketChannel (as required by the event
+     * loop transport of the CommunicationModule)
+     *
+     * @param ip   ip address of the server
+     * @param port port of the server
+     * @return the socket for communicating with the other communication end
+     * @throws java.io.IOException           there was an IO error when attempting to open the communication channel with the TCP server
+     * @throws java.net.UnknownHostException the host could not be found
+     */
+    @SuppressWarnings("DuplicateThrows")
+    public static Socket connectChannel(String ip, int port) throws UnknownHostException, IOException {
+        return SocketChannel.open(new InetSocketAddress(ip, port)).socket();
+    }
+
+    /**
+     * Attempts to connect to an open TCP server with a specific timeout, creating the socket from a SocketChannel (as
+     * required by the event loop transport of the CommunicationModule)
+     *
+     * @param ip      ip address of the server
+     * @param port    port of the server
+     * @param timeout connection timeout, in millis
+     * @return the socket for communicating with the other communication end
+     * @throws java.io.IOException           there was an IO error when attempting to open the communication channel with the TCP server
+     * @throws java.net.UnknownHostException the host could not be found
+     */
+    @SuppressWarnings("DuplicateThrows")
+    public static Socket connectChannel(String ip, int port, int timeout) throws UnknownHostException, IOException {
+        Socket socket = SocketChannel.open().socket();
+        socket.connect(new InetSocketAddress(ip, port), timeout);
+        return socket;
+    }
 }
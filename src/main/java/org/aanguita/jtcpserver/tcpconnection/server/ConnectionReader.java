@@ -4,7 +4,9 @@ import org.aanguita.jacuzzi.queues.event_processing.MessageReader;
 import org.aanguita.jacuzzi.queues.event_processing.StopReadingMessages;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 
 /**
  * Implementation of the message reader interface for listening for connections from clients
@@ -27,13 +29,20 @@ final class ConnectionReader implements MessageReader {
      * Creates a new connection reader for handling incoming connections and starts running it
      *
      * @param tcpServer TCP server to which this connection reader belongs to. Only needed to report stop in case of non-recoverable error
-     * @param port      listening port for incoming connections
+     * @param port           listening port for incoming connections
+     * @param socketChannels whether accepted sockets must be created from socket channels
      * @throws java.io.IOException when there are problems opening the tcp server socket on the specified port
      */
-    public ConnectionReader(TCPServer tcpServer, int port) throws IOException {
+    public ConnectionReader(TCPServer tcpServer, int port, boolean socketChannels) throws IOException {
         this.tcpServer = tcpServer;
         socketClosed = false;
-        serverSocket = new ServerSocket(port);
+        if (socketChannels) {
+            ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+            serverSocketChannel.socket().bind(new InetSocketAddress(port));
+            serverSocket = serverSocketChannel.socket();
+        } else {
+            serverSocket = new ServerSocket(port);
+        }
     }
 
     public void stopServerSocket() {
@@ -58,7 +67,8 @@ final class ConnectionReader implements MessageReader {
 
     public Object readMessage() {
         try {
-            return serverSocket.accept();
+            // for channel-based server sockets, the socket of the accepted channel is returned
+            return serverSocket.getChannel() != null ? serverSocket.getChannel().accept().socket() : serverSocket.accept();
         } catch (IOException e) {
             boolean mustIssueStopReadingMessages;
             synchronized (this) {
@@ -1,6 +1,7 @@
 package org.aanguita.jtcpserver.tcpconnection.server;
 
-import org.aanguita.jacuzzi.queues.event_processing.MessageProcessor;
+import org.aanguita.jtcpserver.concurrency.MessageLoop;
+import org.aanguita.jtcpserver.concurrency.ThreadMode;
 
 import java.io.IOException;
 
@@ -11,6 +12,9 @@ import java.io.IOException;
  * <p/>
  * Server can be started, stopped, and restarted (although port and TCPServerAction parameters are given at construction time and cannot be
  * modified later on)
+ * <p/>
+ * Optionally, accepted sockets can be created from SocketChannels, so their connections can be multiplexed by an EventLoopGroup, and the
+ * listening threads can be virtual threads
  */
 public final class TCPServer {
 
@@ -26,9 +30,19 @@ public final class TCPServer {
     private final TCPServerAction tcpServerAction;
 
     /**
-     * Message processor in charge of accepting and handling incoming client connections
+     * Whether accepted sockets are created from socket channels
+     */
+    private final boolean socketChannels;
+
+    /**
+     * Kind of threads used for accepting and handling connections
+     */
+    private final ThreadMode threadMode;
+
+    /**
+     * Message loop in charge of accepting and handling incoming client connections
      */
-    private MessageProcessor connectionProcessor;
+    private MessageLoop connectionProcessor;
 
 
     private ConnectionReader connectionReader;
@@ -45,22 +59,49 @@ public final class TCPServer {
      * @param tcpServerAction actions to invoke upon new connections or errors
      */
     public TCPServer(int port, TCPServerAction tcpServerAction) {
+        this(port, tcpServerAction, false);
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param port            port for listening connections
+     * @param tcpServerAction actions to invoke upon new connections or errors
+     * @param socketChannels  true if accepted sockets must be created from socket channels (required by the event loop
+     *                        transport of the CommunicationModule)
+     */
+    public TCPServer(int port, TCPServerAction tcpServerAction, boolean socketChannels) {
+        this(port, tcpServerAction, socketChannels, ThreadMode.PLATFORM);
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param port            port for listening connections
+     * @param tcpServerAction actions to invoke upon new connections or errors
+     * @param socketChannels  true if accepted sockets must be created from socket channels (required by the event loop
+     *                        transport of the CommunicationModule)
+     * @param threadMode      kind of threads used for accepting and handling connections
+     */
+    public TCPServer(int port, TCPServerAction tcpServerAction, boolean socketChannels, ThreadMode threadMode) {
         this.port = port;
         this.tcpServerAction = tcpServerAction;
+        this.socketChannels = socketChannels;
+        this.threadMode = threadMode;
         running = false;
     }
 
     /**
-     * Initializes the message processor for accepting connections (but does not start it)
+     * Initializes the message loop for accepting connections (but does not start it)
      *
      * @param port            por for listening connections
      * @param tcpServerAction actions to invoke upon new connections or errors
-     * @throws IOException there was an error initializing the socket for listening to connections. The message processor will remain
+     * @throws IOException there was an error initializing the socket for listening to connections. The message loop will remain
      *                     uninitialized
      */
     private synchronized void initializeConnectionProcessor(int port, TCPServerAction tcpServerAction) throws IOException {
-        connectionReader = new ConnectionReader(this, port);
-        connectionProcessor = new MessageProcessor("TCPServer", connectionReader, new ConnectionHandler(this, tcpServerAction), true);
+        connectionReader = new ConnectionReader(this, port, socketChannels);
+        connectionProcessor = new MessageLoop("TCPServer", connectionReader, new ConnectionHandler(this, tcpServerAction), true, threadMode);
     }
 
     /**